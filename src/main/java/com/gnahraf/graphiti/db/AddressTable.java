@@ -6,13 +6,15 @@ package com.gnahraf.graphiti.db;
 
 
 import com.gnahraf.util.list.BaseList;
+import com.gnahraf.util.list.LongSlice;
+import com.gnahraf.util.mem.Allocator;
 import com.gnahraf.util.mem.Buff;
+import com.gnahraf.util.datatypes.Pinterval;
 import com.gnahraf.util.datatypes.ShortInt;
 import com.gnahraf.util.datatypes.ShortIntId;
 import com.gnahraf.util.mem.Table;
 
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 
@@ -34,9 +36,9 @@ import static com.gnahraf.util.datatypes.Primitives.*;
  * <pre>{@literal
  *
  * <N.TYPE>  : <SHORT>
- * <N.ID>    : <TRYTE>
- * <E.IDX>   : <TRYTE>
- * <E.COUNT> : <SHORT>
+ * <N.ID>    : <TRYTE>   (<INT> with 32-bit node IDs)
+ * <E.IDX>   : <TRYTE>   (<INT> in the wide layout)
+ * <E.COUNT> : <SHORT>   (<INT> in the wide layout)
  *
  * }
  * </pre><br/>
@@ -126,6 +128,9 @@ public class AddressTable extends Table {
 
 
 
+    /**
+     * Row size in the {@linkplain Layout#NARROW narrow} layout.
+     */
     public final static int ROW_SIZE =
             Sizeof.SHORT +
             Sizeof.TRYTE +
@@ -135,21 +140,87 @@ public class AddressTable extends Table {
 
 
     private final List<ShortInt> nodeIds;
+    private volatile NodeSearch search = NodeSearch.newSearch(NodeSearch.Kind.BINARY, this);
+    private volatile NodeTypeDirectory directory;
+    private final LongSlice packedNodeIds = new LongSlice() {
+        @Override
+        public int size() {
+            return AddressTable.this.size();
+        }
+        @Override
+        protected long getLongImpl(int index) {
+            return getPackedNodeId(index);
+        }
+    };
+
+    private final Layout layout;
+    private final int rowPtrWidth;
+    private final int countWidth;
+    private final int idWidth;
+    /**
+     * Offset of the out-bound <tt>E.IDX</tt> column.
+     */
+    private final int edgesOffset;
 
 
 
     public AddressTable(int initCapacity) {
-        super(initCapacity);
-        nodeIds = nodeIdView();
+        this(initCapacity, Allocator.HEAP);
+    }
+
+    public AddressTable(int initCapacity, Allocator allocator) {
+        this(initCapacity, allocator, UNPAGED);
     }
 
 
+    public AddressTable(int initCapacity, Allocator allocator, int pageShift) {
+        this(initCapacity, allocator, pageShift, Layout.NARROW);
+    }
+
+    public AddressTable(int initCapacity, Allocator allocator, int pageShift, Layout layout) {
+        super(layout.addressRowSize(), initCapacity, allocator, pageShift);
+        this.layout = layout;
+        this.rowPtrWidth = layout.rowPtrWidth;
+        this.countWidth = layout.typeCountWidth;
+        this.idWidth = layout.idWidth;
+        this.edgesOffset = Sizeof.SHORT + idWidth;
+        nodeIds = nodeIdView();
+    }
+
     public AddressTable(Buff data, int size) {
-        super(data, size);
+        this(Layout.NARROW, data, size);
+    }
+
+    public AddressTable(Layout layout, Buff data, int size) {
+        super(layout.addressRowSize(), data, size);
+        this.layout = layout;
+        this.rowPtrWidth = layout.rowPtrWidth;
+        this.countWidth = layout.typeCountWidth;
+        this.idWidth = layout.idWidth;
+        this.edgesOffset = Sizeof.SHORT + idWidth;
+        nodeIds = nodeIdView();
+    }
+
+    public AddressTable(Buff[] pages, int pageShift, int size) {
+        this(Layout.NARROW, pages, pageShift, size);
+    }
+
+    public AddressTable(Layout layout, Buff[] pages, int pageShift, int size) {
+        super(layout.addressRowSize(), pages, pageShift, size);
+        this.layout = layout;
+        this.rowPtrWidth = layout.rowPtrWidth;
+        this.countWidth = layout.typeCountWidth;
+        this.idWidth = layout.idWidth;
+        this.edgesOffset = Sizeof.SHORT + idWidth;
         nodeIds = nodeIdView();
     }
 
 
+    public Layout getLayout() {
+        return layout;
+    }
+
+
     public Address getAddress(short nodeType, int nodeId) {
         int index = indexOf(nodeType, nodeId);
         if (index < 0)
@@ -165,15 +236,16 @@ public class AddressTable extends Table {
 //        assert(type == nodeType && id == nodeId);
 //        offset += Sizeof.TRYTE;
 
-        int offset = offset(index) + Sizeof.SHORT + Sizeof.TRYTE;
+        Buff page = page(index);
+        int offset = offset(index) + edgesOffset;
         
-        int outEdgeRow = data.getTryte(offset);
-        offset += Sizeof.TRYTE;
-        int outEdgeRowCount = unsign( data.getShort(offset) );
-        offset += Sizeof.SHORT;
-        int inEdgeRow = data.getTryte(offset);
-        offset += Sizeof.TRYTE;
-        int inEdgeRowCount = unsign( data.getShort(offset) );
+        int outEdgeRow = Layout.get(page, offset, rowPtrWidth);
+        offset += rowPtrWidth;
+        int outEdgeRowCount = Layout.get(page, offset, countWidth);
+        offset += countWidth;
+        int inEdgeRow = Layout.get(page, offset, rowPtrWidth);
+        offset += rowPtrWidth;
+        int inEdgeRowCount = Layout.get(page, offset, countWidth);
 
         return new Address(
                 nodeType, nodeId,
@@ -184,34 +256,32 @@ public class AddressTable extends Table {
 
     public short getNodeType(int index) {
         int offset = offset(index);
-        return data.getShort(offset);
+        return page(index).getShort(offset);
     }
 
 
     public int getNodeId(int index) {
         int offset = offset(index) + Sizeof.SHORT;
-        return data.getTryte(offset);
+        return Layout.get(page(index), offset, idWidth);
     }
 
 
     public int getEdgeRow(boolean inbound, int index) {
-        int offset = offset(index) + Sizeof.SHORT + Sizeof.TRYTE;
-        if (inbound)
-            offset += Sizeof.TRYTE + Sizeof.SHORT;
-        return data.getTryte(offset);
+        int offset = edgeRowOffset(inbound, index);
+        return Layout.get(page(index), offset, rowPtrWidth);
     }
 
 
     public int getEdgeRowCount(boolean inbound, int index) {
-        int offset = edgeRowCountOffset(inbound, index);
-        return unsign(data.getShort(offset));
+        int offset = edgeRowOffset(inbound, index) + rowPtrWidth;
+        return Layout.get(page(index), offset, countWidth);
     }
 
 
-    private int edgeRowCountOffset(boolean inbound, int index) {
-        int offset = offset(index) + Sizeof.SHORT + Sizeof.TRYTE + Sizeof.TRYTE;
+    private int edgeRowOffset(boolean inbound, int index) {
+        int offset = offset(index) + edgesOffset;
         if (inbound)
-            offset += Sizeof.SHORT + Sizeof.TRYTE;
+            offset += rowPtrWidth + countWidth;
         return offset;
     }
 
@@ -238,6 +308,7 @@ public class AddressTable extends Table {
             int outEdgeRow, int outEdgeRowCount,
             int inEdgeRow, int inEdgeRowCount) {
 
+        Buff page;
         int offset;
         {
             int index = size();
@@ -262,25 +333,122 @@ public class AddressTable extends Table {
             }
 
             ensureAvailable();
+            page = page(index);
             offset = offset(index);
         }
 
-        data.putShort(nodeType, offset);
-        offset += Sizeof.SHORT;
-        data.putTryte(nodeId, offset);
-        offset += Sizeof.TRYTE;
-        data.putTryte(outEdgeRow, offset);
-        offset += Sizeof.TRYTE;
-        data.putShort(unsignedShort(outEdgeRowCount), offset);
-        offset += Sizeof.SHORT;
-        data.putTryte(inEdgeRow, offset);
-        offset += Sizeof.TRYTE;
-        data.putShort(unsignedShort(inEdgeRowCount), offset);
+        putEntry(page, offset,
+                nodeType, nodeId,
+                outEdgeRow, outEdgeRowCount,
+                inEdgeRow, inEdgeRowCount);
 
         incrSize();
     }
 
 
+    /**
+     * Overwrites the row at the given index. Unlike the <tt>appendEntry</tt> methods,
+     * this does not check the row is in sequence. Rows in distinct indices may be set
+     * concurrently.
+     *
+     * @see #presize(int)
+     */
+    void setEntry(
+            int index,
+            short nodeType, int nodeId,
+            int outEdgeRow, int outEdgeRowCount,
+            int inEdgeRow, int inEdgeRowCount) {
+
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException(index + " (size " + size() + ")");
+        putEntry(page(index), offset(index),
+                nodeType, nodeId,
+                outEdgeRow, outEdgeRowCount,
+                inEdgeRow, inEdgeRowCount);
+    }
+
+
+    /**
+     * Sets the number of rows in the table, so that they may be filled in out of sequence
+     * using {@linkplain #setEntry(int, short, int, int, int, int, int) setEntry}.
+     */
+    void presize(int size) {
+        setSize(size);
+    }
+
+
+    /**
+     * Appends the <tt>other</tt> table's rows in the range [<tt>from</tt>, <tt>to</tt>),
+     * adding <tt>edgeRowDelta</tt> to their edge row pointers. The rows are copied in bulk
+     * if the tables have the same layout. The run's edge rows must be contiguous, starting
+     * from <tt>edgeRow</tt> in the other table.
+     *
+     * @return the other table's edge row following the run's
+     * @throws IllegalStateException if the run's edge rows are not contiguous
+     */
+    int appendRun(AddressTable other, int from, int to, int edgeRow, int edgeRowDelta) {
+        int index = size();
+        if (index > 0 && from < to) {
+            int end = index - 1;
+            long comp = GraphMerger.compare(
+                    getNodeType(end), getNodeId(end), other.getNodeType(from), other.getNodeId(from));
+            if (comp >= 0)
+                throw new IllegalArgumentException(
+                        "out of sequence run at [" + from + ", " + to + ")");
+        }
+
+        if (other.layout == layout)
+            copyFrom(other, new Pinterval(from, to), index);
+        else {
+            setSize(index + to - from);
+            for (int i = from, j = index; i < to; ++i, ++j)
+                putEntry(page(j), offset(j),
+                        other.getNodeType(i), other.getNodeId(i),
+                        other.getEdgeRow(false, i), other.getEdgeRowCount(false, i),
+                        other.getEdgeRow(true, i), other.getEdgeRowCount(true, i));
+        }
+
+        // rebase (the edge row of a direction with no edges stays zero)
+        for (int end = size(); index < end; ++index) {
+            Buff page = page(index);
+            int offset = offset(index) + edgesOffset;
+            for (int d = 0; d < 2; ++d, offset += rowPtrWidth + countWidth) {
+                int count = Layout.get(page, offset + rowPtrWidth, countWidth);
+                if (count == 0)
+                    continue;
+                int row = Layout.get(page, offset, rowPtrWidth);
+                if (row != edgeRow)
+                    throw new IllegalStateException(
+                            "non-contiguous edge rows at address row " + index +
+                            ": expected " + edgeRow + "; actual " + row);
+                Layout.put(page, row + edgeRowDelta, offset, rowPtrWidth);
+                edgeRow += count;
+            }
+        }
+        return edgeRow;
+    }
+
+
+    private void putEntry(
+            Buff page, int offset,
+            short nodeType, int nodeId,
+            int outEdgeRow, int outEdgeRowCount,
+            int inEdgeRow, int inEdgeRowCount) {
+
+        page.putShort(nodeType, offset);
+        offset += Sizeof.SHORT;
+        Layout.put(page, nodeId, offset, idWidth);
+        offset += idWidth;
+        Layout.put(page, outEdgeRow, offset, rowPtrWidth);
+        offset += rowPtrWidth;
+        Layout.put(page, outEdgeRowCount, offset, countWidth);
+        offset += countWidth;
+        Layout.put(page, inEdgeRow, offset, rowPtrWidth);
+        offset += rowPtrWidth;
+        Layout.put(page, inEdgeRowCount, offset, countWidth);
+    }
+
+
 
     public void incrLastEdgeCount(boolean inbound) {
         incrLastEdgeCount(inbound, 1);
@@ -288,13 +456,12 @@ public class AddressTable extends Table {
 
 
     public void setLastEdge(boolean inbound, int edgeRow, int edgeRowCount) {
-        int offset = offset(lastIndex()) + Sizeof.SHORT + Sizeof.TRYTE;
-        if (inbound)
-            offset += Sizeof.TRYTE + Sizeof.SHORT;
-        short usEdgeRowCount = unsignedShort(edgeRowCount);
-        data.putTryte(edgeRow, offset);
-        offset += Sizeof.TRYTE;
-        data.putShort(usEdgeRowCount, offset);
+        int index = lastIndex();
+        Buff page = page(index);
+        int offset = edgeRowOffset(inbound, index);
+        Layout.put(page, edgeRow, offset, rowPtrWidth);
+        offset += rowPtrWidth;
+        Layout.put(page, edgeRowCount, offset, countWidth);
     }
 
 
@@ -313,8 +480,8 @@ public class AddressTable extends Table {
         if (count == amount)
             throw new IllegalStateException(
                     "attempt to increment edge count before edge row set");
-        int offset = edgeRowCountOffset(inbound, index);
-        data.putShort(unsignedShort(count), offset);
+        int offset = edgeRowOffset(inbound, index) + rowPtrWidth;
+        Layout.put(page(index), count, offset, countWidth);
     }
 
 
@@ -333,14 +500,57 @@ public class AddressTable extends Table {
     }
 
 
-    @Override
-    protected final int itemSize() {
-        return ROW_SIZE;
+    /**
+     * Returns the row index of the given node, if found; <tt>-(insertion point) - 1</tt>,
+     * otherwise. The search reads the key columns directly, and doesn't allocate (once
+     * the table's {@linkplain #indexTypes() node type directory} is built). It's narrowed
+     * to the node type's rows, and skipped altogether if the type's IDs are dense.
+     *
+     * @see #setSearch(NodeSearch.Kind)
+     */
+    protected int indexOf(short nodeType, int nodeId) {
+        return indexTypes().indexOf(nodeType, nodeId, search);
     }
 
 
-    protected int indexOf(short nodeType, int nodeId) {
-        return Collections.binarySearch(nodeIds, new ShortInt(nodeType, nodeId));
+    /**
+     * Returns the row index of the given {@linkplain ShortInt#pack(short, int) packed} node,
+     * if found; <tt>-(insertion point) - 1</tt>, otherwise.
+     */
+    int indexOf(long qualifiedNodeId) {
+        return indexOf(ShortInt.packedType(qualifiedNodeId), ShortInt.packedId(qualifiedNodeId));
+    }
+
+
+    /**
+     * Returns the {@linkplain NodeTypeDirectory node type directory}, building it first if
+     * it's missing or stale. It's cheap to build (a binary search per node type), but
+     * the table should be complete by the time it's searched.
+     */
+    NodeTypeDirectory indexTypes() {
+        NodeTypeDirectory directory = this.directory;
+        if (directory == null || directory.size() != size()) {
+            directory = NodeTypeDirectory.build(this);
+            this.directory = directory;
+        }
+        return directory;
+    }
+
+
+    /**
+     * Sets the node search strategy. Strategies that index the table (and so should be
+     * set only once the table is complete) are built here.
+     */
+    void setSearch(NodeSearch.Kind kind) {
+        if (kind == null)
+            throw new IllegalArgumentException("null kind");
+        if (kind != search.getKind())
+            search = NodeSearch.newSearch(kind, this);
+    }
+
+
+    NodeSearch.Kind getSearchKind() {
+        return search.getKind();
     }
 
 
@@ -350,6 +560,25 @@ public class AddressTable extends Table {
     }
 
 
+    /**
+     * Returns the node at the given row, {@linkplain ShortInt#pack(short, int) packed}.
+     */
+    public long getPackedNodeId(int index) {
+        Buff page = page(index);
+        int offset = offset(index);
+        return ShortInt.pack(page.getShort(offset), Layout.get(page, offset + Sizeof.SHORT, idWidth));
+    }
+
+
+    /**
+     * Returns the {@linkplain ShortInt#pack(short, int) packed} node IDs, in row order (which
+     * is also their signed order).
+     */
+    public LongSlice getPackedNodeIds() {
+        return packedNodeIds;
+    }
+
+
 
 
     private List<ShortInt> nodeIdView() {
@@ -358,10 +587,11 @@ public class AddressTable extends Table {
 
             @Override
             protected ShortInt getImpl(int location) {
+                Buff page = page(location);
                 int offset = offset(location);
-                short nodeType = data.getShort(offset);
+                short nodeType = page.getShort(offset);
                 offset += Sizeof.SHORT;
-                int nodeId = data.getTryte(offset);
+                int nodeId = Layout.get(page, offset, idWidth);
                 return new ShortInt(nodeType, nodeId);
             }
             @Override
@@ -0,0 +1,501 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
+
+import java.util.Arrays;
+
+/**
+ * Builds large graphs in bulk. Unlike {@linkplain GraphBuilder}, which maintains a sorted
+ * tree of boxed objects as edges are inserted, this appends each edge (in both directions)
+ * to a pair of primitive <tt>long[]</tt> buffers, and defers the work to {@linkplain #build()}
+ * which sorts the edges (with an in-place radix sort), removes duplicates, and then emits
+ * the tables in a single sequential pass.
+ * <p/>
+ * Each directed edge costs 16 bytes (so 32 bytes per inserted edge), plus whatever slack
+ * there is in the buffers' capacity. Use the presizing constructor when the number of edges
+ * is known in advance.
+ *
+ * <h3>Encoding</h3>
+ *
+ * A directed edge is encoded as a 112-bit key that sorts (as an unsigned number) in table
+ * order:
+ * <pre>{@literal
+ *
+ *   hi: <SRC.TYPE:16> <SRC.ID:31> <INBOUND:1> <EDGE.TYPE:16>
+ *   lo: <0:16> <DTN.TYPE:16> <0:1> <DTN.ID:31>
+ *
+ * }
+ * </pre>
+ * where the (signed) type fields are biased by 2<sup>15</sup> so that they sort as unsigned
+ * values.
+ * <p/>
+ * Instances are not safe for concurrent use.
+ */
+public class BulkGraphBuilder {
+
+    /**
+     * Buffers (ranges) no bigger than this are insertion sorted.
+     */
+    private final static int INSERTION_SORT_MAX = 32;
+
+    /**
+     * Number of radix sort digits (bytes) in a key.
+     */
+    private final static int KEY_DIGITS = 14;
+
+    private final static int TYPE_BIAS = 0x8000;
+
+
+    private final Allocator allocator;
+    private final int pageShift;
+    private final Layout layout;
+
+    // package-private for the ConcurrentGraphBuilder
+    long[] hi;
+    long[] lo;
+    int size;
+
+
+    public BulkGraphBuilder() {
+        this(1024);
+    }
+
+
+    /**
+     * Creates an instance with enough initial capacity for the given number of edges.
+     */
+    public BulkGraphBuilder(int expectedEdges) {
+        this(expectedEdges, Allocator.HEAP, Table.UNPAGED, Layout.NARROW);
+    }
+
+
+    /**
+     * Creates an instance with enough initial capacity for the given number of edges,
+     * whose built graphs' tables are allocated using the given <tt>allocator</tt> in pages
+     * of <tt>2<sup>pageShift</sup></tt> rows, laid out no narrower than the given
+     * <tt>layout</tt>.
+     *
+     * @param pageShift the page shift, or {@linkplain Table#UNPAGED}
+     */
+    public BulkGraphBuilder(int expectedEdges, Allocator allocator, int pageShift, Layout layout) {
+        if (expectedEdges < 0 || expectedEdges > Integer.MAX_VALUE / 2)
+            throw new IllegalArgumentException("expectedEdges " + expectedEdges);
+        if (allocator == null)
+            throw new IllegalArgumentException("null allocator");
+        if (layout == null)
+            throw new IllegalArgumentException("null layout");
+        this.allocator = allocator;
+        this.pageShift = pageShift;
+        this.layout = layout;
+        int capacity = Math.max(2, expectedEdges * 2);
+        this.hi = new long[capacity];
+        this.lo = new long[capacity];
+    }
+
+
+    /**
+     * Inserts the given edge. Duplicate insertions are allowed; they're weeded out
+     * on {@linkplain #build()}.
+     *
+     * @param srcNodeId non-negative source node ID
+     * @param dtnNodeId non-negative destination node ID
+     */
+    public void insertEdge(
+            short srcNodeType, int srcNodeId,
+            short edgeType,
+            short dtnNodeType, int dtnNodeId) {
+
+        if (srcNodeId < 0 || dtnNodeId < 0)
+            throw new IllegalArgumentException(
+                    "negative node ID: " + srcNodeId + ", " + dtnNodeId);
+
+        ensureCapacity(size + 2);
+        hi[size] = hiKey(srcNodeType, srcNodeId, false, edgeType);
+        lo[size] = loKey(dtnNodeType, dtnNodeId);
+        ++size;
+        hi[size] = hiKey(dtnNodeType, dtnNodeId, true, edgeType);
+        lo[size] = loKey(srcNodeType, srcNodeId);
+        ++size;
+    }
+
+
+    public void insertEdge(ShortInt src, EdgeType edgeType, ShortInt dtn) {
+        insertEdge(src.getType(), src.getId(), edgeType.getId(), dtn.getType(), dtn.getId());
+    }
+
+
+    /**
+     * Inserts the edge between the given {@linkplain ShortInt#pack(short, int) packed}
+     * nodes.
+     */
+    public void insertEdge(long src, short edgeType, long dtn) {
+        insertEdge(
+                ShortInt.packedType(src), ShortInt.packedId(src),
+                edgeType,
+                ShortInt.packedType(dtn), ShortInt.packedId(dtn));
+    }
+
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+
+    /**
+     * Returns the number of edges buffered. Duplicate insertions are counted until the
+     * next {@linkplain #build()}. Each edge is counted once, even though it's stored in
+     * both directions.
+     */
+    public int getBufferedCount() {
+        return size / 2;
+    }
+
+
+    /**
+     * Clears the instance.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+
+    /**
+     * Builds and returns the graph. The instance may continue to be used after this method
+     * returns: its (sorted and deduplicated) edges are retained.
+     */
+    public Graph build() {
+        if (isEmpty())
+            throw new IllegalStateException("instance is empty");
+
+        sort(hi, lo, 0, size, 0);
+        size = dedup(hi, lo, 0, size);
+
+        Dimensions dims = new Dimensions();
+        dims.scan(hi, lo, 0, size);
+
+        Layout layout = Layout.widest(this.layout, dims.layout());
+        AddressTable addressTable = new AddressTable(dims.nodes, allocator, pageShift, layout);
+        EdgeTable edgeTable = new EdgeTable(Math.max(1, dims.edgeRows), allocator, pageShift, layout);
+        NodeTypeTable nodeTypeTable =
+                new NodeTypeTable(Math.max(1, dims.nodeTypeRows), allocator, pageShift, layout);
+        NodeIdTable nodeIdTable = new NodeIdTable(size, allocator, pageShift, layout);
+
+        emit(hi, lo, 0, size, addressTable, edgeTable, nodeTypeTable, nodeIdTable);
+
+        return new Graph(addressTable, edgeTable, nodeTypeTable, nodeIdTable);
+    }
+
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= hi.length)
+            return;
+        if (capacity < 0)
+            throw new IllegalStateException("overflow: " + capacity);
+        int newCapacity = (int) Math.min(Integer.MAX_VALUE - 8, hi.length + (long) hi.length / 2);
+        newCapacity = Math.max(capacity, newCapacity);
+        hi = Arrays.copyOf(hi, newCapacity);
+        lo = Arrays.copyOf(lo, newCapacity);
+    }
+
+
+
+
+    // -- key encoding --
+
+    static long hiKey(short nodeType, int nodeId, boolean inbound, short edgeType) {
+        long key = (nodeType + TYPE_BIAS) & 0xffff;
+        key = (key << 31) | nodeId;
+        key = (key << 1) | (inbound ? 1 : 0);
+        return (key << 16) | ((edgeType + TYPE_BIAS) & 0xffff);
+    }
+
+    static long loKey(short nodeType, int nodeId) {
+        long key = (nodeType + TYPE_BIAS) & 0xffff;
+        return (key << 32) | nodeId;
+    }
+
+    static short srcNodeType(long hi) {
+        return (short) ((hi >>> 48) - TYPE_BIAS);
+    }
+
+    static int srcNodeId(long hi) {
+        return (int) (hi >>> 17) & Integer.MAX_VALUE;
+    }
+
+    static boolean inbound(long hi) {
+        return (hi & 0x10000) != 0;
+    }
+
+    static short edgeType(long hi) {
+        return (short) ((hi & 0xffff) - TYPE_BIAS);
+    }
+
+    static short dtnNodeType(long lo) {
+        return (short) ((lo >>> 32) - TYPE_BIAS);
+    }
+
+    static int dtnNodeId(long lo) {
+        return (int) lo;
+    }
+
+    /**
+     * Source node bits of the hi key.
+     */
+    static long srcNode(long hi) {
+        return hi >>> 17;
+    }
+
+    /**
+     * Source node and direction bits of the hi key.
+     */
+    static long srcNodeDirection(long hi) {
+        return hi >>> 16;
+    }
+
+    /**
+     * Destination node type bits of the lo key.
+     */
+    static long dtnNodeType32(long lo) {
+        return lo >>> 32;
+    }
+
+
+
+
+    // -- sorting --
+
+    /**
+     * Sorts the keys in the given range starting from the given digit. This is an MSD
+     * (American flag) radix sort on byte digits: keys are permuted in place, bucket by
+     * bucket, so no scratch buffers are needed.
+     */
+    static void sort(long[] hi, long[] lo, int from, int to, int digit) {
+        if (to - from <= INSERTION_SORT_MAX) {
+            insertionSort(hi, lo, from, to);
+            return;
+        }
+
+        int[] ends = new int[256];
+        for (int i = from; i < to; ++i)
+            ++ends[digit(hi, lo, i, digit)];
+        int[] next = new int[256];
+        for (int b = 0, pos = from; b < 256; ++b) {
+            next[b] = pos;
+            pos += ends[b];
+            ends[b] = pos;
+        }
+
+        for (int b = 0; b < 256; ++b) {
+            while (next[b] < ends[b]) {
+                int i = next[b];
+                int d = digit(hi, lo, i, digit);
+                if (d == b) {
+                    ++next[b];
+                } else {
+                    swap(hi, lo, i, next[d]++);
+                }
+            }
+        }
+
+        if (digit + 1 == KEY_DIGITS)
+            return;
+        for (int b = 0, start = from; b < 256; start = ends[b++]) {
+            if (ends[b] - start > 1)
+                sort(hi, lo, start, ends[b], digit + 1);
+        }
+    }
+
+
+    private static int digit(long[] hi, long[] lo, int index, int digit) {
+        if (digit < 8)
+            return (int) (hi[index] >>> (56 - 8 * digit)) & 0xff;
+        return (int) (lo[index] >>> (40 - 8 * (digit - 8))) & 0xff;
+    }
+
+
+    private static void insertionSort(long[] hi, long[] lo, int from, int to) {
+        for (int i = from + 1; i < to; ++i) {
+            long h = hi[i];
+            long l = lo[i];
+            int j = i;
+            for (; j > from && compare(hi[j - 1], lo[j - 1], h, l) > 0; --j) {
+                hi[j] = hi[j - 1];
+                lo[j] = lo[j - 1];
+            }
+            hi[j] = h;
+            lo[j] = l;
+        }
+    }
+
+
+    static int compare(long hiA, long loA, long hiB, long loB) {
+        int comp = Long.compareUnsigned(hiA, hiB);
+        return comp != 0 ? comp : Long.compare(loA, loB);
+    }
+
+
+    private static void swap(long[] hi, long[] lo, int i, int j) {
+        long h = hi[i];
+        hi[i] = hi[j];
+        hi[j] = h;
+        long l = lo[i];
+        lo[i] = lo[j];
+        lo[j] = l;
+    }
+
+
+    /**
+     * Removes adjacent duplicates from the given sorted range, compacting it toward
+     * <tt>from</tt>. Returns the new end of the range.
+     */
+    static int dedup(long[] hi, long[] lo, int from, int to) {
+        if (to - from < 2)
+            return to;
+        int end = from + 1;
+        for (int i = from + 1; i < to; ++i) {
+            if (hi[i] != hi[end - 1] || lo[i] != lo[end - 1]) {
+                hi[end] = hi[i];
+                lo[end] = lo[i];
+                ++end;
+            }
+        }
+        return end;
+    }
+
+
+
+
+    // -- emission --
+
+    /**
+     * Appends the sorted, deduplicated edges in the given range to the given tables.
+     */
+    static void emit(
+            long[] hi, long[] lo, int from, int to,
+            AddressTable addressTable, EdgeTable edgeTable,
+            NodeTypeTable nodeTypeTable, NodeIdTable nodeIdTable) {
+
+        long lastHi = 0;
+        long lastLo = 0;
+        for (int i = from; i < to; ++i) {
+            long h = hi[i];
+            long l = lo[i];
+            boolean inbound = inbound(h);
+            if (i == from || srcNode(h) != srcNode(lastHi)) {
+                addressTable.appendEntry(srcNodeType(h), srcNodeId(h), inbound, edgeTable.size());
+                edgeTable.appendEntry(edgeType(h), nodeTypeTable.size());
+                nodeTypeTable.appendEntry(dtnNodeType(l), nodeIdTable.size());
+
+            } else if (srcNodeDirection(h) != srcNodeDirection(lastHi)) {
+                addressTable.setLastEdge(inbound, edgeTable.size(), 1);
+                edgeTable.appendEntry(edgeType(h), nodeTypeTable.size());
+                nodeTypeTable.appendEntry(dtnNodeType(l), nodeIdTable.size());
+
+            } else if (h != lastHi) {
+                addressTable.incrLastEdgeCount(inbound);
+                edgeTable.appendEntry(edgeType(h), nodeTypeTable.size());
+                nodeTypeTable.appendEntry(dtnNodeType(l), nodeIdTable.size());
+
+            } else if (dtnNodeType32(l) != dtnNodeType32(lastLo)) {
+                edgeTable.incrLastNodeTypeCount();
+                nodeTypeTable.appendEntry(dtnNodeType(l), nodeIdTable.size());
+
+            } else {
+                nodeTypeTable.incrLastNodeIdCount();
+            }
+            nodeIdTable.appendEntry(dtnNodeId(l));
+            lastHi = h;
+            lastLo = l;
+        }
+    }
+
+
+    /**
+     * Table sizes and max counts of a sorted, deduplicated range of edges.
+     */
+    static class Dimensions {
+
+        int nodes;
+        int edgeRows;
+        int nodeTypeRows;
+        int nodeIdRows;
+        int maxEdgeRowCount;
+        int maxNodeTypeCount;
+        int maxNodeIdCount;
+        int maxNodeId;
+
+        private int edgeRowCount;
+        private int nodeTypeCount;
+        private int nodeIdCount;
+
+
+        void scan(long[] hi, long[] lo, int from, int to) {
+            long lastHi = 0;
+            long lastLo = 0;
+            for (int i = from; i < to; ++i) {
+                long h = hi[i];
+                long l = lo[i];
+                if (i == from || srcNodeDirection(h) != srcNodeDirection(lastHi)) {
+                    if (i == from || srcNode(h) != srcNode(lastHi)) {
+                        ++nodes;
+                        maxNodeId = Math.max(maxNodeId, srcNodeId(h));
+                    }
+                    edgeRowCount = 0;
+                    newEdgeRow();
+                } else if (h != lastHi) {
+                    newEdgeRow();
+                } else if (dtnNodeType32(l) != dtnNodeType32(lastLo)) {
+                    newNodeTypeRow();
+                }
+                maxNodeIdCount = Math.max(maxNodeIdCount, ++nodeIdCount);
+                ++nodeIdRows;
+                lastHi = h;
+                lastLo = l;
+            }
+        }
+
+        private void newEdgeRow() {
+            ++edgeRows;
+            maxEdgeRowCount = Math.max(maxEdgeRowCount, ++edgeRowCount);
+            nodeTypeCount = 0;
+            newNodeTypeRow();
+        }
+
+        private void newNodeTypeRow() {
+            ++nodeTypeRows;
+            maxNodeTypeCount = Math.max(maxNodeTypeCount, ++nodeTypeCount);
+            nodeIdCount = 0;
+        }
+
+
+        /**
+         * Adds the dimensions of an adjacent range that begins with a new node.
+         */
+        void add(Dimensions other) {
+            nodes += other.nodes;
+            edgeRows += other.edgeRows;
+            nodeTypeRows += other.nodeTypeRows;
+            nodeIdRows += other.nodeIdRows;
+            maxEdgeRowCount = Math.max(maxEdgeRowCount, other.maxEdgeRowCount);
+            maxNodeTypeCount = Math.max(maxNodeTypeCount, other.maxNodeTypeCount);
+            maxNodeIdCount = Math.max(maxNodeIdCount, other.maxNodeIdCount);
+            maxNodeId = Math.max(maxNodeId, other.maxNodeId);
+        }
+
+
+        Layout layout() {
+            return Layout.widest(
+                    Layout.forSizes(edgeRows, nodeTypeRows, maxEdgeRowCount, maxNodeTypeCount, maxNodeIdCount),
+                    Layout.forMaxNodeId(maxNodeId));
+        }
+    }
+
+}
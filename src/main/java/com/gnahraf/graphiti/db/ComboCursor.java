@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.list.Lists;
+
+import java.util.List;
+
+/**
+ * A combined cursor over any number of graphs whose edges may overlap. Unlike the
+ * {@linkplain DisjointComboCursor}, counts can't simply be summed across the graphs:
+ * where more than one graph has the current node, they're counted off the (distinct)
+ * unions. Where only one graph has it, calls pass straight thru to that graph's cursor.
+ */
+class ComboCursor extends Cursor {
+
+    private final Cursor[] cursors;
+    /**
+     * The cursors positioned at the current node. Only the first {@linkplain #loadedCount}
+     * are valid.
+     */
+    private Cursor[] loaded;
+    private int loadedCount;
+    /**
+     * Swapped with {@linkplain #loaded} on a successful move.
+     */
+    private Cursor[] scratch;
+
+
+    ComboCursor(List<Cursor> cursors) {
+        if (cursors.isEmpty())
+            throw new IllegalArgumentException("empty cursors");
+        this.cursors = cursors.toArray(new Cursor[cursors.size()]);
+        this.loaded = new Cursor[this.cursors.length];
+        this.scratch = new Cursor[this.cursors.length];
+
+        // start at the least of the cursors' first nodes
+        Cursor first = null;
+        for (Cursor cursor : this.cursors) {
+            if (cursor.getNodeType() == null)
+                continue;
+            if (first == null || compare(cursor, first) < 0)
+                first = cursor;
+        }
+        if (first != null)
+            moveTo(first.getNodeType(), first.getNodeId());
+    }
+
+
+    private static int compare(Cursor a, Cursor b) {
+        int comp = a.getNodeType().getId() - b.getNodeType().getId();
+        return comp != 0 ? comp : Integer.compare(a.getNodeId(), b.getNodeId());
+    }
+
+
+    @Override
+    protected boolean loadVertex(NodeType nodeType, int nodeId) {
+        // (cursors that fail to move stay where they were)
+        int count = 0;
+        for (Cursor cursor : cursors) {
+            if (cursor.moveTo(nodeType, nodeId))
+                scratch[count++] = cursor;
+        }
+        if (count == 0)
+            return false;
+        Cursor[] swap = loaded;
+        loaded = scratch;
+        scratch = swap;
+        loadedCount = count;
+        return true;
+    }
+
+
+    @Override
+    public List<EdgeType> getEdgeTypes(boolean inbound) {
+        List<EdgeType> edgeTypes = loaded[0].getEdgeTypes(inbound);
+        for (int index = 1; index < loadedCount; ++index)
+            edgeTypes = Lists.distinctUnion(edgeTypes, loaded[index].getEdgeTypes(inbound));
+        return edgeTypes;
+    }
+
+
+    @Override
+    public int getEdgeCount(boolean inbound) {
+        if (loadedCount == 1)
+            return loaded[0].getEdgeCount(inbound);
+        int count = 0;
+        for (EdgeType edgeType : getEdgeTypes(inbound))
+            count += getEdgeCount(inbound, edgeType);
+        return count;
+    }
+
+
+    @Override
+    public int getEdgeCount(boolean inbound, EdgeType edgeType) {
+        if (loadedCount == 1)
+            return loaded[0].getEdgeCount(inbound, edgeType);
+        int count = 0;
+        for (NodeType nodeType : getNodeTypes(inbound, edgeType))
+            count += getEdgeCount(inbound, edgeType, nodeType);
+        return count;
+    }
+
+
+    @Override
+    public List<NodeType> getNodeTypes(boolean inbound, EdgeType edgeType) {
+        List<NodeType> nodeTypes = loaded[0].getNodeTypes(inbound, edgeType);
+        for (int index = 1; index < loadedCount; ++index) {
+            nodeTypes = Lists.distinctUnion(
+                    nodeTypes, loaded[index].getNodeTypes(inbound, edgeType));
+        }
+        return nodeTypes;
+    }
+
+
+    @Override
+    public int getEdgeCount(boolean inbound, EdgeType edgeType, NodeType nodeType) {
+        if (loadedCount == 1)
+            return loaded[0].getEdgeCount(inbound, edgeType, nodeType);
+        return getNodeIds(inbound, edgeType, nodeType).size();
+    }
+
+
+    @Override
+    public List<Integer> getNodeIds(boolean inbound, EdgeType edgeType, NodeType nodeType) {
+        List<Integer> nodeIds = loaded[0].getNodeIds(inbound, edgeType, nodeType);
+        for (int index = 1; index < loadedCount; ++index) {
+            nodeIds = Lists.distinctUnion(
+                    nodeIds, loaded[index].getNodeIds(inbound, edgeType, nodeType));
+        }
+        return nodeIds;
+    }
+
+
+    @Override
+    public List<ShortInt> getQualifiedNodeIds() {
+        List<ShortInt> nodes = cursors[0].getQualifiedNodeIds();
+        for (int index = 1; index < cursors.length; ++index)
+            nodes = Lists.distinctUnion(nodes, cursors[index].getQualifiedNodeIds());
+        return nodes;
+    }
+}
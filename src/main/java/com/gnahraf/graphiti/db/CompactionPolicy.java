@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+import java.util.List;
+
+/**
+ * Decides which {@linkplain Segment}s of a {@linkplain GraphStore} to compact next.
+ * <p/>
+ * Since segments are ordered by recency, only adjacent segments may be merged: a
+ * selection is always a contiguous range. Policies are presented with runs of segments
+ * not already being compacted, and may be consulted repeatedly (on the parts of the run
+ * either side of their last selection) to gauge the backlog. So they should be stateless.
+ *
+ * @see CompactionScheduler
+ */
+public interface CompactionPolicy {
+
+    /**
+     * A range of segments to merge, and the level of the merged segment.
+     */
+    final class Selection {
+
+        final int from;
+        final int to;
+        final int level;
+
+        /**
+         * @param from the index of the first (oldest) segment in the range
+         * @param to the index of the last segment in the range, plus one
+         * @param level the level of the merged segment
+         */
+        public Selection(int from, int to, int level) {
+            if (from < 0 || to <= from)
+                throw new IllegalArgumentException("[" + from + ", " + to + ")");
+            if (level < 0)
+                throw new IllegalArgumentException("level " + level);
+            this.from = from;
+            this.to = to;
+            this.level = level;
+        }
+
+        public int getFrom() {
+            return from;
+        }
+
+        public int getTo() {
+            return to;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + from + ", " + to + ") -> level " + level;
+        }
+    }
+
+
+    /**
+     * Selects the next segments to merge.
+     *
+     * @param run contiguous segments, oldest first, none of which are being compacted
+     *
+     * @return the range of <tt>run</tt> to merge, or <tt>null</tt>, if there's nothing
+     *         worth merging
+     */
+    Selection select(List<Segment> run);
+}
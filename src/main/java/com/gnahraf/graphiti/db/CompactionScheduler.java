@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@linkplain GraphStore}'s compactions in the background, as chosen by a
+ * pluggable {@linkplain CompactionPolicy}. The scheduler is consulted whenever the store
+ * flushes its memtable, and whenever a compaction finishes.
+ * <p/>
+ * Compactions run on a bounded pool of low priority daemon threads, so at most
+ * <tt>maxConcurrent</tt> cores are given to them. Segment ranges the policy selects
+ * beyond that are not queued: they're counted as {@linkplain #getBacklog() backlog},
+ * and reselected once a thread is free (by which time the policy may well choose
+ * differently). Compaction output may also be throttled to a given number of bytes per
+ * second: a compaction that writes faster holds on to its thread until the rate is made
+ * good, delaying the next one.
+ * <p/>
+ * A compaction that fails leaves its segments as they were. Its selection is not
+ * retried until the store flushes another segment (else a compaction that keeps
+ * failing would be retried in a loop).
+ * <p/>
+ * A scheduler serves only one store.
+ */
+public class CompactionScheduler {
+
+    private final CompactionPolicy policy;
+    private final int maxConcurrent;
+    private final long maxBytesPerSecond;
+    private final ThreadPoolExecutor executor;
+
+    private GraphStore store;
+
+    // the following are written under the store's lock
+    private volatile int running;
+    private volatile int backlog;
+    private volatile long compactions;
+
+    /**
+     * The inputs of compactions that failed since the store last flushed. Guarded by
+     * the store's lock.
+     */
+    private final Set<List<Segment>> failed = new HashSet<>();
+
+    // guarded by this instance's lock
+    private long throttleNanos;
+
+    private volatile RuntimeException lastError;
+
+
+    /**
+     * Creates an instance with a single, unthrottled compaction thread.
+     */
+    public CompactionScheduler(CompactionPolicy policy) {
+        this(policy, 1, 0);
+    }
+
+
+    /**
+     * @param policy selects the segments to merge
+     * @param maxConcurrent the maximum number of compactions run at once
+     * @param maxBytesPerSecond the maximum rate compacted segments are written at,
+     *        or zero, if unthrottled
+     */
+    public CompactionScheduler(CompactionPolicy policy, int maxConcurrent, long maxBytesPerSecond) {
+        if (policy == null)
+            throw new IllegalArgumentException("null policy");
+        if (maxConcurrent < 1)
+            throw new IllegalArgumentException("maxConcurrent " + maxConcurrent);
+        if (maxBytesPerSecond < 0)
+            throw new IllegalArgumentException("maxBytesPerSecond " + maxBytesPerSecond);
+        this.policy = policy;
+        this.maxConcurrent = maxConcurrent;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        this.executor = new ThreadPoolExecutor(
+                maxConcurrent, maxConcurrent, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "graph-compactor");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+
+    public CompactionPolicy getPolicy() {
+        return policy;
+    }
+
+
+    /**
+     * Binds this instance to the given store. Invoked by the store's constructor.
+     */
+    synchronized void attach(GraphStore store) {
+        if (this.store != null)
+            throw new IllegalStateException("already attached to another store");
+        this.store = store;
+    }
+
+
+    /**
+     * Invoked when the store flushes a new segment. Failed selections may be retried
+     * again, and compactions are {@linkplain #schedule() schedule}d.
+     */
+    void flushed() {
+        synchronized (store) {
+            failed.clear();
+            schedule();
+        }
+    }
+
+
+    /**
+     * Submits as many compactions as the policy selects and there are free threads for.
+     * The remaining selections (save those that failed) are counted as backlog.
+     */
+    void schedule() {
+        synchronized (store) {
+            if (executor.isShutdown())
+                return;
+            List<List<Segment>> selected = new ArrayList<>();
+            List<Integer> levels = new ArrayList<>();
+            Deque<List<Segment>> runs = new ArrayDeque<>(store.idleRuns());
+            while (!runs.isEmpty()) {
+                List<Segment> run = runs.pop();
+                CompactionPolicy.Selection selection = policy.select(run);
+                if (selection == null)
+                    continue;
+                if (selection.to > run.size())
+                    throw new IllegalStateException(
+                            "policy selected " + selection + " from " + run.size() + " segments");
+                selected.add(run.subList(selection.from, selection.to));
+                levels.add(selection.level);
+                if (selection.from > 0)
+                    runs.push(run.subList(0, selection.from));
+                if (selection.to < run.size())
+                    runs.push(run.subList(selection.to, run.size()));
+            }
+
+            backlog = 0;
+            for (int index = 0; index < selected.size(); ++index) {
+                if (failed.contains(selected.get(index)))
+                    continue;
+                if (running == maxConcurrent) {
+                    ++backlog;
+                    continue;
+                }
+                List<Segment> inputs = new ArrayList<>(selected.get(index));
+                store.reserve(inputs);
+                ++running;
+                executor.execute(new Compaction(inputs, levels.get(index)));
+            }
+        }
+    }
+
+
+    private class Compaction implements Runnable {
+
+        private final List<Segment> inputs;
+        private final int level;
+
+        Compaction(List<Segment> inputs, int level) {
+            this.inputs = inputs;
+            this.level = level;
+        }
+
+        @Override
+        public void run() {
+            long nanos = System.nanoTime();
+            boolean done = false;
+            try {
+                long bytes = store.compact(inputs, level);
+                done = true;
+                throttle(bytes, nanos);
+            } catch (RuntimeException x) {
+                lastError = x;
+            } finally {
+                // (even on an Error, else the store waits on this compaction forever)
+                if (!done)
+                    store.release(inputs);
+                synchronized (store) {
+                    if (!done)
+                        failed.add(inputs);
+                    --running;
+                    ++compactions;
+                    store.compactionDone();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Sleeps long enough for the given bytes, written since <tt>startNanos</tt>, to not
+     * exceed the maximum rate across all compactions.
+     */
+    private void throttle(long bytes, long startNanos) {
+        if (maxBytesPerSecond == 0 || bytes == 0)
+            return;
+        long due;
+        synchronized (this) {
+            due = Math.max(throttleNanos, startNanos) +
+                    (long) (bytes * 1e9 / maxBytesPerSecond);
+            throttleNanos = due;
+        }
+        long sleepNanos = due - System.nanoTime();
+        if (sleepNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Returns the number of compactions running (or about to).
+     */
+    public int getRunningCount() {
+        return running;
+    }
+
+
+    /**
+     * Returns the number of compactions the policy selected, as of the last time it
+     * was consulted, that there were no free threads for. A backlog that keeps growing
+     * means compactions can't keep up with the rate of flushes (and read fan-out will grow).
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+
+    /**
+     * Returns the number of compactions run so far.
+     */
+    public long getCompactionCount() {
+        return compactions;
+    }
+
+
+    /**
+     * Returns the last compaction failure, or <tt>null</tt>, if there's none. Failed
+     * compactions leave the store's segments as they were, and aren't retried until
+     * the store flushes again.
+     */
+    public RuntimeException getLastError() {
+        return lastError;
+    }
+
+
+    /**
+     * Stops scheduling compactions. Those already running are allowed to finish.
+     */
+    public void shutdown() {
+        GraphStore store;
+        synchronized (this) {
+            store = this.store;
+        }
+        if (store == null) {
+            executor.shutdown();
+            return;
+        }
+        // under the store's lock, so that a concurrent schedule() either submits before
+        // the executor shuts down, or sees it shut down (and reserves nothing)
+        synchronized (store) {
+            executor.shutdown();
+        }
+    }
+}
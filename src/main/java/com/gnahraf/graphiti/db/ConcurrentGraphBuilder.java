@@ -0,0 +1,581 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static com.gnahraf.graphiti.db.BulkGraphBuilder.*;
+
+/**
+ * Builds graphs from edges inserted concurrently by multiple producer threads. Each producer
+ * appends to its own {@linkplain Writer} (a primitive buffer, as in the
+ * {@linkplain BulkGraphBuilder}), so insertions are not contended. {@linkplain #build()} then
+ * does the heavy lifting on a fork-join pool:
+ * <ol>
+ * <li>The buffered edges are sampled to split the key space into ranges (on source node
+ * boundaries).</li>
+ * <li>The buffers are scattered, chunk by chunk in parallel, into their ranges.</li>
+ * <li>Each range is sorted, deduplicated, and measured in parallel.</li>
+ * <li>The tables are allocated to their exact sizes, and each range is written to its
+ * own run of rows in parallel. The row pointers are fixed up as they're written, using the
+ * row offsets of the ranges before it.</li>
+ * </ol>
+ * The output is identical to that of the {@linkplain GraphBuilder}.
+ *
+ * <h3>Thread safety</h3>
+ *
+ * {@linkplain #insertEdge(short, int, short, short, int) insertEdge} and
+ * {@linkplain #newWriter()} may be invoked concurrently. A writer must only be used by one
+ * thread at a time. {@linkplain #build()} and {@linkplain #clear()} must not be invoked
+ * concurrently with insertions: the producers must be done (e.g. joined) first.
+ */
+public class ConcurrentGraphBuilder {
+
+    /**
+     * Chunks are the unit of parallel work in the scatter phase.
+     */
+    private final static int MIN_CHUNK = 1 << 16;
+
+    /**
+     * Ranges are the unit of parallel work in the sort and emit phases.
+     */
+    private final static int MIN_RANGE = 1 << 12;
+
+    private final static int RANGES_PER_THREAD = 4;
+
+    private final static int SAMPLES_PER_RANGE = 32;
+
+
+    /**
+     * A producer's edge buffer.
+     */
+    public final static class Writer {
+
+        private final BulkGraphBuilder buffer = new BulkGraphBuilder();
+
+        private Writer() {  }
+
+
+        /**
+         * Inserts the given edge.
+         *
+         * @see BulkGraphBuilder#insertEdge(short, int, short, short, int)
+         */
+        public void insertEdge(
+                short srcNodeType, int srcNodeId,
+                short edgeType,
+                short dtnNodeType, int dtnNodeId) {
+            buffer.insertEdge(srcNodeType, srcNodeId, edgeType, dtnNodeType, dtnNodeId);
+        }
+
+
+        public void insertEdge(ShortInt src, EdgeType edgeType, ShortInt dtn) {
+            buffer.insertEdge(src, edgeType, dtn);
+        }
+
+
+        public void insertEdge(long src, short edgeType, long dtn) {
+            buffer.insertEdge(src, edgeType, dtn);
+        }
+    }
+
+
+    private final Allocator allocator;
+    private final int pageShift;
+    private final Layout layout;
+    private final ForkJoinPool pool;
+
+    private final ConcurrentLinkedQueue<Writer> writers = new ConcurrentLinkedQueue<>();
+
+    private final ThreadLocal<Writer> localWriter = new ThreadLocal<Writer>() {
+        @Override
+        protected Writer initialValue() {
+            return newWriter();
+        }
+    };
+
+
+    /**
+     * Creates an instance that builds on the common fork-join pool.
+     */
+    public ConcurrentGraphBuilder() {
+        this(Allocator.HEAP, Table.UNPAGED, Layout.NARROW, ForkJoinPool.commonPool());
+    }
+
+
+    /**
+     * Creates an instance whose built graphs' tables are allocated using the given
+     * <tt>allocator</tt> in pages of <tt>2<sup>pageShift</sup></tt> rows, laid out no
+     * narrower than the given <tt>layout</tt>.
+     *
+     * @param pageShift the page shift, or {@linkplain Table#UNPAGED}
+     * @param pool      the pool {@linkplain #build()} runs on
+     */
+    public ConcurrentGraphBuilder(
+            Allocator allocator, int pageShift, Layout layout, ForkJoinPool pool) {
+        if (allocator == null)
+            throw new IllegalArgumentException("null allocator");
+        if (layout == null)
+            throw new IllegalArgumentException("null layout");
+        if (pool == null)
+            throw new IllegalArgumentException("null pool");
+        this.allocator = allocator;
+        this.pageShift = pageShift;
+        this.layout = layout;
+        this.pool = pool;
+    }
+
+
+    /**
+     * Returns a new writer. The writer's edges are included in every subsequent
+     * {@linkplain #build()} (until the instance is {@linkplain #clear() clear}ed).
+     */
+    public Writer newWriter() {
+        Writer writer = new Writer();
+        writers.add(writer);
+        return writer;
+    }
+
+
+    /**
+     * Inserts the given edge into the calling thread's writer.
+     */
+    public void insertEdge(
+            short srcNodeType, int srcNodeId,
+            short edgeType,
+            short dtnNodeType, int dtnNodeId) {
+        localWriter.get().insertEdge(srcNodeType, srcNodeId, edgeType, dtnNodeType, dtnNodeId);
+    }
+
+
+    public void insertEdge(ShortInt src, EdgeType edgeType, ShortInt dtn) {
+        localWriter.get().insertEdge(src, edgeType, dtn);
+    }
+
+
+    /**
+     * Inserts the edge between the given {@linkplain ShortInt#pack(short, int) packed}
+     * nodes.
+     */
+    public void insertEdge(long src, short edgeType, long dtn) {
+        localWriter.get().insertEdge(src, edgeType, dtn);
+    }
+
+
+    /**
+     * Returns the number of edges buffered across all writers (duplicates included).
+     */
+    public long getBufferedCount() {
+        long count = 0;
+        for (Writer writer : writers)
+            count += writer.buffer.getBufferedCount();
+        return count;
+    }
+
+
+    public boolean isEmpty() {
+        for (Writer writer : writers)
+            if (!writer.buffer.isEmpty())
+                return false;
+        return true;
+    }
+
+
+    /**
+     * Clears the buffered edges of all writers.
+     */
+    public void clear() {
+        for (Writer writer : writers)
+            writer.buffer.clear();
+    }
+
+
+    /**
+     * Builds and returns the graph. The writers' buffered edges are left intact.
+     */
+    public Graph build() {
+        List<BulkGraphBuilder> buffers = new ArrayList<>();
+        long total = 0;
+        for (Writer writer : writers) {
+            if (!writer.buffer.isEmpty()) {
+                buffers.add(writer.buffer);
+                total += writer.buffer.size;
+            }
+        }
+        if (total == 0)
+            throw new IllegalStateException("instance is empty");
+        if (total > Integer.MAX_VALUE - 8)
+            throw new IllegalStateException("too many edges: " + total / 2);
+
+        return new Build(buffers, (int) total).run();
+    }
+
+
+
+    /**
+     * The state of a single {@linkplain ConcurrentGraphBuilder#build()} invocation.
+     */
+    private class Build {
+
+        private final List<BulkGraphBuilder> buffers;
+        private final int total;
+
+        /**
+         * Chunks of the input buffers: chunk <em>c</em> is the range
+         * [<tt>chunkFrom[c]</tt>, <tt>chunkTo[c]</tt>) of <tt>chunkBuffer[c]</tt>.
+         */
+        private BulkGraphBuilder[] chunkBuffer;
+        private int[] chunkFrom;
+        private int[] chunkTo;
+
+        /**
+         * Source node boundaries (hi keys) of the ranges. Range <em>r</em> (r &gt; 0) begins
+         * with the first key whose hi part is &ge; <tt>splitters[r - 1]</tt> (unsigned).
+         */
+        private long[] splitters;
+
+        /**
+         * <tt>chunkOffsets[c][r]</tt> is where chunk <em>c</em>'s keys in range <em>r</em> are
+         * scattered to.
+         */
+        private int[][] chunkOffsets;
+
+        private int[] rangeFrom;
+        private int[] rangeTo;
+        private Dimensions[] rangeDims;
+
+        private long[] hi;
+        private long[] lo;
+
+
+        Build(List<BulkGraphBuilder> buffers, int total) {
+            this.buffers = buffers;
+            this.total = total;
+        }
+
+
+        Graph run() {
+            chunk();
+            split();
+            scatter();
+            sortRanges();
+            return emitRanges();
+        }
+
+
+        private void chunk() {
+            int chunkSize = Math.max(MIN_CHUNK, total / (pool.getParallelism() * 8));
+            List<BulkGraphBuilder> chunkBuffers = new ArrayList<>();
+            List<int[]> bounds = new ArrayList<>();
+            for (BulkGraphBuilder buffer : buffers) {
+                for (int from = 0; from < buffer.size; from += chunkSize) {
+                    chunkBuffers.add(buffer);
+                    bounds.add(new int[] { from, Math.min(buffer.size, from + chunkSize) });
+                }
+            }
+            int chunks = chunkBuffers.size();
+            chunkBuffer = chunkBuffers.toArray(new BulkGraphBuilder[chunks]);
+            chunkFrom = new int[chunks];
+            chunkTo = new int[chunks];
+            for (int c = 0; c < chunks; ++c) {
+                chunkFrom[c] = bounds.get(c)[0];
+                chunkTo[c] = bounds.get(c)[1];
+            }
+        }
+
+
+        /**
+         * Picks the range splitters from an evenly spaced sample of the keys.
+         */
+        private void split() {
+            int ranges = Math.max(1, Math.min(
+                    pool.getParallelism() * RANGES_PER_THREAD, total / MIN_RANGE));
+            if (ranges == 1) {
+                splitters = new long[0];
+                return;
+            }
+            int samples = ranges * SAMPLES_PER_RANGE;
+            long[] sampleHi = new long[samples];
+            long[] sampleLo = new long[samples];
+            int count = 0;
+            for (BulkGraphBuilder buffer : buffers) {
+                int bufferSamples = (int) ((long) samples * buffer.size / total);
+                for (int s = 0; s < bufferSamples && count < samples; ++s)
+                    sampleHi[count++] = buffer.hi[(int) ((long) s * buffer.size / bufferSamples)];
+            }
+            sort(sampleHi, sampleLo, 0, count, 0);
+
+            long[] nodeBounds = new long[ranges - 1];
+            int splits = 0;
+            for (int r = 1; r < ranges; ++r) {
+                long bound = (srcNode(sampleHi[r * count / ranges])) << 17;
+                if (bound != 0 && (splits == 0 || bound != nodeBounds[splits - 1]))
+                    nodeBounds[splits++] = bound;
+            }
+            splitters = Arrays.copyOf(nodeBounds, splits);
+        }
+
+
+        /**
+         * Returns the range the given hi key falls in.
+         */
+        private int rangeOf(long hiKey) {
+            int lo = 0;
+            int hi = splitters.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (Long.compareUnsigned(hiKey, splitters[mid]) >= 0)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+
+
+        /**
+         * Scatters the chunks' keys into their ranges in the new <tt>hi</tt>, <tt>lo</tt>
+         * buffers.
+         */
+        private void scatter() {
+            final int ranges = splitters.length + 1;
+            int chunks = chunkBuffer.length;
+            chunkOffsets = new int[chunks][];
+
+            // count each chunk's keys in each range..
+            List<RecursiveAction> tasks = new ArrayList<>(chunks);
+            for (int c = 0; c < chunks; ++c) {
+                final int chunk = c;
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        int[] counts = new int[ranges];
+                        long[] keys = chunkBuffer[chunk].hi;
+                        for (int i = chunkFrom[chunk]; i < chunkTo[chunk]; ++i)
+                            ++counts[rangeOf(keys[i])];
+                        chunkOffsets[chunk] = counts;
+                    }
+                });
+            }
+            runAll(tasks);
+
+            // ..turn the counts into offsets, range-major..
+            rangeFrom = new int[ranges];
+            rangeTo = new int[ranges];
+            int offset = 0;
+            for (int r = 0; r < ranges; ++r) {
+                rangeFrom[r] = offset;
+                for (int c = 0; c < chunks; ++c) {
+                    int count = chunkOffsets[c][r];
+                    chunkOffsets[c][r] = offset;
+                    offset += count;
+                }
+                rangeTo[r] = offset;
+            }
+
+            // ..and copy
+            hi = new long[total];
+            lo = new long[total];
+            tasks.clear();
+            for (int c = 0; c < chunks; ++c) {
+                final int chunk = c;
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        int[] offsets = chunkOffsets[chunk];
+                        long[] srcHi = chunkBuffer[chunk].hi;
+                        long[] srcLo = chunkBuffer[chunk].lo;
+                        for (int i = chunkFrom[chunk]; i < chunkTo[chunk]; ++i) {
+                            int index = offsets[rangeOf(srcHi[i])]++;
+                            hi[index] = srcHi[i];
+                            lo[index] = srcLo[i];
+                        }
+                    }
+                });
+            }
+            runAll(tasks);
+            chunkOffsets = null;
+        }
+
+
+        private void sortRanges() {
+            int ranges = rangeFrom.length;
+            rangeDims = new Dimensions[ranges];
+            List<RecursiveAction> tasks = new ArrayList<>(ranges);
+            for (int r = 0; r < ranges; ++r) {
+                final int range = r;
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        sort(hi, lo, rangeFrom[range], rangeTo[range], 0);
+                        rangeTo[range] = dedup(hi, lo, rangeFrom[range], rangeTo[range]);
+                        Dimensions dims = new Dimensions();
+                        dims.scan(hi, lo, rangeFrom[range], rangeTo[range]);
+                        rangeDims[range] = dims;
+                    }
+                });
+            }
+            runAll(tasks);
+        }
+
+
+        private Graph emitRanges() {
+            final int ranges = rangeFrom.length;
+
+            // the row offsets of each range in each table
+            final Dimensions[] bases = new Dimensions[ranges];
+            Dimensions totals = new Dimensions();
+            for (int r = 0; r < ranges; ++r) {
+                bases[r] = new Dimensions();
+                bases[r].add(totals);
+                totals.add(rangeDims[r]);
+            }
+
+            Layout layout = Layout.widest(ConcurrentGraphBuilder.this.layout, totals.layout());
+            final AddressTable addressTable =
+                    new AddressTable(totals.nodes, allocator, pageShift, layout);
+            final EdgeTable edgeTable =
+                    new EdgeTable(totals.edgeRows, allocator, pageShift, layout);
+            final NodeTypeTable nodeTypeTable =
+                    new NodeTypeTable(totals.nodeTypeRows, allocator, pageShift, layout);
+            final NodeIdTable nodeIdTable =
+                    new NodeIdTable(totals.nodeIdRows, allocator, pageShift, layout);
+            addressTable.presize(totals.nodes);
+            edgeTable.presize(totals.edgeRows);
+            nodeTypeTable.presize(totals.nodeTypeRows);
+            nodeIdTable.presize(totals.nodeIdRows);
+
+            List<RecursiveAction> tasks = new ArrayList<>(ranges);
+            for (int r = 0; r < ranges; ++r) {
+                final int range = r;
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        emitAt(
+                                hi, lo, rangeFrom[range], rangeTo[range], bases[range],
+                                addressTable, edgeTable, nodeTypeTable, nodeIdTable);
+                    }
+                });
+            }
+            runAll(tasks);
+
+            return new Graph(addressTable, edgeTable, nodeTypeTable, nodeIdTable);
+        }
+
+
+        private void runAll(final List<RecursiveAction> tasks) {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Writes the sorted, deduplicated edges in the given range to the given (presized)
+     * tables, starting at the rows given by <tt>base</tt>. The range must begin with a new
+     * source node.
+     */
+    static void emitAt(
+            long[] hi, long[] lo, int from, int to, Dimensions base,
+            AddressTable addressTable, EdgeTable edgeTable,
+            NodeTypeTable nodeTypeTable, NodeIdTable nodeIdTable) {
+
+        int addressRow = base.nodes - 1;
+        int edgeRow = base.edgeRows - 1;
+        int nodeTypeRow = base.nodeTypeRows - 1;
+        int nodeIdRow = base.nodeIdRows;
+
+        // the current (not yet written) address row
+        short nodeType = 0;
+        int nodeId = 0;
+        int outEdgeRow = 0, outEdgeRowCount = 0;
+        int inEdgeRow = 0, inEdgeRowCount = 0;
+
+        // the current edge row
+        short edgeType = 0;
+        int edgeNodeTypeRow = 0, edgeNodeTypeCount = 0;
+
+        // the current node type row
+        short dtnType = 0;
+        int dtnNodeIdRow = 0, dtnNodeIdCount = 0;
+
+        long lastHi = 0;
+        long lastLo = 0;
+        for (int i = from; i < to; ++i) {
+            long h = hi[i];
+            long l = lo[i];
+            boolean newNode = i == from || srcNode(h) != srcNode(lastHi);
+            boolean newEdge = newNode || h != lastHi;
+            boolean newNodeType = newEdge || dtnNodeType32(l) != dtnNodeType32(lastLo);
+
+            // write out the rows that are done
+            if (i != from) {
+                if (newNodeType)
+                    nodeTypeTable.setEntry(nodeTypeRow, dtnType, dtnNodeIdRow, dtnNodeIdCount);
+                if (newEdge)
+                    edgeTable.setEntry(edgeRow, edgeType, edgeNodeTypeRow, edgeNodeTypeCount);
+                if (newNode)
+                    addressTable.setEntry(
+                            addressRow, nodeType, nodeId,
+                            outEdgeRow, outEdgeRowCount, inEdgeRow, inEdgeRowCount);
+            }
+
+            if (newNode) {
+                ++addressRow;
+                nodeType = srcNodeType(h);
+                nodeId = srcNodeId(h);
+                outEdgeRow = outEdgeRowCount = inEdgeRow = inEdgeRowCount = 0;
+            }
+            if (newEdge) {
+                ++edgeRow;
+                if (inbound(h)) {
+                    if (inEdgeRowCount++ == 0)
+                        inEdgeRow = edgeRow;
+                } else if (outEdgeRowCount++ == 0) {
+                    outEdgeRow = edgeRow;
+                }
+                edgeType = edgeType(h);
+                edgeNodeTypeRow = nodeTypeRow + 1;
+                edgeNodeTypeCount = 0;
+            }
+            if (newNodeType) {
+                ++nodeTypeRow;
+                ++edgeNodeTypeCount;
+                dtnType = dtnNodeType(l);
+                dtnNodeIdRow = nodeIdRow;
+                dtnNodeIdCount = 0;
+            }
+            nodeIdTable.setEntry(nodeIdRow++, dtnNodeId(l));
+            ++dtnNodeIdCount;
+
+            lastHi = h;
+            lastLo = l;
+        }
+
+        if (from < to) {
+            nodeTypeTable.setEntry(nodeTypeRow, dtnType, dtnNodeIdRow, dtnNodeIdCount);
+            edgeTable.setEntry(edgeRow, edgeType, edgeNodeTypeRow, edgeNodeTypeCount);
+            addressTable.setEntry(
+                    addressRow, nodeType, nodeId,
+                    outEdgeRow, outEdgeRowCount, inEdgeRow, inEdgeRowCount);
+        }
+    }
+
+}
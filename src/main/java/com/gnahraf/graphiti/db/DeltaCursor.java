@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.list.BaseList;
+import com.gnahraf.util.list.Lists;
+import com.gnahraf.util.list.SortedListUnion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cursor over a {@linkplain DeltaGraph} and its base graph. Since the delta's edges and
+ * new nodes are disjoint from the base's, counts are summed, and node ID lists are lazy
+ * {@linkplain SortedListUnion union views}. Only the (short) edge and node type lists are
+ * merged into new lists, since a type may appear in both.
+ */
+class DeltaCursor extends Cursor {
+
+    private final DeltaGraph delta;
+    /**
+     * The base graph's cursor, or <tt>null</tt>, if there's no base graph.
+     */
+    private final Cursor base;
+
+    private boolean baseLoaded;
+    /**
+     * The current node's edges in the delta, or <tt>null</tt>, if it has none.
+     */
+    private DeltaGraph.Node node;
+
+
+    DeltaCursor(DeltaGraph delta, Cursor base) {
+        this.delta = delta;
+        this.base = base;
+        List<ShortInt> nodes = getQualifiedNodeIds();
+        if (!nodes.isEmpty()) {
+            ShortInt first = nodes.get(0);
+            moveTo(new NodeType(first.getType()), first.getId());
+        }
+    }
+
+
+    @Override
+    protected boolean loadVertex(NodeType nodeType, int nodeId) {
+        DeltaGraph.Node deltaNode = delta.getNode(nodeType, nodeId);
+        // (the base cursor stays where it was, if it fails to move)
+        boolean inBase = base != null && base.moveTo(nodeType, nodeId);
+        if (deltaNode == null && !inBase)
+            return false;
+        node = deltaNode;
+        baseLoaded = inBase;
+        return true;
+    }
+
+
+    @Override
+    public List<EdgeType> getEdgeTypes(boolean inbound) {
+        List<EdgeType> edgeTypes = baseLoaded ?
+                base.getEdgeTypes(inbound) : Collections.<EdgeType>emptyList();
+        int count = node == null ? 0 : node.count(inbound);
+        if (count == 0)
+            return edgeTypes;
+        long[] edges = node.edges(inbound);
+        List<EdgeType> deltaTypes = new ArrayList<>();
+        short last = DeltaGraph.edgeType(edges[0]);
+        deltaTypes.add(new EdgeType(last));
+        for (int index = 1; index < count; ++index) {
+            short edgeType = DeltaGraph.edgeType(edges[index]);
+            if (edgeType != last) {
+                deltaTypes.add(new EdgeType(edgeType));
+                last = edgeType;
+            }
+        }
+        return Lists.distinctUnion(edgeTypes, deltaTypes);
+    }
+
+
+    @Override
+    public int getEdgeCount(boolean inbound) {
+        return
+                (baseLoaded ? base.getEdgeCount(inbound) : 0) +
+                (node == null ? 0 : node.count(inbound));
+    }
+
+
+    @Override
+    public int getEdgeCount(boolean inbound, EdgeType edgeType) {
+        int count = baseLoaded ? base.getEdgeCount(inbound, edgeType) : 0;
+        if (node != null) {
+            short type = edgeType.getId();
+            count +=
+                    node.upperBound(inbound, DeltaGraph.edgeKey(type, Short.MAX_VALUE, Integer.MAX_VALUE)) -
+                    node.lowerBound(inbound, DeltaGraph.edgeKey(type, Short.MIN_VALUE, Integer.MIN_VALUE));
+        }
+        return count;
+    }
+
+
+    @Override
+    public List<NodeType> getNodeTypes(boolean inbound, EdgeType edgeType) {
+        List<NodeType> nodeTypes = baseLoaded ?
+                base.getNodeTypes(inbound, edgeType) : Collections.<NodeType>emptyList();
+        if (node == null)
+            return nodeTypes;
+        short type = edgeType.getId();
+        int index = node.lowerBound(inbound, DeltaGraph.edgeKey(type, Short.MIN_VALUE, Integer.MIN_VALUE));
+        int end = node.upperBound(inbound, DeltaGraph.edgeKey(type, Short.MAX_VALUE, Integer.MAX_VALUE));
+        if (index == end)
+            return nodeTypes;
+        long[] edges = node.edges(inbound);
+        List<NodeType> deltaTypes = new ArrayList<>();
+        short last = DeltaGraph.edgeNodeType(edges[index]);
+        deltaTypes.add(new NodeType(last));
+        while (++index < end) {
+            short nodeType = DeltaGraph.edgeNodeType(edges[index]);
+            if (nodeType != last) {
+                deltaTypes.add(new NodeType(nodeType));
+                last = nodeType;
+            }
+        }
+        return Lists.distinctUnion(nodeTypes, deltaTypes);
+    }
+
+
+    @Override
+    public int getEdgeCount(boolean inbound, EdgeType edgeType, NodeType nodeType) {
+        int count = baseLoaded ? base.getEdgeCount(inbound, edgeType, nodeType) : 0;
+        if (node != null) {
+            short type = edgeType.getId();
+            short nType = nodeType.getId();
+            count +=
+                    node.upperBound(inbound, DeltaGraph.edgeKey(type, nType, Integer.MAX_VALUE)) -
+                    node.lowerBound(inbound, DeltaGraph.edgeKey(type, nType, Integer.MIN_VALUE));
+        }
+        return count;
+    }
+
+
+    @Override
+    public List<Integer> getNodeIds(boolean inbound, EdgeType edgeType, NodeType nodeType) {
+        List<Integer> nodeIds = baseLoaded ?
+                base.getNodeIds(inbound, edgeType, nodeType) : Collections.<Integer>emptyList();
+        if (node == null)
+            return nodeIds;
+        short type = edgeType.getId();
+        short nType = nodeType.getId();
+        final int from = node.lowerBound(inbound, DeltaGraph.edgeKey(type, nType, Integer.MIN_VALUE));
+        final int to = node.upperBound(inbound, DeltaGraph.edgeKey(type, nType, Integer.MAX_VALUE));
+        if (from == to)
+            return nodeIds;
+        final long[] edges = node.edges(inbound);
+        List<Integer> deltaIds = new BaseList<Integer>() {
+            @Override
+            protected Integer getImpl(int location) {
+                return DeltaGraph.nodeId(edges[from + location]);
+            }
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+        return SortedListUnion.asUnion(nodeIds, deltaIds);
+    }
+
+
+    @Override
+    public List<ShortInt> getQualifiedNodeIds() {
+        List<ShortInt> nodes = base == null ?
+                Collections.<ShortInt>emptyList() : base.getQualifiedNodeIds();
+        return SortedListUnion.asUnion(nodes, delta.getNewNodeIds());
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.list.BaseList;
+import com.gnahraf.util.list.IntSlice;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A mutable delta of edges layered over an immutable {@linkplain Graph}. Edges inserted
+ * here are visible thru the delta's {@linkplain #newCursor() cursors} as soon as they're
+ * inserted, without building (or rebuilding) a graph. Later, the delta is
+ * {@linkplain #freeze() frozen} into a graph of its own, to be merged with the base.
+ *
+ * <h3>Structure</h3>
+ *
+ * Nodes are kept in a primitive, open addressing hash table keyed by their
+ * {@linkplain #nodeKey(short, int) packed} <tt>(nodeType, nodeId)</tt>. Each node
+ * holds its outbound and inbound edges as sorted arrays of {@linkplain #edgeKey(short,
+ * short, int) packed} <tt>(edgeType, nodeType, nodeId)</tt> longs, in the same order
+ * the graph tables are in. Inserting an edge is a hash lookup and a binary-search
+ * insertion at either end: the delta itself allocates no per-edge objects. (Over a
+ * base graph, checking whether the edge is already there costs one small slice view
+ * from the base's cursor.)
+ * <p/>
+ * An edge already in the base graph is not added to the delta, and a node records
+ * whether it's new to the base. So the delta's edges (and new nodes) are always disjoint
+ * from the base's: the cursor can sum counts, and present merged node ID lists as
+ * lazy union views, rather than deduplicate (materialize) them.
+ *
+ * <h3>Thread safety</h3>
+ *
+ * Instances are not safe for concurrent use. The lists a cursor returns are views
+ * over the delta's arrays: they're invalidated by subsequent insertions.
+ */
+public class DeltaGraph {
+
+    private final static int INIT_CAPACITY = 16;
+
+    private final static int INIT_EDGES = 4;
+
+
+    /**
+     * Packs the given node coordinates into a long whose signed order is that of the
+     * graph tables (type first, then ID).
+     *
+     * @see ShortInt#pack(short, int)
+     */
+    static long nodeKey(short nodeType, int nodeId) {
+        return ShortInt.pack(nodeType, nodeId);
+    }
+
+
+    static short nodeType(long nodeKey) {
+        return ShortInt.packedType(nodeKey);
+    }
+
+
+    static int nodeId(long key) {
+        return ShortInt.packedId(key);
+    }
+
+
+    /**
+     * Packs the given edge (as seen from one of its ends) into a long whose signed order
+     * is that of the graph tables (edge type, then node type, then node ID).
+     */
+    static long edgeKey(short edgeType, short nodeType, int nodeId) {
+        return
+                ((long) edgeType << 48) |
+                ((long) ((nodeType ^ Short.MIN_VALUE) & 0xffff) << 32) |
+                ((nodeId ^ Integer.MIN_VALUE) & 0xffffffffL);
+    }
+
+
+    static short edgeType(long edgeKey) {
+        return (short) (edgeKey >> 48);
+    }
+
+
+    static short edgeNodeType(long edgeKey) {
+        return (short) ((edgeKey >>> 32) ^ Short.MIN_VALUE);
+    }
+
+
+
+
+    /**
+     * A node's edges, in both directions.
+     */
+    static class Node {
+
+        final long key;
+        /**
+         * Whether the node is absent from the base graph.
+         */
+        final boolean isNew;
+
+        long[] out = new long[INIT_EDGES];
+        int outCount;
+        long[] in = new long[INIT_EDGES];
+        int inCount;
+
+        Node(long key, boolean isNew) {
+            this.key = key;
+            this.isNew = isNew;
+        }
+
+        long[] edges(boolean inbound) {
+            return inbound ? in : out;
+        }
+
+        int count(boolean inbound) {
+            return inbound ? inCount : outCount;
+        }
+
+        /**
+         * Returns the index of the first edge (in the given direction) not less than the
+         * given key.
+         */
+        int lowerBound(boolean inbound, long edgeKey) {
+            long[] edges = edges(inbound);
+            int lo = 0;
+            int hi = count(inbound);
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (edges[mid] < edgeKey)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+
+        /**
+         * Returns the index of the first edge (in the given direction) greater than the
+         * given key.
+         */
+        int upperBound(boolean inbound, long edgeKey) {
+            long[] edges = edges(inbound);
+            int lo = 0;
+            int hi = count(inbound);
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (edges[mid] <= edgeKey)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+
+        boolean add(boolean inbound, long edgeKey) {
+            long[] edges = edges(inbound);
+            int count = count(inbound);
+            int index = lowerBound(inbound, edgeKey);
+            if (index < count && edges[index] == edgeKey)
+                return false;
+            if (count == edges.length) {
+                edges = Arrays.copyOf(edges, count * 2);
+                if (inbound)
+                    in = edges;
+                else
+                    out = edges;
+            }
+            System.arraycopy(edges, index, edges, index + 1, count - index);
+            edges[index] = edgeKey;
+            if (inbound)
+                ++inCount;
+            else
+                ++outCount;
+            return true;
+        }
+    }
+
+
+
+
+    private final Graph base;
+    private final Cursor baseCursor;
+
+    private long[] keys = new long[INIT_CAPACITY];
+    /**
+     * The hash table's values. Null entries mark empty slots.
+     */
+    private Node[] nodes = new Node[INIT_CAPACITY];
+    private int nodeCount;
+    private int newNodeCount;
+    private int edgeCount;
+
+    /**
+     * The new nodes' keys, sorted; or <tt>null</tt>, if nodes were added since it was.
+     */
+    private long[] sortedNewNodes;
+
+
+    /**
+     * Creates an instance with no base graph.
+     */
+    public DeltaGraph() {
+        this(null);
+    }
+
+
+    /**
+     * @param base the graph the delta is layered over, or <tt>null</tt>. It may be empty,
+     *        but not a {@linkplain Graph#isTombstones() tombstone} graph.
+     */
+    public DeltaGraph(Graph base) {
+        if (base != null && base.isTombstones())
+            throw new IllegalArgumentException("tombstone base");
+        this.base = base == null || base.isEmpty() ? null : base;
+        this.baseCursor = this.base == null ? null : this.base.newCursor();
+    }
+
+
+    /**
+     * Returns the base graph, or <tt>null</tt>, if there is none (or it's empty).
+     */
+    public Graph getBase() {
+        return base;
+    }
+
+
+    /**
+     * Inserts the given edge.
+     *
+     * @return <tt>true</tt>, if the edge is new to both the delta and the base graph
+     */
+    public boolean insertEdge(
+            short srcNodeType, int srcNodeId,
+            short edgeType,
+            short dtnNodeType, int dtnNodeId) {
+
+        if (srcNodeId < 0)
+            throw new IllegalArgumentException("srcNodeId " + srcNodeId);
+        if (dtnNodeId < 0)
+            throw new IllegalArgumentException("dtnNodeId " + dtnNodeId);
+        long srcKey = nodeKey(srcNodeType, srcNodeId);
+        long dtnKey = nodeKey(dtnNodeType, dtnNodeId);
+        Node src = getNode(srcKey);
+        long outKey = edgeKey(edgeType, dtnNodeType, dtnNodeId);
+        if (src != null) {
+            int index = src.lowerBound(false, outKey);
+            if (index < src.outCount && src.out[index] == outKey)
+                return false;
+        }
+        // (one base lookup for the source node settles both whether the edge
+        // is in the base, and whether the node is)
+        boolean srcInBase = false;
+        if (src == null || !src.isNew) {
+            srcInBase = inBase(srcNodeType, srcNodeId);
+            if (srcInBase && inBase(edgeType, dtnNodeType, dtnNodeId))
+                return false;
+        }
+
+        if (src == null)
+            src = addNode(srcKey, !srcInBase);
+        src.add(false, outKey);
+        Node dtn = srcKey == dtnKey ? src : getNode(dtnKey);
+        if (dtn == null)
+            dtn = addNode(dtnKey, !inBase(dtnNodeType, dtnNodeId));
+        dtn.add(true, edgeKey(edgeType, srcNodeType, srcNodeId));
+        ++edgeCount;
+        return true;
+    }
+
+
+    public boolean insertEdge(ShortInt src, EdgeType edgeType, ShortInt dtn) {
+        return insertEdge(src.getType(), src.getId(), edgeType.getId(), dtn.getType(), dtn.getId());
+    }
+
+
+    /**
+     * Inserts the edge between the given {@linkplain ShortInt#pack(short, int) packed}
+     * nodes. (Packed nodes are the delta's own hash keys.)
+     */
+    public boolean insertEdge(long src, short edgeType, long dtn) {
+        return insertEdge(
+                nodeType(src), nodeId(src),
+                edgeType,
+                nodeType(dtn), nodeId(dtn));
+    }
+
+
+    /**
+     * Returns whether the given node is in the base graph, and if so, positions the base
+     * cursor there.
+     */
+    private boolean inBase(short nodeType, int nodeId) {
+        return baseCursor != null && baseCursor.moveTo(NodeType.valueOf(nodeType), nodeId);
+    }
+
+
+    /**
+     * Returns whether the given outbound edge is at the base cursor's node.
+     */
+    private boolean inBase(short edgeType, short dtnNodeType, int dtnNodeId) {
+        IntSlice ids = baseCursor.getNodeIdSlice(
+                false, EdgeType.valueOf(edgeType), NodeType.valueOf(dtnNodeType));
+        return ids.binarySearch(dtnNodeId) >= 0;
+    }
+
+
+    /**
+     * Returns the number of edges inserted (excluding those already in the base graph).
+     */
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+
+    /**
+     * Returns the number of nodes with edges in the delta.
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+
+    public boolean isEmpty() {
+        return edgeCount == 0;
+    }
+
+
+    /**
+     * Returns a cursor over the base graph and the delta. Edges inserted after the cursor is
+     * created are visible thru it, though not necessarily thru the lists it already returned.
+     */
+    public Cursor newCursor() {
+        return new DeltaCursor(this, baseCursor == null ? null : base.newCursor());
+    }
+
+
+    /**
+     * Builds the delta's edges into a graph of their own. Since they're disjoint from the
+     * base graph's, the two can be {@linkplain Graph#merge(Graph, Graph) merge}d without
+     * duplicates. The delta is left as is.
+     *
+     * @throws IllegalStateException if the delta is empty
+     */
+    public Graph freeze() {
+        if (isEmpty())
+            throw new IllegalStateException("instance is empty");
+        BulkGraphBuilder builder = new BulkGraphBuilder(edgeCount);
+        for (Node node : nodes) {
+            if (node == null)
+                continue;
+            short srcType = nodeType(node.key);
+            int srcId = nodeId(node.key);
+            for (int index = 0; index < node.outCount; ++index) {
+                long edge = node.out[index];
+                builder.insertEdge(srcType, srcId, edgeType(edge), edgeNodeType(edge), nodeId(edge));
+            }
+        }
+        return builder.build();
+    }
+
+
+    /**
+     * Returns the node with the given key, or <tt>null</tt>, if it has no edges in the delta.
+     */
+    Node getNode(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; nodes[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key)
+                return nodes[slot];
+        }
+        return null;
+    }
+
+
+    Node getNode(NodeType nodeType, int nodeId) {
+        return getNode(nodeKey(nodeType.getId(), nodeId));
+    }
+
+
+    private Node addNode(long key, boolean isNew) {
+        if (2 * (nodeCount + 1) > keys.length)
+            rehash(keys.length * 2);
+        Node node = new Node(key, isNew);
+        put(key, node);
+        ++nodeCount;
+        if (isNew) {
+            ++newNodeCount;
+            sortedNewNodes = null;
+        }
+        return node;
+    }
+
+
+    private void put(long key, Node node) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (nodes[slot] != null)
+            slot = (slot + 1) & mask;
+        keys[slot] = key;
+        nodes[slot] = node;
+    }
+
+
+    private void rehash(int capacity) {
+        Node[] old = nodes;
+        keys = new long[capacity];
+        nodes = new Node[capacity];
+        for (Node node : old) {
+            if (node != null)
+                put(node.key, node);
+        }
+    }
+
+
+    private static int hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+
+    /**
+     * Returns the sorted qualified IDs of the nodes absent from the base graph.
+     */
+    List<ShortInt> getNewNodeIds() {
+        if (sortedNewNodes == null) {
+            long[] sorted = new long[newNodeCount];
+            int count = 0;
+            for (Node node : nodes) {
+                if (node != null && node.isNew)
+                    sorted[count++] = node.key;
+            }
+            Arrays.sort(sorted);
+            sortedNewNodes = sorted;
+        }
+        final long[] sorted = sortedNewNodes;
+        return new BaseList<ShortInt>() {
+            @Override
+            protected ShortInt getImpl(int location) {
+                long key = sorted[location];
+                return new ShortInt(nodeType(key), nodeId(key));
+            }
+            @Override
+            public int size() {
+                return sorted.length;
+            }
+        };
+    }
+}
@@ -8,6 +8,8 @@ import com.gnahraf.graphiti.model.Cursor;
 import com.gnahraf.graphiti.model.EdgeType;
 import com.gnahraf.graphiti.model.NodeType;
 import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.list.IntSlice;
+import com.gnahraf.util.list.LongSlice;
 import com.gnahraf.util.list.Lists;
 import com.gnahraf.util.list.SortedListUnion;
 
@@ -95,6 +97,16 @@ class DisjointComboCursor extends Cursor {
             return loadedCursor().getNodeIds(inbound, edgeType, nodeType);
     }
 
+    @Override
+    public IntSlice getNodeIdSlice(boolean inbound, EdgeType edgeType, NodeType nodeType) {
+        if (combined())
+            return IntSlice.union(
+                    a.getNodeIdSlice(inbound, edgeType, nodeType),
+                    b.getNodeIdSlice(inbound, edgeType, nodeType));
+        else
+            return loadedCursor().getNodeIdSlice(inbound, edgeType, nodeType);
+    }
+
     @Override
     public List<ShortInt> getQualifiedNodeIds() {
         if (combined())
@@ -104,6 +116,16 @@ class DisjointComboCursor extends Cursor {
     }
 
 
+    @Override
+    public LongSlice getQualifiedNodeIdsPacked() {
+        if (combined())
+            return LongSlice.distinctUnion(
+                    a.getQualifiedNodeIdsPacked(), b.getQualifiedNodeIdsPacked());
+        else
+            return loadedCursor().getQualifiedNodeIdsPacked();
+    }
+
+
     private Cursor loadedCursor() {
         return aLoaded ? a : b;
     }
@@ -0,0 +1,624 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.util.datatypes.Primitives.Sizeof;
+import com.gnahraf.util.mem.Crc32C;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * An append-only, write-ahead log of edge insertions. Edges inserted into a
+ * {@linkplain GraphBuilder} are lost on a crash; logging them here first, and
+ * {@linkplain #replay(Path, GraphBuilder) replaying} the log on startup, makes them
+ * durable.
+ *
+ * <h3>File Format</h3>
+ * <br/>
+ * <pre>{@literal
+ *
+ * <FILE>      : <HEADER> <BLOCK>*
+ * <HEADER>    : <MAGIC> <VERSION>
+ * <BLOCK>     : <B.CRC> <R.COUNT> <RECORD>{R.COUNT}
+ * <RECORD>    : <SRC.TYPE> <SRC.ID> <EDGE.TYPE> <DTN.TYPE> <DTN.ID>
+ *
+ * }
+ * </pre>
+ * where <br/>
+ * <pre>{@literal
+ *
+ * <MAGIC>     : <INT>     (0x474c4f47, "GLOG")
+ * <VERSION>   : <INT>     (1)
+ * <B.CRC>     : <INT>     CRC32C of the block (sans this field)
+ * <R.COUNT>   : <INT>     number of records in the block (&gt; 0)
+ * <SRC.TYPE>  : <SHORT>
+ * <SRC.ID>    : <INT>
+ * <EDGE.TYPE> : <SHORT>
+ * <DTN.TYPE>  : <SHORT>
+ * <DTN.ID>    : <INT>
+ *
+ * }
+ * </pre><br/>
+ *
+ * Integral values are big endian, so a record takes 14 bytes.
+ *
+ * <h3>Group Commit</h3>
+ *
+ * {@linkplain #append(short, int, short, short, int) Append}ed records are buffered
+ * into a block; a full block is written out (but not synced). A record is durable only
+ * once it is {@linkplain #commit(long) commit}ted. Commits are grouped: while one thread
+ * syncs the file, the others append, and the next thread to commit syncs all their records
+ * at once. So under concurrent load, the number of syncs grows much slower than the
+ * number of commits. Commits write out the block so far, so blocks may be less than full.
+ *
+ * <h3>Recovery</h3>
+ *
+ * Blocks written since the last sync may be torn (partially written) by a crash. So the
+ * log ends at the first block that is truncated, or whose checksum doesn't match:
+ * replay stops there, and {@linkplain #open(Path) reopen}ing the log truncates it there.
+ * Block checksums are verified, and blocks replayed, in parallel.
+ */
+public class EdgeLog implements Closeable {
+
+    public final static int MAGIC = 0x474c4f47;   // "GLOG"
+
+    public final static int VERSION = 1;
+
+    public final static int HEADER_SIZE = 2 * Sizeof.INT;
+
+    public final static int BLOCK_HEADER_SIZE = 2 * Sizeof.INT;
+
+    public final static int RECORD_SIZE = 3 * Sizeof.SHORT + 2 * Sizeof.INT;
+
+    /**
+     * Default maximum number of records per block (about 56K bytes).
+     */
+    public final static int DEFAULT_BLOCK_RECORDS = 4096;
+
+    /**
+     * Minimum number of blocks checksummed or replayed per parallel task.
+     */
+    private final static int MIN_TASK_BLOCKS = 8;
+
+
+
+
+    /**
+     * Opens the log at the given path, creating it if it doesn't exist. An existing log
+     * is truncated at its first torn block (if any), and appended to.
+     *
+     * @throws IOException on an I/O error, or if the file is not an edge log
+     */
+    public static EdgeLog open(Path file) throws IOException {
+        return open(file, DEFAULT_BLOCK_RECORDS);
+    }
+
+
+    /**
+     * Opens the log at the given path, writing blocks of at most <tt>blockRecords</tt>
+     * records.
+     */
+    public static EdgeLog open(Path file, int blockRecords) throws IOException {
+        if (blockRecords < 1)
+            throw new IllegalArgumentException("blockRecords " + blockRecords);
+        FileChannel ch = FileChannel.open(
+                file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            Blocks blocks;
+            if (ch.size() == 0) {
+                ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+                head.putInt(MAGIC).putInt(VERSION);
+                ((Buffer) head).flip();
+                writeFully(ch, head, 0);
+                ch.force(true);
+                blocks = new Blocks(0);
+            } else {
+                blocks = scan(ch, file);
+                if (blocks.end < ch.size())
+                    ch.truncate(blocks.end);
+            }
+            return new EdgeLog(file, ch, blocks.end, blocks.records, blockRecords);
+        } catch (IOException | RuntimeException x) {
+            ch.close();
+            throw x;
+        }
+    }
+
+
+    /**
+     * Replays the log at the given path into the given builder. The builder's
+     * {@linkplain GraphBuilder#insertEdge(short, int, short, short, int) insertEdge} is
+     * invoked for each record, in order (the checksums are verified in parallel first).
+     *
+     * @return the number of records replayed
+     */
+    public static long replay(Path file, GraphBuilder builder) throws IOException {
+        if (builder == null)
+            throw new IllegalArgumentException("null builder");
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            Blocks blocks = scan(ch, file);
+            ByteBuffer buf = ByteBuffer.allocate(blocks.maxBlockSize(0, blocks.count));
+            for (int index = 0; index < blocks.count; ++index) {
+                blocks.read(ch, index, buf);
+                for (int count = blocks.recordCounts[index]; count-- > 0; )
+                    builder.insertEdge(
+                            buf.getShort(), buf.getInt(), buf.getShort(), buf.getShort(), buf.getInt());
+            }
+            return blocks.records;
+        }
+    }
+
+
+    /**
+     * Replays the log at the given path into the given builder, in parallel. Each task
+     * replays a run of blocks into its own {@linkplain ConcurrentGraphBuilder#newWriter()
+     * writer}. Since the builder dedups and orders the edges anyway, the order they're
+     * replayed in doesn't matter.
+     *
+     * @return the number of records replayed
+     */
+    public static long replay(Path file, ConcurrentGraphBuilder builder) throws IOException {
+        if (builder == null)
+            throw new IllegalArgumentException("null builder");
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            Blocks blocks = scan(ch, file);
+            ForkJoinPool.commonPool().invoke(new ReplayTask(blocks, ch, builder, 0, blocks.count));
+            return blocks.records;
+        } catch (IoError x) {
+            throw x.getCause();
+        }
+    }
+
+
+    /**
+     * Replays a run of blocks into a writer of its own.
+     */
+    @SuppressWarnings("serial")
+    private static class ReplayTask extends RecursiveAction {
+
+        private final Blocks blocks;
+        private final FileChannel ch;
+        private final ConcurrentGraphBuilder builder;
+        private final int from;
+        private final int to;
+
+        ReplayTask(Blocks blocks, FileChannel ch, ConcurrentGraphBuilder builder, int from, int to) {
+            this.blocks = blocks;
+            this.ch = ch;
+            this.builder = builder;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > taskBlocks(blocks.count)) {
+                int mid = (from + to) >>> 1;
+                invokeAll(
+                        new ReplayTask(blocks, ch, builder, from, mid),
+                        new ReplayTask(blocks, ch, builder, mid, to));
+                return;
+            }
+            ConcurrentGraphBuilder.Writer writer = builder.newWriter();
+            ByteBuffer buf = ByteBuffer.allocate(blocks.maxBlockSize(from, to));
+            try {
+                for (int index = from; index < to; ++index) {
+                    blocks.read(ch, index, buf);
+                    for (int count = blocks.recordCounts[index]; count-- > 0; )
+                        writer.insertEdge(
+                                buf.getShort(), buf.getInt(), buf.getShort(), buf.getShort(), buf.getInt());
+                }
+            } catch (IOException iox) {
+                throw new IoError(iox);
+            }
+        }
+    }
+
+
+    private static int taskBlocks(int blockCount) {
+        int tasks = 4 * ForkJoinPool.getCommonPoolParallelism();
+        return Math.max(MIN_TASK_BLOCKS, blockCount / tasks);
+    }
+
+
+    /**
+     * Unchecked wrapper for I/O errors in parallel tasks.
+     */
+    @SuppressWarnings("serial")
+    private static class IoError extends RuntimeException {
+        IoError(IOException cause) {
+            super(cause);
+        }
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+
+
+
+    /**
+     * The valid blocks of a log file.
+     */
+    private static class Blocks {
+
+        long[] offsets;
+        int[] recordCounts;
+        int count;
+        long records;
+        long end;
+
+        Blocks(int initCount) {
+            offsets = new long[Math.max(16, initCount)];
+            recordCounts = new int[offsets.length];
+            end = HEADER_SIZE;
+        }
+
+        void add(long offset, int records) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                recordCounts = Arrays.copyOf(recordCounts, count * 2);
+            }
+            offsets[count] = offset;
+            recordCounts[count++] = records;
+        }
+
+        void truncate(int index) {
+            count = index;
+            records = 0;
+            for (int i = 0; i < index; ++i)
+                records += recordCounts[i];
+            end = index == 0 ? HEADER_SIZE : offsets[index - 1] + blockSize(recordCounts[index - 1]);
+        }
+
+        int maxBlockSize(int from, int to) {
+            int max = 0;
+            for (int index = from; index < to; ++index)
+                max = Math.max(max, recordCounts[index]);
+            return blockSize(max);
+        }
+
+        /**
+         * Reads the records of the block at the given index into <tt>buf</tt>. On return,
+         * the buffer is positioned at the first record.
+         */
+        void read(FileChannel ch, int index, ByteBuffer buf) throws IOException {
+            ((Buffer) buf).clear();
+            ((Buffer) buf).limit(blockSize(recordCounts[index]));
+            readFully(ch, buf, offsets[index]);
+            ((Buffer) buf).flip();
+            ((Buffer) buf).position(BLOCK_HEADER_SIZE);
+        }
+
+        /**
+         * Returns the index of the first block whose checksum doesn't match, or
+         * <tt>to</tt>, if they all do.
+         */
+        int firstBad(FileChannel ch, int from, int to) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(maxBlockSize(from, to));
+            for (int index = from; index < to; ++index) {
+                read(ch, index, buf);
+                int crc = buf.getInt(0);
+                ((Buffer) buf).position(Sizeof.INT);
+                if (Crc32C.compute(buf) != crc)
+                    return index;
+            }
+            return to;
+        }
+    }
+
+
+    private static int blockSize(int records) {
+        return BLOCK_HEADER_SIZE + records * RECORD_SIZE;
+    }
+
+
+    /**
+     * Validates the header, and returns the valid blocks in the given log file.
+     * The block headers are read sequentially; the blocks are checksummed in parallel.
+     */
+    private static Blocks scan(final FileChannel ch, Path file) throws IOException {
+        long size = ch.size();
+        ByteBuffer head = ByteBuffer.allocate(Math.max(HEADER_SIZE, BLOCK_HEADER_SIZE));
+        ((Buffer) head).limit(HEADER_SIZE);
+        if (size < HEADER_SIZE)
+            throw new IOException("truncated header: " + file);
+        readFully(ch, head, 0);
+        int magic = head.getInt(0);
+        if (magic != MAGIC)
+            throw new IOException(
+                    "not an edge log (magic " + Integer.toHexString(magic) + "): " + file);
+        int version = head.getInt(Sizeof.INT);
+        if (version != VERSION)
+            throw new IOException("unsupported version " + version + ": " + file);
+
+        final Blocks blocks = new Blocks((int) Math.min(1 << 20, size / blockSize(DEFAULT_BLOCK_RECORDS)));
+        long offset = HEADER_SIZE;
+        while (size - offset >= BLOCK_HEADER_SIZE) {
+            ((Buffer) head).clear();
+            ((Buffer) head).limit(BLOCK_HEADER_SIZE);
+            readFully(ch, head, offset);
+            int records = head.getInt(Sizeof.INT);
+            if (records < 1 || records > (size - offset - BLOCK_HEADER_SIZE) / RECORD_SIZE)
+                break;
+            blocks.add(offset, records);
+            blocks.records += records;
+            offset += blockSize(records);
+        }
+        blocks.end = offset;
+
+        try {
+            int bad = ForkJoinPool.commonPool().invoke(new CheckTask(blocks, ch, 0, blocks.count));
+            if (bad < blocks.count)
+                blocks.truncate(bad);
+        } catch (IoError x) {
+            throw x.getCause();
+        }
+        return blocks;
+    }
+
+
+    /**
+     * Returns the index of the first bad block in a range, or the range's end.
+     */
+    @SuppressWarnings("serial")
+    private static class CheckTask extends RecursiveTask<Integer> {
+
+        private final Blocks blocks;
+        private final FileChannel ch;
+        private final int from;
+        private final int to;
+
+        CheckTask(Blocks blocks, FileChannel ch, int from, int to) {
+            this.blocks = blocks;
+            this.ch = ch;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (to - from > taskBlocks(blocks.count)) {
+                int mid = (from + to) >>> 1;
+                CheckTask tail = new CheckTask(blocks, ch, mid, to);
+                tail.fork();
+                int bad = new CheckTask(blocks, ch, from, mid).compute();
+                int tailBad = tail.join();
+                return bad < mid ? bad : tailBad;
+            }
+            try {
+                return blocks.firstBad(ch, from, to);
+            } catch (IOException iox) {
+                throw new IoError(iox);
+            }
+        }
+    }
+
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int bytes = ch.read(buf, position);
+            if (bytes == -1)
+                throw new IOException("unexpected end of file");
+            position += bytes;
+        }
+    }
+
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining())
+            position += ch.write(buf, position);
+    }
+
+
+
+
+    private final Path file;
+    private final FileChannel ch;
+    private final int blockRecords;
+
+    // guarded by this instance's lock
+    private final ByteBuffer block;
+    private long end;
+    private long appended;
+    private long committed;
+    private long syncs;
+    private boolean syncing;
+    private boolean closed;
+
+
+    private EdgeLog(Path file, FileChannel ch, long end, long records, int blockRecords) {
+        this.file = file;
+        this.ch = ch;
+        this.blockRecords = blockRecords;
+        this.block = ByteBuffer.allocate(blockSize(blockRecords));
+        ((Buffer) block).position(BLOCK_HEADER_SIZE);
+        this.end = end;
+        this.appended = this.committed = records;
+    }
+
+
+    public Path getPath() {
+        return file;
+    }
+
+
+    /**
+     * Appends an edge insertion record. The record is durable only once it's
+     * {@linkplain #commit(long) commit}ted.
+     *
+     * @return the record's sequence number: the number of records in the log, including it
+     *
+     * @throws IOException if writing out a full block fails
+     */
+    public synchronized long append(
+            short srcNodeType, int srcNodeId,
+            short edgeType,
+            short dtnNodeType, int dtnNodeId) throws IOException {
+        if (closed)
+            throw new IllegalStateException("closed: " + file);
+        if (!block.hasRemaining())
+            writeBlock();
+        block.putShort(srcNodeType).putInt(srcNodeId)
+                .putShort(edgeType)
+                .putShort(dtnNodeType).putInt(dtnNodeId);
+        return ++appended;
+    }
+
+
+    /**
+     * Commits all the records appended so far (by any thread).
+     */
+    public void commit() throws IOException {
+        long seqNo;
+        synchronized (this) {
+            seqNo = appended;
+        }
+        commit(seqNo);
+    }
+
+
+    /**
+     * Returns once the records up to the given sequence number are durable. If another
+     * thread is syncing the log, this waits for it to finish first, and then (unless it
+     * already covered them) syncs all the records appended so far.
+     *
+     * @param seqNo a sequence number returned by {@linkplain #append(short, int, short, short, int)
+     *        append}
+     */
+    public void commit(long seqNo) throws IOException {
+        commit(seqNo, false);
+    }
+
+
+    /**
+     * Commits the records up to the given sequence number. Unless <tt>closing</tt>, the
+     * log must not be closed (if they're not yet committed).
+     */
+    private void commit(long seqNo, boolean closing) throws IOException {
+        long target;
+        synchronized (this) {
+            if (seqNo > appended)
+                throw new IllegalArgumentException("seqNo " + seqNo + " > appended " + appended);
+            while (committed < seqNo && syncing) {
+                try {
+                    wait();
+                } catch (InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted awaiting commit: " + file);
+                }
+            }
+            if (committed >= seqNo)
+                return;
+            if (closed && !closing)
+                throw new IllegalStateException("closed: " + file);
+            writeBlock();
+            syncing = true;
+            target = appended;
+        }
+        // sync outside the lock, so that others may append meanwhile
+        boolean synced = false;
+        try {
+            ch.force(false);
+            synced = true;
+        } finally {
+            synchronized (this) {
+                syncing = false;
+                if (synced) {
+                    committed = target;
+                    ++syncs;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Writes out the buffered block, if any. Invoked under lock. The block is written thru
+     * a view of the buffer, so if writing fails, the block is left as it was (and the next
+     * attempt writes it over the same file region).
+     */
+    private void writeBlock() throws IOException {
+        int records = (block.position() - BLOCK_HEADER_SIZE) / RECORD_SIZE;
+        if (records == 0)
+            return;
+        block.putInt(Sizeof.INT, records);
+        ByteBuffer out = block.duplicate();
+        ((Buffer) out).flip();
+        ((Buffer) out).position(Sizeof.INT);
+        int crc = Crc32C.compute(out);
+        block.putInt(0, crc);
+        ((Buffer) out).position(0);
+        writeFully(ch, out, end);
+        end += out.limit();
+        ((Buffer) block).clear();
+        ((Buffer) block).position(BLOCK_HEADER_SIZE);
+    }
+
+
+    /**
+     * Returns the number of records in the log, committed or not.
+     */
+    public synchronized long getAppendCount() {
+        return appended;
+    }
+
+
+    /**
+     * Returns the number of records known to be durable.
+     */
+    public synchronized long getCommitCount() {
+        return committed;
+    }
+
+
+    /**
+     * Returns the number of times the file was synced. Compared with the number of
+     * commit invocations, this measures how well commits are grouped.
+     */
+    public synchronized long getSyncCount() {
+        return syncs;
+    }
+
+
+    public int getBlockRecords() {
+        return blockRecords;
+    }
+
+
+    /**
+     * Commits the appended records, and closes the log. Idempotent.
+     */
+    @Override
+    public void close() throws IOException {
+        long seqNo;
+        // closed first, so that no record is appended after the final commit
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+            seqNo = appended;
+        }
+        try {
+            commit(seqNo, true);
+        } finally {
+            ch.close();
+        }
+    }
+}
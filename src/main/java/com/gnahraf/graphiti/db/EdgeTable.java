@@ -7,14 +7,14 @@ package com.gnahraf.graphiti.db;
 
 import com.gnahraf.graphiti.model.EdgeType;
 import com.gnahraf.util.list.BaseList;
+import com.gnahraf.util.datatypes.Pinterval;
+import com.gnahraf.util.mem.Allocator;
 import com.gnahraf.util.mem.Buff;
 import com.gnahraf.util.datatypes.Primitives.Sizeof;
 import com.gnahraf.util.mem.Table;
 
 import java.util.List;
 
-import static com.gnahraf.util.datatypes.Primitives.unsign;
-import static com.gnahraf.util.datatypes.Primitives.unsignedShort;
 
 /**
  * Table of edges referencing node types. Rows in this table are referenced from the
@@ -25,48 +25,85 @@ import static com.gnahraf.util.datatypes.Primitives.unsignedShort;
  */
 public class EdgeTable extends Table {
 
+    /**
+     * Row size in the {@linkplain Layout#NARROW narrow} layout.
+     */
     public final static int ROW_SIZE = Sizeof.SHORT + Sizeof.TRYTE + Sizeof.SHORT;
 
 
     private final List<EdgeType> edgeTypes;
 
+    private final Layout layout;
+    private final int rowPtrWidth;
+    private final int countWidth;
 
 
     public EdgeTable(int initCapacity) {
-        super(initCapacity);
+        this(initCapacity, Allocator.HEAP);
+    }
+
+    public EdgeTable(int initCapacity, Allocator allocator) {
+        this(initCapacity, allocator, UNPAGED);
+    }
+
+    public EdgeTable(int initCapacity, Allocator allocator, int pageShift) {
+        this(initCapacity, allocator, pageShift, Layout.NARROW);
+    }
+
+    public EdgeTable(int initCapacity, Allocator allocator, int pageShift, Layout layout) {
+        super(layout.edgeRowSize(), initCapacity, allocator, pageShift);
+        this.layout = layout;
+        this.rowPtrWidth = layout.rowPtrWidth;
+        this.countWidth = layout.typeCountWidth;
         edgeTypes = getEdgeTypeView();
     }
 
     public EdgeTable(Buff data, int size) {
-        super(data, size);
-        edgeTypes = getEdgeTypeView();
+        this(Layout.NARROW, data, size);
     }
 
+    public EdgeTable(Layout layout, Buff data, int size) {
+        super(layout.edgeRowSize(), data, size);
+        this.layout = layout;
+        this.rowPtrWidth = layout.rowPtrWidth;
+        this.countWidth = layout.typeCountWidth;
+        edgeTypes = getEdgeTypeView();
+    }
 
+    public EdgeTable(Buff[] pages, int pageShift, int size) {
+        this(Layout.NARROW, pages, pageShift, size);
+    }
 
+    public EdgeTable(Layout layout, Buff[] pages, int pageShift, int size) {
+        super(layout.edgeRowSize(), pages, pageShift, size);
+        this.layout = layout;
+        this.rowPtrWidth = layout.rowPtrWidth;
+        this.countWidth = layout.typeCountWidth;
+        edgeTypes = getEdgeTypeView();
+    }
 
 
-    @Override
-    protected final int itemSize() {
-        return ROW_SIZE;
+    public Layout getLayout() {
+        return layout;
     }
 
 
+
     public short getEdgeType(int index) {
         int offset = offset(index);
-        return data.getShort(offset);
+        return page(index).getShort(offset);
     }
 
 
     public int getNodeTypeRow(int index) {
         int offset = offset(index) + Sizeof.SHORT;
-        return data.getTryte(offset);
+        return Layout.get(page(index), offset, rowPtrWidth);
     }
 
 
     public int getNodeTypeCount(int index) {
-        int offset = offset(index) + Sizeof.SHORT + Sizeof.TRYTE;
-        return unsign(data.getShort(offset));
+        int offset = offset(index) + Sizeof.SHORT + rowPtrWidth;
+        return Layout.get(page(index), offset, countWidth);
     }
 
 
@@ -83,15 +120,77 @@ public class EdgeTable extends Table {
     public void appendEntry(short edgeType, int nodeTypeRow, int nodeTypeCount) {
         ensureAvailable();
         int size = size();
-        int offset = offset(size);
-        data.putShort(edgeType, offset);
-        offset += Sizeof.SHORT;
-        data.putTryte(nodeTypeRow, offset);
-        offset += Sizeof.TRYTE;
-        data.putShort(unsignedShort(nodeTypeCount), offset);
+        putEntry(size, edgeType, nodeTypeRow, nodeTypeCount);
         setSize(size + 1);
     }
 
+
+    /**
+     * Overwrites the row at the given index. Rows in distinct indices may be set
+     * concurrently.
+     *
+     * @see #presize(int)
+     */
+    void setEntry(int index, short edgeType, int nodeTypeRow, int nodeTypeCount) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException(index + " (size " + size() + ")");
+        putEntry(index, edgeType, nodeTypeRow, nodeTypeCount);
+    }
+
+
+    /**
+     * Sets the number of rows in the table, so that they may be filled in out of sequence
+     * using {@linkplain #setEntry(int, short, int, int) setEntry}.
+     */
+    void presize(int size) {
+        setSize(size);
+    }
+
+
+    /**
+     * Appends the <tt>other</tt> table's rows in the range [<tt>from</tt>, <tt>to</tt>),
+     * adding <tt>nodeTypeRowDelta</tt> to their node type row pointers. The run's node
+     * type rows must be contiguous, starting from <tt>nodeTypeRow</tt> in the other table.
+     *
+     * @return the other table's node type row following the run's
+     * @throws IllegalStateException if the run's node type rows are not contiguous
+     * @see AddressTable#appendRun(AddressTable, int, int, int, int)
+     */
+    int appendRun(EdgeTable other, int from, int to, int nodeTypeRow, int nodeTypeRowDelta) {
+        int index = size();
+        if (other.layout == layout)
+            copyFrom(other, new Pinterval(from, to), index);
+        else {
+            setSize(index + to - from);
+            for (int i = from, j = index; i < to; ++i, ++j)
+                putEntry(j, other.getEdgeType(i), other.getNodeTypeRow(i), other.getNodeTypeCount(i));
+        }
+
+        for (int end = size(); index < end; ++index) {
+            Buff page = page(index);
+            int offset = offset(index) + Sizeof.SHORT;
+            int row = Layout.get(page, offset, rowPtrWidth);
+            if (row != nodeTypeRow)
+                throw new IllegalStateException(
+                        "non-contiguous node type rows at edge row " + index +
+                        ": expected " + nodeTypeRow + "; actual " + row);
+            Layout.put(page, row + nodeTypeRowDelta, offset, rowPtrWidth);
+            nodeTypeRow += Layout.get(page, offset + rowPtrWidth, countWidth);
+        }
+        return nodeTypeRow;
+    }
+
+
+    private void putEntry(int index, short edgeType, int nodeTypeRow, int nodeTypeCount) {
+        Buff page = page(index);
+        int offset = offset(index);
+        page.putShort(edgeType, offset);
+        offset += Sizeof.SHORT;
+        Layout.put(page, nodeTypeRow, offset, rowPtrWidth);
+        offset += rowPtrWidth;
+        Layout.put(page, nodeTypeCount, offset, countWidth);
+    }
+
     public void incrLastNodeTypeCount() {
         incrLastNodeTypeCount(1);
     }
@@ -105,8 +204,8 @@ public class EdgeTable extends Table {
             throw new IllegalArgumentException("negative amount: " + amount);
 
         int count = getNodeTypeCount(index) + amount;
-        int offset = offset(index) + Sizeof.SHORT + Sizeof.TRYTE;
-        data.putShort(unsignedShort(count), offset);
+        int offset = offset(index) + Sizeof.SHORT + rowPtrWidth;
+        Layout.put(page(index), count, offset, countWidth);
 
     }
 
@@ -115,7 +214,7 @@ public class EdgeTable extends Table {
         return new BaseList<EdgeType>() {
             @Override
             protected EdgeType getImpl(int location) {
-                return new EdgeType(getEdgeType(location));
+                return EdgeType.valueOf(getEdgeType(location));
             }
             @Override
             public int size() {
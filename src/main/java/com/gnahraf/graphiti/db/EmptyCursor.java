@@ -8,6 +8,8 @@ import com.gnahraf.graphiti.model.Cursor;
 import com.gnahraf.graphiti.model.EdgeType;
 import com.gnahraf.graphiti.model.NodeType;
 import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.list.IntSlice;
+import com.gnahraf.util.list.LongSlice;
 
 import java.util.Collections;
 import java.util.List;
@@ -58,8 +60,18 @@ public class EmptyCursor extends Cursor {
         return Collections.emptyList();
     }
 
+    @Override
+    public IntSlice getNodeIdSlice(boolean inbound, EdgeType edgeType, NodeType nodeType) {
+        return IntSlice.EMPTY;
+    }
+
     @Override
     public List<ShortInt> getQualifiedNodeIds() {
         return Collections.emptyList();
     }
+
+    @Override
+    public LongSlice getQualifiedNodeIdsPacked() {
+        return LongSlice.EMPTY;
+    }
 }
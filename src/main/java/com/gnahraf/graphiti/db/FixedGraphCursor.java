@@ -5,21 +5,34 @@
 package com.gnahraf.graphiti.db;
 
 
-import com.gnahraf.graphiti.db.AddressTable.Address;
 import com.gnahraf.graphiti.model.Cursor;
 import com.gnahraf.graphiti.model.EdgeType;
 import com.gnahraf.graphiti.model.NodeType;
 import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.list.IntSlice;
+import com.gnahraf.util.list.LongSlice;
 
 
 import java.util.Collections;
 import java.util.List;
 
 /**
+ * Cursor over a graph's tables. This is a flyweight: the node it's positioned on is
+ * kept as primitive row pointers into the tables, and lookups search the table rows
+ * directly. So moving the cursor, and looking up edge and node types (or counts) at its
+ * position, allocate nothing. (The lists returned are views over the tables; their
+ * elements are interned.)
+ * <p/>
  * Created by babak on 6/18/15.
  */
 public class FixedGraphCursor extends Cursor {
 
+    /**
+     * Type runs up to this long are scanned linearly; longer ones, binary searched.
+     */
+    private final static int MAX_SCAN = 128;
+
+
 
     private final AddressTable addressTable;
     private final EdgeTable edgeTable;
@@ -27,7 +40,11 @@ public class FixedGraphCursor extends Cursor {
     private final NodeIdTable nodeIdTable;
 
 
-    private Address activeNode;
+    // the active node's edge rows
+    private int inEdgeRow;
+    private int inEdgeRowCount;
+    private int outEdgeRow;
+    private int outEdgeRowCount;
 
     public FixedGraphCursor(
             AddressTable addressTable,
@@ -59,29 +76,42 @@ public class FixedGraphCursor extends Cursor {
 
     @Override
     protected boolean loadVertex(NodeType nodeType, int nodeId) {
-        Address address = addressTable.getAddress(nodeType.getId(), nodeId);
-        if (address == null)
+        int index = addressTable.indexOf(nodeType.getId(), nodeId);
+        if (index < 0)
             return false;
 
-        this.activeNode = address;
+        outEdgeRow = addressTable.getEdgeRow(false, index);
+        outEdgeRowCount = addressTable.getEdgeRowCount(false, index);
+        inEdgeRow = addressTable.getEdgeRow(true, index);
+        inEdgeRowCount = addressTable.getEdgeRowCount(true, index);
         return true;
     }
 
+
+    private int edgeRowCount(boolean inbound) {
+        return inbound ? inEdgeRowCount : outEdgeRowCount;
+    }
+
+
+    private int firstEdgeRow(boolean inbound) {
+        return inbound ? inEdgeRow : outEdgeRow;
+    }
+
     @Override
     public List<EdgeType> getEdgeTypes(boolean inbound) {
-        int count = activeNode.getEdgeRowCount(inbound);
+        int count = edgeRowCount(inbound);
         if (count == 0)
             return Collections.emptyList();
-        int row = activeNode.getEdgeRow(inbound);
+        int row = firstEdgeRow(inbound);
         return edgeTable.asTypeList().subList(row, row + count);
     }
 
     @Override
     public int getEdgeCount(boolean inbound) {
-        int edgeTypeCount = activeNode.getEdgeRowCount(inbound);
+        int edgeTypeCount = edgeRowCount(inbound);
         if (edgeTypeCount == 0)
             return 0;
-        int edgeTypeRow = activeNode.getEdgeRow(inbound);
+        int edgeTypeRow = firstEdgeRow(inbound);
         int lastEdgeTypeRow = edgeTypeRow + edgeTypeCount;
         int count = 0;
         for (; edgeTypeRow < lastEdgeTypeRow; ++edgeTypeRow) {
@@ -121,31 +151,38 @@ public class FixedGraphCursor extends Cursor {
 
 
     private int edgeRow(boolean inbound, EdgeType edgeType) {
-        int edgeTypeCount = activeNode.getEdgeRowCount(inbound);
+        int edgeTypeCount = edgeRowCount(inbound);
         if (edgeTypeCount == 0)
             return -1;
-        int edgeRow = activeNode.getEdgeRow(inbound);
+        int edgeRow = firstEdgeRow(inbound);
         int lastEdgeRow = edgeRow + edgeTypeCount;
-        if (edgeTypeCount <= 128) {
+        short key = edgeType.getId();
+        if (edgeTypeCount <= MAX_SCAN) {
             while (edgeRow < lastEdgeRow) {
                 short type = edgeTable.getEdgeType(edgeRow);
-                if (type < edgeType.getId()) {
+                if (type < key) {
                     ++edgeRow;
                     continue;
                 }
-                if (type > edgeType.getId())
+                if (type > key)
                     edgeRow = lastEdgeRow;
                 break;
             }
             if (edgeRow == lastEdgeRow)
                 return -1;
         } else {
-            List<EdgeType> edgeTypes =
-                    edgeTable.asTypeList().subList(edgeRow, lastEdgeRow);
-            int relativeIndex = Collections.binarySearch(edgeTypes, edgeType);
-            if (relativeIndex < 0)
-                return -1;
-            edgeRow += relativeIndex;
+            int high = lastEdgeRow - 1;
+            while (edgeRow <= high) {
+                int mid = (edgeRow + high) >>> 1;
+                short type = edgeTable.getEdgeType(mid);
+                if (type < key)
+                    edgeRow = mid + 1;
+                else if (type > key)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
         }
         return edgeRow;
     }
@@ -164,26 +201,33 @@ public class FixedGraphCursor extends Cursor {
         int nodeTypeCount = edgeTable.getNodeTypeCount(edgeRow);
         int lastNodeTypeRow = nodeTypeRow + nodeTypeCount;
 
-        if (nodeTypeCount <= 128) {
+        short key = nodeType.getId();
+        if (nodeTypeCount <= MAX_SCAN) {
             while (nodeTypeRow < lastNodeTypeRow) {
                 short type = nodeTypeTable.getNodeType(nodeTypeRow);
-                if (type < nodeType.getId()) {
+                if (type < key) {
                     ++nodeTypeRow;
                     continue;
                 }
-                if (type > nodeType.getId())
+                if (type > key)
                     nodeTypeRow = lastNodeTypeRow;
                 break;
             }
             if (nodeTypeRow == lastNodeTypeRow)
                 return -1;
         } else {
-            List<NodeType> nodeTypes =
-                    nodeTypeTable.asTypeList().subList(nodeTypeRow, lastNodeTypeRow);
-            int relativeIndex = Collections.binarySearch(nodeTypes, nodeType);
-            if (relativeIndex < 0)
-                return -1;
-            nodeTypeRow += relativeIndex;
+            int high = lastNodeTypeRow - 1;
+            while (nodeTypeRow <= high) {
+                int mid = (nodeTypeRow + high) >>> 1;
+                short type = nodeTypeTable.getNodeType(mid);
+                if (type < key)
+                    nodeTypeRow = mid + 1;
+                else if (type > key)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
         }
         return nodeTypeRow;
     }
@@ -209,8 +253,25 @@ public class FixedGraphCursor extends Cursor {
     }
 
 
+    @Override
+    public IntSlice getNodeIdSlice(boolean inbound, EdgeType edgeType, NodeType nodeType) {
+        int nodeTypeRow = nodeTypeRow(inbound, edgeType, nodeType);
+        if (nodeTypeRow == -1)
+            return IntSlice.EMPTY;
+        int nodeIdRow = nodeTypeTable.getNodeIdRow(nodeTypeRow);
+        int nodeIdCount = nodeTypeTable.getNodeIdCount(nodeTypeRow);
+        return nodeIdTable.slice(nodeIdRow, nodeIdCount);
+    }
+
+
     @Override
     public List<ShortInt> getQualifiedNodeIds() {
         return addressTable.getNodeIds();
     }
+
+
+    @Override
+    public LongSlice getQualifiedNodeIdsPacked() {
+        return addressTable.getPackedNodeIds();
+    }
 }
@@ -6,6 +6,15 @@ package com.gnahraf.graphiti.db;
 
 
 import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.list.BaseList;
+import com.gnahraf.util.list.IntSlice;
+import com.gnahraf.util.mem.Allocator;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created by babak on 6/18/15.
@@ -17,6 +26,12 @@ public class Graph {
     final EdgeTable edgeTable;
     final NodeTypeTable nodeTypeTable;
     final NodeIdTable nodeIdTable;
+    private final boolean tombstones;
+    /**
+     * Run on {@linkplain #release()}, before the tables are released. Stops background
+     * readers of the tables (a lazy checksum verification, for example).
+     */
+    private volatile Runnable releaseGuard;
 
 
     public Graph(
@@ -24,7 +39,18 @@ public class Graph {
             EdgeTable edgeTable,
             NodeTypeTable nodeTypeTable,
             NodeIdTable nodeIdTable) {
+        this(addressTable, edgeTable, nodeTypeTable, nodeIdTable, false);
+    }
 
+
+    private Graph(
+            AddressTable addressTable,
+            EdgeTable edgeTable,
+            NodeTypeTable nodeTypeTable,
+            NodeIdTable nodeIdTable,
+            boolean tombstones) {
+
+        this.tombstones = tombstones;
         this.addressTable = addressTable;
         this.edgeTable = edgeTable;
         this.nodeTypeTable = nodeTypeTable;
@@ -38,6 +64,21 @@ public class Graph {
             throw new IllegalArgumentException("null nodeTypeTable");
         if (nodeIdTable == null)
             throw new IllegalArgumentException("null nodeIdTable");
+
+        Layout layout = addressTable.getLayout();
+        if (edgeTable.getLayout() != layout || nodeTypeTable.getLayout() != layout ||
+                nodeIdTable.getLayout() != layout)
+            throw new IllegalArgumentException(
+                    "mixed layouts: " + layout + ", " + edgeTable.getLayout() + ", " +
+                    nodeTypeTable.getLayout() + ", " + nodeIdTable.getLayout());
+    }
+
+
+    /**
+     * Returns the layout of this graph's tables.
+     */
+    public Layout getLayout() {
+        return addressTable.getLayout();
     }
 
 
@@ -46,18 +87,124 @@ public class Graph {
     }
 
 
+    /**
+     * Returns a tombstone graph with the same tables as this instance. The edges of a
+     * tombstone graph are deletions: when {@linkplain GraphMerger merged}, they delete
+     * the matching edges of the graphs that precede them in the merge; when
+     * {@linkplain #newCursor(Graph) read} along with another graph, they hide them.
+     * Build the deleted edges as usual (both directions are deleted together), then
+     * flag them as deletions with this method.
+     */
+    public Graph asTombstones() {
+        if (tombstones)
+            return this;
+        Graph view = new Graph(addressTable, edgeTable, nodeTypeTable, nodeIdTable, true);
+        // the view shares the tables, so releasing it must also stop their readers
+        view.releaseGuard = releaseGuard;
+        return view;
+    }
+
+
+    /**
+     * Determines whether this is a tombstone graph.
+     *
+     * @see #asTombstones()
+     */
+    public boolean isTombstones() {
+        return tombstones;
+    }
+
+
+
+    /**
+     * Sets the strategy used to look up nodes (e.g. on {@linkplain Cursor#moveTo(long) moving
+     * a cursor}). Strategies that index the graph's nodes are built here. The setting
+     * is shared with this graph's {@linkplain #asTombstones() tombstone} view.
+     *
+     * @return this instance
+     */
+    public Graph setNodeSearch(NodeSearch.Kind kind) {
+        addressTable.setSearch(kind);
+        return this;
+    }
+
+
+    /**
+     * Returns the node lookup strategy. {@linkplain NodeSearch.Kind#BINARY BINARY}, unless
+     * {@linkplain #setNodeSearch(NodeSearch.Kind) set} otherwise.
+     */
+    public NodeSearch.Kind getNodeSearch() {
+        return addressTable.getSearchKind();
+    }
+
+
 
     public Cursor newCursor() {
         return new FixedGraphCursor(addressTable, edgeTable, nodeTypeTable, nodeIdTable);
     }
 
 
+    /**
+     * Returns a cursor over this graph's edges less those in the given tombstone graph.
+     * Nodes whose edges are all deleted are hidden. This is the read-side of a merge that
+     * has yet to happen: it sees the graph the merge would produce.
+     *
+     * @param tombstones a {@linkplain #isTombstones() tombstone} graph
+     */
+    public Cursor newCursor(Graph tombstones) {
+        if (!tombstones.isTombstones())
+            throw new IllegalArgumentException("not a tombstone graph");
+        if (tombstones.isEmpty())
+            return newCursor();
+        return new MaskedCursor(newCursor(), tombstones.newCursor());
+    }
+
+
 
     public int getNodeCount() {
         return addressTable.size();
     }
 
 
+    /**
+     * Returns the node types in this graph, in order.
+     */
+    public List<NodeType> getNodeTypes() {
+        final NodeTypeDirectory directory = addressTable.indexTypes();
+        return new BaseList<NodeType>() {
+            @Override
+            protected NodeType getImpl(int location) {
+                return NodeType.valueOf(directory.getType(location));
+            }
+            @Override
+            public int size() {
+                return directory.typeCount();
+            }
+        };
+    }
+
+
+    /**
+     * Returns the number of nodes of the given type. This doesn't search the nodes.
+     */
+    public int getNodeCount(NodeType nodeType) {
+        NodeTypeDirectory directory = addressTable.indexTypes();
+        int t = directory.typeIndex(nodeType.getId());
+        return t < 0 ? 0 : directory.nodeCount(t);
+    }
+
+
+    /**
+     * Returns the IDs of the nodes of the given type, in order. If the type's IDs are
+     * contiguous, the returned slice is computed, not read.
+     */
+    public IntSlice getNodeIds(NodeType nodeType) {
+        NodeTypeDirectory directory = addressTable.indexTypes();
+        int t = directory.typeIndex(nodeType.getId());
+        return t < 0 ? IntSlice.EMPTY : directory.getNodeIds(t);
+    }
+
+
     public int getEdgeCount() {
         return nodeIdTable.size();
     }
@@ -88,7 +235,7 @@ public class Graph {
     }
     
     
-    public int unusedMem() {
+    public long unusedMem() {
     	return  addressTable.overhead() +
     			edgeTable.overhead() +
     			nodeTypeTable.overhead() +
@@ -96,6 +243,34 @@ public class Graph {
     }
     
     
+    /**
+     * Releases the memory backing this graph, leaving it empty. This only matters for
+     * graphs not on the Java heap (off-heap, or memory-mapped), whose memory might otherwise
+     * linger until the GC gets around to it. Cursors obtained from this instance must not
+     * be used once this method is invoked.
+     *
+     * @see com.gnahraf.util.mem.Allocator#DIRECT
+     */
+    public void release() {
+        Runnable guard = releaseGuard;
+        if (guard != null)
+            guard.run();
+        addressTable.release();
+        edgeTable.release();
+        nodeTypeTable.release();
+        nodeIdTable.release();
+    }
+
+
+    /**
+     * Sets the action {@linkplain #release()} runs before releasing the tables. It must
+     * return only once no other thread reads them.
+     */
+    void setReleaseGuard(Runnable guard) {
+        releaseGuard = guard;
+    }
+
+
     /**
      * Trims backing tables to minimium byte size.
      */
@@ -108,6 +283,28 @@ public class Graph {
 
 
 
+    /**
+     * Saves this graph to the given file.
+     *
+     * @see GraphFile
+     */
+    public void save(Path file) throws IOException {
+        GraphFile.save(this, file);
+    }
+
+
+    /**
+     * Opens a read-only graph previously {@linkplain #save(Path) save}d to the given file.
+     * The returned instance is backed by memory-mapped regions of the file. The file's
+     * checksums are verified (in parallel) before returning; to verify them lazily,
+     * use {@linkplain GraphFile#open(Path, GraphFile.Verification)}.
+     */
+    public static Graph open(Path file) throws IOException {
+        return GraphFile.open(file, GraphFile.Verification.EAGER).getGraph();
+    }
+
+
+
 
     public static Graph merge(Graph a, Graph b) {
         if (a == null && b == null)
@@ -124,4 +321,47 @@ public class Graph {
             return new GraphMerger(a, b).merge();
     }
 
+
+    /**
+     * Merges the 2 given non-empty graphs into a new graph whose tables are allocated
+     * by the given <tt>allocator</tt>.
+     */
+    public static Graph merge(Graph a, Graph b, Allocator allocator) {
+        return new GraphMerger(a, b, allocator).merge();
+    }
+
+
+    /**
+     * Merges the given graphs in a single pass. This is much cheaper than merging them
+     * pairwise, since each edge is written only once. Null and empty graphs are ignored.
+     *
+     * @return the merged graph, or the sole non-empty graph, if there's only one
+     */
+    public static Graph merge(Graph... graphs) {
+        return merge(Arrays.asList(graphs), Allocator.HEAP);
+    }
+
+
+    /**
+     * Merges the given graphs in a single pass into a new graph whose tables are allocated
+     * by the given <tt>allocator</tt>. Null and empty graphs are ignored.
+     *
+     * @return the merged graph, or the sole non-empty graph, if there's only one
+     */
+    public static Graph merge(List<Graph> graphs, Allocator allocator) {
+        return GraphMerger.merge(graphs, allocator);
+    }
+
+
+    /**
+     * Merges the given graphs in a single pass straight to the given file, overwriting it
+     * if it exists. The merged tables are never held in memory; the inputs may themselves be
+     * memory-mapped (opened from files). Null and empty graphs are ignored.
+     *
+     * @see #open(Path)
+     */
+    public static void mergeTo(Path file, Graph... graphs) throws IOException {
+        GraphMerger.mergeTo(Arrays.asList(graphs), file);
+    }
+
 }
@@ -6,6 +6,8 @@ package com.gnahraf.graphiti.db;
 
 import com.gnahraf.graphiti.model.EdgeType;
 import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
 
 import java.util.Map;
 import java.util.SortedMap;
@@ -32,9 +34,58 @@ public class GraphBuilder {
     private NodeIdTable nodeIdTable;
 
 
+    private final Allocator allocator;
+    private final int pageShift;
+    private final Layout layout;
+
     private int insertionDups;
     private int insertions;
 
+
+    public GraphBuilder() {
+        this(Allocator.HEAP);
+    }
+
+
+    /**
+     * Creates an instance whose built graphs' tables are allocated using the given
+     * <tt>allocator</tt>.
+     */
+    public GraphBuilder(Allocator allocator) {
+        this(allocator, Table.UNPAGED);
+    }
+
+
+    /**
+     * Creates an instance whose built graphs' tables are allocated using the given
+     * <tt>allocator</tt> in pages of <tt>2<sup>pageShift</sup></tt> rows.
+     *
+     * @param pageShift the page shift, or {@linkplain Table#UNPAGED}
+     */
+    public GraphBuilder(Allocator allocator, int pageShift) {
+        this(allocator, pageShift, Layout.NARROW);
+    }
+
+
+    /**
+     * Creates an instance whose built graphs' tables are allocated using the given
+     * <tt>allocator</tt> in pages of <tt>2<sup>pageShift</sup></tt> rows, laid out
+     * no narrower than the given <tt>layout</tt>. (Built graphs are laid out wide
+     * anyway, if their sizes require it.)
+     *
+     * @param pageShift the page shift, or {@linkplain Table#UNPAGED}
+     */
+    public GraphBuilder(Allocator allocator, int pageShift, Layout layout) {
+        if (allocator == null)
+            throw new IllegalArgumentException("null allocator");
+        if (layout == null)
+            throw new IllegalArgumentException("null layout");
+        this.allocator = allocator;
+        this.pageShift = pageShift;
+        this.layout = layout;
+    }
+
+
     public boolean insertEdge(
             short srcNodeType, int srcNodeId,
             short edgeType,
@@ -55,10 +106,11 @@ public class GraphBuilder {
     public Graph build() {
         if (isEmpty())
             throw new IllegalStateException("instance is empty");
-        addressTable = new AddressTable(nodes.size());
-        edgeTable = new EdgeTable(nodes.size() * 2);
-        nodeTypeTable = new NodeTypeTable(nodes.size() * 2);
-        nodeIdTable = new NodeIdTable(nodes.size() * 2);
+        Layout layout = Layout.widest(this.layout, layoutForSizes());
+        addressTable = new AddressTable(nodes.size(), allocator, pageShift, layout);
+        edgeTable = new EdgeTable(nodes.size() * 2, allocator, pageShift, layout);
+        nodeTypeTable = new NodeTypeTable(nodes.size() * 2, allocator, pageShift, layout);
+        nodeIdTable = new NodeIdTable(nodes.size() * 2, allocator, pageShift, layout);
 
         for (Map.Entry<ShortInt, Edges> nodeEntry : nodes.entrySet()) {
             ShortInt srcNode = nodeEntry.getKey();
@@ -72,6 +124,40 @@ public class GraphBuilder {
     }
 
 
+    /**
+     * Returns the narrowest layout the graph can be built in.
+     */
+    private Layout layoutForSizes() {
+        int edgeRows = 0;
+        int nodeTypeRows = 0;
+        int maxEdgeRowCount = 0;
+        int maxNodeTypeCount = 0;
+        int maxNodeIdCount = 0;
+        int maxNodeId = 0;
+        for (ShortInt node : nodes.keySet())
+            maxNodeId = Math.max(maxNodeId, node.getId());
+        for (Edges edges : nodes.values()) {
+            for (int d = 0; d < 2; ++d) {
+                boolean inbound = d == 1;
+                if (!edges.hasEdgeMap(inbound))
+                    continue;
+                int edgeTypeCount = edges.edgeTypeCount(inbound);
+                edgeRows += edgeTypeCount;
+                maxEdgeRowCount = Math.max(maxEdgeRowCount, edgeTypeCount);
+                for (SortedMap<Short, SortedSet<Integer>> dtnNodes : edges.rEdgeMap(inbound).values()) {
+                    nodeTypeRows += dtnNodes.size();
+                    maxNodeTypeCount = Math.max(maxNodeTypeCount, dtnNodes.size());
+                    for (SortedSet<Integer> ids : dtnNodes.values())
+                        maxNodeIdCount = Math.max(maxNodeIdCount, ids.size());
+                }
+            }
+        }
+        return Layout.widest(
+                Layout.forSizes(edgeRows, nodeTypeRows, maxEdgeRowCount, maxNodeTypeCount, maxNodeIdCount),
+                Layout.forMaxNodeId(maxNodeId));
+    }
+
+
     private void writeEdges(Edges edges, boolean inbound) {
         if (!edges.hasEdgeMap(inbound))
             return;
@@ -97,6 +183,15 @@ public class GraphBuilder {
     }
 
 
+    /**
+     * Inserts the edge between the given {@linkplain ShortInt#pack(short, int) packed}
+     * nodes.
+     */
+    public boolean insertEdge(long src, short edgeType, long dtn) {
+        return insertEdge(ShortInt.unpack(src), edgeType, ShortInt.unpack(dtn));
+    }
+
+
     public boolean insertEdge(ShortInt src, Short edgeType, ShortInt dtn) {
         if (insertEdgeImpl(src, OUTBOUND, edgeType, dtn)) {
             insertEdgeImpl(dtn, INBOUND, edgeType, src);
@@ -109,6 +204,22 @@ public class GraphBuilder {
     }
 
 
+    /**
+     * Removes the given edge (in both directions), if it was inserted. Nodes left with no
+     * edges are removed, too.
+     *
+     * @return <tt>true</tt>, if the edge was removed
+     */
+    boolean removeEdge(ShortInt src, Short edgeType, ShortInt dtn) {
+        if (removeEdgeImpl(src, OUTBOUND, edgeType, dtn)) {
+            removeEdgeImpl(dtn, INBOUND, edgeType, src);
+            --insertions;
+            return true;
+        }
+        return false;
+    }
+
+
     public int getInsertionCount() {
         return insertions;
     }
@@ -118,6 +229,37 @@ public class GraphBuilder {
     }
 
 
+    private boolean removeEdgeImpl(ShortInt src, boolean inbound, Short edgeType, ShortInt dtn) {
+        Edges srcEdges = nodes.get(src);
+        if (srcEdges == null || !srcEdges.hasEdgeMap(inbound))
+            return false;
+
+        SortedMap<Short, SortedMap<Short, SortedSet<Integer>>> edgeMap = srcEdges.rEdgeMap(inbound);
+        SortedMap<Short, SortedSet<Integer>> dtnData = edgeMap.get(edgeType);
+        if (dtnData == null)
+            return false;
+
+        Short nodeType = dtn.getType();
+        SortedSet<Integer> nodeIds = dtnData.get(nodeType);
+        if (nodeIds == null || !nodeIds.remove(dtn.getId()))
+            return false;
+
+        // prune what's left empty
+        if (nodeIds.isEmpty()) {
+            dtnData.remove(nodeType);
+            if (dtnData.isEmpty()) {
+                edgeMap.remove(edgeType);
+                if (edgeMap.isEmpty()) {
+                    srcEdges.clearEdgeMap(inbound);
+                    if (!srcEdges.hasEdgeMap(!inbound))
+                        nodes.remove(src);
+                }
+            }
+        }
+        return true;
+    }
+
+
     private boolean insertEdgeImpl(ShortInt src, boolean inbound, Short edgeType, ShortInt dtn) {
         Edges srcEdges = nodes.get(src);
         if (srcEdges == null) {
@@ -162,6 +304,14 @@ class Edges {
     }
 
 
+    void clearEdgeMap(boolean inbound) {
+        if (inbound)
+            in = null;
+        else
+            out = null;
+    }
+
+
     boolean hasEdgeMap(boolean inbound) {
         return rEdgeMap(inbound) != null;
     }
@@ -0,0 +1,620 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.util.datatypes.Primitives.Sizeof;
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Buff;
+import com.gnahraf.util.mem.Crc32C;
+import com.gnahraf.util.mem.NioBuff;
+import com.gnahraf.util.mem.Table;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A {@linkplain Graph} saved to a file. Saved graphs are opened as read-only graphs backed
+ * by memory-mapped file regions (zero-copy): other than the header, nothing need be read up
+ * front. The table pages fault in on demand as the graph is walked.
+ *
+ * <h3>File Format</h3>
+ * <br/>
+ * <pre>{@literal
+ *
+ * <FILE>      : <HEADER> <DIRECTORY> <TABLE>{T.COUNT}
+ * <HEADER>    : <MAGIC> <VERSION> <FLAGS> <N.COUNT> <E.COUNT> <T.COUNT>
+ * <DIRECTORY> : <ENTRY>{T.COUNT} <D.CRC>
+ * <ENTRY>     : <R.WIDTH> <R.COUNT> <OFFSET> <CRC>
+ * <TABLE>     : <PAD> <ROW>{R.COUNT}
+ *
+ * }
+ * </pre>
+ * where <br/>
+ * <pre>{@literal
+ *
+ * <MAGIC>     : <INT>     (0x47524146, "GRAF")
+ * <VERSION>   : <INT>     (2)
+ * <FLAGS>     : <INT>     bit 0: tombstone graph (the other bits are reserved, zero)
+ * <N.COUNT>   : <INT>     node count
+ * <E.COUNT>   : <INT>     edge count (counting both directions)
+ * <T.COUNT>   : <INT>     number of tables (4)
+ * <R.WIDTH>   : <INT>     row width in bytes
+ * <R.COUNT>   : <INT>     number of rows
+ * <OFFSET>    : <LONG>    offset of the table's first row from the start of the file
+ * <CRC>       : <INT>     CRC32C of the table's rows
+ * <D.CRC>     : <INT>     CRC32C of the header and directory (sans this field)
+ * <PAD>       : <BYTE>*   padding so that tables start at 8-byte aligned offsets
+ *
+ * }
+ * </pre><br/>
+ *
+ * The tables appear in the directory (and the file) in this order: {@linkplain AddressTable},
+ * {@linkplain EdgeTable}, {@linkplain NodeTypeTable}, {@linkplain NodeIdTable}. Their rows are
+ * written exactly as they are laid out in memory; integral values are big endian. The graph's
+ * {@linkplain Layout} is implied by the row widths. Padding may be longer than strictly
+ * necessary: a {@linkplain GraphMerger#mergeTo(Path) streamed merge}, for example, reserves
+ * room for each table before it knows the table's size.
+ *
+ * <h3>Verification</h3>
+ *
+ * The header and directory are always validated on open. The tables' checksums
+ * are {@linkplain Verification configurably} verified. Verification is done in parallel:
+ * tables are checksummed in chunks whose checksums are then combined.
+ * <p/>
+ * {@linkplain Graph#release() Release} an opened graph in order to unmap it ahead of GC.
+ * <p/>
+ * (The <tt>Buffer</tt> casts below keep us binary compatible with pre-9 runtimes.)
+ */
+public class GraphFile {
+
+    /**
+     * Table checksum verification modes.
+     */
+    public enum Verification {
+        /**
+         * Checksums are verified before the file is opened.
+         */
+        EAGER,
+        /**
+         * Checksums are verified in the background once the file is opened.
+         * A side benefit is that this warms up the page cache.
+         *
+         * @see GraphFile#verify()
+         */
+        LAZY,
+        /**
+         * Checksums are not verified.
+         */
+        NONE
+    }
+
+
+    public final static int MAGIC = 0x47524146;   // "GRAF"
+
+    public final static int VERSION = 2;
+
+    public final static int TABLE_COUNT = 4;
+
+    /**
+     * Flag bit set for {@linkplain Graph#isTombstones() tombstone} graphs.
+     */
+    public final static int FLAG_TOMBSTONES = 1;
+
+    public final static int HEADER_SIZE = 6 * Sizeof.INT;
+
+    public final static int ENTRY_SIZE = 3 * Sizeof.INT + Sizeof.LONG;
+
+    public final static int DIRECTORY_SIZE = TABLE_COUNT * ENTRY_SIZE + Sizeof.INT;
+
+    /**
+     * Table offsets are multiples of this number.
+     */
+    public final static int ALIGNMENT = 8;
+
+    /**
+     * Tables larger than this many bytes are checksummed in parallel chunks.
+     */
+    final static int CHECK_CHUNK_SIZE = 4 * 1024 * 1024;
+
+
+
+
+    /**
+     * Saves the given graph to the specified path, overwriting it if it already exists.
+     */
+    public static void save(Graph graph, Path file) throws IOException {
+
+        Table[] tables = tables(graph);
+        long[] offsets = new long[TABLE_COUNT];
+        int[] crcs = new int[TABLE_COUNT];
+
+        try (FileChannel ch = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+
+            // write the tables first..
+            long pos = HEADER_SIZE + DIRECTORY_SIZE;
+            for (int t = 0; t < TABLE_COUNT; ++t) {
+                if (!tables[t].isEmpty())
+                    pos = align(pos);
+                offsets[t] = pos;
+                ch.position(pos);
+                ChecksummingChannel out = new ChecksummingChannel(ch);
+                tables[t].writeTo(out);
+                crcs[t] = out.crc;
+                pos += out.bytes;
+            }
+
+            // ..then the header and directory
+            int[] rowCounts = new int[TABLE_COUNT];
+            for (int t = 0; t < TABLE_COUNT; ++t)
+                rowCounts[t] = tables[t].size();
+            writeHeader(
+                    ch, graph.getLayout(), graph.isTombstones() ? FLAG_TOMBSTONES : 0,
+                    rowCounts, offsets, crcs);
+        }
+    }
+
+
+    /**
+     * Writes the header and directory at the beginning of the file. The node and edge
+     * counts are implied by the address and node ID table sizes, resp.
+     */
+    static void writeHeader(
+            FileChannel ch, Layout layout, int flags, int[] rowCounts, long[] offsets, int[] crcs)
+            throws IOException {
+
+        ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE + DIRECTORY_SIZE);
+        head.putInt(MAGIC).putInt(VERSION).putInt(flags);
+        head.putInt(rowCounts[0]).putInt(rowCounts[3]);
+        head.putInt(TABLE_COUNT);
+        for (int t = 0; t < TABLE_COUNT; ++t) {
+            head.putInt(rowWidth(layout, t)).putInt(rowCounts[t]);
+            head.putLong(offsets[t]).putInt(crcs[t]);
+        }
+        ByteBuffer sansCrc = head.duplicate();
+        ((Buffer) sansCrc).flip();
+        head.putInt(Crc32C.compute(sansCrc));
+        ((Buffer) head).flip();
+
+        long headPos = 0;
+        while (head.hasRemaining())
+            headPos += ch.write(head, headPos);
+    }
+
+
+    /**
+     * Opens the graph saved at the given path.
+     *
+     * @param file the path previously {@linkplain #save(Graph, Path) save}d to
+     * @param verification determines whether (and how) table checksums are verified
+     *
+     * @throws IOException
+     *         on an I/O error, or if the file is malformed (or is not a graph file at all),
+     *         or in {@linkplain Verification#EAGER EAGER} mode, if a checksum doesn't match
+     */
+    public static GraphFile open(Path file, Verification verification) throws IOException {
+        return open(file, verification, Integer.MAX_VALUE);
+    }
+
+
+    /**
+     * Opens the graph saved at the given path, mapping tables larger than <tt>maxRegionSize</tt>
+     * bytes in pages.
+     */
+    static GraphFile open(Path file, Verification verification, int maxRegionSize) throws IOException {
+        if (verification == null)
+            throw new IllegalArgumentException("null verification");
+        GraphFile graphFile = new GraphFile(file, maxRegionSize);
+        switch (verification) {
+        case EAGER:
+            try {
+                graphFile.verifyTables();
+            } catch (IOException iox) {
+                graphFile.graph.release();
+                throw iox;
+            }
+            graphFile.verified = CompletableFuture.completedFuture(null);
+            break;
+        case LAZY:
+            graphFile.verified = CompletableFuture.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        graphFile.verifyTables();
+                    } catch (IOException iox) {
+                        throw new ChecksumError(iox);
+                    }
+                }
+            });
+            // releasing the graph unmaps the regions out from under the verifier (which
+            // crashes the VM), so release first stops it
+            graphFile.graph.setReleaseGuard(new Runnable() {
+                @Override
+                public void run() {
+                    graphFile.stopVerifying();
+                }
+            });
+            break;
+        default:
+            break;
+        }
+        return graphFile;
+    }
+
+
+
+
+    private final Path file;
+    private final int nodeCount;
+    private final int edgeCount;
+    /**
+     * The mapped regions of each table. Tables too large to map as a single region are
+     * mapped in pages.
+     */
+    private final Buff[][] regions = new Buff[TABLE_COUNT][];
+    private final int[] crcs = new int[TABLE_COUNT];
+    private final Graph graph;
+
+    private volatile CompletableFuture<Void> verified;
+    /**
+     * Set when the graph is released: pending checksum chunks are then skipped.
+     */
+    private volatile boolean released;
+
+
+    private GraphFile(Path file, int maxRegionSize) throws IOException {
+        this.file = file;
+        // on failure, the regions mapped so far are unmapped
+        boolean mapped = false;
+
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE + DIRECTORY_SIZE);
+            while (head.hasRemaining())
+                if (ch.read(head) == -1)
+                    throw new IOException("truncated header: " + file);
+            ((Buffer) head).flip();
+
+            int magic = head.getInt();
+            if (magic != MAGIC)
+                throw new IOException(
+                        "not a graph file (magic " + Integer.toHexString(magic) + "): " + file);
+            int version = head.getInt();
+            if (version != VERSION)
+                throw new IOException("unsupported version " + version + ": " + file);
+
+            ByteBuffer sansCrc = head.duplicate();
+            ((Buffer) sansCrc).limit(HEADER_SIZE + DIRECTORY_SIZE - Sizeof.INT).position(0);
+            int expectedCrc = head.getInt(HEADER_SIZE + DIRECTORY_SIZE - Sizeof.INT);
+            if (Crc32C.compute(sansCrc) != expectedCrc)
+                throw new IOException("header checksum mismatch: " + file);
+
+            int flags = head.getInt();
+            if ((flags & ~FLAG_TOMBSTONES) != 0)
+                throw new IOException("unsupported flags " + Integer.toHexString(flags) + ": " + file);
+            nodeCount = head.getInt();
+            edgeCount = head.getInt();
+            int tableCount = head.getInt();
+            if (tableCount != TABLE_COUNT)
+                throw new IOException("unexpected table count " + tableCount + ": " + file);
+
+            // the layout is implied by the address table's row width
+            Layout layout = Layout.NARROW;
+            for (Layout candidate : Layout.LAYOUTS) {
+                if (head.getInt(HEADER_SIZE) == candidate.addressRowSize())
+                    layout = candidate;
+            }
+
+            int[] rowCounts = new int[TABLE_COUNT];
+            int[] pageShifts = new int[TABLE_COUNT];
+            long fileSize = ch.size();
+            for (int t = 0; t < TABLE_COUNT; ++t) {
+                int width = head.getInt();
+                int rows = head.getInt();
+                long offset = head.getLong();
+                crcs[t] = head.getInt();
+                if (width != rowWidth(layout, t))
+                    throw new IOException(
+                            "table " + t + ": expected row width " + rowWidth(layout, t) +
+                            "; actual " + width + ": " + file);
+                long bytes = ((long) rows) * width;
+                if (rows < 0 || offset < HEADER_SIZE + DIRECTORY_SIZE || offset + bytes > fileSize)
+                    throw new IOException(
+                            "table " + t + ": rows " + rows + "; offset " + offset + "; file size " +
+                            fileSize + ": " + file);
+                rowCounts[t] = rows;
+                pageShifts[t] = bytes <= maxRegionSize ? Table.UNPAGED : pageShift(width, maxRegionSize);
+                regions[t] = map(ch, offset, bytes, width, pageShifts[t]);
+            }
+
+            if (rowCounts[0] != nodeCount || rowCounts[3] != edgeCount)
+                throw new IOException(
+                        "node/edge counts " + nodeCount + "/" + edgeCount + " don't match table sizes: " + file);
+
+            Graph tables = new Graph(
+                    pageShifts[0] == Table.UNPAGED ?
+                            new AddressTable(layout, regions[0][0], rowCounts[0]) :
+                            new AddressTable(layout, regions[0], pageShifts[0], rowCounts[0]),
+                    pageShifts[1] == Table.UNPAGED ?
+                            new EdgeTable(layout, regions[1][0], rowCounts[1]) :
+                            new EdgeTable(layout, regions[1], pageShifts[1], rowCounts[1]),
+                    pageShifts[2] == Table.UNPAGED ?
+                            new NodeTypeTable(layout, regions[2][0], rowCounts[2]) :
+                            new NodeTypeTable(layout, regions[2], pageShifts[2], rowCounts[2]),
+                    pageShifts[3] == Table.UNPAGED ?
+                            new NodeIdTable(layout, regions[3][0], rowCounts[3]) :
+                            new NodeIdTable(layout, regions[3], pageShifts[3], rowCounts[3]));
+            graph = (flags & FLAG_TOMBSTONES) == 0 ? tables : tables.asTombstones();
+            mapped = true;
+        } finally {
+            if (!mapped)
+                unmapRegions();
+        }
+    }
+
+
+    /**
+     * Unmaps the regions mapped so far (on failing to open).
+     */
+    private void unmapRegions() {
+        for (Buff[] pages : regions) {
+            if (pages == null)
+                continue;
+            for (Buff page : pages)
+                Allocator.DIRECT.free(page);
+        }
+    }
+
+
+    /**
+     * Returns the (read-only) graph.
+     */
+    public Graph getGraph() {
+        return graph;
+    }
+
+
+    public Path getPath() {
+        return file;
+    }
+
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+
+    public int getEdgeCount() {
+        return edgeCount;
+    }
+
+
+    /**
+     * Blocks until the table checksums are verified. If the file was opened with
+     * {@linkplain Verification#NONE NONE}, then the checksums are verified now.
+     *
+     * @throws IOException if a checksum doesn't match
+     */
+    public void verify() throws IOException {
+        CompletableFuture<Void> check = verified;
+        if (check == null) {
+            verifyTables();
+            verified = CompletableFuture.completedFuture(null);
+            return;
+        }
+        try {
+            check.get();
+        } catch (InterruptedException ix) {
+            throw new IOException("interrupted verifying " + file, ix);
+        } catch (CancellationException cx) {
+            throw new IOException("released before verified: " + file, cx);
+        } catch (ExecutionException xx) {
+            Throwable cause = xx.getCause();
+            if (cause instanceof ChecksumError)
+                throw (IOException) cause.getCause();
+            throw new IOException("on verifying " + file, cause);
+        }
+    }
+
+
+    /**
+     * Stops the background verification (if any), and waits for it to finish. Invoked
+     * when the graph is released.
+     */
+    private void stopVerifying() {
+        released = true;
+        CompletableFuture<Void> check = verified;
+        if (check == null)
+            return;
+        try {
+            check.join();
+        } catch (RuntimeException ignore) {
+            // the outcome no longer matters
+        }
+    }
+
+
+    private void verifyTables() throws IOException {
+        List<ChecksumTask> checks = new ArrayList<>();
+        for (int t = 0; t < TABLE_COUNT; ++t) {
+            for (Buff region : regions[t])
+                checks.add(new ChecksumTask(this, region));
+        }
+
+        ForkJoinPool.commonPool().invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                invokeAll(checks);
+                return null;
+            }
+        });
+        // no chunk task throws, so by now they are all done with the regions
+        if (released)
+            throw new CancellationException("released: " + file);
+
+        Iterator<ChecksumTask> results = checks.iterator();
+        for (int t = 0; t < TABLE_COUNT; ++t) {
+            int crc = 0;
+            for (Buff region : regions[t])
+                crc = Crc32C.combine(crc, results.next().join(), region.size());
+            if (crc != crcs[t])
+                throw new IOException("checksum mismatch in table " + t + ": " + file);
+        }
+    }
+
+
+
+
+    private static Table[] tables(Graph graph) {
+        return new Table[] {
+                graph.addressTable,
+                graph.edgeTable,
+                graph.nodeTypeTable,
+                graph.nodeIdTable
+        };
+    }
+
+
+    static int rowWidth(Layout layout, int table) {
+        switch (table) {
+        case 0: return layout.addressRowSize();
+        case 1: return layout.edgeRowSize();
+        case 2: return layout.nodeTypeRowSize();
+        case 3: return layout.nodeIdRowSize();
+        default:
+            throw new IllegalArgumentException("table " + table);
+        }
+    }
+
+
+    static long align(long pos) {
+        long excess = pos % ALIGNMENT;
+        return excess == 0 ? pos : pos + ALIGNMENT - excess;
+    }
+
+
+    /**
+     * Returns the largest page shift whose pages fit in the given number of bytes.
+     */
+    private static int pageShift(int rowWidth, int maxRegionSize) {
+        int rows = maxRegionSize / rowWidth;
+        if (rows < 1)
+            throw new IllegalArgumentException("maxRegionSize " + maxRegionSize);
+        return 31 - Integer.numberOfLeadingZeros(rows);
+    }
+
+
+    private static Buff[] map(FileChannel ch, long pos, long bytes, int rowWidth, int pageShift)
+            throws IOException {
+        if (bytes == 0)
+            return new Buff[] { Buff.EMPTY };
+        // the mappings remain valid after the channel is closed
+        if (pageShift == Table.UNPAGED)
+            return new Buff[] { NioBuff.map(ch, pos, bytes) };
+
+        long pageBytes = ((long) rowWidth) << pageShift;
+        Buff[] pages = new Buff[(int) ((bytes + pageBytes - 1) / pageBytes)];
+        for (int p = 0; p < pages.length; ++p, pos += pageBytes, bytes -= pageBytes)
+            pages[p] = NioBuff.map(ch, pos, Math.min(pageBytes, bytes));
+        return pages;
+    }
+
+
+
+
+    /**
+     * Computes the checksum of a block, splitting it in parallel chunks if large.
+     */
+    @SuppressWarnings("serial")
+    private static class ChecksumTask extends RecursiveTask<Integer> {
+
+        private final GraphFile owner;
+        private final Buff block;
+
+        ChecksumTask(GraphFile owner, Buff block) {
+            this.owner = owner;
+            this.block = block;
+        }
+
+        @Override
+        protected Integer compute() {
+            // once released, the rest is skipped (and verifyTables() then fails)
+            if (owner.released)
+                return 0;
+            if (block.size() <= CHECK_CHUNK_SIZE)
+                return Crc32C.compute(block);
+
+            int mid = block.size() / 2;
+            ChecksumTask head = new ChecksumTask(owner, block.sub(0, mid));
+            ChecksumTask tail = new ChecksumTask(owner, block.sub(mid));
+            head.fork();
+            int tailCrc = tail.compute();
+            return Crc32C.combine(head.join(), tailCrc, block.size() - mid);
+        }
+    }
+
+
+    /**
+     * Unchecked wrapper for a checksum mismatch detected in the background.
+     */
+    @SuppressWarnings("serial")
+    private static class ChecksumError extends RuntimeException {
+        ChecksumError(IOException cause) {
+            super(cause);
+        }
+    }
+
+
+    /**
+     * Computes the checksum of the bytes written thru it.
+     */
+    static class ChecksummingChannel implements WritableByteChannel {
+
+        private final WritableByteChannel out;
+        int crc;
+        long bytes;
+
+        ChecksummingChannel(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            ByteBuffer written = src.duplicate();
+            int amount = out.write(src);
+            ((Buffer) written).limit(written.position() + amount);
+            crc = Crc32C.combine(crc, Crc32C.compute(written), amount);
+            bytes += amount;
+            return amount;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return out.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
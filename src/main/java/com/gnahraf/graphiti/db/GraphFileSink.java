@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static com.gnahraf.graphiti.db.GraphFile.*;
+
+/**
+ * Streams a merge's output to a {@linkplain GraphFile graph file}. Since the table sizes
+ * aren't known up front, each table is written to a region reserved at an offset computed
+ * from the upper bounds on the sizes of the tables before it. (The unused tail of a region
+ * is never written, so on most file systems it doesn't take up any space.)
+ * <p/>
+ * Each table's rows are buffered in a small in-memory table that is written out when it's
+ * full and another row is appended: a row is only ever amended until the next row is
+ * appended. So memory overhead is constant. The header and directory are written last.
+ */
+class GraphFileSink implements GraphSink {
+
+    /**
+     * Approximate size of each table's write buffer.
+     */
+    final static int BUFFER_SIZE = 64 * 1024;
+
+
+    private final Path file;
+    private final Layout layout;
+    private final int flags;
+    private final FileChannel ch;
+
+    private final long[] offsets = new long[TABLE_COUNT];
+    private final ChecksummingChannel[] outs = new ChecksummingChannel[TABLE_COUNT];
+    private final int[] flushedRows = new int[TABLE_COUNT];
+
+    private final AddressTable addressTable;
+    private final EdgeTable edgeTable;
+    private final NodeTypeTable nodeTypeTable;
+    private final NodeIdTable nodeIdTable;
+    private final Table[] tables;
+    private final int[] bufferRows = new int[TABLE_COUNT];
+
+
+    /**
+     * Creates an instance writing to the given file (overwriting it if it exists).
+     *
+     * @param capacities upper bounds on the number of rows in each table (in table order)
+     * @param tombstones whether the output is a tombstone graph
+     */
+    GraphFileSink(Path file, Layout layout, int[] capacities, boolean tombstones)
+            throws IOException {
+        this.file = file;
+        this.layout = layout;
+        this.flags = tombstones ? FLAG_TOMBSTONES : 0;
+
+        long pos = HEADER_SIZE + DIRECTORY_SIZE;
+        for (int t = 0; t < TABLE_COUNT; ++t) {
+            int width = rowWidth(layout, t);
+            offsets[t] = align(pos);
+            pos = offsets[t] + ((long) capacities[t]) * width;
+            bufferRows[t] = Math.max(1, Math.min(capacities[t], BUFFER_SIZE / width));
+        }
+
+        addressTable = new AddressTable(bufferRows[0], Allocator.HEAP, Table.UNPAGED, layout);
+        edgeTable = new EdgeTable(bufferRows[1], Allocator.HEAP, Table.UNPAGED, layout);
+        nodeTypeTable = new NodeTypeTable(bufferRows[2], Allocator.HEAP, Table.UNPAGED, layout);
+        nodeIdTable = new NodeIdTable(bufferRows[3], Allocator.HEAP, Table.UNPAGED, layout);
+        tables = new Table[] { addressTable, edgeTable, nodeTypeTable, nodeIdTable };
+
+        ch = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        for (int t = 0; t < TABLE_COUNT; ++t)
+            outs[t] = new ChecksummingChannel(ch);
+    }
+
+
+    @Override
+    public void appendAddress(short nodeType, int nodeId, boolean inbound, int edgeRow) {
+        if (addressTable.size() == bufferRows[0])
+            flush(0);
+        addressTable.appendEntry(nodeType, nodeId, inbound, edgeRow);
+    }
+
+    @Override
+    public void setLastEdge(boolean inbound, int edgeRow, int edgeRowCount) {
+        addressTable.setLastEdge(inbound, edgeRow, edgeRowCount);
+    }
+
+    @Override
+    public void incrLastEdgeCount(boolean inbound) {
+        addressTable.incrLastEdgeCount(inbound);
+    }
+
+    @Override
+    public void appendEdge(short edgeType, int nodeTypeRow) {
+        if (edgeTable.size() == bufferRows[1])
+            flush(1);
+        edgeTable.appendEntry(edgeType, nodeTypeRow);
+    }
+
+    @Override
+    public void incrLastNodeTypeCount() {
+        edgeTable.incrLastNodeTypeCount();
+    }
+
+    @Override
+    public void appendNodeType(short nodeType, int nodeIdRow) {
+        if (nodeTypeTable.size() == bufferRows[2])
+            flush(2);
+        nodeTypeTable.appendEntry(nodeType, nodeIdRow);
+    }
+
+    @Override
+    public void incrLastNodeIdCount() {
+        nodeTypeTable.incrLastNodeIdCount();
+    }
+
+    @Override
+    public void appendNodeId(int nodeId) {
+        if (nodeIdTable.size() == bufferRows[3])
+            flush(3);
+        nodeIdTable.appendEntry(nodeId);
+    }
+
+    @Override
+    public void appendRun(Graph g, int[] from, int[] to) {
+        // the rebase deltas, before anything is appended
+        int edgeRowDelta = edgeRows() - from[1];
+        int nodeTypeRowDelta = nodeTypeRows() - from[2];
+        int nodeIdRowDelta = nodeIdRows() - from[3];
+
+        // copy thru the buffers, a buffer-full at a time
+        int edgeRow = from[1];
+        for (int row = from[0], end; row < to[0]; row = end) {
+            end = chunkEnd(0, row, to[0]);
+            edgeRow = addressTable.appendRun(g.addressTable, row, end, edgeRow, edgeRowDelta);
+        }
+        int nodeTypeRow = from[2];
+        for (int row = from[1], end; row < to[1]; row = end) {
+            end = chunkEnd(1, row, to[1]);
+            nodeTypeRow = edgeTable.appendRun(g.edgeTable, row, end, nodeTypeRow, nodeTypeRowDelta);
+        }
+        int nodeIdRow = from[3];
+        for (int row = from[2], end; row < to[2]; row = end) {
+            end = chunkEnd(2, row, to[2]);
+            nodeIdRow = nodeTypeTable.appendRun(g.nodeTypeTable, row, end, nodeIdRow, nodeIdRowDelta);
+        }
+        for (int row = from[3], end; row < to[3]; row = end) {
+            end = chunkEnd(3, row, to[3]);
+            nodeIdTable.appendRun(g.nodeIdTable, row, end);
+        }
+    }
+
+
+    /**
+     * Returns the end of the next chunk of rows, beginning at <tt>row</tt>, that fits in
+     * the given table's buffer, flushing the buffer first, if it's full.
+     */
+    private int chunkEnd(int t, int row, int to) {
+        if (tables[t].size() == bufferRows[t])
+            flush(t);
+        return (int) Math.min(to, ((long) row) + bufferRows[t] - tables[t].size());
+    }
+
+    @Override
+    public int edgeRows() {
+        return flushedRows[1] + edgeTable.size();
+    }
+
+    @Override
+    public int nodeTypeRows() {
+        return flushedRows[2] + nodeTypeTable.size();
+    }
+
+    @Override
+    public int nodeIdRows() {
+        return flushedRows[3] + nodeIdTable.size();
+    }
+
+
+    /**
+     * Writes out the buffered rows of the given table.
+     */
+    private void flush(int t) {
+        try {
+            ch.position(offsets[t] + outs[t].bytes);
+            tables[t].writeTo(outs[t]);
+        } catch (IOException iox) {
+            throw new UncheckedIOException(iox);
+        }
+        flushedRows[t] += tables[t].size();
+        presize(t, 0);
+    }
+
+
+    private void presize(int t, int size) {
+        switch (t) {
+        case 0: addressTable.presize(size); break;
+        case 1: edgeTable.presize(size); break;
+        case 2: nodeTypeTable.presize(size); break;
+        default: nodeIdTable.presize(size);
+        }
+    }
+
+
+    /**
+     * Flushes the remaining rows, writes the header and directory, and closes the file.
+     */
+    void finish() throws IOException {
+        int[] rowCounts = new int[TABLE_COUNT];
+        int[] crcs = new int[TABLE_COUNT];
+        try {
+            for (int t = 0; t < TABLE_COUNT; ++t) {
+                flush(t);
+                rowCounts[t] = flushedRows[t];
+                crcs[t] = outs[t].crc;
+            }
+        } catch (UncheckedIOException uiox) {
+            throw uiox.getCause();
+        }
+        // drop the unused tail of the last table's region
+        ch.truncate(offsets[TABLE_COUNT - 1] + outs[TABLE_COUNT - 1].bytes);
+        writeHeader(ch, layout, flags, rowCounts, offsets, crcs);
+        ch.close();
+    }
+
+
+    /**
+     * Closes and deletes the (partially written) file.
+     */
+    void abort() throws IOException {
+        try {
+            ch.close();
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
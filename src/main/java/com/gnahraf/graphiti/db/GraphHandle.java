@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A versioned reference to a graph that changes over time (e.g. as merges produce new
+ * graphs), shared by concurrent readers. Readers {@linkplain #pin() pin} the current
+ * version, and read it in isolation: a version is immutable, and a newer one
+ * {@linkplain #publish(Graph) published} meanwhile doesn't affect it.
+ * <pre>{@code
+ *
+ *   try (GraphHandle.Snapshot snapshot = handle.pin()) {
+ *       Cursor cursor = snapshot.getGraph().newCursor();
+ *       ..
+ *   }
+ * }</pre>
+ *
+ * <h3>Release</h3>
+ *
+ * Each version is reference counted: the handle holds one reference to the current
+ * version, and each snapshot another. Publishing a new version drops the handle's
+ * reference to the old one; closing a snapshot drops its. Whoever drops the last
+ * reference {@linkplain Graph#release() release}s the version's graph, right then
+ * (rather than whenever the GC gets around to it). This matters for off-heap and
+ * memory-mapped graphs.
+ *
+ * <h3>Concurrency</h3>
+ *
+ * Pinning and publishing are lock-free. A pin reads the current version, and increments
+ * its count unless it has already dropped to zero (in which case a newer version has
+ * been published, and the pin retries with that). Since every reader increments the same
+ * count, pinning is cheap, but not free, under contention: readers should pin once per
+ * query, not once per cursor move.
+ */
+public class GraphHandle implements Closeable {
+
+    /**
+     * A pinned version of the graph. Close it once done reading.
+     */
+    public final static class Snapshot implements Closeable {
+
+        private final Version version;
+        private boolean closed;
+
+        private Snapshot(Version version) {
+            this.version = version;
+        }
+
+        /**
+         * Returns the pinned graph. It is not released while this instance is open.
+         */
+        public Graph getGraph() {
+            if (closed)
+                throw new IllegalStateException("closed");
+            return version.graph;
+        }
+
+        /**
+         * Returns the version number: 1 for the handle's initial graph, incremented with
+         * each publish.
+         */
+        public long getVersion() {
+            return version.number;
+        }
+
+        /**
+         * Unpins the snapshot. Idempotent. A snapshot must be closed by the thread
+         * that uses it (it's not safe for concurrent use).
+         */
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                version.unref();
+            }
+        }
+    }
+
+
+    /**
+     * A published graph and its reference count.
+     */
+    private final class Version {
+
+        final Graph graph;
+        final long number;
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Version(Graph graph, long number) {
+            this.graph = graph;
+            this.number = number;
+        }
+
+        /**
+         * Increments the reference count, unless it's already dropped to zero.
+         */
+        boolean ref() {
+            while (true) {
+                int count = refs.get();
+                if (count == 0)
+                    return false;
+                if (refs.compareAndSet(count, count + 1))
+                    return true;
+            }
+        }
+
+        void unref() {
+            if (refs.decrementAndGet() == 0) {
+                graph.release();
+                retiredCount.decrementAndGet();
+                releasedCount.incrementAndGet();
+            }
+        }
+    }
+
+
+
+
+    private final AtomicReference<Version> current;
+    private final AtomicLong retiredCount = new AtomicLong();
+    private final AtomicLong releasedCount = new AtomicLong();
+
+
+    /**
+     * @param graph the initial version (version 1)
+     */
+    public GraphHandle(Graph graph) {
+        if (graph == null)
+            throw new IllegalArgumentException("null graph");
+        current = new AtomicReference<>(new Version(graph, 1));
+    }
+
+
+    /**
+     * Pins the current version.
+     *
+     * @throws IllegalStateException if the handle is closed
+     */
+    public Snapshot pin() {
+        while (true) {
+            Version version = current.get();
+            if (version == null)
+                throw new IllegalStateException("closed");
+            if (version.ref())
+                return new Snapshot(version);
+        }
+    }
+
+
+    /**
+     * Publishes the given graph as the new current version. The old version is released
+     * once the last snapshot pinning it is closed (if there are none, then right away).
+     *
+     * @return the new version number
+     *
+     * @throws IllegalArgumentException if the graph is the current version's (retiring
+     *         it would release the graph still being published)
+     * @throws IllegalStateException if the handle is closed
+     */
+    public long publish(Graph graph) {
+        if (graph == null)
+            throw new IllegalArgumentException("null graph");
+        while (true) {
+            Version old = current.get();
+            if (old == null)
+                throw new IllegalStateException("closed");
+            if (old.graph == graph)
+                throw new IllegalArgumentException("already the current version's graph");
+            Version version = new Version(graph, old.number + 1);
+            if (current.compareAndSet(old, version)) {
+                retire(old);
+                return version.number;
+            }
+        }
+    }
+
+
+    private void retire(Version version) {
+        retiredCount.incrementAndGet();
+        version.unref();
+    }
+
+
+    /**
+     * Returns the current version number.
+     *
+     * @throws IllegalStateException if the handle is closed
+     */
+    public long getVersion() {
+        Version version = current.get();
+        if (version == null)
+            throw new IllegalStateException("closed");
+        return version.number;
+    }
+
+
+    /**
+     * Returns the number of old versions still pinned by open snapshots (and so not yet
+     * released).
+     */
+    public long getRetiredCount() {
+        return retiredCount.get();
+    }
+
+
+    /**
+     * Returns the number of versions released so far.
+     */
+    public long getReleasedCount() {
+        return releasedCount.get();
+    }
+
+
+    /**
+     * Closes the handle. The current version is released once the last snapshot pinning it
+     * is closed. Idempotent.
+     */
+    @Override
+    public void close() {
+        Version version = current.getAndSet(null);
+        if (version != null)
+            retire(version);
+    }
+}
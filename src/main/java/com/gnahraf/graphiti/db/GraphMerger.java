@@ -5,8 +5,14 @@
 package com.gnahraf.graphiti.db;
 
 
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -25,16 +31,84 @@ public class GraphMerger {
     }
 
 
+    /**
+     * Merges the given graphs in a single pass. Null and empty graphs are ignored.
+     *
+     * @return the merged graph, or the sole non-empty graph, if there's only one
+     */
+    public static Graph merge(List<Graph> graphs, Allocator allocator) {
+        List<Graph> inputs = nonEmpty(graphs);
+        switch (inputs.size()) {
+        case 0:
+            return empty(graphs);
+        case 1:
+            return inputs.get(0);
+        default:
+            return new GraphMerger(inputs, allocator).merge();
+        }
+    }
+
+
+    /**
+     * Merges the given graphs in a single pass straight to the given file. Null and empty
+     * graphs are ignored. If there's only one graph to speak of, it's simply saved.
+     *
+     * @see #mergeTo(Path)
+     */
+    public static void mergeTo(List<Graph> graphs, Path file) throws IOException {
+        List<Graph> inputs = nonEmpty(graphs);
+        switch (inputs.size()) {
+        case 0:
+            empty(graphs).save(file);
+            break;
+        case 1:
+            inputs.get(0).save(file);
+            break;
+        default:
+            new GraphMerger(inputs, Allocator.HEAP).mergeTo(file);
+        }
+    }
+
+
+    private static List<Graph> nonEmpty(List<Graph> graphs) {
+        List<Graph> inputs = new ArrayList<>(graphs.size());
+        for (Graph g : graphs) {
+            if (g != null && !g.isEmpty())
+                inputs.add(g);
+        }
+        return inputs;
+    }
+
+
+    private static Graph empty(List<Graph> graphs) {
+        for (Graph g : graphs) {
+            if (g != null)
+                return g;
+        }
+        throw new IllegalArgumentException("no graphs: " + graphs);
+    }
+
+
 
-    private final AddressTable addressTable;
-    private final EdgeTable edgeTable;
-    private final NodeTypeTable nodeTypeTable;
-    private final NodeIdTable nodeIdTable;
+    private final Layout layout;
+    private final Allocator allocator;
+    private int[] capacities;
+    private boolean exactSizing;
+    private boolean runCopying = true;
+    /**
+     * Whether tombstone inputs are applied. (If all the inputs are tombstones, they're
+     * merged like any other graph.)
+     */
+    private final boolean applyTombstones;
 
-    private final Graph out;
+    private GraphSink sink;
 
-    private MergeProgress loProgress;
-    private MergeProgress hiProgress;
+    /**
+     * Min-heap of the inputs' progress, ordered by their current edge. Inputs drop
+     * out of the heap as they reach their ends.
+     */
+    private final MergeProgress[] heap;
+    private int heapSize;
 
 
     private short srcNodeType;
@@ -46,49 +120,315 @@ public class GraphMerger {
 
 
     public GraphMerger(Graph a, Graph b) {
+        this(a, b, Allocator.HEAP);
+    }
+
+
+    /**
+     * Creates an instance whose output tables are allocated using the given
+     * <tt>allocator</tt>.
+     */
+    public GraphMerger(Graph a, Graph b, Allocator allocator) {
+        this(Arrays.asList(a, b), allocator);
+    }
+
+
+    /**
+     * Creates an instance that merges the given graphs in a single pass, with output tables
+     * allocated using the given <tt>allocator</tt>.
+     * <p/>
+     * The graphs are listed in order of recency. {@linkplain Graph#isTombstones() Tombstone}
+     * graphs in the list delete the matching edges of the graphs that precede them (an edge
+     * in a later graph survives). The tombstones themselves are dropped from the output:
+     * so leave out no older graph they might still apply to. (If all the graphs are
+     * tombstones, the output is their union: a tombstone graph.)
+     *
+     * @param graphs non-empty graphs (at least one)
+     */
+    public GraphMerger(List<Graph> graphs, Allocator allocator) {
+        this(progress(graphs), layout(graphs), allocator, capacities(graphs));
+    }
+
+
+    /**
+     * Creates an instance that merges the given inputs into tables of the given layout.
+     * The inputs may be positioned over subranges of their graphs' nodes.
+     *
+     * @param capacities the initial capacities of the output tables (in table order)
+     */
+    GraphMerger(List<MergeProgress> inputs, Layout layout, Allocator allocator, int[] capacities) {
+        if (inputs.isEmpty())
+            throw new IllegalArgumentException("no inputs");
+
+        this.layout = layout;
+        this.allocator = allocator;
+        this.capacities = capacities;
+
+        heap = inputs.toArray(new MergeProgress[inputs.size()]);
+        heapSize = heap.length;
+        boolean tombstonesOnly = true;
+        for (int index = 0; index < heapSize; ++index) {
+            heap[index].order = index;
+            tombstonesOnly &= heap[index].g.isTombstones();
+        }
+        applyTombstones = !tombstonesOnly;
+        for (int index = heapSize / 2; index-- > 0; )
+            siftDown(index);
+    }
+
 
-        if (a.isEmpty() || b.isEmpty()) {
-            throw new IllegalArgumentException(a.isEmpty() ? "empty a" : "empty b");
+    /**
+     * Creates a copy of the given (uninvoked) instance, positioned at the start of its inputs.
+     */
+    private GraphMerger(GraphMerger other) {
+        if (other.sink != null)
+            throw new IllegalStateException("already invoked");
+        layout = other.layout;
+        allocator = other.allocator;
+        capacities = other.capacities;
+        applyTombstones = other.applyTombstones;
+        heap = new MergeProgress[other.heap.length];
+        heapSize = other.heapSize;
+        for (int index = 0; index < heapSize; ++index)
+            heap[index] = new MergeProgress(other.heap[index]);
+    }
+
+
+    private static List<MergeProgress> progress(List<Graph> graphs) {
+        if (graphs.isEmpty())
+            throw new IllegalArgumentException("no graphs");
+        List<MergeProgress> inputs = new ArrayList<>(graphs.size());
+        for (int index = 0; index < graphs.size(); ++index) {
+            Graph g = graphs.get(index);
+            if (g.isEmpty())
+                throw new IllegalArgumentException("empty graph at index " + index);
+            inputs.add(new MergeProgress(g));
+        }
+        return inputs;
+    }
+
+
+    /**
+     * Returns the sums of the given graphs' table sizes (in table order), or as close to
+     * them as an array can get.
+     */
+    static int[] capacities(List<Graph> graphs) {
+        long addressRows = 0;
+        long edgeRows = 0;
+        long nodeTypeRows = 0;
+        long nodeIdRows = 0;
+        for (Graph g : graphs) {
+            addressRows += g.addressTable.size();
+            edgeRows += g.edgeTable.size();
+            nodeTypeRows += g.nodeTypeTable.size();
+            nodeIdRows += g.nodeIdTable.size();
         }
+        return new int[] {
+            capacity(addressRows), capacity(edgeRows), capacity(nodeTypeRows), capacity(nodeIdRows)
+        };
+    }
 
-        addressTable = new AddressTable(a.addressTable.size() + b.addressTable.size());
-        edgeTable = new EdgeTable(a.edgeTable.size() + b.edgeTable.size());
-        nodeTypeTable = new NodeTypeTable(a.nodeTypeTable.size() + b.nodeTypeTable.size());
-        nodeIdTable = new NodeIdTable(a.nodeIdTable.size() + b.nodeIdTable.size());
 
-        out = new Graph(addressTable, edgeTable, nodeTypeTable, nodeIdTable);
+    /**
+     * Returns the layout of the merged graph. This is at least as wide as the inputs', and
+     * errs on the wide side: the merged tables' sizes (and max counts) are bounded by the
+     * sums of the inputs'.
+     */
+    static Layout layout(List<Graph> graphs) {
+        Layout layout = Layout.NARROW;
+        long edgeRows = 0;
+        long nodeTypeRows = 0;
+        long maxEdgeRowCount = 0;
+        long maxNodeTypeCount = 0;
+        long maxNodeIdCount = 0;
+        for (Graph g : graphs)
+            layout = Layout.widest(layout, g.getLayout());
+        if (layout.isWide())
+            return layout;
+        for (Graph g : graphs) {
+            edgeRows += g.edgeTable.size();
+            nodeTypeRows += g.nodeTypeTable.size();
+            maxEdgeRowCount += maxEdgeRowCount(g);
+            maxNodeTypeCount += maxNodeTypeCount(g);
+            maxNodeIdCount += maxNodeIdCount(g);
+        }
+        return Layout.widest(layout, Layout.forSizes(
+                clamp(edgeRows),
+                clamp(nodeTypeRows),
+                clamp(maxEdgeRowCount),
+                clamp(maxNodeTypeCount),
+                clamp(maxNodeIdCount)));
+    }
 
-        loProgress = new MergeProgress(a);
-        hiProgress = new MergeProgress(b);
 
-        sortProgress();
+    private static int clamp(long size) {
+        return (int) Math.min(Integer.MAX_VALUE, size);
     }
 
 
-    private void sortProgress() {
-        long comp = loProgress.compareTo(hiProgress);
-        if (comp > 0) {
-            MergeProgress temp = loProgress;
-            loProgress = hiProgress;
-            hiProgress = temp;
-        } else if (comp == 0) {
-            hiProgress.next();
+    private static int capacity(long sum) {
+        return (int) Math.min(Integer.MAX_VALUE - 8, sum);
+    }
+
+
+    private static int maxEdgeRowCount(Graph g) {
+        int max = 0;
+        for (int index = g.addressTable.size(); index-- > 0; ) {
+            max = Math.max(max, g.addressTable.getEdgeRowCount(false, index));
+            max = Math.max(max, g.addressTable.getEdgeRowCount(true, index));
         }
+        return max;
     }
 
 
+    private static int maxNodeTypeCount(Graph g) {
+        int max = 0;
+        for (int index = g.edgeTable.size(); index-- > 0; )
+            max = Math.max(max, g.edgeTable.getNodeTypeCount(index));
+        return max;
+    }
+
+
+    private static int maxNodeIdCount(Graph g) {
+        int max = 0;
+        for (int index = g.nodeTypeTable.size(); index-- > 0; )
+            max = Math.max(max, g.nodeTypeTable.getNodeIdCount(index));
+        return max;
+    }
+
+
+    private void siftDown(int index) {
+        MergeProgress progress = heap[index];
+        for (int child; (child = 2 * index + 1) < heapSize; index = child) {
+            if (child + 1 < heapSize && heapCompare(heap[child + 1], heap[child]) < 0)
+                ++child;
+            if (heapCompare(progress, heap[child]) <= 0)
+                break;
+            heap[index] = heap[child];
+        }
+        heap[index] = progress;
+    }
+
+
+    /**
+     * Orders inputs by their current edge, and then by recency: of the inputs at the same
+     * edge, the last one in the input list is at the top. So the first input to come off
+     * the heap at an edge decides its fate.
+     */
+    private static long heapCompare(MergeProgress a, MergeProgress b) {
+        long comp = a.compareTo(b);
+        return comp == 0 ? b.order - a.order : comp;
+    }
+
+
+
+    /**
+     * Sets whether the output is sized exactly. If set, the merge is preceded by a
+     * {@linkplain #countRows() counting pass}. This costs a read of the inputs, but saves
+     * over-allocating the output tables (which are otherwise sized to hold the sum of the
+     * inputs) and then having to {@linkplain Graph#trimMemToSize() trim} them. The more the
+     * inputs overlap, the more it saves. When {@linkplain #mergeTo(Path) merging to a file},
+     * exact sizing lays out the tables back to back, exactly as {@linkplain Graph#save(Path)
+     * save} does. Off, by default.
+     *
+     * @return this instance
+     */
+    public GraphMerger setExactSizing(boolean exact) {
+        this.exactSizing = exact;
+        return this;
+    }
+
+
+    public boolean isExactSizing() {
+        return exactSizing;
+    }
+
+
+    /**
+     * Sets whether runs of source nodes found in only one input are copied in bulk.
+     * On, by default; turning it off is only useful for comparison.
+     *
+     * @return this instance
+     */
+    GraphMerger setRunCopying(boolean runCopying) {
+        this.runCopying = runCopying;
+        return this;
+    }
 
+
+    /**
+     * Returns the exact number of rows in each of the merged tables (in table order), without
+     * writing anything. This runs the merge over copies of this instance's input cursors, so
+     * it doesn't count as invoking this instance.
+     *
+     * @throws IllegalStateException if this instance was already merged
+     */
+    public int[] countRows() {
+        CountingSink counts = new CountingSink();
+        new GraphMerger(this).mergeInto(counts);
+        return counts.rows;
+    }
+
+
+    /**
+     * Merges the inputs into a new graph. An instance may only be merged once.
+     */
     public Graph merge() {
-        if (!addressTable.isEmpty())
+        if (exactSizing) {
+            // (tables can't be sized 0: the tombstones may delete every edge)
+            capacities = countRows();
+            for (int table = 0; table < capacities.length; ++table)
+                capacities[table] = Math.max(1, capacities[table]);
+        }
+        TableSink tables = new TableSink(layout, allocator, capacities);
+        mergeInto(tables);
+        return applyTombstones ? tables.graph : tables.graph.asTombstones();
+    }
+
+
+    /**
+     * Merges the inputs straight to a graph file at the given path, overwriting it if it
+     * exists. The output tables are streamed to the file sequentially, so memory overhead
+     * is small and constant, no matter how large the graphs. The inputs themselves may be
+     * memory-mapped (i.e. {@linkplain GraphFile#getGraph() opened from files}). An instance
+     * may only be merged once.
+     *
+     * @see GraphFile#open(Path, GraphFile.Verification)
+     */
+    public void mergeTo(Path file) throws IOException {
+        if (exactSizing)
+            capacities = countRows();
+        GraphFileSink fileSink = new GraphFileSink(file, layout, capacities, !applyTombstones);
+        boolean done = false;
+        try {
+            mergeInto(fileSink);
+            fileSink.finish();
+            done = true;
+        } catch (UncheckedIOException uiox) {
+            throw uiox.getCause();
+        } finally {
+            if (!done)
+                fileSink.abort();
+        }
+    }
+
+
+    private void mergeInto(GraphSink sink) {
+        if (this.sink != null)
             throw new IllegalStateException("already invoked");
+        this.sink = sink;
+
+        if (!skipTombstones())
+            return;
 
+        MergeProgress loProgress = heap[0];
 
-        syncToProgress();
+        syncToProgress(loProgress);
 
-        addressTable.appendEntry(srcNodeType, srcNodeId, inbound, 0);
-        edgeTable.appendEntry(edgeType, 0);
-        nodeTypeTable.appendEntry(dtnNodeType, 0);
-        nodeIdTable.appendEntry(dtnNodeId);
+        sink.appendAddress(srcNodeType, srcNodeId, inbound, 0);
+        sink.appendEdge(edgeType, 0);
+        sink.appendNodeType(dtnNodeType, 0);
+        sink.appendNodeId(dtnNodeId);
 
         // As far as the internal model is concerned, this is now a valid
         // graph. (It violates the API requirement that every edge has an inverse).
@@ -98,9 +438,9 @@ public class GraphMerger {
         advanceProgress();
 
 
-        while (!loProgress.isAtEnd()) {
-
+        while (skipTombstones()) {
 
+            loProgress = heap[0];
 
             long srcComp = compare(
                     srcNodeType, srcNodeId, loProgress.srcNodeType, loProgress.srcNodeId);
@@ -108,48 +448,53 @@ public class GraphMerger {
                 if (srcComp > 0) {
                     throw new IllegalStateException("corrupt graph");
                 }
+                if (runCopying && copyRun())
+                    continue;
 
-                addressTable.appendEntry(
+                sink.appendAddress(
                         loProgress.srcNodeType, loProgress.srcNodeId,
-                        loProgress.inbound, edgeTable.size());
-                edgeTable.appendEntry(loProgress.edgeType, nodeTypeTable.size());
-                nodeTypeTable.appendEntry(loProgress.dtnNodeType, nodeIdTable.size());
+                        loProgress.inbound, sink.edgeRows());
+                sink.appendEdge(loProgress.edgeType, sink.nodeTypeRows());
+                sink.appendNodeType(loProgress.dtnNodeType, sink.nodeIdRows());
 
             } else if (inbound != loProgress.inbound) {
                 if (inbound)
                     throw new IllegalStateException("inbound " + inbound + "; " + loProgress);
 
-                addressTable.setLastEdge(loProgress.inbound, edgeTable.size(), 1);
-                edgeTable.appendEntry(loProgress.edgeType, nodeTypeTable.size());
-                nodeTypeTable.appendEntry(loProgress.dtnNodeType, nodeIdTable.size());
+                sink.setLastEdge(loProgress.inbound, sink.edgeRows(), 1);
+                sink.appendEdge(loProgress.edgeType, sink.nodeTypeRows());
+                sink.appendNodeType(loProgress.dtnNodeType, sink.nodeIdRows());
 
             } else if (edgeType != loProgress.edgeType) {
                 assertLessThan(edgeType, loProgress.edgeType, "edgeType, loProgress.edgeType");
 
-                addressTable.incrLastEdgeCount(inbound);
-                edgeTable.appendEntry(loProgress.edgeType, nodeTypeTable.size());
-                nodeTypeTable.appendEntry(loProgress.dtnNodeType, nodeIdTable.size());
+                sink.incrLastEdgeCount(inbound);
+                sink.appendEdge(loProgress.edgeType, sink.nodeTypeRows());
+                sink.appendNodeType(loProgress.dtnNodeType, sink.nodeIdRows());
 
             } else if (dtnNodeType != loProgress.dtnNodeType) {
                 assertLessThan(dtnNodeType, loProgress.dtnNodeType, "dtnNodeType, loProgress.dtnNodeType");
 
-                edgeTable.incrLastNodeTypeCount();
-                nodeTypeTable.appendEntry(loProgress.dtnNodeType, nodeIdTable.size());
+                sink.incrLastNodeTypeCount();
+                sink.appendNodeType(loProgress.dtnNodeType, sink.nodeIdRows());
+
+            } else if (dtnNodeId == loProgress.dtnNodeId) {
+                // duplicate edge (from another input)
+                advanceProgress();
+                continue;
 
             } else {
                 assertLessThan(dtnNodeId, loProgress.dtnNodeId, "dtnNodeId, loProgress.dtnNodeId");
 
-                nodeTypeTable.incrLastNodeIdCount();
+                sink.incrLastNodeIdCount();
             }
 
 
-            nodeIdTable.appendEntry(loProgress.dtnNodeId);
+            sink.appendNodeId(loProgress.dtnNodeId);
 
-            syncToProgress();
+            syncToProgress(loProgress);
             advanceProgress();
         }
-
-        return out;
     }
 
 
@@ -159,19 +504,133 @@ public class GraphMerger {
     }
 
 
+    /**
+     * Advances the input at the top of the heap, and restores the heap order.
+     */
     private void advanceProgress() {
-        loProgress.next();
-        sortProgress();
+        if (heap[0].next())
+            siftDown(0);
+        else
+            removeTop();
+    }
+
+
+    /**
+     * Pops the tombstone edges at the top of the heap (if tombstones are applied), along
+     * with the edges they delete in the inputs that precede them.
+     *
+     * @return <tt>false</tt>, if the heap is empty
+     */
+    private boolean skipTombstones() {
+        while (heapSize != 0 && applyTombstones && heap[0].g.isTombstones()) {
+            MergeProgress deleted = new MergeProgress(heap[0]);
+            do {
+                advanceProgress();
+            } while (heapSize != 0 && heap[0].compareTo(deleted) == 0);
+        }
+        return heapSize != 0;
+    }
+
+
+    private void removeTop() {
+        heap[0] = heap[--heapSize];
+        heap[heapSize] = null;
+        if (heapSize != 0)
+            siftDown(0);
+    }
+
+
+    /**
+     * Copies the run of source nodes, beginning at the current node of the input at the
+     * top of the heap, that no other input has. The run is found by galloping over the
+     * input's address rows up to the next input's source node. Since the run's rows are
+     * contiguous in each of the input's tables, it's copied in bulk, table by table, with
+     * only the row pointers rebased. (So disjoint inputs are simply concatenated.)
+     * <p/>
+     * Invoked only when the top input is at a new source node. Nothing is copied if
+     * tombstones have deleted the node's first edges.
+     *
+     * @return <tt>false</tt>, if nothing was copied: either the next input has the same
+     *         source node, or the top input is not at the node's first edge
+     */
+    private boolean copyRun() {
+        MergeProgress top = heap[0];
+        AddressTable addressTable = top.g.addressTable;
+        EdgeTable edgeTable = top.g.edgeTable;
+        NodeTypeTable nodeTypeTable = top.g.nodeTypeTable;
+        int from = top.srcNodeIndex;
+        boolean firstInbound = addressTable.getEdgeRowCount(false, from) == 0;
+        int firstEdge = addressTable.getEdgeRow(firstInbound, from);
+        if (top.dtnNodeIdIndex != nodeTypeTable.getNodeIdRow(edgeTable.getNodeTypeRow(firstEdge)))
+            return false;
+        int to = top.lastSrcNodeIndex + 1;
+        if (heapSize > 1) {
+            MergeProgress next =
+                    heapSize == 2 || heapCompare(heap[1], heap[2]) <= 0 ? heap[1] : heap[2];
+            to = gallop(addressTable, from, to, next.srcNodeType, next.srcNodeId);
+            if (to == from)
+                return false;
+        }
+
+        int last = to - 1;
+        boolean lastInbound = addressTable.getEdgeRowCount(true, last) != 0;
+        int lastEdge =
+                addressTable.getEdgeRow(lastInbound, last) +
+                addressTable.getEdgeRowCount(lastInbound, last) - 1;
+        int lastNodeType =
+                edgeTable.getNodeTypeRow(lastEdge) + edgeTable.getNodeTypeCount(lastEdge) - 1;
+        int endNodeId =
+                nodeTypeTable.getNodeIdRow(lastNodeType) + nodeTypeTable.getNodeIdCount(lastNodeType);
+
+        sink.appendRun(
+                top.g,
+                new int[] { from, top.edgeIndex, top.dtnNodeTypeIndex, top.dtnNodeIdIndex },
+                new int[] { to, lastEdge + 1, lastNodeType + 1, endNodeId });
+
+        srcNodeType = addressTable.getNodeType(last);
+        srcNodeId = addressTable.getNodeId(last);
+
+        top.seekSrcNode(to);
+        if (top.isAtEnd())
+            removeTop();
+        else
+            siftDown(0);
+        return true;
+    }
+
+
+    /**
+     * Returns the index of the first row in the range [<tt>from</tt>, <tt>to</tt>) of the
+     * given table whose node is not less than the given node, or <tt>to</tt>, if there's
+     * none. The search is exponential from <tt>from</tt>, so it's fast for short runs.
+     */
+    static int gallop(AddressTable table, int from, int to, short nodeType, int nodeId) {
+        int lo = from;
+        long hi = from;
+        for (long step = 1; hi < to; step <<= 1, hi = from + step - 1) {
+            if (compare(table.getNodeType((int) hi), table.getNodeId((int) hi), nodeType, nodeId) >= 0)
+                break;
+            lo = (int) hi + 1;
+        }
+        int end = (int) Math.min(hi, to);
+        while (lo < end) {
+            int mid = (lo + end) >>> 1;
+            if (compare(table.getNodeType(mid), table.getNodeId(mid), nodeType, nodeId) < 0)
+                lo = mid + 1;
+            else
+                end = mid;
+        }
+        return lo;
     }
 
 
-    private void syncToProgress() {
-        srcNodeType = loProgress.srcNodeType;
-        srcNodeId = loProgress.srcNodeId;
-        inbound = loProgress.inbound;
-        edgeType = loProgress.edgeType;
-        dtnNodeType = loProgress.dtnNodeType;
-        dtnNodeId = loProgress.dtnNodeId;
+    private void syncToProgress(MergeProgress progress) {
+        srcNodeType = progress.srcNodeType;
+        srcNodeId = progress.srcNodeId;
+        inbound = progress.inbound;
+        edgeType = progress.edgeType;
+        dtnNodeType = progress.dtnNodeType;
+        dtnNodeId = progress.dtnNodeId;
     }
 
 
@@ -190,403 +649,171 @@ public class GraphMerger {
 
 
 
-    static long compare(short aType, int aId, short bType, int bId) {
-        long comp = aType;
-        comp -= bType;
-        if (comp != 0)
-            return comp;
-        comp = aId;
-        comp -= bId;
-        return comp;
-    }
-
-}
-
-
-
-class MergeProgress {
-
-    Graph g;
-
-    int srcNodeIndex;
-    int lastSrcNodeIndex;
-    short srcNodeType;
-    int srcNodeId;
-
-    boolean inbound;
-
-    int edgeIndex;
-    int lastEdgeIndex;
-    short edgeType;
-
-    int dtnNodeTypeIndex;
-    int lastDtnNodeTypeIndex;
-    short dtnNodeType;
-
-    int dtnNodeIdIndex;
-    int lastDtnNodeIdIndex;
-    int dtnNodeId;
-
-
-    MergeProgress(MergeProgress copy) {
-        copy(copy);
-    }
-
-    MergeProgress(Graph g) {
-        this.g = g;
-        this.lastSrcNodeIndex = g.addressTable.size() - 1;
-        loadSrcNode();
-    }
-
-
-    void copy(MergeProgress other) {
-        g = other.g;
-
-        srcNodeIndex = other.srcNodeIndex;
-        lastSrcNodeIndex = other.lastSrcNodeIndex;
-        srcNodeType = other.srcNodeType;
-        srcNodeId = other.srcNodeId;
-
-        inbound = other.inbound;
-        edgeIndex = other.edgeIndex;
-        lastEdgeIndex = other.lastEdgeIndex;
-        edgeType = other.edgeType;
+    /**
+     * Sink to in-memory tables.
+     */
+    private static class TableSink implements GraphSink {
 
-        dtnNodeTypeIndex = other.dtnNodeTypeIndex;
-        lastDtnNodeTypeIndex = other.lastDtnNodeTypeIndex;
-        dtnNodeType = other.dtnNodeType;
+        final AddressTable addressTable;
+        final EdgeTable edgeTable;
+        final NodeTypeTable nodeTypeTable;
+        final NodeIdTable nodeIdTable;
+        final Graph graph;
 
-        dtnNodeIdIndex = other.dtnNodeIdIndex;
-        lastDtnNodeIdIndex = other.lastDtnNodeIdIndex;
-        dtnNodeId = other.dtnNodeId;
-
-        atEnd = other.atEnd;    // (for sanity)
-    }
-
-    void loadSrcNode() {
-        loadSrcNode(true);
-    }
-
-    void loadSrcNode(boolean cascade) {
-        srcNodeType = g.addressTable.getNodeType(srcNodeIndex);
-        srcNodeId = g.addressTable.getNodeId(srcNodeIndex);
-        // position to outbound, if any
-        inbound = !hasEdges(false);
-
-        if (cascade)
-            loadEdgeDirection(true);
-    }
-
-
-    void loadEdgeDirection() {
-        loadEdgeDirection(true);
-    }
-
-    void loadEdgeDirection(boolean cascade) {
-        edgeIndex = g.addressTable.getEdgeRow(inbound, srcNodeIndex);
-        lastEdgeIndex =
-                edgeIndex + g.addressTable.getEdgeRowCount(inbound, srcNodeIndex) - 1;
-
-        if (cascade)
-            loadEdgeType(true);
-    }
-
-
-    void loadEdgeType() {
-        loadEdgeType(true);
-    }
-
-    void loadEdgeType(boolean cascade) {
-        edgeType = g.edgeTable.getEdgeType(edgeIndex);
-        dtnNodeTypeIndex = g.edgeTable.getNodeTypeRow(edgeIndex);
-        lastDtnNodeTypeIndex =
-                dtnNodeTypeIndex + g.edgeTable.getNodeTypeCount(edgeIndex) - 1;
-
-        if (cascade)
-            loadDtnNodeType(true);
-    }
-
-
-    void loadDtnNodeType() {
-        loadDtnNodeType(true);
-    }
-
-    void loadDtnNodeType(boolean cascade) {
-        dtnNodeType = g.nodeTypeTable.getNodeType(dtnNodeTypeIndex);
-        dtnNodeIdIndex = g.nodeTypeTable.getNodeIdRow(dtnNodeTypeIndex);
-        lastDtnNodeIdIndex =
-                dtnNodeIdIndex + g.nodeTypeTable.getNodeIdCount(dtnNodeTypeIndex) - 1;
-        if (cascade)
-            loadDtnNodeId();
-    }
-
-    void loadDtnNodeId() {
-        dtnNodeId = g.nodeIdTable.getNodeId(dtnNodeIdIndex);
-    }
-
-
-    boolean next() {
-        advanceDtnNodeId();
-        return !atEnd;
-    }
-    private boolean atEnd;
-
-
-    boolean isAtEnd() {
-        return atEnd;
-    }
-
-
-    long compareTo(MergeProgress other) {
-        if (atEnd || other.atEnd) {
-            if (atEnd)
-                return other.atEnd ? 0 : 1;
-            else
-                return -1;
+        TableSink(Layout layout, Allocator allocator, int[] capacities) {
+            addressTable = new AddressTable(capacities[0], allocator, Table.UNPAGED, layout);
+            edgeTable = new EdgeTable(capacities[1], allocator, Table.UNPAGED, layout);
+            nodeTypeTable = new NodeTypeTable(capacities[2], allocator, Table.UNPAGED, layout);
+            nodeIdTable = new NodeIdTable(capacities[3], allocator, Table.UNPAGED, layout);
+            graph = new Graph(addressTable, edgeTable, nodeTypeTable, nodeIdTable);
         }
 
-        long comp = GraphMerger.compare(srcNodeType, srcNodeId, other.srcNodeType, other.srcNodeId);
-        if (comp != 0)
-            return comp;
-        if (inbound != other.inbound)
-            return inbound ? 1 : -1;
-        comp = ((int) edgeType) - other.edgeType;
-        if (comp != 0)
-            return comp;
-        comp = GraphMerger.compare(dtnNodeType, dtnNodeId, other.dtnNodeType, other.dtnNodeId);
-        return comp;
-    }
+        @Override
+        public void appendAddress(short nodeType, int nodeId, boolean inbound, int edgeRow) {
+            addressTable.appendEntry(nodeType, nodeId, inbound, edgeRow);
+        }
 
+        @Override
+        public void setLastEdge(boolean inbound, int edgeRow, int edgeRowCount) {
+            addressTable.setLastEdge(inbound, edgeRow, edgeRowCount);
+        }
 
+        @Override
+        public void incrLastEdgeCount(boolean inbound) {
+            addressTable.incrLastEdgeCount(inbound);
+        }
 
-    void advanceAfter(MergeProgress other) {
-        // sanity check
-        if (g == other.g)
-            throw new IllegalArgumentException("cannot apply to same graph " + g);
+        @Override
+        public void appendEdge(short edgeType, int nodeTypeRow) {
+            edgeTable.appendEntry(edgeType, nodeTypeRow);
+        }
 
-        for (long comp = compareTo(other); comp <= 0; ) {
-            if (comp == 0) {
-                next();
-                assert compareTo(other) > 0;
-                break;
-            }
-            nudgeToAfter(other);
-            comp = compareTo(other);
+        @Override
+        public void incrLastNodeTypeCount() {
+            edgeTable.incrLastNodeTypeCount();
         }
-    }
 
+        @Override
+        public void appendNodeType(short nodeType, int nodeIdRow) {
+            nodeTypeTable.appendEntry(nodeType, nodeIdRow);
+        }
 
-    private void nudgeToAfter(MergeProgress other) {
-        // compare the srcNodes
-        long comp = GraphMerger.compare(srcNodeType, srcNodeId, other.srcNodeType, other.srcNodeId);
+        @Override
+        public void incrLastNodeIdCount() {
+            nodeTypeTable.incrLastNodeIdCount();
+        }
 
-        // if the src nodes don't match, advance this
-        if (comp != 0) {
-            assert comp < 0;
-            advanceSrcNode(other);
+        @Override
+        public void appendNodeId(int nodeId) {
+            nodeIdTable.appendEntry(nodeId);
+        }
 
-        } else if (inbound != other.inbound) {
-            assert other.inbound;
-            advanceEdgeDirection();
+        @Override
+        public void appendRun(Graph g, int[] from, int[] to) {
+            addressTable.appendRun(
+                    g.addressTable, from[0], to[0], from[1], edgeTable.size() - from[1]);
+            edgeTable.appendRun(
+                    g.edgeTable, from[1], to[1], from[2], nodeTypeTable.size() - from[2]);
+            nodeTypeTable.appendRun(
+                    g.nodeTypeTable, from[2], to[2], from[3], nodeIdTable.size() - from[3]);
+            nodeIdTable.appendRun(g.nodeIdTable, from[3], to[3]);
+        }
 
-        } else if (edgeType != other.edgeType) {
-            assert edgeType < other.edgeType;
-            advanceEdgeType(other);
+        @Override
+        public int edgeRows() {
+            return edgeTable.size();
+        }
 
-        } else if (dtnNodeType != other.dtnNodeType) {
-            assert dtnNodeType < other.dtnNodeType;
-            advanceDtnNodeType(other);
+        @Override
+        public int nodeTypeRows() {
+            return nodeTypeTable.size();
+        }
 
-        } else {
-            assert dtnNodeId < other.dtnNodeId;
-            advanceDtnNodeId(other);
+        @Override
+        public int nodeIdRows() {
+            return nodeIdTable.size();
         }
     }
 
 
 
-    private void advanceSrcNode(MergeProgress other) {
-        int index = g.addressTable.indexOf(other.srcNodeType, other.srcNodeId);
 
-        if (index < 0 && (index = -index - 1) == g.addressTable.size()) {
-            advanceToEnd();
+    /**
+     * Sink that only counts rows.
+     */
+    private static class CountingSink implements GraphSink {
 
-        } else {
-            assert index > srcNodeIndex;
+        final int[] rows = new int[4];
 
-            srcNodeIndex = index;
-            loadSrcNode();
+        @Override
+        public void appendAddress(short nodeType, int nodeId, boolean inbound, int edgeRow) {
+            ++rows[0];
         }
-    }
-
 
-    private void advanceSrcNode() {
-        if (srcNodeIndex == lastSrcNodeIndex) {
-            advanceToEnd();
-        } else {
-            ++srcNodeIndex;
-            loadSrcNode();
+        @Override
+        public void setLastEdge(boolean inbound, int edgeRow, int edgeRowCount) {
         }
-    }
 
-
-    private void advanceEdgeDirection() {
-        if (inbound || !hasEdges(true)) {
-            advanceSrcNode();
-        } else {
-            inbound = true;
-            loadEdgeDirection();
+        @Override
+        public void incrLastEdgeCount(boolean inbound) {
         }
-    }
-
 
-
-    private void advanceEdgeType(MergeProgress other) {
-        while (edgeIndex != lastEdgeIndex && edgeType < other.edgeType) {
-            // Performance note: could speed up (but likely unnecessary)
-            ++edgeIndex;
-            loadEdgeType(false);
+        @Override
+        public void appendEdge(short edgeType, int nodeTypeRow) {
+            ++rows[1];
         }
 
-        if (edgeType < other.edgeType) {
-            advanceEdgeDirection();
-        } else {
-            // finish the cascade
-            loadDtnNodeType();
+        @Override
+        public void incrLastNodeTypeCount() {
         }
-    }
 
-    private void advanceEdgeType() {
-        if (edgeIndex == lastEdgeIndex) {
-            advanceEdgeDirection();
-        } else {
-            ++edgeIndex;
-            loadEdgeType();
+        @Override
+        public void appendNodeType(short nodeType, int nodeIdRow) {
+            ++rows[2];
         }
-    }
 
-
-
-    private void advanceDtnNodeType(MergeProgress other) {
-        while (dtnNodeTypeIndex != lastDtnNodeTypeIndex && dtnNodeType < other.dtnNodeType) {
-            // Performance note: could speed up (but likely unnecessary)
-            ++dtnNodeTypeIndex;
-            loadDtnNodeType(false);
+        @Override
+        public void incrLastNodeIdCount() {
         }
 
-        if (dtnNodeType < other.dtnNodeType) {
-            advanceEdgeType();
-        } else {
-            // finish the cascade
-            loadDtnNodeId();
+        @Override
+        public void appendNodeId(int nodeId) {
+            ++rows[3];
         }
-    }
 
-    private void advanceDtnNodeType() {
-        if (dtnNodeTypeIndex == lastDtnNodeTypeIndex) {
-            advanceEdgeType();
-        } else {
-            ++dtnNodeTypeIndex;
-            loadDtnNodeType();
+        @Override
+        public void appendRun(Graph g, int[] from, int[] to) {
+            for (int t = 0; t < rows.length; ++t)
+                rows[t] += to[t] - from[t];
         }
-    }
-
-
 
-
-
-    private void advanceDtnNodeId(MergeProgress other) {
-        int remainingIds = lastDtnNodeIdIndex - dtnNodeIdIndex;
-        if (remainingIds > 128 && other.dtnNodeId - dtnNodeId > 128) {
-            List<Integer> nodeIds = g.nodeIdTable.asList();
-            nodeIds = nodeIds.subList(dtnNodeIdIndex + 1, lastDtnNodeIdIndex + 1);
-            int index = Collections.binarySearch(nodeIds, other.dtnNodeId);
-            if (index < 0) {
-                // index encodes the insertion point..
-                index = -index - 1;
-                // ..so the nodeId at index, if any, is > other.dtnNodeId
-            } else {
-                // the nodeId at index is == other.dtnNodeId, so we advance the index
-                ++index;
-            }
-            dtnNodeIdIndex += index + 1;
-            if (dtnNodeIdIndex > lastDtnNodeIdIndex) {
-                advanceDtnNodeType();
-            } else {
-                loadDtnNodeId();
-            }
-        } else {
-            while (dtnNodeIdIndex != lastDtnNodeIdIndex && dtnNodeId <= other.dtnNodeId) {
-                ++dtnNodeIdIndex;
-                loadDtnNodeId();
-            }
-            if (dtnNodeId <= other.dtnNodeId) {
-                advanceDtnNodeType();
-            }
+        @Override
+        public int edgeRows() {
+            return rows[1];
         }
-    }
 
-    private void advanceDtnNodeId() {
-        if (dtnNodeIdIndex == lastDtnNodeIdIndex) {
-            advanceDtnNodeType();
-        } else {
-            ++dtnNodeIdIndex;
-            loadDtnNodeId();
+        @Override
+        public int nodeTypeRows() {
+            return rows[2];
         }
-    }
-
-
-
 
-    private boolean hasEdges(boolean inbound) {
-        int count = g.addressTable.getEdgeRowCount(inbound, srcNodeIndex);
-        assert count >= 0;
-        return count != 0;
+        @Override
+        public int nodeIdRows() {
+            return rows[3];
+        }
     }
 
 
 
-    private void advanceToEnd() {
-        if (atEnd)
-            return;
 
-        atEnd = true;
-
-        // inconsequential block below; for bookkeeping, only.
-        // comment out later..
-        srcNodeIndex = lastSrcNodeIndex;
-        loadSrcNode(false);
-        if (!inbound) {
-            inbound = hasEdges(true);
-        }
-        loadEdgeDirection(false);
-        edgeIndex = lastEdgeIndex;
-        loadEdgeType(false);
-        dtnNodeTypeIndex = lastDtnNodeTypeIndex;
-        loadDtnNodeType(false);
-        dtnNodeIdIndex = lastDtnNodeIdIndex;
-        loadDtnNodeId();
-    }
-
-
-    @Override
-    public String toString() {
-        Object[] coordinates = {
-                srcNodeType,
-                srcNodeId,
-                inbound,
-                edgeType,
-                dtnNodeType,
-                dtnNodeId
-        };
-        return getClass().getSimpleName() + Arrays.asList(coordinates).toString();
+    static long compare(short aType, int aId, short bType, int bId) {
+        long comp = aType;
+        comp -= bType;
+        if (comp != 0)
+            return comp;
+        comp = aId;
+        comp -= bId;
+        return comp;
     }
 
-
 }
-
-
-
-
-
-
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+/**
+ * The output of a {@linkplain GraphMerger}. The four tables are written front to back:
+ * rows are only ever appended, and only the last row of a table may be amended after
+ * it's appended.
+ *
+ * @see AddressTable
+ * @see EdgeTable
+ * @see NodeTypeTable
+ * @see NodeIdTable
+ */
+interface GraphSink {
+
+    /**
+     * Appends an address row whose edges (in the given direction) begin at
+     * <tt>edgeRow</tt>.
+     *
+     * @see AddressTable#appendEntry(short, int, boolean, int)
+     */
+    void appendAddress(short nodeType, int nodeId, boolean inbound, int edgeRow);
+
+    /**
+     * @see AddressTable#setLastEdge(boolean, int, int)
+     */
+    void setLastEdge(boolean inbound, int edgeRow, int edgeRowCount);
+
+    /**
+     * @see AddressTable#incrLastEdgeCount(boolean)
+     */
+    void incrLastEdgeCount(boolean inbound);
+
+    /**
+     * @see EdgeTable#appendEntry(short, int)
+     */
+    void appendEdge(short edgeType, int nodeTypeRow);
+
+    /**
+     * @see EdgeTable#incrLastNodeTypeCount()
+     */
+    void incrLastNodeTypeCount();
+
+    /**
+     * @see NodeTypeTable#appendEntry(short, int)
+     */
+    void appendNodeType(short nodeType, int nodeIdRow);
+
+    /**
+     * @see NodeTypeTable#incrLastNodeIdCount()
+     */
+    void incrLastNodeIdCount();
+
+    /**
+     * @see NodeIdTable#appendEntry(int)
+     */
+    void appendNodeId(int nodeId);
+
+    /**
+     * Appends the rows of the given graph in the given ranges [<tt>from[t]</tt>,
+     * <tt>to[t]</tt>) of each of its tables <em>t</em> (in table order). The ranges
+     * span a run of source nodes and all their edges, so they're self-contained: only
+     * their row pointers need be rebased.
+     *
+     * @see AddressTable#appendRun(AddressTable, int, int, int, int)
+     */
+    void appendRun(Graph g, int[] from, int[] to);
+
+    /**
+     * Returns the number of rows appended to the edge table.
+     */
+    int edgeRows();
+
+    /**
+     * Returns the number of rows appended to the node type table.
+     */
+    int nodeTypeRows();
+
+    /**
+     * Returns the number of rows appended to the node ID table.
+     */
+    int nodeIdRows();
+
+}
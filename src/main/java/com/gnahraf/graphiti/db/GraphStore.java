@@ -0,0 +1,504 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.mem.Allocator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A mutable graph laid out as a log-structured merge tree. Edge insertions and deletions
+ * collect in an in-memory <em>memtable</em>; when it fills, it's flushed (built) into
+ * immutable graph {@linkplain Segment segments}, which are compacted in the background
+ * by the {@linkplain GraphMerger}. So the cost of ingesting a batch of edges is proportional
+ * to the size of the batch, not that of the graph.
+ * <p/>
+ * The segments are ordered by recency, oldest first. Each holds the edges inserted, and
+ * those deleted (as {@linkplain Graph#asTombstones() tombstones}), over some stretch of
+ * time. A segment's tombstones hide the matching edges of the segments that precede it.
+ *
+ * <h3>Compaction</h3>
+ * <p/>
+ * Which segments are merged, and when, is decided by the {@linkplain CompactionScheduler}'s
+ * {@linkplain CompactionPolicy policy}. Only adjacent segments are merged, and the merged
+ * segment replaces them in the same position, atomically. Tombstones are dropped only when
+ * merged with the oldest segment; otherwise they're carried over into the merged segment,
+ * since older segments may still hold the edges they delete.
+ * <p/>
+ * Compaction costs are tracked as {@linkplain #getWriteAmplification() write
+ * amplification}, their benefit as {@linkplain #getReadFanOut() read fan-out}.
+ * <p/>
+ * {@linkplain #newCursor() Cursors} see a snapshot of the store as of their creation.
+ * Their calls fan out across the segments (and the memtable), with overlapping edges
+ * counted once.
+ *
+ * <h3>Thread safety</h3>
+ * <p/>
+ * Instances are safe for concurrent use. Writes are serialized; reads contend only
+ * briefly, to snapshot the segments.
+ */
+public class GraphStore {
+
+    /**
+     * The default number of edge insertions (and deletions) the memtable holds before
+     * it's flushed.
+     */
+    public final static int DEFAULT_MEMTABLE_SIZE = 64 * 1024;
+
+
+    private final Allocator allocator;
+    private final int memtableSize;
+    private final CompactionScheduler scheduler;
+
+    private GraphBuilder inserts;
+    private GraphBuilder deletes;
+    /**
+     * The memtable's built graphs (tombstones first), or <tt>null</tt>, if writes have
+     * since changed it.
+     */
+    private List<Graph> memtableGraphs;
+
+    /**
+     * Immutable. Replaced on every flush and compaction.
+     */
+    private volatile List<Segment> segments = Collections.emptyList();
+
+    /**
+     * The segments being compacted.
+     */
+    private final Set<Segment> compacting = new HashSet<>();
+    private int activeCompactions;
+
+    private long flushedBytes;
+    private long compactedBytes;
+
+
+    /**
+     * Creates an instance with default settings, compacting on a single background thread
+     * with the {@linkplain SizeTieredPolicy}.
+     */
+    public GraphStore() {
+        this(Allocator.HEAP, DEFAULT_MEMTABLE_SIZE, new CompactionScheduler(new SizeTieredPolicy()));
+    }
+
+
+    /**
+     * Creates an instance.
+     *
+     * @param allocator allocates the segments' tables
+     * @param memtableSize the number of edge insertions (and deletions) the memtable holds
+     *        before it's flushed
+     * @param scheduler schedules background compactions. It must not serve another store.
+     *        If <tt>null</tt>, then segments are only compacted on {@linkplain #compact()}.
+     */
+    public GraphStore(Allocator allocator, int memtableSize, CompactionScheduler scheduler) {
+        if (allocator == null)
+            throw new IllegalArgumentException("null allocator");
+        if (memtableSize < 1)
+            throw new IllegalArgumentException("memtableSize " + memtableSize);
+        this.allocator = allocator;
+        this.memtableSize = memtableSize;
+        this.scheduler = scheduler;
+        clearMemtable();
+        if (scheduler != null)
+            scheduler.attach(this);
+    }
+
+
+    private void clearMemtable() {
+        inserts = new GraphBuilder(allocator);
+        deletes = new GraphBuilder(allocator);
+        memtableGraphs = Collections.emptyList();
+    }
+
+
+    public void insertEdge(
+            short srcNodeType, int srcNodeId,
+            short edgeType,
+            short dtnNodeType, int dtnNodeId) {
+        insertEdge(
+                new ShortInt(srcNodeType, srcNodeId),
+                new EdgeType(edgeType),
+                new ShortInt(dtnNodeType, dtnNodeId));
+    }
+
+
+    public synchronized void insertEdge(ShortInt src, EdgeType edgeType, ShortInt dtn) {
+        deletes.removeEdge(src, edgeType.getId(), dtn);
+        inserts.insertEdge(src, edgeType, dtn);
+        memtableWritten();
+    }
+
+
+    /**
+     * Inserts the edge between the given {@linkplain ShortInt#pack(short, int) packed}
+     * nodes.
+     */
+    public void insertEdge(long src, short edgeType, long dtn) {
+        insertEdge(ShortInt.unpack(src), new EdgeType(edgeType), ShortInt.unpack(dtn));
+    }
+
+
+    public void deleteEdge(
+            short srcNodeType, int srcNodeId,
+            short edgeType,
+            short dtnNodeType, int dtnNodeId) {
+        deleteEdge(
+                new ShortInt(srcNodeType, srcNodeId),
+                new EdgeType(edgeType),
+                new ShortInt(dtnNodeType, dtnNodeId));
+    }
+
+
+    /**
+     * Deletes the given edge, if it exists. (Deleting an edge that doesn't exist costs
+     * the same.)
+     */
+    public synchronized void deleteEdge(ShortInt src, EdgeType edgeType, ShortInt dtn) {
+        inserts.removeEdge(src, edgeType.getId(), dtn);
+        deletes.insertEdge(src, edgeType, dtn);
+        memtableWritten();
+    }
+
+
+    private void memtableWritten() {
+        memtableGraphs = null;
+        if (getMemtableCount() >= memtableSize)
+            flush();
+    }
+
+
+    /**
+     * Returns the number of edge insertions and deletions in the memtable.
+     */
+    public synchronized int getMemtableCount() {
+        return inserts.getInsertionCount() + deletes.getInsertionCount();
+    }
+
+
+    /**
+     * Flushes the memtable into new segments, and consults the scheduler (if any).
+     * The cost is proportional to the size of the memtable.
+     */
+    public synchronized void flush() {
+        List<Graph> flushed = memtableGraphs();
+        if (flushed.isEmpty())
+            return;
+        Graph graph = null;
+        Graph tombstones = null;
+        for (Graph layer : flushed) {
+            if (layer.isTombstones())
+                tombstones = layer;
+            else
+                graph = layer;
+        }
+        long now = System.currentTimeMillis();
+        Segment segment = new Segment(graph, tombstones, 0, now, now);
+        flushedBytes += segment.getByteSize();
+        List<Segment> newSegments = new ArrayList<>(segments);
+        newSegments.add(segment);
+        segments = Collections.unmodifiableList(newSegments);
+        clearMemtable();
+
+        if (scheduler != null)
+            scheduler.flushed();
+    }
+
+
+    /**
+     * Returns the memtable's edges built as graphs: the deletions (as tombstones) followed
+     * by the insertions. The two are disjoint, so their order doesn't matter.
+     */
+    private List<Graph> memtableGraphs() {
+        if (memtableGraphs == null) {
+            List<Graph> graphs = new ArrayList<>(2);
+            if (!deletes.isEmpty())
+                graphs.add(deletes.build().asTombstones());
+            if (!inserts.isEmpty())
+                graphs.add(inserts.build());
+            for (Graph graph : graphs)
+                graph.trimMemToSize();
+            memtableGraphs = Collections.unmodifiableList(graphs);
+        }
+        return memtableGraphs;
+    }
+
+
+    /**
+     * Merges all the segments into one, in the calling thread. Background compactions
+     * in progress are waited on first. Segments flushed in the meantime are not affected.
+     * <p/>
+     * As with background compactions, the replaced segments are not
+     * {@linkplain Graph#release() release}d, since cursors may still be reading them.
+     */
+    public void compact() throws InterruptedException {
+        List<Segment> inputs;
+        synchronized (this) {
+            while (activeCompactions != 0)
+                wait();
+            inputs = segments;
+            if (inputs.isEmpty() || inputs.size() == 1 && !inputs.get(0).hasTombstones())
+                return;
+            reserve(inputs);
+        }
+        boolean done = false;
+        try {
+            int level = 0;
+            for (Segment input : inputs)
+                level = Math.max(level, input.getLevel());
+            compact(inputs, level);
+            done = true;
+        } finally {
+            if (!done)
+                release(inputs);
+            compactionDone();
+        }
+    }
+
+
+    /**
+     * Returns the runs of adjacent segments not being compacted. The caller holds
+     * this instance's lock.
+     */
+    List<List<Segment>> idleRuns() {
+        List<Segment> current = segments;
+        List<List<Segment>> runs = new ArrayList<>();
+        int start = 0;
+        for (int index = 0; index <= current.size(); ++index) {
+            if (index == current.size() || compacting.contains(current.get(index))) {
+                if (index > start)
+                    runs.add(current.subList(start, index));
+                start = index + 1;
+            }
+        }
+        return runs;
+    }
+
+
+    /**
+     * Marks the given segments as being compacted. The caller holds this instance's lock.
+     */
+    void reserve(List<Segment> inputs) {
+        compacting.addAll(inputs);
+        ++activeCompactions;
+    }
+
+
+    /**
+     * Unmarks the given segments, after a failed compaction.
+     */
+    synchronized void release(List<Segment> inputs) {
+        compacting.removeAll(inputs);
+    }
+
+
+    /**
+     * Invoked when a {@linkplain #reserve(List) reserve}d compaction is done (whether it
+     * succeeded or not).
+     */
+    synchronized void compactionDone() {
+        --activeCompactions;
+        if (scheduler != null)
+            scheduler.schedule();
+        if (activeCompactions == 0)
+            notifyAll();
+    }
+
+
+    /**
+     * Merges the given {@linkplain #reserve(List) reserve}d adjacent segments, and
+     * replaces them with the result.
+     *
+     * @param level the level of the merged segments
+     *
+     * @return the number of bytes written
+     */
+    long compact(List<Segment> inputs, int level) {
+        boolean oldest;
+        synchronized (this) {
+            // (nothing's ever inserted before the oldest segment)
+            oldest = segments.get(0) == inputs.get(0);
+        }
+
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+        List<Graph> layers = new ArrayList<>(2 * inputs.size());
+        List<Graph> tombstones = new ArrayList<>();
+        for (Segment input : inputs) {
+            minTime = Math.min(minTime, input.getMinTime());
+            maxTime = Math.max(maxTime, input.getMaxTime());
+            addLayers(input, layers);
+            if (input.hasTombstones())
+                tombstones.add(input.getTombstones());
+        }
+
+        // the tombstones are applied (and dropped) within the range..
+        Graph merged = inputs.size() == 1 ? inputs.get(0).getGraph() : merge(layers);
+        if (merged != null && (merged.isEmpty() || merged.isTombstones()))
+            merged = null;
+        // ..and carried over for the older segments, if any
+        Graph carried = oldest || tombstones.isEmpty() ? null : merge(tombstones);
+
+        List<Segment> outputs = new ArrayList<>(1);
+        if (merged != null || carried != null)
+            outputs.add(new Segment(merged, carried, level, minTime, maxTime));
+
+        long bytes = 0;
+        for (Graph output : new Graph[] { merged, carried }) {
+            if (output != null && !layers.contains(output))
+                bytes += output.getMemSize() - output.unusedMem();
+        }
+        publish(inputs, outputs, bytes);
+        return bytes;
+    }
+
+
+    private Graph merge(List<Graph> graphs) {
+        return graphs.size() == 1 ?
+                graphs.get(0) : new GraphMerger(graphs, allocator).setExactSizing(true).merge();
+    }
+
+
+    private synchronized void publish(List<Segment> inputs, List<Segment> outputs, long bytes) {
+        List<Segment> current = segments;
+        int from = current.indexOf(inputs.get(0));
+        int to = from + inputs.size();
+        if (from == -1 || to > current.size() || !current.subList(from, to).equals(inputs))
+            throw new IllegalStateException("compacted segments moved: " + inputs);
+        List<Segment> newSegments = new ArrayList<>(current.size() - inputs.size() + outputs.size());
+        newSegments.addAll(current.subList(0, from));
+        newSegments.addAll(outputs);
+        newSegments.addAll(current.subList(to, current.size()));
+        segments = Collections.unmodifiableList(newSegments);
+        compacting.removeAll(inputs);
+        compactedBytes += bytes;
+    }
+
+
+    /**
+     * Waits until no compactions are running (including those scheduled in the meantime).
+     */
+    public synchronized void awaitCompaction() throws InterruptedException {
+        while (activeCompactions != 0)
+            wait();
+    }
+
+
+    /**
+     * Returns a snapshot of the segments, oldest first. (The memtable is not included.)
+     */
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+
+    /**
+     * Returns the scheduler, or <tt>null</tt>, if there's none.
+     */
+    public CompactionScheduler getScheduler() {
+        return scheduler;
+    }
+
+
+    /**
+     * Returns the number of bytes flushed from the memtable into segments.
+     */
+    public synchronized long getFlushedBytes() {
+        return flushedBytes;
+    }
+
+
+    /**
+     * Returns the number of bytes written by compactions.
+     */
+    public synchronized long getCompactedBytes() {
+        return compactedBytes;
+    }
+
+
+    /**
+     * Returns the ratio of the bytes written to segments (both flushed and compacted)
+     * to the bytes flushed. Each time an edge is rewritten by a compaction, it adds to
+     * this figure.
+     *
+     * @return &ge; 1
+     */
+    public synchronized double getWriteAmplification() {
+        return flushedBytes == 0 ? 1 : (double) (flushedBytes + compactedBytes) / flushedBytes;
+    }
+
+
+    /**
+     * Returns the number of graphs a {@linkplain #newCursor() cursor} currently fans out
+     * over: the segments plus the memtable's.
+     */
+    public synchronized int getReadFanOut() {
+        return segments.size() + (inserts.isEmpty() ? 0 : 1) + (deletes.isEmpty() ? 0 : 1);
+    }
+
+
+    /**
+     * Returns a cursor over a snapshot of the store's edges, including those in the
+     * memtable. Writes after the cursor is created are not visible thru it.
+     * <p/>
+     * If the memtable has changed since the last flush (or cursor), it's built into
+     * graphs first, at a cost proportional to its size.
+     */
+    public Cursor newCursor() {
+        List<Graph> layers = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : segments)
+                addLayers(segment, layers);
+            layers.addAll(memtableGraphs());
+        }
+        return newCursor(layers);
+    }
+
+
+    /**
+     * Adds the given segment's graphs to the given layers: its tombstones, then its edges.
+     */
+    private static void addLayers(Segment segment, List<Graph> layers) {
+        if (segment.hasTombstones())
+            layers.add(segment.getTombstones());
+        if (segment.getGraph() != null)
+            layers.add(segment.getGraph());
+    }
+
+
+    /**
+     * Returns a cursor over the given layers of graphs, oldest first. Tombstone layers
+     * mask the layers below them.
+     */
+    static Cursor newCursor(List<Graph> layers) {
+        List<Cursor> run = new ArrayList<>();
+        for (Graph layer : layers) {
+            if (layer.isEmpty())
+                continue;
+            if (layer.isTombstones()) {
+                if (run.isEmpty())
+                    continue;
+                Cursor masked = new MaskedCursor(combine(run), layer.newCursor());
+                run.clear();
+                run.add(masked);
+            } else
+                run.add(layer.newCursor());
+        }
+        return run.isEmpty() ? new EmptyCursor() : combine(run);
+    }
+
+
+    private static Cursor combine(List<Cursor> cursors) {
+        return cursors.size() == 1 ? cursors.get(0) : new ComboCursor(cursors);
+    }
+}
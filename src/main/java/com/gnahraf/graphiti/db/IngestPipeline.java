@@ -0,0 +1,618 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, micro-batched pipeline that ingests streamed edges into a live graph.
+ * Edges flow thru these stages:
+ * <ol>
+ * <li><em>Accumulate.</em> Concurrent producers {@linkplain #insertEdge(short, int, short,
+ * short, int) insert} edges into batches ({@linkplain BulkGraphBuilder} buffers). To
+ * keep producers from contending, batches are striped: each producer thread is assigned
+ * a stripe (round robin, one stripe per core), and fills that stripe's current batch.
+ * A batch is sealed once it has <tt>batchSize</tt> edges, or once its first edge is
+ * <tt>maxDelayMillis</tt> old, whichever comes first.</li>
+ * <li><em>Build.</em> Sealed batches are built into graphs in parallel, on
+ * <tt>buildThreads</tt> threads.</li>
+ * <li><em>Merge.</em> Built batches are merged into the live graph by a single thread.
+ * Batches that finish building while a merge is under way are merged together in the
+ * next one (a single N-way {@linkplain GraphMerger merge}), so the merge stage keeps up
+ * under load by merging less often, in larger steps. Each merge is
+ * {@linkplain GraphHandle#publish(Graph) published} as a new version of the
+ * {@linkplain #getHandle() handle}.</li>
+ * </ol>
+ *
+ * <h3>Backpressure</h3>
+ *
+ * At most <tt>maxPendingBatches</tt> batches may be sealed but not yet merged. A producer
+ * that fills a batch beyond that blocks (interruptibly, and holding no lock) until a
+ * merge completes; meanwhile, the other producers on its stripe block too. So memory use
+ * is bounded (by about <tt>(maxPendingBatches + stripes) &times; batchSize</tt> edges,
+ * besides the live graph), and producers are slowed to the rate the pipeline sustains.
+ *
+ * <h3>Tuning</h3>
+ *
+ * Smaller batches and delays make edges visible sooner (freshness); larger ones amortize
+ * the cost of merging into the live graph (throughput). The stages'
+ * {@linkplain Latency latencies} and queue depths are exposed to tune by.
+ */
+public class IngestPipeline implements Closeable {
+
+    public final static int DEFAULT_BATCH_SIZE = 64 * 1024;
+
+    public final static long DEFAULT_MAX_DELAY_MILLIS = 100;
+
+    public final static int DEFAULT_MAX_PENDING_BATCHES = 8;
+
+
+    /**
+     * Latency statistics of a pipeline stage.
+     */
+    public final static class Latency {
+
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        synchronized void record(long nanos) {
+            ++count;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        /**
+         * Returns the number of batches measured.
+         */
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized double getAverageMillis() {
+            return count == 0 ? 0 : totalNanos / 1e6 / count;
+        }
+
+        public synchronized double getMaxMillis() {
+            return maxNanos / 1e6;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "[count=" + count + ", avg=" + getAverageMillis() + "ms, max=" + getMaxMillis() + "ms]";
+        }
+    }
+
+
+    /**
+     * A batch of edges, and its timeline (in nanos).
+     */
+    private static class Batch {
+
+        final BulkGraphBuilder edges;
+        final long startNanos;
+        int edgeCount;
+        long sealNanos;
+        long buildNanos;
+        long builtNanos;
+        Graph graph;
+
+        Batch(BulkGraphBuilder edges) {
+            this.edges = edges;
+            this.startNanos = System.nanoTime();
+        }
+    }
+
+
+    /**
+     * A stripe of the accumulate stage: the batch being filled by the producers assigned
+     * to it.
+     */
+    private static class Stripe {
+
+        // guarded by this instance's lock
+        Batch current;
+        /**
+         * Set while the current (full or flushed) batch waits for a permit. Producers
+         * on the stripe wait until it's sealed.
+         */
+        boolean sealing;
+        /**
+         * The number of edges in the current batch. (Readable while a producer is blocked.)
+         */
+        volatile int buffered;
+    }
+
+
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final Allocator allocator;
+
+    private final ThreadPoolExecutor builders;
+    private final ThreadPoolExecutor merger;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Permits for sealed batches not yet merged.
+     */
+    private final Semaphore permits;
+    private final ConcurrentLinkedQueue<Batch> built = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger awaitingBuild = new AtomicInteger();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final AtomicLong mergedEdges = new AtomicLong();
+    private final AtomicLong merges = new AtomicLong();
+
+    private final Latency accumulateLatency = new Latency();
+    private final Latency buildWaitLatency = new Latency();
+    private final Latency buildLatency = new Latency();
+    private final Latency mergeLatency = new Latency();
+    private final Latency endToEndLatency = new Latency();
+
+    private final Stripe[] stripes;
+    private final AtomicInteger nextStripe = new AtomicInteger();
+    private final ThreadLocal<Stripe> localStripe = new ThreadLocal<Stripe>() {
+        @Override
+        protected Stripe initialValue() {
+            return stripes[(nextStripe.getAndIncrement() & Integer.MAX_VALUE) % stripes.length];
+        }
+    };
+
+    private volatile GraphHandle handle;
+    private volatile RuntimeException lastError;
+
+    // written under this instance's lock
+    private volatile boolean closed;
+
+
+    /**
+     * Creates an instance with the default batch size, delay and bound, building on as
+     * many threads as there are cores.
+     *
+     * @param handle the live graph, or <tt>null</tt>, if there's none yet
+     */
+    public IngestPipeline(GraphHandle handle) {
+        this(
+                handle, DEFAULT_BATCH_SIZE, DEFAULT_MAX_DELAY_MILLIS,
+                Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_PENDING_BATCHES,
+                Allocator.HEAP);
+    }
+
+
+    /**
+     * @param handle the live graph merged into, or <tt>null</tt>, if there's none yet (in
+     *        which case the first merge creates it)
+     * @param batchSize the number of edges that seals a batch
+     * @param maxDelayMillis the maximum age of a batch's first edge before the batch is
+     *        sealed
+     * @param buildThreads the number of batches built in parallel
+     * @param maxPendingBatches the maximum number of batches sealed but not yet merged,
+     *        beyond which producers block
+     * @param allocator allocates the batch and merged graphs' tables
+     */
+    public IngestPipeline(
+            GraphHandle handle, int batchSize, long maxDelayMillis,
+            int buildThreads, int maxPendingBatches, Allocator allocator) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize " + batchSize);
+        if (maxDelayMillis < 1)
+            throw new IllegalArgumentException("maxDelayMillis " + maxDelayMillis);
+        if (buildThreads < 1)
+            throw new IllegalArgumentException("buildThreads " + buildThreads);
+        if (maxPendingBatches < 1)
+            throw new IllegalArgumentException("maxPendingBatches " + maxPendingBatches);
+        if (allocator == null)
+            throw new IllegalArgumentException("null allocator");
+        this.handle = handle;
+        this.batchSize = batchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.allocator = allocator;
+        this.permits = new Semaphore(maxPendingBatches);
+        this.stripes = new Stripe[Runtime.getRuntime().availableProcessors()];
+        for (int index = 0; index < stripes.length; ++index)
+            stripes[index] = new Stripe();
+        this.builders = new ThreadPoolExecutor(
+                buildThreads, buildThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), newThreadFactory("graph-ingest-build"));
+        this.merger = new ThreadPoolExecutor(
+                1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), newThreadFactory("graph-ingest-merge"));
+        this.timer = Executors.newSingleThreadScheduledExecutor(newThreadFactory("graph-ingest-timer"));
+        long tick = Math.max(1, maxDelayMillis / 4);
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sealIfDue();
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+
+    /**
+     * Inserts the given edge. Blocks if the pipeline is full.
+     *
+     * @throws IllegalStateException if the pipeline is closed
+     * @throws InterruptedException if interrupted while blocked (the edge is not lost)
+     * @see BulkGraphBuilder#insertEdge(short, int, short, short, int)
+     */
+    public void insertEdge(
+            short srcNodeType, int srcNodeId,
+            short edgeType,
+            short dtnNodeType, int dtnNodeId) throws InterruptedException {
+        Stripe stripe = localStripe.get();
+        synchronized (stripe) {
+            while (stripe.sealing)
+                stripe.wait();
+            if (closed)
+                throw new IllegalStateException("closed");
+            if (stripe.current == null)
+                stripe.current = new Batch(new BulkGraphBuilder(
+                        Math.min(batchSize, 1 << 16), allocator, Table.UNPAGED, Layout.NARROW));
+            stripe.current.edges.insertEdge(srcNodeType, srcNodeId, edgeType, dtnNodeType, dtnNodeId);
+            stripe.buffered = stripe.current.edges.getBufferedCount();
+            if (stripe.buffered < batchSize)
+                return;
+            stripe.sealing = true;
+        }
+        seal(stripe);
+    }
+
+
+    public void insertEdge(ShortInt src, EdgeType edgeType, ShortInt dtn) throws InterruptedException {
+        insertEdge(src.getType(), src.getId(), edgeType.getId(), dtn.getType(), dtn.getId());
+    }
+
+
+    /**
+     * Inserts the edge between the given {@linkplain ShortInt#pack(short, int) packed}
+     * nodes.
+     */
+    public void insertEdge(long src, short edgeType, long dtn) throws InterruptedException {
+        insertEdge(
+                ShortInt.packedType(src), ShortInt.packedId(src),
+                edgeType,
+                ShortInt.packedType(dtn), ShortInt.packedId(dtn));
+    }
+
+
+    /**
+     * Seals the current batch of each stripe, if it's due and there's room for it.
+     */
+    private void sealIfDue() {
+        long now = System.nanoTime();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (stripe.current != null && !stripe.sealing &&
+                        now - stripe.current.startNanos >= maxDelayNanos &&
+                        permits.tryAcquire())
+                    submit(stripe);
+            }
+        }
+    }
+
+
+    /**
+     * Seals the given stripe's current batch, once there's room for it. The caller has
+     * marked the stripe as sealing (under its lock); the permit is waited on outside the
+     * lock, and if the wait is interrupted, the batch stays with the stripe.
+     */
+    private void seal(Stripe stripe) throws InterruptedException {
+        boolean acquired = false;
+        try {
+            long nanos = System.nanoTime();
+            permits.acquire();
+            acquired = true;
+            blockedNanos.addAndGet(System.nanoTime() - nanos);
+        } finally {
+            synchronized (stripe) {
+                if (acquired)
+                    submit(stripe);
+                stripe.sealing = false;
+                stripe.notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Hands the stripe's current batch to the build stage. Invoked under the stripe's
+     * lock, with a permit.
+     */
+    private void submit(Stripe stripe) {
+        final Batch batch = stripe.current;
+        stripe.current = null;
+        stripe.buffered = 0;
+        batch.sealNanos = System.nanoTime();
+        accumulateLatency.record(batch.sealNanos - batch.startNanos);
+        pending.incrementAndGet();
+        awaitingBuild.incrementAndGet();
+        builders.execute(new Runnable() {
+            @Override
+            public void run() {
+                build(batch);
+            }
+        });
+    }
+
+
+    private void build(Batch batch) {
+        awaitingBuild.decrementAndGet();
+        batch.buildNanos = System.nanoTime();
+        buildWaitLatency.record(batch.buildNanos - batch.sealNanos);
+        try {
+            batch.graph = batch.edges.build();
+            batch.edgeCount = batch.edges.getBufferedCount();
+        } catch (RuntimeException x) {
+            lastError = x;
+        } finally {
+            // (even on an Error: the batch's permit is returned when it's merged)
+            batch.edges.clear();
+            batch.builtNanos = System.nanoTime();
+            buildLatency.record(batch.builtNanos - batch.buildNanos);
+            built.add(batch);
+            merger.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mergeBuilt();
+                }
+            });
+        }
+    }
+
+
+    /**
+     * Merges all the built batches (if any) into the live graph. Runs on the merge thread.
+     */
+    private void mergeBuilt() {
+        List<Batch> batches = new ArrayList<>();
+        for (Batch batch = built.poll(); batch != null; batch = built.poll())
+            batches.add(batch);
+        if (batches.isEmpty())
+            return;
+
+        try {
+            List<Graph> graphs = new ArrayList<>(batches.size() + 1);
+            long edges = 0;
+            for (Batch batch : batches) {
+                if (batch.graph != null) {
+                    graphs.add(batch.graph);
+                    edges += batch.edgeCount;
+                }
+            }
+            if (!graphs.isEmpty())
+                publish(graphs);
+            mergedEdges.addAndGet(edges);
+        } catch (RuntimeException x) {
+            lastError = x;
+        } finally {
+            long nanos = System.nanoTime();
+            for (Batch batch : batches) {
+                mergeLatency.record(nanos - batch.builtNanos);
+                endToEndLatency.record(nanos - batch.startNanos);
+            }
+            // decrement before releasing, so the pending count never exceeds the permits
+            boolean drained = pending.addAndGet(-batches.size()) == 0;
+            permits.release(batches.size());
+            if (drained) {
+                synchronized (pending) {
+                    pending.notifyAll();
+                }
+            }
+        }
+    }
+
+
+    private void publish(List<Graph> graphs) {
+        GraphHandle live = handle;
+        if (live == null && graphs.size() == 1) {
+            handle = new GraphHandle(graphs.get(0));
+        } else {
+            if (live == null) {
+                handle = new GraphHandle(new GraphMerger(graphs, allocator).merge());
+            } else {
+                // (only this thread publishes, so the pinned version is the current one)
+                try (GraphHandle.Snapshot snapshot = live.pin()) {
+                    List<Graph> inputs = new ArrayList<>(graphs.size() + 1);
+                    inputs.add(snapshot.getGraph());
+                    inputs.addAll(graphs);
+                    live.publish(new GraphMerger(inputs, allocator).merge());
+                }
+            }
+            for (Graph graph : graphs)
+                graph.release();
+        }
+        merges.incrementAndGet();
+    }
+
+
+    /**
+     * Seals the stripes' current batches (if any), and waits until every sealed batch is merged.
+     */
+    public void flush() throws InterruptedException {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                while (stripe.sealing)
+                    stripe.wait();
+                if (stripe.current == null)
+                    continue;
+                stripe.sealing = true;
+            }
+            seal(stripe);
+        }
+        synchronized (pending) {
+            while (pending.get() != 0)
+                pending.wait();
+        }
+    }
+
+
+    /**
+     * Returns the handle to the live graph, or <tt>null</tt>, if nothing's been merged yet
+     * (and the instance was created without one).
+     */
+    public GraphHandle getHandle() {
+        return handle;
+    }
+
+
+    /**
+     * Returns the number of edges in the batches being accumulated.
+     */
+    public int getBufferedCount() {
+        int count = 0;
+        for (Stripe stripe : stripes)
+            count += stripe.buffered;
+        return count;
+    }
+
+
+    /**
+     * Returns the number of sealed batches waiting for a build thread.
+     */
+    public int getBuildQueueDepth() {
+        return awaitingBuild.get();
+    }
+
+
+    /**
+     * Returns the number of built batches waiting to be merged.
+     */
+    public int getMergeQueueDepth() {
+        return built.size();
+    }
+
+
+    /**
+     * Returns the number of batches sealed but not yet merged (queued, building, or merging).
+     */
+    public int getPendingBatches() {
+        return pending.get();
+    }
+
+
+    /**
+     * Returns the total time producers spent blocked on a full pipeline.
+     */
+    public double getBlockedMillis() {
+        return blockedNanos.get() / 1e6;
+    }
+
+
+    /**
+     * Returns the number of edge insertions merged (counting duplicates within a batch once).
+     */
+    public long getMergedCount() {
+        return mergedEdges.get();
+    }
+
+
+    /**
+     * Returns the number of merges into the live graph.
+     */
+    public long getMergeCount() {
+        return merges.get();
+    }
+
+
+    /**
+     * Time from a batch's first edge until it's sealed.
+     */
+    public Latency getAccumulateLatency() {
+        return accumulateLatency;
+    }
+
+
+    /**
+     * Time from a batch's sealing until a build thread picks it up.
+     */
+    public Latency getBuildWaitLatency() {
+        return buildWaitLatency;
+    }
+
+
+    public Latency getBuildLatency() {
+        return buildLatency;
+    }
+
+
+    /**
+     * Time from a batch's build until its merge is published (including time spent waiting
+     * for the merge thread).
+     */
+    public Latency getMergeLatency() {
+        return mergeLatency;
+    }
+
+
+    /**
+     * Time from a batch's first edge until its merge is published: the staleness of
+     * the live graph.
+     */
+    public Latency getEndToEndLatency() {
+        return endToEndLatency;
+    }
+
+
+    /**
+     * Returns the last build or merge failure, or <tt>null</tt>, if there's none. The
+     * failed batches' edges are dropped.
+     */
+    public RuntimeException getLastError() {
+        return lastError;
+    }
+
+
+    /**
+     * Flushes the pipeline, and stops its threads. Idempotent.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        timer.shutdown();
+        try {
+            flush();
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        } finally {
+            builders.shutdown();
+            merger.shutdown();
+        }
+    }
+}
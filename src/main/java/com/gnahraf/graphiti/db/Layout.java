@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.util.datatypes.Primitives;
+import com.gnahraf.util.datatypes.Primitives.Sizeof;
+import com.gnahraf.util.mem.Buff;
+
+import static com.gnahraf.util.datatypes.Primitives.unsign;
+import static com.gnahraf.util.datatypes.Primitives.unsignedShort;
+
+/**
+ * Row layout of a graph's tables. The layout determines the widths of the row pointer
+ * and count columns that link the tables together, and the width of node IDs.
+ * <p/>
+ * The {@linkplain #NARROW} layout is the compact default. It uses 3-byte row pointers
+ * and 2-byte edge type (and node type) counts, capping the number of rows in the
+ * {@linkplain EdgeTable} and {@linkplain NodeTypeTable} at 16M and the number of edge types
+ * per node at 64k. The {@linkplain #WIDE} layout uses 4-byte pointers and counts throughout.
+ * <p/>
+ * Independently, node IDs are either 3 bytes wide (the default, capping IDs at 16,777,215)
+ * or 4 bytes wide (up to {@linkplain Integer#MAX_VALUE}). Node IDs are never negative.
+ * <p/>
+ * Graphs are laid out wide only when their sizes (or node IDs) require it.
+ *
+ * @see #forSizes(int, int, int, int, int)
+ * @see #forMaxNodeId(int)
+ */
+public final class Layout {
+
+    public final static Layout NARROW = new Layout(false, Sizeof.TRYTE);
+
+    public final static Layout WIDE = new Layout(true, Sizeof.TRYTE);
+
+    private final static Layout NARROW_ID32 = new Layout(false, Sizeof.INT);
+
+    private final static Layout WIDE_ID32 = new Layout(true, Sizeof.INT);
+
+    /**
+     * All the layouts.
+     */
+    final static Layout[] LAYOUTS = { NARROW, NARROW_ID32, WIDE, WIDE_ID32 };
+
+
+
+    /**
+     * Returns the layout with the given attributes.
+     *
+     * @param wide      if <tt>true</tt>, then row pointers and counts are 4 bytes wide
+     * @param idWidth   the byte width of node IDs: 3 or 4
+     */
+    public static Layout of(boolean wide, int idWidth) {
+        switch (idWidth) {
+        case Sizeof.TRYTE:
+            return wide ? WIDE : NARROW;
+        case Sizeof.INT:
+            return wide ? WIDE_ID32 : NARROW_ID32;
+        default:
+            throw new IllegalArgumentException("idWidth " + idWidth);
+        }
+    }
+
+
+
+    /**
+     * Returns the narrowest layout that can represent a graph of the given dimensions.
+     *
+     * @param edgeRows           number of rows in the {@linkplain EdgeTable}
+     * @param nodeTypeRows       number of rows in the {@linkplain NodeTypeTable}
+     * @param maxEdgeRowCount    max number of edge types per node (in either direction)
+     * @param maxNodeTypeCount   max number of node types per edge type
+     * @param maxNodeIdCount     max number of node IDs per node type
+     */
+    public static Layout forSizes(
+            int edgeRows, int nodeTypeRows,
+            int maxEdgeRowCount, int maxNodeTypeCount, int maxNodeIdCount) {
+
+        boolean narrow =
+                edgeRows <= Primitives.MAX_TRYTE &&
+                nodeTypeRows <= Primitives.MAX_TRYTE &&
+                maxEdgeRowCount <= Primitives.MAX_USHORT &&
+                maxNodeTypeCount <= Primitives.MAX_USHORT &&
+                maxNodeIdCount <= Primitives.MAX_TRYTE;
+        return narrow ? NARROW : WIDE;
+    }
+
+
+    /**
+     * Returns the narrowest layout whose node IDs can represent the given ID.
+     */
+    public static Layout forMaxNodeId(int maxNodeId) {
+        return maxNodeId <= Primitives.MAX_TRYTE ? NARROW : NARROW_ID32;
+    }
+
+
+    /**
+     * Returns the narrowest layout that is at least as wide as both the given layouts.
+     */
+    public static Layout widest(Layout a, Layout b) {
+        return of(a.wide || b.wide, Math.max(a.idWidth, b.idWidth));
+    }
+
+
+
+    private final boolean wide;
+
+    /**
+     * Width of node IDs in the {@linkplain AddressTable} and {@linkplain NodeIdTable}.
+     */
+    final int idWidth;
+
+    /**
+     * Width of {@linkplain AddressTable} <tt>E.IDX</tt> and {@linkplain EdgeTable} node type
+     * row pointers.
+     */
+    final int rowPtrWidth;
+
+    /**
+     * Width of {@linkplain AddressTable} <tt>E.COUNT</tt> and {@linkplain EdgeTable} node type
+     * counts.
+     */
+    final int typeCountWidth;
+
+    /**
+     * Width of {@linkplain NodeTypeTable} node ID counts.
+     */
+    final int idCountWidth;
+
+
+    private Layout(boolean wide, int idWidth) {
+        this.wide = wide;
+        this.idWidth = idWidth;
+        this.rowPtrWidth = wide ? Sizeof.INT : Sizeof.TRYTE;
+        this.typeCountWidth = wide ? Sizeof.INT : Sizeof.SHORT;
+        this.idCountWidth = wide ? Sizeof.INT : Sizeof.TRYTE;
+    }
+
+
+    /**
+     * Determines whether row pointers and counts are 4 bytes wide.
+     */
+    public boolean isWide() {
+        return wide;
+    }
+
+
+    /**
+     * Returns the byte width of node IDs: 3 or 4.
+     */
+    public int getIdWidth() {
+        return idWidth;
+    }
+
+
+    public int addressRowSize() {
+        return Sizeof.SHORT + idWidth + 2 * (rowPtrWidth + typeCountWidth);
+    }
+
+
+    public int edgeRowSize() {
+        return Sizeof.SHORT + rowPtrWidth + typeCountWidth;
+    }
+
+
+    public int nodeTypeRowSize() {
+        return Sizeof.SHORT + Sizeof.INT + idCountWidth;
+    }
+
+
+    public int nodeIdRowSize() {
+        return idWidth;
+    }
+
+
+    @Override
+    public String toString() {
+        String name = wide ? "WIDE" : "NARROW";
+        return idWidth == Sizeof.TRYTE ? name : name + "/ID32";
+    }
+
+
+
+    /**
+     * Reads an unsigned column value of the given width.
+     */
+    static int get(Buff page, int offset, int width) {
+        switch (width) {
+        case Sizeof.SHORT:
+            return unsign(page.getShort(offset));
+        case Sizeof.TRYTE:
+            return page.getTryte(offset);
+        default:
+            return page.getInt(offset);
+        }
+    }
+
+
+    /**
+     * Writes an unsigned column value of the given width.
+     *
+     * @throws ArithmeticException if the value doesn't fit
+     */
+    static void put(Buff page, int value, int offset, int width) {
+        switch (width) {
+        case Sizeof.SHORT:
+            page.putShort(unsignedShort(value), offset);
+            break;
+        case Sizeof.TRYTE:
+            page.putTryte(value, offset);
+            break;
+        default:
+            if (value < 0)
+                throw new ArithmeticException("overflow: " + value);
+            page.putInt(value, offset);
+        }
+    }
+}
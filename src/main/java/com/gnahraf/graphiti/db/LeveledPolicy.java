@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+import java.util.List;
+
+/**
+ * Keeps the segments in levels of exponentially increasing size, oldest (and largest)
+ * first. Freshly flushed segments are at level 0; once there are <tt>l0Trigger</tt> of
+ * them, they're merged into level 1. Whenever a level <i>i</i> &ge; 1 outgrows its target
+ * size (<tt>baseBytes &times; fanout<sup>i-1</sup></tt>), it's merged into level
+ * <i>i</i>+1.
+ * <p/>
+ * Since a store's segments are not partitioned by key range, each level amounts to a
+ * single segment. So
+ * compared with the {@linkplain SizeTieredPolicy}, read fan-out is low and bounded
+ * (about one segment per level) at the cost of higher write amplification: every merge
+ * into a level rewrites it.
+ */
+public class LeveledPolicy implements CompactionPolicy {
+
+    public final static int DEFAULT_L0_TRIGGER = 4;
+    public final static long DEFAULT_BASE_BYTES = 8 * 1024 * 1024;
+    public final static int DEFAULT_FANOUT = 10;
+
+    private final int l0Trigger;
+    private final long baseBytes;
+    private final int fanout;
+
+
+    public LeveledPolicy() {
+        this(DEFAULT_L0_TRIGGER, DEFAULT_BASE_BYTES, DEFAULT_FANOUT);
+    }
+
+
+    /**
+     * @param l0Trigger the number of level 0 segments that triggers their merge into level 1
+     * @param baseBytes the target size of level 1
+     * @param fanout the size ratio of consecutive levels
+     */
+    public LeveledPolicy(int l0Trigger, long baseBytes, int fanout) {
+        if (l0Trigger < 1)
+            throw new IllegalArgumentException("l0Trigger " + l0Trigger);
+        if (baseBytes < 1)
+            throw new IllegalArgumentException("baseBytes " + baseBytes);
+        if (fanout < 2)
+            throw new IllegalArgumentException("fanout " + fanout);
+        this.l0Trigger = l0Trigger;
+        this.baseBytes = baseBytes;
+        this.fanout = fanout;
+    }
+
+
+    /**
+     * Returns the target size of the given level.
+     */
+    public long targetBytes(int level) {
+        long target = baseBytes;
+        for (int i = 1; i < level && target < Long.MAX_VALUE / fanout; ++i)
+            target *= fanout;
+        return target;
+    }
+
+
+    @Override
+    public Selection select(List<Segment> run) {
+        int end = run.size();
+        int l0 = levelStart(run, end, 0);
+        if (end - l0 >= l0Trigger)
+            return new Selection(levelStart(run, l0, 1), end, 1);
+
+        // the deeper levels, shallowest first
+        for (end = l0; end > 0; ) {
+            int level = run.get(end - 1).getLevel();
+            int start = levelStart(run, end, level);
+            long bytes = 0;
+            for (int index = start; index < end; ++index)
+                bytes += run.get(index).getByteSize();
+            if (bytes > targetBytes(level))
+                return new Selection(levelStart(run, start, level + 1), end, level + 1);
+            end = start;
+        }
+        return null;
+    }
+
+
+    /**
+     * Returns the index of the first of the segments at the given level ending at
+     * <tt>end</tt>.
+     */
+    private int levelStart(List<Segment> run, int end, int level) {
+        int start = end;
+        while (start > 0 && run.get(start - 1).getLevel() == level)
+            --start;
+        return start;
+    }
+}
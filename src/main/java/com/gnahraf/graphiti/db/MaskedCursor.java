@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.list.Lists;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A cursor over a graph with the edges of a tombstone graph hidden. Nodes left with
+ * no edges are hidden, too.
+ * <p/>
+ * Only nodes the tombstones touch pay for the masking: elsewhere, calls pass straight
+ * thru to the underlying cursor.
+ *
+ * @see Graph#asTombstones()
+ */
+class MaskedCursor extends Cursor {
+
+    private final Cursor data;
+    private final Cursor tombstones;
+    /**
+     * Whether the tombstones have edges at the current node.
+     */
+    private boolean masked;
+
+
+    MaskedCursor(Cursor data, Cursor tombstones) {
+        this.data = data;
+        this.tombstones = tombstones;
+
+        List<ShortInt> nodes = getQualifiedNodeIds();
+        if (!nodes.isEmpty()) {
+            ShortInt first = nodes.get(0);
+            moveTo(new NodeType(first.getType()), first.getId());
+        }
+    }
+
+
+    @Override
+    protected boolean loadVertex(NodeType nodeType, int nodeId) {
+        if (load(nodeType, nodeId))
+            return true;
+        // restore the current position
+        if (getNodeType() != null)
+            load(getNodeType(), getNodeId());
+        return false;
+    }
+
+
+    private boolean load(NodeType nodeType, int nodeId) {
+        if (!data.moveTo(nodeType, nodeId))
+            return false;
+        masked = tombstones.moveTo(nodeType, nodeId);
+        return !masked || getEdgeCount(false) + getEdgeCount(true) != 0;
+    }
+
+
+    @Override
+    public List<EdgeType> getEdgeTypes(boolean inbound) {
+        List<EdgeType> edgeTypes = data.getEdgeTypes(inbound);
+        if (!masked)
+            return edgeTypes;
+        List<EdgeType> visible = new ArrayList<>(edgeTypes.size());
+        for (EdgeType edgeType : edgeTypes) {
+            if (getEdgeCount(inbound, edgeType) != 0)
+                visible.add(edgeType);
+        }
+        return Collections.unmodifiableList(visible);
+    }
+
+
+    @Override
+    public int getEdgeCount(boolean inbound) {
+        if (!masked)
+            return data.getEdgeCount(inbound);
+        int count = 0;
+        for (EdgeType edgeType : data.getEdgeTypes(inbound))
+            count += getEdgeCount(inbound, edgeType);
+        return count;
+    }
+
+
+    @Override
+    public int getEdgeCount(boolean inbound, EdgeType edgeType) {
+        if (!masked)
+            return data.getEdgeCount(inbound, edgeType);
+        int count = 0;
+        for (NodeType nodeType : data.getNodeTypes(inbound, edgeType))
+            count += getEdgeCount(inbound, edgeType, nodeType);
+        return count;
+    }
+
+
+    @Override
+    public List<NodeType> getNodeTypes(boolean inbound, EdgeType edgeType) {
+        List<NodeType> nodeTypes = data.getNodeTypes(inbound, edgeType);
+        if (!masked)
+            return nodeTypes;
+        List<NodeType> visible = new ArrayList<>(nodeTypes.size());
+        for (NodeType nodeType : nodeTypes) {
+            if (getEdgeCount(inbound, edgeType, nodeType) != 0)
+                visible.add(nodeType);
+        }
+        return Collections.unmodifiableList(visible);
+    }
+
+
+    @Override
+    public int getEdgeCount(boolean inbound, EdgeType edgeType, NodeType nodeType) {
+        if (!masked)
+            return data.getEdgeCount(inbound, edgeType, nodeType);
+        return getNodeIds(inbound, edgeType, nodeType).size();
+    }
+
+
+    @Override
+    public List<Integer> getNodeIds(boolean inbound, EdgeType edgeType, NodeType nodeType) {
+        List<Integer> nodeIds = data.getNodeIds(inbound, edgeType, nodeType);
+        if (!masked || nodeIds.isEmpty())
+            return nodeIds;
+        return Lists.distinctDifference(
+                nodeIds, tombstones.getNodeIds(inbound, edgeType, nodeType));
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The returned list is computed on every invocation: nodes the tombstones touch are
+     * each checked for remaining edges.
+     */
+    @Override
+    public List<ShortInt> getQualifiedNodeIds() {
+        List<ShortInt> nodes = data.getQualifiedNodeIds();
+        List<ShortInt> touched = tombstones.getQualifiedNodeIds();
+        List<ShortInt> hidden = new ArrayList<>();
+        for (ShortInt node : touched) {
+            if (Collections.binarySearch(nodes, node) >= 0 &&
+                    !load(new NodeType(node.getType()), node.getId()))
+                hidden.add(node);
+        }
+        if (getNodeType() != null)
+            load(getNodeType(), getNodeId());
+        return Lists.distinctDifference(nodes, hidden);
+    }
+}
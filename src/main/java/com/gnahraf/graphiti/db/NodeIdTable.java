@@ -5,6 +5,8 @@
 package com.gnahraf.graphiti.db;
 
 import com.gnahraf.util.list.BaseList;
+import com.gnahraf.util.list.IntSlice;
+import com.gnahraf.util.mem.Allocator;
 import com.gnahraf.util.mem.Buff;
 import com.gnahraf.util.datatypes.Primitives;
 import com.gnahraf.util.datatypes.Pinterval;
@@ -14,37 +16,73 @@ import java.util.List;
 
 /**
  * Single-column table of 3-byte node IDs referenced from the {@linkplain NodeTypeTable}. The entries
- * here complete the specification of edges in our prefix encoded scheme.
+ * here complete the specification of edges in our prefix encoded scheme. (Node IDs are 4 bytes
+ * wide, if the {@linkplain Layout} calls for it.)
  */
 public class NodeIdTable extends Table {
 
+    /**
+     * Row size with (the default) 3-byte node IDs.
+     */
     public final static int ROW_SIZE = Primitives.Sizeof.TRYTE;
 
 
     private final List<Integer> ids;
 
+    private final Layout layout;
+    private final int idWidth;
+
 
     public NodeIdTable(int initCapacity) {
-        super(initCapacity);
+        this(initCapacity, Allocator.HEAP);
+    }
+
+    public NodeIdTable(int initCapacity, Allocator allocator) {
+        this(initCapacity, allocator, UNPAGED);
+    }
+
+    public NodeIdTable(int initCapacity, Allocator allocator, int pageShift) {
+        this(initCapacity, allocator, pageShift, Layout.NARROW);
+    }
+
+    public NodeIdTable(int initCapacity, Allocator allocator, int pageShift, Layout layout) {
+        super(layout.nodeIdRowSize(), initCapacity, allocator, pageShift);
+        this.layout = layout;
+        this.idWidth = layout.idWidth;
         this.ids = idsView();
     }
 
     public NodeIdTable(Buff data, int size) {
-        super(data, size);
+        this(Layout.NARROW, data, size);
+    }
+
+    public NodeIdTable(Layout layout, Buff data, int size) {
+        super(layout.nodeIdRowSize(), data, size);
+        this.layout = layout;
+        this.idWidth = layout.idWidth;
         this.ids = idsView();
     }
 
+    public NodeIdTable(Buff[] pages, int pageShift, int size) {
+        this(Layout.NARROW, pages, pageShift, size);
+    }
+
+    public NodeIdTable(Layout layout, Buff[] pages, int pageShift, int size) {
+        super(layout.nodeIdRowSize(), pages, pageShift, size);
+        this.layout = layout;
+        this.idWidth = layout.idWidth;
+        this.ids = idsView();
+    }
 
 
-    @Override
-    protected final int itemSize() {
-        return ROW_SIZE;
+    public Layout getLayout() {
+        return layout;
     }
 
 
     public int getNodeId(int index) {
         int offset = offset(index);
-        return data.getTryte(offset);
+        return Layout.get(page(index), offset, idWidth);
     }
 
 
@@ -54,6 +92,37 @@ public class NodeIdTable extends Table {
     }
 
 
+    /**
+     * Returns a primitive view of the <tt>count</tt> rows starting at the given <tt>row</tt>.
+     * Unlike a sublist of {@linkplain #asList()}, reading it doesn't box.
+     */
+    public IntSlice slice(final int row, final int count) {
+        if (row < 0 || count < 0 || row + count > size())
+            throw new IndexOutOfBoundsException(row + " + " + count + " (size " + size() + ")");
+        if (count == 0)
+            return IntSlice.EMPTY;
+        return new IntSlice() {
+            @Override
+            public int size() {
+                return count;
+            }
+            @Override
+            protected int getIntImpl(int index) {
+                return getNodeId(row + index);
+            }
+            @Override
+            public int copyTo(int[] dest, int offset) {
+                if (offset < 0 || offset + count > dest.length)
+                    throw new IndexOutOfBoundsException(
+                            "offset " + offset + " + size " + count + " (length " + dest.length + ")");
+                for (int index = row, end = row + count; index < end; ++index)
+                    dest[offset++] = Layout.get(page(index), offset(index), idWidth);
+                return offset;
+            }
+        };
+    }
+
+
     private List<Integer> idsView() {
         return new BaseList<Integer>() {
             @Override
@@ -74,11 +143,63 @@ public class NodeIdTable extends Table {
         ensureAvailable();
 
         int offset = offset(index);
-        data.putTryte(nodeId, offset);
+        Layout.put(page(index), nodeId, offset, idWidth);
         incrSize();
     }
 
 
+    /**
+     * Overwrites the row at the given index. Rows in distinct indices may be set
+     * concurrently.
+     *
+     * @see #presize(int)
+     */
+    void setEntry(int index, int nodeId) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException(index + " (size " + size() + ")");
+        Layout.put(page(index), nodeId, offset(index), idWidth);
+    }
+
+
+    /**
+     * Overwrites the rows starting at the given index with those of the <tt>other</tt>
+     * table (which must have the same layout). Distinct runs of rows may be set concurrently.
+     *
+     * @see #presize(int)
+     */
+    void setEntries(int index, NodeIdTable other) {
+        if (index < 0 || index + other.size() > size())
+            throw new IndexOutOfBoundsException(
+                    index + " + " + other.size() + " (size " + size() + ")");
+        copyFrom(other, new Pinterval(0, other.size()), index);
+    }
+
+
+    /**
+     * Sets the number of rows in the table, so that they may be filled in out of sequence
+     * using {@linkplain #setEntry(int, int) setEntry}.
+     */
+    void presize(int size) {
+        setSize(size);
+    }
+
+
+    /**
+     * Appends the <tt>other</tt> table's rows in the range [<tt>from</tt>, <tt>to</tt>).
+     * The rows are copied in bulk if the tables have the same layout.
+     */
+    void appendRun(NodeIdTable other, int from, int to) {
+        int index = size();
+        if (other.layout == layout)
+            copyFrom(other, new Pinterval(from, to), index);
+        else {
+            setSize(index + to - from);
+            for (int i = from; i < to; ++i, ++index)
+                Layout.put(page(index), other.getNodeId(i), offset(index), idWidth);
+        }
+    }
+
+
     public void appendEntries(NodeIdTable other, int row, int count) {
         Pinterval rows = new Pinterval(row, row + count + 1);
         copyFrom(other, rows, size());
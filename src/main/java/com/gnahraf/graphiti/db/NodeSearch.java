@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.util.datatypes.ShortInt;
+
+/**
+ * Node lookup strategy for an {@linkplain AddressTable}. Every strategy finds the row of a
+ * {@linkplain ShortInt#pack(short, int) packed} qualified node ID by comparing the table's
+ * raw key columns; they differ in the order (and number) of rows probed, and so in their
+ * use of the cache.
+ *
+ * @see Graph#setNodeSearch(Kind)
+ */
+public abstract class NodeSearch {
+
+    /**
+     * Node search strategies.
+     */
+    public enum Kind {
+        /**
+         * Classic binary search. No extra memory. The default.
+         */
+        BINARY,
+        /**
+         * Binary search whose loop body has no data dependent branch: each step halves the
+         * range with a conditional move, so there are no branch mispredictions (half the
+         * probes, in a classic binary search). Pays off when the table fits in cache; on
+         * larger tables, it loses the loads a mispredicted branch would have started early.
+         * No extra memory.
+         */
+        BRANCHLESS,
+        /**
+         * A sampled key index (every {@linkplain NodeSearch#SAMPLE_RATE 16th} key) laid out
+         * in Eytzinger (breadth first) order, so the first levels of every search share the
+         * same few cache lines. The search then finishes in a short run of table rows.
+         * Costs 12 bytes per sample, built when the strategy is selected.
+         */
+        EYTZINGER,
+        /**
+         * Interpolation search, falling back to branchless search once the range is small
+         * (or if interpolation isn't converging). Takes a probe or 2 when IDs are dense; on
+         * skewed distributions, each poor guess is followed by a bisection, so it's at worst
+         * about twice as slow as binary search. No extra memory.
+         */
+        INTERPOLATION
+    }
+
+
+    /**
+     * One in this many keys is sampled into the {@linkplain Kind#EYTZINGER Eytzinger} index.
+     */
+    public final static int SAMPLE_RATE = 16;
+
+    /**
+     * Interpolation gives up after this many probes.
+     */
+    private final static int MAX_INTERPOLATIONS = 8;
+
+    /**
+     * Interpolation hands off to branchless search at this range length.
+     */
+    private final static int MIN_INTERPOLATION_RANGE = 32;
+
+
+    /**
+     * Creates a search of the given kind over the given table. The table should not be
+     * appended to afterward: a search that indexes it is only good for the rows the table
+     * had when it was created (and falls back to binary search, if the table grows).
+     */
+    static NodeSearch newSearch(Kind kind, AddressTable table) {
+        switch (kind) {
+        case BINARY:
+            return new Binary(table);
+        case BRANCHLESS:
+            return new Branchless(table);
+        case EYTZINGER:
+            return new Eytzinger(table);
+        case INTERPOLATION:
+            return new Interpolation(table);
+        default:
+            throw new IllegalArgumentException("kind " + kind);
+        }
+    }
+
+
+
+
+    final AddressTable table;
+
+    private NodeSearch(AddressTable table) {
+        this.table = table;
+    }
+
+
+    /**
+     * Returns this strategy's kind.
+     */
+    public abstract Kind getKind();
+
+
+    /**
+     * Returns the index of the first row whose key is not less than the given
+     * {@linkplain ShortInt#pack(short, int) packed} key, or the table size, if there is none.
+     */
+    final int lowerBound(long key) {
+        return lowerBound(key, 0, table.size());
+    }
+
+
+    /**
+     * Returns the lower bound of the given key, which is known to be in the row range
+     * [<tt>from</tt>, <tt>to</tt>].
+     */
+    abstract int lowerBound(long key, int from, int to);
+
+
+    /**
+     * Returns the row index of the given {@linkplain ShortInt#pack(short, int) packed} key,
+     * if found; <tt>-(insertion point) - 1</tt>, otherwise.
+     */
+    int indexOf(long key) {
+        return indexOf(key, 0, table.size());
+    }
+
+
+    /**
+     * Returns the row index of the given key, searching only the row range
+     * [<tt>from</tt>, <tt>to</tt>) (which the caller knows covers the key).
+     *
+     * @see NodeTypeDirectory
+     */
+    int indexOf(long key, int from, int to) {
+        int index = lowerBound(key, from, to);
+        if (index < to && table.getPackedNodeId(index) == key)
+            return index;
+        return -(index + 1);
+    }
+
+
+    /**
+     * Classic binary search for the lower bound in the row range [<tt>from</tt>, <tt>to</tt>).
+     */
+    static int binaryLowerBound(AddressTable table, int from, int to, long key) {
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (table.getPackedNodeId(mid) < key)
+                from = mid + 1;
+            else
+                to = mid;
+        }
+        return from;
+    }
+
+
+    /**
+     * Branchless binary search for the lower bound in the row range [<tt>from</tt>,
+     * <tt>to</tt>).
+     */
+    static int branchlessLowerBound(AddressTable table, int from, int to, long key) {
+        int length = to - from;
+        if (length == 0)
+            return from;
+        int base = from;
+        while (length > 1) {
+            int half = length >>> 1;
+            base = table.getPackedNodeId(base + half) < key ? base + half : base;
+            length -= half;
+        }
+        return table.getPackedNodeId(base) < key ? base + 1 : base;
+    }
+
+
+
+
+    private static class Binary extends NodeSearch {
+
+        Binary(AddressTable table) {
+            super(table);
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.BINARY;
+        }
+
+        @Override
+        int lowerBound(long key, int from, int to) {
+            return binaryLowerBound(table, from, to, key);
+        }
+    }
+
+
+    private static class Branchless extends NodeSearch {
+
+        Branchless(AddressTable table) {
+            super(table);
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.BRANCHLESS;
+        }
+
+        @Override
+        int lowerBound(long key, int from, int to) {
+            return branchlessLowerBound(table, from, to, key);
+        }
+    }
+
+
+    private static class Interpolation extends NodeSearch {
+
+        Interpolation(AddressTable table) {
+            super(table);
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.INTERPOLATION;
+        }
+
+        @Override
+        int lowerBound(long key, int from, int to) {
+            // invariant: the lower bound is in [lo, hi]
+            int lo = from;
+            int hi = to;
+            for (int probes = 0; hi - lo > MIN_INTERPOLATION_RANGE && probes < MAX_INTERPOLATIONS; ++probes) {
+                long loKey = table.getPackedNodeId(lo);
+                if (key <= loKey)
+                    return lo;
+                long hiKey = table.getPackedNodeId(hi - 1);
+                if (key > hiKey)
+                    return hi;
+                // loKey < key <= hiKey, so the lower bound is in [lo + 1, hi - 1]
+                double fraction = ((double) (key - loKey)) / (hiKey - loKey);
+                int probe = Math.min(lo + (int) (fraction * (hi - 1 - lo)), hi - 1);
+                int range = hi - lo;
+                if (table.getPackedNodeId(probe) < key)
+                    lo = probe + 1;
+                else
+                    hi = probe;
+                // if the guess didn't halve the range (skewed keys), bisect once, so we
+                // never do much worse than binary search
+                if (2 * (hi - lo) > range && hi > lo) {
+                    int mid = (lo + hi) >>> 1;
+                    if (table.getPackedNodeId(mid) < key)
+                        lo = mid + 1;
+                    else
+                        hi = mid;
+                }
+            }
+            return branchlessLowerBound(table, lo, hi, key);
+        }
+    }
+
+
+    private static class Eytzinger extends NodeSearch {
+
+        private final int size;
+        /**
+         * Sampled keys in Eytzinger order, 1-based (slot zero is unused).
+         */
+        private final long[] keys;
+        /**
+         * The sample number (in sorted order) of each slot in <tt>keys</tt>.
+         */
+        private final int[] ranks;
+        private int nextRank;
+
+        Eytzinger(AddressTable table) {
+            super(table);
+            this.size = table.size();
+            int samples = (size + SAMPLE_RATE - 1) / SAMPLE_RATE;
+            this.keys = new long[samples + 1];
+            this.ranks = new int[samples + 1];
+            fill(1);
+        }
+
+        /**
+         * Fills the subtree at the given slot with the next samples, in order.
+         */
+        private void fill(int slot) {
+            if (slot >= keys.length)
+                return;
+            fill(2 * slot);
+            ranks[slot] = nextRank;
+            keys[slot] = table.getPackedNodeId(nextRank * SAMPLE_RATE);
+            ++nextRank;
+            fill(2 * slot + 1);
+        }
+
+        @Override
+        public Kind getKind() {
+            return Kind.EYTZINGER;
+        }
+
+        @Override
+        int lowerBound(long key, int from, int to) {
+            // the index covers the whole table, so it only helps over long ranges
+            if (to - from <= SAMPLE_RATE * SAMPLE_RATE)
+                return branchlessLowerBound(table, from, to, key);
+            if (table.size() != size)
+                return binaryLowerBound(table, from, to, key);
+
+            int samples = keys.length - 1;
+            int slot = 1;
+            while (slot <= samples)
+                slot = 2 * slot + (keys[slot] < key ? 1 : 0);
+            // undo the trailing right turns (and the last left turn), leaving the slot of
+            // the first sample not less than the key (or zero, if there's none)
+            slot >>>= Integer.numberOfTrailingZeros(~slot) + 1;
+
+            int rank = slot == 0 ? samples : ranks[slot];
+            if (rank == 0)
+                return 0;
+            // key(sample[rank - 1]) < key <= key(sample[rank])
+            return branchlessLowerBound(
+                    table, (rank - 1) * SAMPLE_RATE + 1, Math.min(rank * SAMPLE_RATE, size), key);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.list.IntSlice;
+
+import java.util.Arrays;
+
+/**
+ * Per node type directory of an {@linkplain AddressTable}: each node type's row range, and
+ * how its IDs are distributed in that range. Since rows are sorted by <tt>(type, id)</tt>,
+ * a type whose IDs are contiguous maps an ID to its row with a subtraction; a type whose
+ * IDs are nearly contiguous maps it with a rank over an ID bitmap. Only the remaining
+ * (sparse) types are searched, and then only over their own rows.
+ * <p/>
+ * The directory itself is built with a binary search per type, without reading every row.
+ * The bitmaps (which do) are built on first use. A directory is good only for the rows
+ * the table had when the directory was built.
+ */
+final class NodeTypeDirectory {
+
+    /**
+     * A type whose IDs span up to this many times its node count gets an ID bitmap.
+     * The bitmap costs about 1.5 bits per ID in the span.
+     */
+    final static int MAX_BITMAP_SPAN_RATIO = 4;
+
+
+    /**
+     * Builds and returns a directory of the given (sorted) table's current rows.
+     */
+    static NodeTypeDirectory build(AddressTable table) {
+        int size = table.size();
+        short[] types = new short[16];
+        int[] rows = new int[17];
+        int count = 0;
+        for (int row = 0; row < size; ++count) {
+            if (count == types.length) {
+                types = Arrays.copyOf(types, 2 * count);
+                rows = Arrays.copyOf(rows, 2 * count + 1);
+            }
+            short type = table.getNodeType(row);
+            types[count] = type;
+            rows[count] = row;
+            // the first row past this type's (pack(type, MAX) + 1 == pack(type + 1, MIN))
+            row = NodeSearch.binaryLowerBound(
+                    table, row + 1, size, ShortInt.pack(type, Integer.MAX_VALUE) + 1);
+        }
+        rows[count] = size;
+        return new NodeTypeDirectory(
+                table, Arrays.copyOf(types, count), Arrays.copyOf(rows, count + 1));
+    }
+
+
+
+
+    private final AddressTable table;
+    private final int size;
+    /**
+     * The node types, in order.
+     */
+    private final short[] types;
+    /**
+     * The first row of each type, plus the table size.
+     */
+    private final int[] rows;
+    /**
+     * The first ID of each type.
+     */
+    private final int[] firstIds;
+    /**
+     * The number of IDs from the first to the last of each type.
+     */
+    private final long[] spans;
+    /**
+     * Whether each type's IDs are contiguous.
+     */
+    private final boolean[] dense;
+    /**
+     * Whether each type's IDs are close enough to contiguous for a bitmap.
+     */
+    private final boolean[] bitmapped;
+    /**
+     * Lazily built ID bitmaps, for the bitmapped types.
+     */
+    private final IdBitmap[] bitmaps;
+
+
+    private NodeTypeDirectory(AddressTable table, short[] types, int[] rows) {
+        this.table = table;
+        this.size = rows[types.length];
+        this.types = types;
+        this.rows = rows;
+        this.firstIds = new int[types.length];
+        this.spans = new long[types.length];
+        this.dense = new boolean[types.length];
+        this.bitmapped = new boolean[types.length];
+        this.bitmaps = new IdBitmap[types.length];
+        for (int t = 0; t < types.length; ++t) {
+            int count = rows[t + 1] - rows[t];
+            firstIds[t] = table.getNodeId(rows[t]);
+            spans[t] = (long) table.getNodeId(rows[t + 1] - 1) - firstIds[t] + 1;
+            dense[t] = spans[t] == count;
+            bitmapped[t] = !dense[t] &&
+                    spans[t] <= (long) MAX_BITMAP_SPAN_RATIO * count &&
+                    spans[t] <= Integer.MAX_VALUE - Long.SIZE;
+        }
+    }
+
+
+    /**
+     * Returns the number of table rows this directory covers.
+     */
+    int size() {
+        return size;
+    }
+
+
+    /**
+     * Returns the number of node types.
+     */
+    int typeCount() {
+        return types.length;
+    }
+
+
+    /**
+     * Returns the node type with the given index, in order.
+     */
+    short getType(int t) {
+        return types[t];
+    }
+
+
+    /**
+     * Returns the index of the given node type, if present; <tt>-(insertion point) - 1</tt>,
+     * otherwise.
+     */
+    int typeIndex(short type) {
+        return Arrays.binarySearch(types, type);
+    }
+
+
+    /**
+     * Returns the number of nodes of the type with the given index.
+     */
+    int nodeCount(int t) {
+        return rows[t + 1] - rows[t];
+    }
+
+
+    /**
+     * Determines whether the IDs of the type with the given index are contiguous.
+     */
+    boolean isDense(int t) {
+        return dense[t];
+    }
+
+
+    /**
+     * Returns the row index of the given node, if found; <tt>-(insertion point) - 1</tt>,
+     * otherwise. Nodes of sparse types are looked up with the given <tt>search</tt>,
+     * narrowed to the type's rows.
+     */
+    int indexOf(short type, int nodeId, NodeSearch search) {
+        int t = typeIndex(type);
+        if (t < 0)
+            return -rows[-t - 1] - 1;
+        int from = rows[t];
+        int to = rows[t + 1];
+        long offset = (long) nodeId - firstIds[t];
+        if (offset < 0)
+            return -from - 1;
+        if (dense[t])
+            return offset < to - from ? from + (int) offset : -to - 1;
+        if (offset >= spans[t])
+            return -to - 1;
+        if (bitmapped[t])
+            return bitmap(t).indexOf((int) offset, from);
+        return search.indexOf(ShortInt.pack(type, nodeId), from, to);
+    }
+
+
+    /**
+     * Returns the (sorted) IDs of the type with the given index.
+     */
+    IntSlice getNodeIds(int t) {
+        final int from = rows[t];
+        final int count = rows[t + 1] - from;
+        if (dense[t]) {
+            final int firstId = firstIds[t];
+            return new IntSlice() {
+                @Override
+                public int size() {
+                    return count;
+                }
+                @Override
+                protected int getIntImpl(int index) {
+                    return firstId + index;
+                }
+                @Override
+                public int binarySearch(int key) {
+                    long offset = (long) key - firstId;
+                    if (offset < 0)
+                        return -1;
+                    return offset < count ? (int) offset : -count - 1;
+                }
+            };
+        }
+        return new IntSlice() {
+            @Override
+            public int size() {
+                return count;
+            }
+            @Override
+            protected int getIntImpl(int index) {
+                return table.getNodeId(from + index);
+            }
+        };
+    }
+
+
+    /**
+     * Returns the ID bitmap of the type with the given index, building it on first use.
+     * A racing thread may build the same bitmap again; it's immutable, so either is good.
+     */
+    private IdBitmap bitmap(int t) {
+        IdBitmap bitmap = bitmaps[t];
+        if (bitmap == null) {
+            bitmap = new IdBitmap(table, rows[t], rows[t + 1], firstIds[t], (int) spans[t]);
+            bitmaps[t] = bitmap;
+        }
+        return bitmap;
+    }
+
+
+
+
+    /**
+     * The IDs of a node type, one bit per ID in the type's span, with a running count of
+     * the set bits before each word (so that an ID's rank is its row offset).
+     */
+    private static class IdBitmap {
+
+        private final long[] words;
+        private final int[] ranks;
+
+        IdBitmap(AddressTable table, int from, int to, int firstId, int span) {
+            words = new long[(span + 63) >>> 6];
+            ranks = new int[words.length];
+            for (int row = from; row < to; ++row) {
+                int bit = table.getNodeId(row) - firstId;
+                words[bit >>> 6] |= 1L << bit;
+            }
+            for (int w = 1; w < words.length; ++w)
+                ranks[w] = ranks[w - 1] + Long.bitCount(words[w - 1]);
+        }
+
+        /**
+         * Returns the row of the given ID offset, given the type's first row, if present;
+         * <tt>-(insertion point) - 1</tt>, otherwise. The row is the first row plus the
+         * number of IDs in the bitmap less than the given one.
+         */
+        int indexOf(int bit, int firstRow) {
+            int w = bit >>> 6;
+            long word = words[w];
+            int row = firstRow + ranks[w] + Long.bitCount(word & ((1L << bit) - 1));
+            return (word & (1L << bit)) != 0 ? row : -row - 1;
+        }
+    }
+}
@@ -6,6 +6,8 @@ package com.gnahraf.graphiti.db;
 
 import com.gnahraf.graphiti.model.NodeType;
 import com.gnahraf.util.list.BaseList;
+import com.gnahraf.util.datatypes.Pinterval;
+import com.gnahraf.util.mem.Allocator;
 import com.gnahraf.util.mem.Buff;
 import com.gnahraf.util.datatypes.Primitives.Sizeof;
 import com.gnahraf.util.mem.Table;
@@ -18,63 +20,87 @@ import java.util.List;
  * 
  * <h4>Limits</h4>
  * 
- * Row numbers greater than 16,777,215 in the {@linkplain NodeIdTable} are not addressable
- * from here. This puts a silly, artificial cap on the number of edges on the entire graph.
- * Needs fixing.
- * 
- * <p/>
- * 
- * FIXME: Expand row size by 1 byte in order to allow specifying larger row numbers in
- * the {@linkplain NodeIdTable}. The maximum size of a Java byte array (2GB) will then be
- * the governing constraint on the number of possible edges in a graph. (Adding a byte here
- * shouldn't move the needle much on memory footprint.. should work out to way less than an
- * extra byte per edge.)
+ * Row numbers in the {@linkplain NodeIdTable} are 4 bytes wide. In the {@linkplain
+ * Layout#NARROW narrow} layout, the node ID count per row is capped at 16,777,215; in
+ * the {@linkplain Layout#WIDE wide} layout, it's a 4-byte int.
  */
 public class NodeTypeTable extends Table {
 
+    /**
+     * Row width in the {@linkplain Layout#NARROW narrow} layout.
+     */
     public final static int ROW_WIDTH = Sizeof.SHORT + Sizeof.INT + Sizeof.TRYTE;
 
 
     private final List<NodeType> nodeTypes;
 
+    private final Layout layout;
+    private final int countWidth;
 
 
     public NodeTypeTable(int initCapacity) {
-        super(initCapacity);
+        this(initCapacity, Allocator.HEAP);
+    }
+
+    public NodeTypeTable(int initCapacity, Allocator allocator) {
+        this(initCapacity, allocator, UNPAGED);
+    }
+
+    public NodeTypeTable(int initCapacity, Allocator allocator, int pageShift) {
+        this(initCapacity, allocator, pageShift, Layout.NARROW);
+    }
+
+    public NodeTypeTable(int initCapacity, Allocator allocator, int pageShift, Layout layout) {
+        super(layout.nodeTypeRowSize(), initCapacity, allocator, pageShift);
+        this.layout = layout;
+        this.countWidth = layout.idCountWidth;
         nodeTypes = getNodeTypeView();
     }
 
     public NodeTypeTable(Buff data, int size) {
-        super(data, size);
+        this(Layout.NARROW, data, size);
+    }
+
+    public NodeTypeTable(Layout layout, Buff data, int size) {
+        super(layout.nodeTypeRowSize(), data, size);
+        this.layout = layout;
+        this.countWidth = layout.idCountWidth;
         nodeTypes = getNodeTypeView();
     }
 
+    public NodeTypeTable(Buff[] pages, int pageShift, int size) {
+        this(Layout.NARROW, pages, pageShift, size);
+    }
 
+    public NodeTypeTable(Layout layout, Buff[] pages, int pageShift, int size) {
+        super(layout.nodeTypeRowSize(), pages, pageShift, size);
+        this.layout = layout;
+        this.countWidth = layout.idCountWidth;
+        nodeTypes = getNodeTypeView();
+    }
 
 
-    @Override
-    protected final int itemSize() {
-        return ROW_WIDTH;
+    public Layout getLayout() {
+        return layout;
     }
 
 
 
-
     public short getNodeType(int index) {
         int offset = offset(index);
-        return data.getShort(offset);
+        return page(index).getShort(offset);
     }
 
 
     public int getNodeIdRow(int index) {
         int offset = offset(index) + Sizeof.SHORT;
-        return data.getInt(offset);
+        return page(index).getInt(offset);
     }
 
 
     public int getNodeIdCount(int index) {
         int offset = offset(index) + Sizeof.SHORT + Sizeof.INT;
-        return data.getTryte(offset);
+        return Layout.get(page(index), offset, countWidth);
     }
 
 
@@ -87,7 +113,7 @@ public class NodeTypeTable extends Table {
         return new BaseList<NodeType>() {
             @Override
             protected NodeType getImpl(int location) {
-                return new NodeType( getNodeType(location) );
+                return NodeType.valueOf(getNodeType(location));
             }
             @Override
             public int size() {
@@ -110,15 +136,75 @@ public class NodeTypeTable extends Table {
     public void appendEntry(short nodeType, int nodeIdRow, int nodeIdCount) {
         int index = size();
         ensureAvailable();
+        putEntry(index, nodeType, nodeIdRow, nodeIdCount);
+        incrSize();
+    }
+
+
+    /**
+     * Overwrites the row at the given index. Rows in distinct indices may be set
+     * concurrently.
+     *
+     * @see #presize(int)
+     */
+    void setEntry(int index, short nodeType, int nodeIdRow, int nodeIdCount) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException(index + " (size " + size() + ")");
+        putEntry(index, nodeType, nodeIdRow, nodeIdCount);
+    }
+
+
+    /**
+     * Sets the number of rows in the table, so that they may be filled in out of sequence
+     * using {@linkplain #setEntry(int, short, int, int) setEntry}.
+     */
+    void presize(int size) {
+        setSize(size);
+    }
 
+
+    /**
+     * Appends the <tt>other</tt> table's rows in the range [<tt>from</tt>, <tt>to</tt>),
+     * adding <tt>nodeIdRowDelta</tt> to their node ID row pointers. The run's node ID rows
+     * must be contiguous, starting from <tt>nodeIdRow</tt> in the other table.
+     *
+     * @return the other table's node ID row following the run's
+     * @throws IllegalStateException if the run's node ID rows are not contiguous
+     * @see AddressTable#appendRun(AddressTable, int, int, int, int)
+     */
+    int appendRun(NodeTypeTable other, int from, int to, int nodeIdRow, int nodeIdRowDelta) {
+        int index = size();
+        if (other.layout == layout)
+            copyFrom(other, new Pinterval(from, to), index);
+        else {
+            setSize(index + to - from);
+            for (int i = from, j = index; i < to; ++i, ++j)
+                putEntry(j, other.getNodeType(i), other.getNodeIdRow(i), other.getNodeIdCount(i));
+        }
+
+        for (int end = size(); index < end; ++index) {
+            Buff page = page(index);
+            int offset = offset(index) + Sizeof.SHORT;
+            int row = page.getInt(offset);
+            if (row != nodeIdRow)
+                throw new IllegalStateException(
+                        "non-contiguous node ID rows at node type row " + index +
+                        ": expected " + nodeIdRow + "; actual " + row);
+            page.putInt(row + nodeIdRowDelta, offset);
+            nodeIdRow += Layout.get(page, offset + Sizeof.INT, countWidth);
+        }
+        return nodeIdRow;
+    }
+
+
+    private void putEntry(int index, short nodeType, int nodeIdRow, int nodeIdCount) {
+        Buff page = page(index);
         int offset = offset(index);
-        data.putShort(nodeType, offset);
+        page.putShort(nodeType, offset);
         offset += Sizeof.SHORT;
-        data.putInt(nodeIdRow, offset);
+        page.putInt(nodeIdRow, offset);
         offset += Sizeof.INT;
-        data.putTryte(nodeIdCount, offset);
-
-        incrSize();
+        Layout.put(page, nodeIdCount, offset, countWidth);
     }
 
 
@@ -137,7 +223,8 @@ public class NodeTypeTable extends Table {
             throw new IllegalArgumentException("negative amount: " + amount);
 
         int offset = offset(index) + Sizeof.SHORT + Sizeof.INT;
-        int count = data.getTryte(offset) + amount;
-        data.putTryte(count, offset);
+        Buff page = page(index);
+        int count = Layout.get(page, offset, countWidth) + amount;
+        Layout.put(page, count, offset, countWidth);
     }
 }
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Merges graphs in parallel. Since the inputs' {@linkplain AddressTable}s are sorted by
+ * source node, the node key space is split into ranges (by binary search on each input's
+ * address table), and each range is merged independently, by a
+ * {@linkplain GraphMerger}, into its own partial tables. The parts are then concatenated
+ * (also in parallel) into the output tables, with their row pointers rebased.
+ * <p/>
+ * The output is identical to that of the serial {@linkplain GraphMerger}.
+ */
+public class ParallelGraphMerger {
+
+    /**
+     * Ranges smaller than this (in nodes of the largest input) aren't worth the overhead.
+     */
+    private final static int MIN_RANGE_NODES = 1 << 10;
+
+    private final static int RANGES_PER_THREAD = 4;
+
+
+    /**
+     * Merges the given graphs on the common fork-join pool.
+     *
+     * @see #ParallelGraphMerger(List, Allocator, ForkJoinPool)
+     */
+    public static Graph merge(Graph... graphs) {
+        return new ParallelGraphMerger(
+                Arrays.asList(graphs), Allocator.HEAP, ForkJoinPool.commonPool()).merge();
+    }
+
+
+
+    private final List<Graph> graphs;
+    private final Allocator allocator;
+    private final ForkJoinPool pool;
+    private final int ranges;
+    private final boolean tombstonesOnly;
+
+
+    /**
+     * Creates an instance that merges the given graphs on the given <tt>pool</tt>,
+     * into tables allocated using the given <tt>allocator</tt>.
+     *
+     * @param graphs non-empty graphs (at least one)
+     */
+    public ParallelGraphMerger(List<Graph> graphs, Allocator allocator, ForkJoinPool pool) {
+        this(graphs, allocator, pool, pool.getParallelism() * RANGES_PER_THREAD);
+    }
+
+
+    /**
+     * Creates an instance that splits the merge into (up to) the given number of ranges.
+     */
+    public ParallelGraphMerger(
+            List<Graph> graphs, Allocator allocator, ForkJoinPool pool, int ranges) {
+        if (graphs.isEmpty())
+            throw new IllegalArgumentException("no graphs");
+        for (int index = 0; index < graphs.size(); ++index) {
+            if (graphs.get(index).isEmpty())
+                throw new IllegalArgumentException("empty graph at index " + index);
+        }
+        if (allocator == null)
+            throw new IllegalArgumentException("null allocator");
+        if (pool == null)
+            throw new IllegalArgumentException("null pool");
+        if (ranges < 1)
+            throw new IllegalArgumentException("ranges " + ranges);
+        this.graphs = new ArrayList<>(graphs);
+        this.allocator = allocator;
+        this.pool = pool;
+        this.ranges = ranges;
+        boolean tombstonesOnly = true;
+        for (Graph g : graphs)
+            tombstonesOnly &= g.isTombstones();
+        this.tombstonesOnly = tombstonesOnly;
+    }
+
+
+
+    public Graph merge() {
+        final Layout layout = GraphMerger.layout(graphs);
+        final int[][] bounds = split();
+        final int parts = bounds.length - 1;
+        if (parts == 1)
+            return new GraphMerger(graphs, allocator).merge();
+
+        // merge the ranges..
+        final Graph[] partials = new Graph[parts];
+        List<RecursiveAction> tasks = new ArrayList<>(parts);
+        for (int p = 0; p < parts; ++p) {
+            final int part = p;
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    partials[part] = mergeRange(bounds[part], bounds[part + 1], layout);
+                }
+            });
+        }
+        runAll(tasks);
+
+        // ..and concatenate them
+        int nodes = 0;
+        int edgeRows = 0;
+        int nodeTypeRows = 0;
+        int nodeIdRows = 0;
+        final int[][] bases = new int[parts][];
+        for (int p = 0; p < parts; ++p) {
+            bases[p] = new int[] { nodes, edgeRows, nodeTypeRows, nodeIdRows };
+            Graph partial = partials[p];
+            if (partial == null)
+                continue;
+            nodes += partial.addressTable.size();
+            edgeRows += partial.edgeTable.size();
+            nodeTypeRows += partial.nodeTypeTable.size();
+            nodeIdRows += partial.nodeIdTable.size();
+        }
+
+        // (every partial is empty, if the tombstones delete every edge)
+        final AddressTable addressTable =
+                new AddressTable(Math.max(1, nodes), allocator, Table.UNPAGED, layout);
+        final EdgeTable edgeTable =
+                new EdgeTable(Math.max(1, edgeRows), allocator, Table.UNPAGED, layout);
+        final NodeTypeTable nodeTypeTable =
+                new NodeTypeTable(Math.max(1, nodeTypeRows), allocator, Table.UNPAGED, layout);
+        final NodeIdTable nodeIdTable =
+                new NodeIdTable(Math.max(1, nodeIdRows), allocator, Table.UNPAGED, layout);
+        addressTable.presize(nodes);
+        edgeTable.presize(edgeRows);
+        nodeTypeTable.presize(nodeTypeRows);
+        nodeIdTable.presize(nodeIdRows);
+
+        tasks.clear();
+        for (int p = 0; p < parts; ++p) {
+            final int part = p;
+            if (partials[part] == null)
+                continue;
+            tasks.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    copyRebased(
+                            partials[part], bases[part],
+                            addressTable, edgeTable, nodeTypeTable, nodeIdTable);
+                    partials[part] = null;
+                }
+            });
+        }
+        runAll(tasks);
+
+        Graph merged = new Graph(addressTable, edgeTable, nodeTypeTable, nodeIdTable);
+        return tombstonesOnly ? merged.asTombstones() : merged;
+    }
+
+
+    /**
+     * Splits the inputs' address rows into ranges on common node boundaries. The boundary
+     * nodes are spaced evenly over the largest input. Returns the range bounds:
+     * range <em>r</em> of input <em>i</em> covers the address rows
+     * [<tt>bounds[r][i]</tt>, <tt>bounds[r + 1][i]</tt>).
+     */
+    private int[][] split() {
+        Graph largest = graphs.get(0);
+        for (Graph g : graphs) {
+            if (g.addressTable.size() > largest.addressTable.size())
+                largest = g;
+        }
+        int size = largest.addressTable.size();
+        int count = Math.max(1, Math.min(ranges, size / MIN_RANGE_NODES));
+
+        List<int[]> bounds = new ArrayList<>(count + 1);
+        bounds.add(new int[graphs.size()]);
+        for (int r = 1; r < count; ++r) {
+            int index = (int) ((long) r * size / count);
+            short nodeType = largest.addressTable.getNodeType(index);
+            int nodeId = largest.addressTable.getNodeId(index);
+            int[] bound = new int[graphs.size()];
+            for (int i = 0; i < bound.length; ++i) {
+                int row = graphs.get(i).addressTable.indexOf(nodeType, nodeId);
+                bound[i] = row < 0 ? -row - 1 : row;
+            }
+            bounds.add(bound);
+        }
+        int[] end = new int[graphs.size()];
+        for (int i = 0; i < end.length; ++i)
+            end[i] = graphs.get(i).addressTable.size();
+        bounds.add(end);
+        return bounds.toArray(new int[bounds.size()][]);
+    }
+
+
+    /**
+     * Merges the inputs' edges in the given range of address rows into partial (heap) tables.
+     * Returns <tt>null</tt>, if the range is empty (or holds only tombstones to apply).
+     */
+    private Graph mergeRange(int[] from, int[] to, Layout layout) {
+        List<MergeProgress> inputs = new ArrayList<>(graphs.size());
+        boolean rangeTombstonesOnly = true;
+        long[] sizes = new long[4];
+        for (int i = 0; i < from.length; ++i) {
+            if (from[i] == to[i])
+                continue;
+            Graph g = graphs.get(i);
+            inputs.add(new MergeProgress(g, from[i], to[i]));
+            rangeTombstonesOnly &= g.isTombstones();
+            // estimate the range's share of the other tables
+            double share = ((double) (to[i] - from[i])) / g.addressTable.size();
+            sizes[0] += to[i] - from[i];
+            sizes[1] += (long) (share * g.edgeTable.size()) + 1;
+            sizes[2] += (long) (share * g.nodeTypeTable.size()) + 1;
+            sizes[3] += (long) (share * g.nodeIdTable.size()) + 1;
+        }
+        // (tombstones, with nothing in range to delete, are dropped)
+        if (inputs.isEmpty() || rangeTombstonesOnly && !tombstonesOnly)
+            return null;
+        int[] capacities = new int[4];
+        for (int t = 0; t < 4; ++t)
+            capacities[t] = (int) Math.min(Integer.MAX_VALUE - 8, sizes[t]);
+        return new GraphMerger(inputs, layout, Allocator.HEAP, capacities).merge();
+    }
+
+
+    /**
+     * Copies the rows of the given partial graph into the given (presized) tables,
+     * starting at the given base rows (in table order), rebasing the row pointers as it goes.
+     */
+    static void copyRebased(
+            Graph partial, int[] bases,
+            AddressTable addressTable, EdgeTable edgeTable,
+            NodeTypeTable nodeTypeTable, NodeIdTable nodeIdTable) {
+
+        AddressTable addresses = partial.addressTable;
+        int edgeBase = bases[1];
+        for (int index = 0; index < addresses.size(); ++index) {
+            int outCount = addresses.getEdgeRowCount(false, index);
+            int inCount = addresses.getEdgeRowCount(true, index);
+            addressTable.setEntry(
+                    bases[0] + index,
+                    addresses.getNodeType(index), addresses.getNodeId(index),
+                    outCount == 0 ? 0 : addresses.getEdgeRow(false, index) + edgeBase, outCount,
+                    inCount == 0 ? 0 : addresses.getEdgeRow(true, index) + edgeBase, inCount);
+        }
+
+        EdgeTable edges = partial.edgeTable;
+        int nodeTypeBase = bases[2];
+        for (int index = 0; index < edges.size(); ++index) {
+            edgeTable.setEntry(
+                    edgeBase + index,
+                    edges.getEdgeType(index),
+                    edges.getNodeTypeRow(index) + nodeTypeBase,
+                    edges.getNodeTypeCount(index));
+        }
+
+        NodeTypeTable nodeTypes = partial.nodeTypeTable;
+        int nodeIdBase = bases[3];
+        for (int index = 0; index < nodeTypes.size(); ++index) {
+            nodeTypeTable.setEntry(
+                    nodeTypeBase + index,
+                    nodeTypes.getNodeType(index),
+                    nodeTypes.getNodeIdRow(index) + nodeIdBase,
+                    nodeTypes.getNodeIdCount(index));
+        }
+
+        nodeIdTable.setEntries(nodeIdBase, partial.nodeIdTable);
+    }
+
+
+    private void runAll(final List<RecursiveAction> tasks) {
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+}
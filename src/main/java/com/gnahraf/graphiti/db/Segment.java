@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+/**
+ * An immutable segment of a {@linkplain GraphStore}: the edges inserted and deleted over
+ * some stretch of time, along with what {@linkplain CompactionPolicy compaction policies}
+ * need to know about it.
+ * <p/>
+ * A segment may have both a graph of inserted edges, and a
+ * {@linkplain Graph#asTombstones() tombstone} graph of deleted ones. The tombstones
+ * delete edges in older segments only: the segment's own inserted edges are layered on
+ * top of them.
+ */
+public final class Segment {
+
+    private final Graph graph;
+    private final Graph tombstones;
+    private final int level;
+    private final long minTime;
+    private final long maxTime;
+
+
+    /**
+     * @param graph the inserted edges, or <tt>null</tt>, if there are none
+     * @param tombstones the deleted edges, or <tt>null</tt>, if there are none
+     * @param level the compaction level (0 for freshly flushed segments)
+     * @param minTime the flush time (in millis) of the oldest memtable merged into the segment
+     * @param maxTime the flush time of the newest
+     */
+    Segment(Graph graph, Graph tombstones, int level, long minTime, long maxTime) {
+        if (graph == null && tombstones == null)
+            throw new IllegalArgumentException("null graph and tombstones");
+        if (graph != null && (graph.isTombstones() || graph.isEmpty()))
+            throw new IllegalArgumentException("graph is tombstones or empty");
+        if (tombstones != null && (!tombstones.isTombstones() || tombstones.isEmpty()))
+            throw new IllegalArgumentException("tombstones not tombstones or empty");
+        if (level < 0)
+            throw new IllegalArgumentException("level " + level);
+        if (minTime > maxTime)
+            throw new IllegalArgumentException("minTime " + minTime + " > maxTime " + maxTime);
+        this.graph = graph;
+        this.tombstones = tombstones;
+        this.level = level;
+        this.minTime = minTime;
+        this.maxTime = maxTime;
+    }
+
+
+    /**
+     * Returns the inserted edges, or <tt>null</tt>, if there are none.
+     */
+    public Graph getGraph() {
+        return graph;
+    }
+
+
+    /**
+     * Returns the edges deleted from older segments, or <tt>null</tt>, if there are none.
+     */
+    public Graph getTombstones() {
+        return tombstones;
+    }
+
+
+    public boolean hasTombstones() {
+        return tombstones != null;
+    }
+
+
+    /**
+     * Returns the compaction level. Freshly flushed segments are at level 0. Only the
+     * {@linkplain LeveledPolicy} raises it.
+     */
+    public int getLevel() {
+        return level;
+    }
+
+
+    /**
+     * Returns the flush time (in millis) of the oldest memtable merged into this segment.
+     */
+    public long getMinTime() {
+        return minTime;
+    }
+
+
+    /**
+     * Returns the flush time (in millis) of the newest memtable merged into this segment.
+     */
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+
+    /**
+     * Returns the number of edge rows, inserted and deleted.
+     */
+    public int getEdgeCount() {
+        return
+                (graph == null ? 0 : graph.getEdgeCount()) +
+                (tombstones == null ? 0 : tombstones.getEdgeCount());
+    }
+
+
+    /**
+     * Returns the number of bytes used by the segment's tables (the size they'd be saved in).
+     */
+    public long getByteSize() {
+        return byteSize(graph) + byteSize(tombstones);
+    }
+
+
+    private static long byteSize(Graph g) {
+        return g == null ? 0 : g.getMemSize() - g.unusedMem();
+    }
+
+
+    @Override
+    public String toString() {
+        return
+                "[level=" + level + ", edges=" + getEdgeCount() + ", bytes=" + getByteSize() +
+                (hasTombstones() ? ", tombstones" : "") + "]";
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+import java.util.List;
+
+/**
+ * Merges runs of similarly sized segments. Starting from the newest segment, older
+ * segments are added to the run so long as each is no larger than <tt>sizeRatio</tt>
+ * times the combined size of the segments already in it. A run at least
+ * <tt>minWidth</tt> segments wide is merged. (If the newest segments don't make the cut,
+ * runs ending at older segments are tried.)
+ * <p/>
+ * Since adjacent segments are merged only when they're of comparable size, every edge
+ * is rewritten about <i>log</i>(<i>N</i>) times, where <i>N</i> is the number of memtable
+ * flushes: write amplification is low, at the cost of more segments (read fan-out) and
+ * transient space.
+ */
+public class SizeTieredPolicy implements CompactionPolicy {
+
+    public final static int DEFAULT_MIN_WIDTH = 4;
+    public final static int DEFAULT_MAX_WIDTH = 32;
+    public final static double DEFAULT_SIZE_RATIO = 1.0;
+
+    private final int minWidth;
+    private final int maxWidth;
+    private final double sizeRatio;
+
+
+    public SizeTieredPolicy() {
+        this(DEFAULT_MIN_WIDTH, DEFAULT_MAX_WIDTH, DEFAULT_SIZE_RATIO);
+    }
+
+
+    /**
+     * @param minWidth the minimum number of segments merged (&ge; 2)
+     * @param maxWidth the maximum number of segments merged
+     * @param sizeRatio the maximum size of the next older segment in a run, relative to
+     *        the combined size of the newer segments in the run
+     */
+    public SizeTieredPolicy(int minWidth, int maxWidth, double sizeRatio) {
+        if (minWidth < 2)
+            throw new IllegalArgumentException("minWidth " + minWidth);
+        if (maxWidth < minWidth)
+            throw new IllegalArgumentException("maxWidth " + maxWidth + " < minWidth " + minWidth);
+        if (!(sizeRatio > 0))
+            throw new IllegalArgumentException("sizeRatio " + sizeRatio);
+        this.minWidth = minWidth;
+        this.maxWidth = maxWidth;
+        this.sizeRatio = sizeRatio;
+    }
+
+
+    @Override
+    public Selection select(List<Segment> run) {
+        for (int end = run.size(); end >= minWidth; --end) {
+            int from = end - 1;
+            long size = run.get(from).getByteSize();
+            while (from > 0 && end - from < maxWidth &&
+                    run.get(from - 1).getByteSize() <= sizeRatio * size)
+                size += run.get(--from).getByteSize();
+            if (end - from >= minWidth)
+                return new Selection(from, end, 0);
+        }
+        return null;
+    }
+}
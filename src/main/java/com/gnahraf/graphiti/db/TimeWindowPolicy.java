@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+import java.util.List;
+
+/**
+ * Merges adjacent segments flushed in the same time window. Windows are fixed intervals
+ * of <tt>windowMillis</tt>, and a segment belongs to the window its last flush falls in.
+ * Closed windows are merged down to one segment; the open window (that of the run's
+ * newest segment) is merged once it has <tt>minWidth</tt> segments. Older windows are
+ * merged first.
+ * <p/>
+ * This suits time-series ingestion, where edges are mostly appended and the segments of
+ * old windows are rarely rewritten: each edge is rewritten about once, after its window
+ * closes. The number of segments grows with the number of windows.
+ */
+public class TimeWindowPolicy implements CompactionPolicy {
+
+    public final static int DEFAULT_MIN_WIDTH = 4;
+
+    private final long windowMillis;
+    private final int minWidth;
+
+
+    public TimeWindowPolicy(long windowMillis) {
+        this(windowMillis, DEFAULT_MIN_WIDTH);
+    }
+
+
+    /**
+     * @param windowMillis the window length in millis
+     * @param minWidth the minimum number of segments merged in the open window (&ge; 2)
+     */
+    public TimeWindowPolicy(long windowMillis, int minWidth) {
+        if (windowMillis < 1)
+            throw new IllegalArgumentException("windowMillis " + windowMillis);
+        if (minWidth < 2)
+            throw new IllegalArgumentException("minWidth " + minWidth);
+        this.windowMillis = windowMillis;
+        this.minWidth = minWidth;
+    }
+
+
+    /**
+     * Returns the window the given segment belongs to.
+     */
+    public long window(Segment segment) {
+        return segment.getMaxTime() / windowMillis;
+    }
+
+
+    @Override
+    public Selection select(List<Segment> run) {
+        if (run.isEmpty())
+            return null;
+        long openWindow = window(run.get(run.size() - 1));
+        for (int from = 0; from < run.size(); ) {
+            long window = window(run.get(from));
+            int to = from + 1;
+            while (to < run.size() && window(run.get(to)) == window)
+                ++to;
+            int width = to - from;
+            if (width >= (window == openWindow ? minWidth : 2))
+                return new Selection(from, to, 0);
+            from = to;
+        }
+        return null;
+    }
+}
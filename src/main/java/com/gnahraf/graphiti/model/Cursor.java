@@ -6,6 +6,8 @@ package com.gnahraf.graphiti.model;
 
 
 import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.list.IntSlice;
+import com.gnahraf.util.list.LongSlice;
 
 import java.util.List;
 
@@ -47,6 +49,19 @@ public abstract class Cursor {
     }
 
 
+    /**
+     * Positions the cursor to the node with the given {@linkplain ShortInt#pack(short, int)
+     * packed} coordinates.
+     *
+     * @return <tt>true</tt>, if the specified coordinate exists in this graph
+     */
+    public boolean moveTo(long qualifiedNodeId) {
+        return moveTo(
+                NodeType.valueOf(ShortInt.packedType(qualifiedNodeId)),
+                ShortInt.packedId(qualifiedNodeId));
+    }
+
+
     protected abstract boolean loadVertex(NodeType nodeType, int nodeId);
 
 
@@ -100,11 +115,44 @@ public abstract class Cursor {
     public abstract List<Integer> getNodeIds(boolean inbound, EdgeType edgeType, NodeType nodeType);
 
 
+    /**
+     * Returns the same node IDs as {@linkplain #getNodeIds(boolean, EdgeType, NodeType)},
+     * as a primitive slice. Neighbor scans should prefer this, since reading it doesn't
+     * box. The base implementation merely wraps the boxed list; subclasses backed by
+     * tables override it.
+     */
+    public IntSlice getNodeIdSlice(boolean inbound, EdgeType edgeType, NodeType nodeType) {
+        return IntSlice.wrap(getNodeIds(inbound, edgeType, nodeType));
+    }
+
+
     /**
      * Returns a sorted list of qualified node IDs known to the graph.
      */
     public abstract List<ShortInt> getQualifiedNodeIds();
 
+    /**
+     * Returns the same node IDs as {@linkplain #getQualifiedNodeIds()}, {@linkplain
+     * ShortInt#pack(short, int) packed}. Since packing preserves order, the slice is sorted.
+     * The base implementation packs the boxed list's elements on access.
+     */
+    public LongSlice getQualifiedNodeIdsPacked() {
+        final List<ShortInt> nodes = getQualifiedNodeIds();
+        if (nodes.isEmpty())
+            return LongSlice.EMPTY;
+        return new LongSlice() {
+            @Override
+            public int size() {
+                return nodes.size();
+            }
+            @Override
+            protected long getLongImpl(int index) {
+                return nodes.get(index).pack();
+            }
+        };
+    }
+
+
     public boolean isEmpty() {
         return getQualifiedNodeIds().size() < 2;
     }
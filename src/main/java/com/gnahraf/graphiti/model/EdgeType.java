@@ -19,6 +19,30 @@ import com.gnahraf.util.datatypes.ShortId;
  */
 public final class EdgeType extends ShortId implements Comparable<EdgeType> {
 
+    /**
+     * Interned instances, in blocks of 256, indexed by the unsigned value of the type ID.
+     * Blocks are created on demand. (Racing threads may create duplicate instances;
+     * that's harmless, since instances are immutable and compare by value.)
+     */
+    private final static EdgeType[][] CACHE = new EdgeType[256][];
+
+
+    /**
+     * Returns the interned instance with the given type ID. Unlike the constructor, this
+     * doesn't allocate (except the first time a block of 256 IDs is touched).
+     */
+    public static EdgeType valueOf(short typeId) {
+        int unsigned = typeId & 0xffff;
+        EdgeType[] block = CACHE[unsigned >>> 8];
+        if (block == null)
+            CACHE[unsigned >>> 8] = block = new EdgeType[256];
+        EdgeType type = block[unsigned & 0xff];
+        if (type == null)
+            block[unsigned & 0xff] = type = new EdgeType(typeId);
+        return type;
+    }
+
+
     public EdgeType(int typeId) {
         super(typeId);
     }
@@ -12,6 +12,28 @@ import com.gnahraf.util.datatypes.ShortId;
  */
 public final class NodeType extends ShortId implements Comparable<NodeType> {
 
+    /**
+     * Interned instances, in lazily created blocks of 256. (Same scheme as
+     * {@linkplain EdgeType}'s.)
+     */
+    private final static NodeType[][] CACHE = new NodeType[256][];
+
+
+    /**
+     * Returns the interned instance with the given type ID.
+     */
+    public static NodeType valueOf(short typeId) {
+        int unsigned = typeId & 0xffff;
+        NodeType[] block = CACHE[unsigned >>> 8];
+        if (block == null)
+            CACHE[unsigned >>> 8] = block = new NodeType[256];
+        NodeType type = block[unsigned & 0xff];
+        if (type == null)
+            block[unsigned & 0xff] = type = new NodeType(typeId);
+        return type;
+    }
+
+
     public NodeType(int typeId) {
         super(typeId);
     }
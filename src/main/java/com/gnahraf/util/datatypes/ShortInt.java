@@ -5,10 +5,48 @@
 package com.gnahraf.util.datatypes;
 
 /**
+ * A <tt>(type, id)</tt> pair, ordered by type first, then ID.
+ *
+ * <h3>Packed Form</h3>
+ *
+ * A pair also {@linkplain #pack(short, int) packs} into a single <tt>long</tt>: the type in
+ * the high 32 bits (sign extended), the ID in the low 32 bits with its sign bit flipped.
+ * The signed order of packed values is exactly the order of the pairs they encode, so
+ * hot loops can sort, search and compare qualified node IDs as primitive <tt>long</tt>s.
+ * <p/>
  * Created by babak on 6/15/15.
  */
 public final class ShortInt extends ShortIntId implements Comparable<ShortInt> {
 
+    /**
+     * Packs the given pair into a <tt>long</tt> whose signed order is that of the pairs.
+     */
+    public static long pack(short type, int id) {
+        return ((long) type << 32) | ((id ^ Integer.MIN_VALUE) & 0xffffffffL);
+    }
+
+    /**
+     * Returns the type of the given {@linkplain #pack(short, int) packed} pair.
+     */
+    public static short packedType(long packed) {
+        return (short) (packed >> 32);
+    }
+
+    /**
+     * Returns the ID of the given {@linkplain #pack(short, int) packed} pair.
+     */
+    public static int packedId(long packed) {
+        return ((int) packed) ^ Integer.MIN_VALUE;
+    }
+
+    /**
+     * Returns the pair the given value {@linkplain #pack(short, int) packs}.
+     */
+    public static ShortInt unpack(long packed) {
+        return new ShortInt(packedType(packed), packedId(packed));
+    }
+
+
     public ShortInt(int type, int id) {
         super(type, id);
     }
@@ -21,6 +59,13 @@ public final class ShortInt extends ShortIntId implements Comparable<ShortInt> {
         super(copy);
     }
 
+    /**
+     * Returns this pair in {@linkplain #pack(short, int) packed} form.
+     */
+    public long pack() {
+        return pack(getType(), getId());
+    }
+
     @Override
     public int compareTo(ShortInt another) {
         return super.compareTo(another);
@@ -0,0 +1,385 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.util.list;
+
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * A read-only, random access sequence of <tt>int</tt>s. This is the primitive counterpart
+ * of a <tt>List&lt;Integer&gt;</tt>: it's typically a view over a run of rows in some table,
+ * and reading it doesn't box. Traversing a slice with {@linkplain #forEach(IntConsumer)},
+ * or copying it out in bulk with {@linkplain #copyTo(int[], int)}, allocates nothing.
+ * <p/>
+ * The {@linkplain #binarySearch(int)} method assumes the slice is sorted in ascending
+ * order (as are the node IDs a cursor returns).
+ */
+public abstract class IntSlice {
+
+    /**
+     * The empty slice.
+     */
+    public final static IntSlice EMPTY = new IntSlice() {
+        @Override
+        public int size() {
+            return 0;
+        }
+        @Override
+        protected int getIntImpl(int index) {
+            throw new IndexOutOfBoundsException();
+        }
+    };
+
+
+    /**
+     * Returns a slice view of the given array.
+     */
+    public static IntSlice wrap(int[] array) {
+        return wrap(array, 0, array.length);
+    }
+
+
+    /**
+     * Returns a slice view of the given array range [<tt>from</tt>, <tt>to</tt>).
+     */
+    public static IntSlice wrap(final int[] array, final int from, final int to) {
+        if (from < 0 || to > array.length || from > to)
+            throw new IndexOutOfBoundsException(
+                    "[" + from + ", " + to + ") (length " + array.length + ")");
+        return new IntSlice() {
+            @Override
+            public int size() {
+                return to - from;
+            }
+            @Override
+            protected int getIntImpl(int index) {
+                return array[from + index];
+            }
+            @Override
+            public int copyTo(int[] dest, int offset) {
+                System.arraycopy(array, from, dest, offset, to - from);
+                return offset + to - from;
+            }
+        };
+    }
+
+
+    /**
+     * Returns a slice view of the given boxed list. Each access unboxes.
+     */
+    public static IntSlice wrap(final List<Integer> list) {
+        if (list.isEmpty())
+            return EMPTY;
+        return new IntSlice() {
+            @Override
+            public int size() {
+                return list.size();
+            }
+            @Override
+            protected int getIntImpl(int index) {
+                return list.get(index);
+            }
+            @Override
+            public List<Integer> asList() {
+                return list;
+            }
+        };
+    }
+
+
+    /**
+     * Returns the sorted union of the given sorted slices. Duplicates are <em>not</em>
+     * removed. The union is traversed and copied without intermediate storage; it's
+     * only materialized on first random access.
+     *
+     * @return a union view, if neither slice is empty; <tt>b</tt>, if <tt>a</tt> is empty;
+     *         <tt>a</tt>, if <tt>b</tt> is empty.
+     */
+    public static IntSlice union(IntSlice a, IntSlice b) {
+        if (a.isEmpty())
+            return b;
+        else if (b.isEmpty())
+            return a;
+        return new SortedIntUnion(a, b);
+    }
+
+
+
+
+    /**
+     * Returns the number of elements.
+     */
+    public abstract int size();
+
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+
+    /**
+     * Returns the element at the given index.
+     */
+    public int getInt(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("index " + index + "; size " + size());
+        return getIntImpl(index);
+    }
+
+
+    /**
+     * Returns the element at the given index, which is known to be in bounds.
+     */
+    protected abstract int getIntImpl(int index);
+
+
+    /**
+     * Passes each element to the given <tt>action</tt>, in order.
+     */
+    public void forEach(IntConsumer action) {
+        int size = size();
+        for (int index = 0; index < size; ++index)
+            action.accept(getIntImpl(index));
+    }
+
+
+    /**
+     * Copies the elements into the given array, starting at the given <tt>offset</tt>.
+     *
+     * @return the offset just past the last element copied (so that slices may be
+     *         copied back to back)
+     */
+    public int copyTo(int[] dest, int offset) {
+        int size = size();
+        if (offset < 0 || offset + size > dest.length)
+            throw new IndexOutOfBoundsException(
+                    "offset " + offset + " + size " + size + " (length " + dest.length + ")");
+        for (int index = 0; index < size; ++index)
+            dest[offset++] = getIntImpl(index);
+        return offset;
+    }
+
+
+    /**
+     * Returns the elements in a new array.
+     */
+    public int[] toArray() {
+        int[] array = new int[size()];
+        copyTo(array, 0);
+        return array;
+    }
+
+
+    /**
+     * Searches the (sorted) slice for the given <tt>key</tt>.
+     *
+     * @return the index of the key, if found; <tt>-(insertion point) - 1</tt>, otherwise
+     *         (same as {@linkplain Collections#binarySearch(List, Object)})
+     */
+    public int binarySearch(int key) {
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int value = getIntImpl(mid);
+            if (value < key)
+                low = mid + 1;
+            else if (value > key)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+
+    /**
+     * Determines whether the (sorted) slice contains the given <tt>key</tt>.
+     */
+    public boolean contains(int key) {
+        return binarySearch(key) >= 0;
+    }
+
+
+    /**
+     * Returns a view of the elements in the range [<tt>from</tt>, <tt>to</tt>).
+     */
+    public IntSlice subSlice(final int from, final int to) {
+        if (from < 0 || to > size() || from > to)
+            throw new IndexOutOfBoundsException("[" + from + ", " + to + ") (size " + size() + ")");
+        if (from == 0 && to == size())
+            return this;
+        final IntSlice base = this;
+        return new IntSlice() {
+            @Override
+            public int size() {
+                return to - from;
+            }
+            @Override
+            protected int getIntImpl(int index) {
+                return base.getIntImpl(from + index);
+            }
+        };
+    }
+
+
+    /**
+     * Returns a boxed view of this slice. Each access boxes.
+     */
+    public List<Integer> asList() {
+        if (isEmpty())
+            return Collections.emptyList();
+        return new BaseList<Integer>() {
+            @Override
+            public int size() {
+                return IntSlice.this.size();
+            }
+            @Override
+            protected Integer getImpl(int location) {
+                return getIntImpl(location);
+            }
+        };
+    }
+
+
+    /**
+     * Equality is defined in terms of the elements, in order.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof IntSlice))
+            return false;
+        IntSlice other = (IntSlice) o;
+        int size = size();
+        if (other.size() != size)
+            return false;
+        for (int index = 0; index < size; ++index) {
+            if (getIntImpl(index) != other.getIntImpl(index))
+                return false;
+        }
+        return true;
+    }
+
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        int size = size();
+        for (int index = 0; index < size; ++index)
+            hash = 31 * hash + getIntImpl(index);
+        return hash;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder string = new StringBuilder("[");
+        int size = size();
+        for (int index = 0; index < size; ++index) {
+            if (index != 0)
+                string.append(", ");
+            string.append(getIntImpl(index));
+        }
+        return string.append(']').toString();
+    }
+
+
+
+
+    /**
+     * The sorted union of 2 non-empty slices. Sequential traversal merges on the fly;
+     * random access merges into an array, once.
+     */
+    private static class SortedIntUnion extends IntSlice {
+
+        private final IntSlice a;
+        private final IntSlice b;
+        private int[] merged;
+
+        SortedIntUnion(IntSlice a, IntSlice b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int size() {
+            return a.size() + b.size();
+        }
+
+        @Override
+        protected int getIntImpl(int index) {
+            if (merged == null)
+                merged = toArray();
+            return merged[index];
+        }
+
+        @Override
+        public void forEach(IntConsumer action) {
+            if (merged != null) {
+                for (int value : merged)
+                    action.accept(value);
+                return;
+            }
+            int aSize = a.size();
+            int bSize = b.size();
+            int i = 0, j = 0;
+            while (i < aSize && j < bSize) {
+                int av = a.getIntImpl(i);
+                int bv = b.getIntImpl(j);
+                if (av <= bv) {
+                    action.accept(av);
+                    ++i;
+                } else {
+                    action.accept(bv);
+                    ++j;
+                }
+            }
+            for (; i < aSize; ++i)
+                action.accept(a.getIntImpl(i));
+            for (; j < bSize; ++j)
+                action.accept(b.getIntImpl(j));
+        }
+
+        @Override
+        public int copyTo(int[] dest, int offset) {
+            if (merged != null) {
+                System.arraycopy(merged, 0, dest, offset, merged.length);
+                return offset + merged.length;
+            }
+            int size = size();
+            if (offset < 0 || offset + size > dest.length)
+                throw new IndexOutOfBoundsException(
+                        "offset " + offset + " + size " + size + " (length " + dest.length + ")");
+            int aSize = a.size();
+            int bSize = b.size();
+            int i = 0, j = 0;
+            while (i < aSize && j < bSize) {
+                int av = a.getIntImpl(i);
+                int bv = b.getIntImpl(j);
+                if (av <= bv) {
+                    dest[offset++] = av;
+                    ++i;
+                } else {
+                    dest[offset++] = bv;
+                    ++j;
+                }
+            }
+            for (; i < aSize; ++i)
+                dest[offset++] = a.getIntImpl(i);
+            for (; j < bSize; ++j)
+                dest[offset++] = b.getIntImpl(j);
+            return offset;
+        }
+
+        @Override
+        public boolean contains(int key) {
+            return a.contains(key) || b.contains(key);
+        }
+    }
+}
@@ -120,6 +120,55 @@ public class Lists {
     }
 
 
+    public static <T extends Comparable<T>> List<T> distinctDifference(List<T> a, List<T> b) {
+        Comparator<T> naturalOrder = Comparators.naturalComparator();
+        return distinctDifference(a, b, naturalOrder);
+    }
+
+    /**
+     * Returns the elements of the ordered, distinct list <tt>a</tt> that are not in the
+     * ordered, distinct list <tt>b</tt>. If no elements are removed, <tt>a</tt> itself is
+     * returned.
+     *
+     * @param a ordered, distinct list
+     * @param b ordered, distinct list
+     * @param order the total ordering of inputs and output
+     *
+     * @return an ordered, distinct list (immutable, unless it's <tt>a</tt>)
+     */
+    public static <T> List<T> distinctDifference(List<T> a, List<T> b, Comparator<? super T> order) {
+
+        if (a.isEmpty() || b.isEmpty())
+            return a;
+
+        ArrayList<T> difference = null;
+        int i = 0;
+        int j = 0;
+        while (i < a.size() && j < b.size()) {
+            T aI = a.get(i);
+            int comp = order.compare(aI, b.get(j));
+            if (comp < 0) {
+                if (difference != null)
+                    difference.add(aI);
+                ++i;
+            } else if (comp > 0) {
+                ++j;
+            } else {
+                if (difference == null) {
+                    difference = new ArrayList<>(a.size() - 1);
+                    difference.addAll(a.subList(0, i));
+                }
+                ++i;
+                ++j;
+            }
+        }
+        if (difference == null)
+            return a;
+        difference.addAll(a.subList(i, a.size()));
+        return Collections.unmodifiableList(difference);
+    }
+
+
     public static <T> List<T> concatView(List<? extends T> first, List<? extends T> second) {
         return new ConcatList<>(first, second);
     }
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.util.list;
+
+
+import java.util.function.LongConsumer;
+
+/**
+ * A read-only, random access sequence of <tt>long</tt>s: the <tt>long</tt> counterpart of
+ * {@linkplain IntSlice}. Used, for example, for views of
+ * {@linkplain com.gnahraf.util.datatypes.ShortInt#pack(short, int) packed} qualified node IDs.
+ * <p/>
+ * The {@linkplain #binarySearch(long)} method assumes the slice is sorted in ascending
+ * (signed) order.
+ */
+public abstract class LongSlice {
+
+    /**
+     * The empty slice.
+     */
+    public final static LongSlice EMPTY = new LongSlice() {
+        @Override
+        public int size() {
+            return 0;
+        }
+        @Override
+        protected long getLongImpl(int index) {
+            throw new IndexOutOfBoundsException();
+        }
+    };
+
+
+    /**
+     * Returns a slice view of the given array.
+     */
+    public static LongSlice wrap(long[] array) {
+        return wrap(array, 0, array.length);
+    }
+
+
+    /**
+     * Returns a slice view of the given array range [<tt>from</tt>, <tt>to</tt>).
+     */
+    public static LongSlice wrap(final long[] array, final int from, final int to) {
+        if (from < 0 || to > array.length || from > to)
+            throw new IndexOutOfBoundsException(
+                    "[" + from + ", " + to + ") (length " + array.length + ")");
+        return new LongSlice() {
+            @Override
+            public int size() {
+                return to - from;
+            }
+            @Override
+            protected long getLongImpl(int index) {
+                return array[from + index];
+            }
+            @Override
+            public int copyTo(long[] dest, int offset) {
+                System.arraycopy(array, from, dest, offset, to - from);
+                return offset + to - from;
+            }
+        };
+    }
+
+
+    /**
+     * Returns the sorted, distinct union of the given sorted, distinct slices. Unlike
+     * {@linkplain IntSlice#union(IntSlice, IntSlice)}, the union is merged up front.
+     *
+     * @return a new slice, if neither slice is empty; <tt>b</tt>, if <tt>a</tt> is empty;
+     *         <tt>a</tt>, if <tt>b</tt> is empty.
+     */
+    public static LongSlice distinctUnion(LongSlice a, LongSlice b) {
+        if (a.isEmpty())
+            return b;
+        else if (b.isEmpty())
+            return a;
+        int aSize = a.size();
+        int bSize = b.size();
+        long[] merged = new long[aSize + bSize];
+        int i = 0, j = 0, k = 0;
+        while (i < aSize && j < bSize) {
+            long av = a.getLongImpl(i);
+            long bv = b.getLongImpl(j);
+            if (av < bv) {
+                merged[k++] = av;
+                ++i;
+            } else if (av > bv) {
+                merged[k++] = bv;
+                ++j;
+            } else {
+                merged[k++] = av;
+                ++i;
+                ++j;
+            }
+        }
+        for (; i < aSize; ++i)
+            merged[k++] = a.getLongImpl(i);
+        for (; j < bSize; ++j)
+            merged[k++] = b.getLongImpl(j);
+        return wrap(merged, 0, k);
+    }
+
+
+
+
+    /**
+     * Returns the number of elements.
+     */
+    public abstract int size();
+
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+
+    /**
+     * Returns the element at the given index.
+     */
+    public long getLong(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("index " + index + "; size " + size());
+        return getLongImpl(index);
+    }
+
+
+    /**
+     * Returns the element at the given index, which is known to be in bounds.
+     */
+    protected abstract long getLongImpl(int index);
+
+
+    /**
+     * Passes each element to the given <tt>action</tt>, in order.
+     */
+    public void forEach(LongConsumer action) {
+        int size = size();
+        for (int index = 0; index < size; ++index)
+            action.accept(getLongImpl(index));
+    }
+
+
+    /**
+     * Copies the elements into the given array, starting at the given <tt>offset</tt>.
+     *
+     * @return the offset just past the last element copied
+     */
+    public int copyTo(long[] dest, int offset) {
+        int size = size();
+        if (offset < 0 || offset + size > dest.length)
+            throw new IndexOutOfBoundsException(
+                    "offset " + offset + " + size " + size + " (length " + dest.length + ")");
+        for (int index = 0; index < size; ++index)
+            dest[offset++] = getLongImpl(index);
+        return offset;
+    }
+
+
+    /**
+     * Returns the elements in a new array.
+     */
+    public long[] toArray() {
+        long[] array = new long[size()];
+        copyTo(array, 0);
+        return array;
+    }
+
+
+    /**
+     * Searches the (sorted) slice for the given <tt>key</tt>.
+     *
+     * @return the index of the key, if found; <tt>-(insertion point) - 1</tt>, otherwise
+     */
+    public int binarySearch(long key) {
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = getLongImpl(mid);
+            if (value < key)
+                low = mid + 1;
+            else if (value > key)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+
+    /**
+     * Determines whether the (sorted) slice contains the given <tt>key</tt>.
+     */
+    public boolean contains(long key) {
+        return binarySearch(key) >= 0;
+    }
+
+
+    /**
+     * Returns a view of the elements in the range [<tt>from</tt>, <tt>to</tt>).
+     */
+    public LongSlice subSlice(final int from, final int to) {
+        if (from < 0 || to > size() || from > to)
+            throw new IndexOutOfBoundsException("[" + from + ", " + to + ") (size " + size() + ")");
+        if (from == 0 && to == size())
+            return this;
+        final LongSlice base = this;
+        return new LongSlice() {
+            @Override
+            public int size() {
+                return to - from;
+            }
+            @Override
+            protected long getLongImpl(int index) {
+                return base.getLongImpl(from + index);
+            }
+        };
+    }
+
+
+    /**
+     * Equality is defined in terms of the elements, in order.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof LongSlice))
+            return false;
+        LongSlice other = (LongSlice) o;
+        int size = size();
+        if (other.size() != size)
+            return false;
+        for (int index = 0; index < size; ++index) {
+            if (getLongImpl(index) != other.getLongImpl(index))
+                return false;
+        }
+        return true;
+    }
+
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        int size = size();
+        for (int index = 0; index < size; ++index) {
+            long value = getLongImpl(index);
+            hash = 31 * hash + (int) (value ^ (value >>> 32));
+        }
+        return hash;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder string = new StringBuilder("[");
+        int size = size();
+        for (int index = 0; index < size; ++index) {
+            if (index != 0)
+                string.append(", ");
+            string.append(getLongImpl(index));
+        }
+        return string.append(']').toString();
+    }
+}
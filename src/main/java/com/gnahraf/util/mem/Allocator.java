@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.util.mem;
+
+
+/**
+ * Allocates (and frees) the memory backing {@linkplain Table}s.
+ *
+ * @see #HEAP
+ * @see #DIRECT
+ */
+public abstract class Allocator {
+
+    /**
+     * Allocates byte arrays on the Java heap. The default.
+     */
+    public final static Allocator HEAP = new Allocator() {
+        @Override
+        public Buff alloc(int bytes) {
+            return new Buff(bytes);
+        }
+        @Override
+        public String toString() {
+            return "HEAP";
+        }
+    };
+
+
+    /**
+     * Allocates direct (off-heap) memory. Memory allocated this way is outside the GC's
+     * purview and should be explicitly {@linkplain #free(Buff) free}d.
+     */
+    public final static Allocator DIRECT = new Allocator() {
+        @Override
+        public Buff alloc(int bytes) {
+            return NioBuff.allocateDirect(bytes);
+        }
+        @Override
+        public String toString() {
+            return "DIRECT";
+        }
+    };
+
+
+
+    /**
+     * Returns a new zeroed out block of memory of the given size.
+     */
+    public abstract Buff alloc(int bytes);
+
+
+    /**
+     * Frees the given block of memory, if it must (and can) be freed explicitly; otherwise,
+     * this is a noop. Only memory blocks returned by {@linkplain #alloc(int)} (or mapped
+     * by {@linkplain NioBuff#map(java.nio.channels.FileChannel, long, long) NioBuff.map})
+     * are freed: views (slices) of these blocks are ignored.
+     * <p/>
+     * The argument (or any view of it) must not be accessed after it is freed: doing so may
+     * crash the VM.
+     */
+    public void free(Buff buff) {
+        if (buff instanceof NioBuff)
+            ((NioBuff) buff).free();
+    }
+
+}
@@ -16,6 +16,9 @@ import com.gnahraf.util.datatypes.Primitives.Sizeof;
  * A reminder to myself why I'm not using an nio.ByteBuffer instead of
  * this class: ByteBuffers can be stateful even on <em>read</em> access.
  * I want something simpler and thread-safe on read access. 
+ * <p/>
+ * The base class is backed by a byte array. Memory not on the Java heap (direct, or
+ * memory-mapped) is accessed thru the {@linkplain NioBuff} subclass.
  */
 public class Buff implements Comparable<Buff> {
 
@@ -26,8 +29,8 @@ public class Buff implements Comparable<Buff> {
 
 
     private final byte[] mem;
-    private final int offset;
-    private final int size;
+    final int offset;
+    final int size;
 
 
     public Buff(int size) {
@@ -48,14 +51,18 @@ public class Buff implements Comparable<Buff> {
     }
 
 
-    private Buff(byte[] mem, int offset, int size, Object ignored) {
+    /**
+     * Subclass constructor. Subclasses not backed by a byte array pass in <tt>null</tt>
+     * for <tt>mem</tt> and override the package-private <tt>*Impl</tt> methods.
+     */
+    Buff(byte[] mem, int offset, int size, Object ignored) {
         this.mem = mem;
         this.offset = offset;
         this.size = size;
     }
 
 
-    private Buff newBuff(byte[] mem, int offset, int size) {
+    Buff newBuff(int offset, int size) {
         return new Buff(mem, offset, size, null);
     }
 
@@ -89,13 +96,13 @@ public class Buff implements Comparable<Buff> {
 
     public void put(ByteBuffer in, int index) {
         checkBulkPutParams(in.remaining(), index);
-        in.get(mem, index + offset, in.remaining());
+        putImpl(in, index);
     }
 
 
     public void put(Buff in, int index) {
         checkBulkPutParams(in.size, index);
-        putImpl(in.mem, in.offset, in.size, index);
+        putImpl(in, index);
     }
 
 
@@ -107,7 +114,7 @@ public class Buff implements Comparable<Buff> {
 
     public void put(byte value, int index) {
         checkIndexBounds(index);
-        mem[offset + index] = value;
+        putUnchecked(value, index);
     }
 
 
@@ -115,26 +122,26 @@ public class Buff implements Comparable<Buff> {
 
     public void putShort(short value, int index) {
         checkShortIndexBounds(index);
-        Primitives.writeShort(mem, offset + index, value);
+        putShortImpl(value, index);
     }
 
 
     public short getShort(int index) {
         checkShortIndexBounds(index);
-        return Primitives.readShort(mem, offset + index);
+        return getShortImpl(index);
     }
 
 
 
     public void putTryte(int value, int index) {
         checkIndexBounds(index, Sizeof.TRYTE);
-        Primitives.writeTryte(mem, offset + index, value);
+        putTryteImpl(value, index);
     }
 
 
     public int getTryte(int index) {
         checkIndexBounds(index, Sizeof.TRYTE);
-        return Primitives.readTryte(mem, offset + index);
+        return getTryteImpl(index);
     }
 
 
@@ -142,19 +149,61 @@ public class Buff implements Comparable<Buff> {
 
     public int getInt(int index) {
         checkIntIndexBounds(index);
-        return Primitives.readInt(mem, offset + index);
+        return getIntImpl(index);
     }
 
 
     public void putInt(int value, int index) {
         checkIntIndexBounds(index);
+        putIntImpl(value, index);
+    }
+
+
+
+
+    // Memory access implementation. Indexes are relative to this instance's
+    // offset and have already been bounds-checked.
+
+    void putUnchecked(byte value, int index) {
+        mem[offset + index] = value;
+    }
+
+    short getShortImpl(int index) {
+        return Primitives.readShort(mem, offset + index);
+    }
+
+    void putShortImpl(short value, int index) {
+        Primitives.writeShort(mem, offset + index, value);
+    }
+
+    int getTryteImpl(int index) {
+        return Primitives.readTryte(mem, offset + index);
+    }
+
+    void putTryteImpl(int value, int index) {
+        Primitives.writeTryte(mem, offset + index, value);
+    }
+
+    int getIntImpl(int index) {
+        return Primitives.readInt(mem, offset + index);
+    }
+
+    void putIntImpl(int value, int index) {
         Primitives.writeInt(mem, offset + index, value);
     }
 
 
+    void putImpl(ByteBuffer in, int index) {
+        in.get(mem, index + offset, in.remaining());
+    }
+
+
+    void putImpl(Buff in, int index) {
+        in.copyIntoImpl(mem, offset + index);
+    }
 
 
-    private void putImpl(byte[] in, int srcOff, int srcSize, int index) {
+    void putImpl(byte[] in, int srcOff, int srcSize, int index) {
         int dtnOff = offset + index;
         int srcEnd = srcOff + srcSize;
         while (srcOff < srcEnd)
@@ -168,13 +217,13 @@ public class Buff implements Comparable<Buff> {
         if (out.remaining() < size)
             throw new IllegalArgumentException(
                 "out.remaining " + out.remaining() + "; size " + size);
-        out.put(mem, offset, size);
+        copyIntoImpl(out);
     }
 
 
     public void copyInto(Buff out, int outIndex) {
         checkBulkOutParams(out.size, outIndex);
-        copyIntoImpl(out.mem, out.offset + outIndex);
+        out.putImpl(this, outIndex);
     }
 
 
@@ -186,14 +235,19 @@ public class Buff implements Comparable<Buff> {
 
 
 
-    private void copyIntoImpl(byte[] out, int outIndex) {
+    void copyIntoImpl(ByteBuffer out) {
+        out.put(mem, offset, size);
+    }
+
+
+    void copyIntoImpl(byte[] out, int outIndex) {
         int srcOff = offset;
         int srcEnd = offset + size;
         while (srcOff < srcEnd)
             out[outIndex++] = mem[srcOff++];
     }
 
-    private void checkBulkOutParams(int outSize, int outIndex) {
+    void checkBulkOutParams(int outSize, int outIndex) {
         if (outIndex < 0 || outSize - outIndex < size)
             throw new IllegalArgumentException(
                 "outIndex " + outIndex + "; out (size) " + outSize + "; size " + size);
@@ -226,7 +280,7 @@ public class Buff implements Comparable<Buff> {
 
 
 
-    private byte getUnchecked(int index) {
+    byte getUnchecked(int index) {
         return mem[index + offset];
     }
 
@@ -247,7 +301,7 @@ public class Buff implements Comparable<Buff> {
         else if (subSize == size)
             return this;
         else
-            return newBuff(mem, startIndex + offset, subSize);
+            return newBuff(startIndex + offset, subSize);
     }
 
 
@@ -323,7 +377,7 @@ public class Buff implements Comparable<Buff> {
         Buff[] chunks = new Buff[count];
 
         for (int index = 0, off = offset; index < count; ++index, off += chunkSize)
-            chunks[index] = newBuff(mem, off, chunkSize);
+            chunks[index] = newBuff(off, chunkSize);
 
         return chunks;
     }
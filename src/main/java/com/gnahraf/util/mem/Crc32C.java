@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.util.mem;
+
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) utility. Uses the JDK's (intrinsified) implementation when
+ * available (Java 9+); falls back to a table driven implementation, otherwise.
+ * <p/>
+ * Since checksums of adjacent blocks can be {@linkplain #combine(int, int, long) combine}d,
+ * large blocks of memory can be checksummed in parallel.
+ */
+public class Crc32C {
+
+    private Crc32C() {  }
+
+
+    /**
+     * Reversed Castagnoli polynomial.
+     */
+    private final static int POLY = 0x82f63b78;
+
+    private final static int[] TABLE = new int[256];
+
+    static {
+        for (int n = 0; n < 256; ++n) {
+            int c = n;
+            for (int k = 8; k-- > 0; )
+                c = (c & 1) != 0 ? POLY ^ (c >>> 1) : c >>> 1;
+            TABLE[n] = c;
+        }
+    }
+
+
+    /**
+     * The JDK's <tt>CRC32C</tt> constructor, typed <tt>()Checksum</tt>, if present.
+     */
+    private final static MethodHandle JDK_CRC32C;
+    /**
+     * The JDK's <tt>CRC32C.update(ByteBuffer)</tt> method, typed
+     * <tt>(Checksum, ByteBuffer)void</tt>, if present. (Looked up, since the method doesn't
+     * exist in Java 8.)
+     */
+    private final static MethodHandle JDK_UPDATE;
+
+    static {
+        MethodHandle ctor, update;
+        try {
+            Class<?> type = Class.forName("java.util.zip.CRC32C");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            ctor = lookup.findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Checksum.class));
+            update = lookup.findVirtual(type, "update", MethodType.methodType(void.class, ByteBuffer.class))
+                    .asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+        } catch (Exception | LinkageError x) {
+            ctor = update = null;
+        }
+        JDK_CRC32C = ctor;
+        JDK_UPDATE = update;
+    }
+
+
+    /**
+     * Returns the CRC32C checksum of the remaining bytes in the given buffer. On return
+     * the buffer has no remaining bytes.
+     */
+    public static int compute(ByteBuffer buf) {
+        if (JDK_CRC32C != null) {
+            Checksum checksum;
+            try {
+                checksum = (Checksum) JDK_CRC32C.invokeExact();
+                JDK_UPDATE.invokeExact(checksum, buf);
+            } catch (RuntimeException | Error x) {
+                throw x;
+            } catch (Throwable t) {
+                throw new IllegalStateException(t);
+            }
+            return (int) checksum.getValue();
+        }
+        return computeByTable(buf);
+    }
+
+
+    static int computeByTable(ByteBuffer buf) {
+        int crc = 0xffffffff;
+        while (buf.hasRemaining())
+            crc = TABLE[(crc ^ buf.get()) & 0xff] ^ (crc >>> 8);
+        return ~crc;
+    }
+
+
+    /**
+     * Returns the CRC32C checksum of the given block.
+     */
+    public static int compute(Buff block) {
+        return compute(block.asByteBuffer());
+    }
+
+
+    /**
+     * Combines the checksums of 2 adjacent blocks. (Adapted from zlib's <tt>crc32_combine</tt>.)
+     *
+     * @param crcA the checksum of the first block
+     * @param crcB the checksum of the second block
+     * @param lenB the byte length of the second block
+     *
+     * @return the checksum of the 2 blocks concatenated
+     */
+    public static int combine(int crcA, int crcB, long lenB) {
+        if (lenB <= 0)
+            return crcA;
+
+        int[] even = new int[32];
+        int[] odd = new int[32];
+
+        // operator for one zero bit in odd
+        odd[0] = POLY;
+        for (int n = 1, row = 1; n < 32; ++n, row <<= 1)
+            odd[n] = row;
+
+        // operator for 2 zero bits in even; for 4 zero bits in odd
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // apply lenB zeros to crcA (first square puts the operator for one
+        // zero byte, 8 zero bits, in even)
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((lenB & 1) != 0)
+                crcA = gf2MatrixTimes(even, crcA);
+            lenB >>>= 1;
+            if (lenB == 0)
+                break;
+
+            gf2MatrixSquare(odd, even);
+            if ((lenB & 1) != 0)
+                crcA = gf2MatrixTimes(odd, crcA);
+            lenB >>>= 1;
+        } while (lenB != 0);
+
+        return crcA ^ crcB;
+    }
+
+
+    private static int gf2MatrixTimes(int[] mat, int vec) {
+        int sum = 0;
+        for (int i = 0; vec != 0; ++i, vec >>>= 1) {
+            if ((vec & 1) != 0)
+                sum ^= mat[i];
+        }
+        return sum;
+    }
+
+
+    private static void gf2MatrixSquare(int[] square, int[] mat) {
+        for (int n = 0; n < 32; ++n)
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+    }
+
+}
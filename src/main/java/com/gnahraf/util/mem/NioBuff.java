@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.util.mem;
+
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import com.gnahraf.util.datatypes.Primitives;
+
+/**
+ * A {@linkplain Buff} backed by an nio <tt>ByteBuffer</tt>. Use this for memory that doesn't
+ * live in a Java byte array: direct buffers, or memory-mapped file regions.
+ * <p/>
+ * Only the <em>absolute</em> get and put methods of the underlying buffer are used, so the
+ * buffer's position and limit are never touched on read access. Instances are thus as
+ * thread-safe on read access as the base class is.
+ */
+public class NioBuff extends Buff {
+
+    /**
+     * Allocates and returns a new direct buffer of the given size. The memory is freed
+     * when the returned instance is garbage collected, or explicitly thru
+     * {@linkplain Allocator#free(Buff)}.
+     */
+    public static NioBuff allocateDirect(int size) {
+        return new NioBuff(ByteBuffer.allocateDirect(size), true);
+    }
+
+
+    /**
+     * Maps the given region of the file read-only and returns it. The mapping remains valid
+     * after the channel is closed. It's unmapped when the returned instance is garbage collected,
+     * or explicitly thru {@linkplain Allocator#free(Buff)}.
+     */
+    public static NioBuff map(FileChannel ch, long position, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("size " + size);
+        return new NioBuff(ch.map(MapMode.READ_ONLY, position, size), true);
+    }
+
+
+
+    private final ByteBuffer buf;
+
+    /**
+     * Set only if <tt>buf</tt> was allocated (or mapped) by this class and this instance
+     * is not a view (slice) of another.
+     */
+    private final boolean owner;
+
+    private boolean freed;
+
+
+    /**
+     * Creates an instance over the remaining bytes of the given buffer. The position
+     * and limit of the argument are not modified, nor subsequently consulted.
+     */
+    public NioBuff(ByteBuffer buf) {
+        this(buf.duplicate(), buf.position(), buf.remaining());
+    }
+
+
+    private NioBuff(ByteBuffer buf, int offset, int size) {
+        super(null, offset, size, null);
+        this.buf = buf;
+        this.owner = false;
+    }
+
+
+    private NioBuff(ByteBuffer buf, boolean owner) {
+        super(null, 0, buf.capacity(), null);
+        this.buf = buf;
+        this.owner = owner;
+    }
+
+
+    @Override
+    Buff newBuff(int offset, int size) {
+        return new NioBuff(buf, offset, size);
+    }
+
+
+    /**
+     * Determines whether the backing buffer is read-only.
+     */
+    public boolean isReadOnly() {
+        return buf.isReadOnly();
+    }
+
+
+    /**
+     * Determines whether the backing buffer is direct (i.e. not on the Java heap).
+     */
+    public boolean isDirect() {
+        return buf.isDirect();
+    }
+
+
+    @Override
+    public ByteBuffer asByteBuffer() {
+        return window(offset, offset + size).slice().asReadOnlyBuffer();
+    }
+
+
+    @Override
+    byte getUnchecked(int index) {
+        return buf.get(offset + index);
+    }
+
+    @Override
+    void putUnchecked(byte value, int index) {
+        buf.put(offset + index, value);
+    }
+
+    @Override
+    short getShortImpl(int index) {
+        return buf.getShort(offset + index);
+    }
+
+    @Override
+    void putShortImpl(short value, int index) {
+        buf.putShort(offset + index, value);
+    }
+
+    @Override
+    int getTryteImpl(int index) {
+        int pos = offset + index;
+        int value = buf.get(pos) & 0xff;
+        value <<= 16;
+        return value | (buf.getShort(pos + 1) & 0xffff);
+    }
+
+    @Override
+    void putTryteImpl(int value, int index) {
+        Primitives.toTryte(value);
+        int pos = offset + index;
+        buf.put(pos, (byte) (value >>> 16));
+        buf.putShort(pos + 1, (short) value);
+    }
+
+    @Override
+    int getIntImpl(int index) {
+        return buf.getInt(offset + index);
+    }
+
+    @Override
+    void putIntImpl(int value, int index) {
+        buf.putInt(offset + index, value);
+    }
+
+
+    @Override
+    void putImpl(ByteBuffer in, int index) {
+        window(offset + index, offset + size).put(in);
+    }
+
+    @Override
+    void putImpl(Buff in, int index) {
+        window(offset + index, offset + size).put(in.asByteBuffer());
+    }
+
+    @Override
+    void putImpl(byte[] in, int srcOff, int srcSize, int index) {
+        window(offset + index, offset + size).put(in, srcOff, srcSize);
+    }
+
+
+    @Override
+    void copyIntoImpl(ByteBuffer out) {
+        out.put(window(offset, offset + size));
+    }
+
+    @Override
+    void copyIntoImpl(byte[] out, int outIndex) {
+        window(offset, offset + size).get(out, outIndex, size);
+    }
+
+
+    /**
+     * Returns a duplicate of the backing buffer with the given position and limit.
+     * (The <tt>Buffer</tt> casts keep us binary compatible with pre-9 runtimes.)
+     */
+    private ByteBuffer window(int position, int limit) {
+        ByteBuffer dup = buf.duplicate();
+        Buffer b = dup;
+        b.limit(limit);
+        b.position(position);
+        return dup;
+    }
+
+
+    @Override
+    String memToString() {
+        return buf.toString();
+    }
+
+
+    /**
+     * Frees (or unmaps) the backing memory, if this is the instance that allocated it.
+     */
+    synchronized void free() {
+        if (!owner || freed || !buf.isDirect())
+            return;
+        freed = true;
+        Cleaner.clean(buf);
+    }
+
+
+
+    /**
+     * Explicitly frees direct buffers. There's no public API for this, so we make do
+     * with what's available. If neither strategy works, the memory is freed on GC.
+     */
+    private static class Cleaner {
+
+        private final static Object UNSAFE;
+        private final static Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                // Java 9+
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                unsafe = theUnsafe.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (Exception | LinkageError x) {
+                unsafe = null;
+                invokeCleaner = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+
+        static void clean(ByteBuffer buf) {
+            try {
+                if (INVOKE_CLEANER != null) {
+                    INVOKE_CLEANER.invoke(UNSAFE, buf);
+                } else {
+                    // Java 8
+                    Method cleanerMethod = buf.getClass().getMethod("cleaner");
+                    cleanerMethod.setAccessible(true);
+                    Object cleaner = cleanerMethod.invoke(buf);
+                    if (cleaner != null)
+                        cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception | LinkageError x) {
+                // give up; GC will eventually free it
+            }
+        }
+    }
+
+}
@@ -4,48 +4,196 @@
 
 package com.gnahraf.util.mem;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
 import com.gnahraf.util.datatypes.Pinterval;
 
 /**
  * A fixed-width table.
  * 
+ * <h4>Pages</h4>
+ * 
+ * A table's rows live either in a single block of memory (the default), or in a sequence
+ * of fixed-size blocks (pages). Each page holds <tt>2<sup>pageShift</sup></tt> rows, so a
+ * row's page and its offset within that page are computed from the row index with a shift and
+ * a mask. (The last page of a table over existing data may be short.) Subclasses access their rows
+ * thru {@linkplain #page(int)} and {@linkplain #offset(int)}, and are thus oblivious to
+ * which representation is in use.
+ * <p/>
+ * An unpaged table that outgrows a single block is transparently converted to a paged one
+ * with {@linkplain #DEFAULT_PAGE_SHIFT}.
+ * 
  * <h4>Limits</h4>
  * 
- * Max number of rows is 2B (2^31) / {@linkplain #itemSize()} since we're capped by
- * the maximum length of a Java [byte] array.
+ * Max number of rows in an unpaged table is 2B (2^31) / {@linkplain #itemSize()} since
+ * we're capped by the maximum length of a Java [byte] array. Paged tables hold up to 2B rows,
+ * whatever their width.
  */
 public abstract class Table {
 
+    /**
+     * The page shift tables default to once they outgrow a single block. (1M rows per page.)
+     */
+    public final static int DEFAULT_PAGE_SHIFT = 20;
 
+    /**
+     * Page shift denoting an unpaged table. (Non-negative indexes all map to page zero.)
+     */
+    public final static int UNPAGED = 31;
 
 
 
-    protected Buff data;
+    private final int itemSize;
+    private Buff[] pages;
+    private int pageShift;
+    private int pageMask;
     private int size;
+    private final Allocator allocator;
+
+    /**
+     * @param itemSize the row width in bytes
+     */
+    protected Table(int itemSize, int initCapacity) {
+        this(itemSize, initCapacity, Allocator.HEAP);
+    }
+
+    protected Table(int itemSize, int initCapacity, Allocator allocator) {
+        this(itemSize, initCapacity, allocator, UNPAGED);
+    }
 
-    protected Table(int initCapacity) {
+    /**
+     * Creates an instance that is paged, unless <tt>pageShift</tt> is {@linkplain #UNPAGED}.
+     * (Even then, the instance starts out paged if the initial capacity doesn't fit in a
+     * single block.)
+     * 
+     * @param pageShift each page holds <tt>2<sup>pageShift</sup></tt> rows
+     */
+    protected Table(int itemSize, int initCapacity, Allocator allocator, int pageShift) {
+        this.itemSize = checkItemSize(itemSize);
         if (initCapacity < 1)
             throw new IllegalArgumentException("initCapacity " + initCapacity);
-        this.data = alloc(initCapacity * itemSize());
+        if (allocator == null)
+            throw new IllegalArgumentException("null allocator");
+        this.allocator = allocator;
+        if (pageShift == UNPAGED && ((long) initCapacity) * itemSize() <= Integer.MAX_VALUE) {
+            setPageShift(UNPAGED);
+            this.pages = new Buff[] { alloc(initCapacity * itemSize()) };
+        } else {
+            if (pageShift == UNPAGED)
+                pageShift = DEFAULT_PAGE_SHIFT;
+            checkPageShift(pageShift);
+            setPageShift(pageShift);
+            this.pages = new Buff[0];
+            ensureCapacity(initCapacity);
+        }
     }
 
-    protected Table(Buff data, int size) {
-        this.data = data;
+    /**
+     * Creates an instance over existing data. The table is considered the owner of the
+     * given memory block: it's {@linkplain Allocator#free(Buff) free}d on {@linkplain #release()}.
+     * If the table must grow, new memory is allocated on the heap.
+     */
+    protected Table(int itemSize, Buff data, int size) {
+        this.itemSize = checkItemSize(itemSize);
+        this.pages = new Buff[] { data };
         this.size = size;
-        checkArgs();
+        this.allocator = Allocator.HEAP;
+        setPageShift(UNPAGED);
+        if (!data.sizeMultipleOf(itemSize()) || size < 0 || size > capacity())
+            throw new IllegalArgumentException(
+                    "data " + data + "; size " + size + " [" + getClass().getSimpleName() + "]");
+    }
+
+    /**
+     * Creates a paged instance over existing data. Every page but the last must hold
+     * exactly <tt>2<sup>pageShift</sup></tt> rows; the last may be short. As with the
+     * single block constructor, the table owns the given pages.
+     */
+    protected Table(int itemSize, Buff[] pages, int pageShift, int size) {
+        this.itemSize = checkItemSize(itemSize);
+        this.pages = pages.clone();
+        this.size = size;
+        this.allocator = Allocator.HEAP;
+        checkPageShift(pageShift);
+        setPageShift(pageShift);
+
+        int pageBytes = itemSize() << pageShift;
+        for (int p = 0; p < this.pages.length; ++p) {
+            Buff page = this.pages[p];
+            boolean last = p == this.pages.length - 1;
+            if (last ? page.size() > pageBytes || !page.sizeMultipleOf(itemSize()) : page.size() != pageBytes)
+                throw new IllegalArgumentException(
+                        "page " + p + ": " + page + "; page shift " + pageShift +
+                        " [" + getClass().getSimpleName() + "]");
+        }
+        if (size < 0 || size > capacity())
+            throw new IllegalArgumentException(
+                    "size " + size + "; capacity " + capacity() + " [" + getClass().getSimpleName() + "]");
+    }
+
+
+    private static int checkItemSize(int itemSize) {
+        if (itemSize < 1)
+            throw new IllegalArgumentException("itemSize " + itemSize);
+        return itemSize;
     }
 
 
-    private void checkArgs() {
-        if (data.sizeMultipleOf(itemSize()) || size * itemSize() > data.size())
+    private void checkPageShift(int pageShift) {
+        if (pageShift < 0 || pageShift >= UNPAGED || ((long) itemSize() << pageShift) > Integer.MAX_VALUE)
             throw new IllegalArgumentException(
-                    "data " + data + "; size " + size + " [" + getClass().getSimpleName() + "]");
+                    "pageShift " + pageShift + " [" + getClass().getSimpleName() + "]");
+    }
+
+
+    private void setPageShift(int pageShift) {
+        this.pageShift = pageShift;
+        this.pageMask = pageShift == UNPAGED ? Integer.MAX_VALUE : (1 << pageShift) - 1;
+    }
+
 
+    /**
+     * Returns the block of memory the row at the given index lives in.
+     * 
+     * @see #offset(int)
+     */
+    protected final Buff page(int index) {
+        return pages[index >>> pageShift];
     }
 
 
+    /**
+     * Returns the byte offset of the row at the given index within its {@linkplain #page(int) page}.
+     */
     protected final int offset(int index) {
-        return index * itemSize();
+        return (index & pageMask) * itemSize();
+    }
+
+
+    /**
+     * Determines whether this table's rows span multiple pages (or may, as it grows).
+     */
+    public final boolean isPaged() {
+        return pageShift != UNPAGED;
+    }
+
+
+    /**
+     * Returns the page shift. Meaningful only if {@linkplain #isPaged() paged}.
+     */
+    public final int getPageShift() {
+        return pageShift;
+    }
+
+
+    /**
+     * Returns the number of rows that fit in the page the given row is in, starting from that row.
+     */
+    private int pageRowsFrom(int index) {
+        return page(index).size() / itemSize() - (index & pageMask);
     }
 
 
@@ -74,15 +222,21 @@ public abstract class Table {
                 toIndex < 0 || toIndex > size)
             throw new IllegalArgumentException(table + "," + indices + "," + toIndex);
 
-
-        Buff src = table.data.sub(
-                        table.offset(indices.lo()),
-                        table.offset(indices.hi()));
-
         int minSize = toIndex + indices.span();
         ensureCapacity(minSize);
 
-        data.put(src, offset(toIndex));
+        // copy page-sized runs (a single run, if neither table is paged)
+        int from = indices.lo();
+        int to = toIndex;
+        for (int remaining = indices.span(); remaining > 0; ) {
+            int run = Math.min(remaining, Math.min(table.pageRowsFrom(from), pageRowsFrom(to)));
+            int srcOffset = table.offset(from);
+            Buff src = table.page(from).sub(srcOffset, srcOffset + run * itemSize());
+            page(to).put(src, offset(to));
+            from += run;
+            to += run;
+            remaining -= run;
+        }
 
         if (minSize > size)
             setSize(minSize);
@@ -109,19 +263,75 @@ public abstract class Table {
     public void trimToSize() {
         if (size == capacity())
             return;
+        if (isPaged()) {
+            // free the unused pages (the last page is not trimmed)
+            int count = (int) ((size + (long) pageMask) >>> pageShift);
+            Buff[] trimmed = Arrays.copyOf(pages, count);
+            for (int p = count; p < pages.length; ++p)
+                allocator.free(pages[p]);
+            pages = trimmed;
+            return;
+        }
         Buff copy = alloc(size * itemSize());
-        data.sub(0, size * itemSize()).copyInto(copy, 0);
-        data = copy;
+        pages[0].sub(0, size * itemSize()).copyInto(copy, 0);
+        Buff old = pages[0];
+        pages[0] = copy;
+        allocator.free(old);
     }
 
 
-    public int overhead() {
-        return remaining() * itemSize();
+    /**
+     * Releases the memory backing this table, leaving it empty. This is only necessary
+     * for memory not on the Java heap (direct or memory-mapped), which might otherwise
+     * linger until the GC gets around to it.
+     * <p/>
+     * Note the memory is freed immediately: any concurrent access is unsafe.
+     */
+    public void release() {
+        Buff[] old = pages;
+        pages = isPaged() ? new Buff[0] : new Buff[] { Buff.EMPTY };
+        size = 0;
+        for (Buff page : old)
+            allocator.free(page);
     }
 
 
-    public int byteSize() {
-        return data.size();
+    /**
+     * Returns the allocator used when this table grows (or is trimmed).
+     */
+    public Allocator getAllocator() {
+        return allocator;
+    }
+
+
+    /**
+     * Writes the table's rows (but not its unused capacity) to the given channel.
+     */
+    public void writeTo(WritableByteChannel out) throws IOException {
+        for (int index = 0; index < size; ) {
+            int run = Math.min(size - index, pageRowsFrom(index));
+            int offset = offset(index);
+            ByteBuffer rows = page(index).sub(offset, offset + run * itemSize()).asByteBuffer();
+            while (rows.hasRemaining())
+                out.write(rows);
+            index += run;
+        }
+    }
+
+
+    public long overhead() {
+        return ((long) remaining()) * itemSize();
+    }
+
+
+    /**
+     * Returns the number of bytes allocated to this table.
+     */
+    public long byteSize() {
+        long bytes = 0;
+        for (Buff page : pages)
+            bytes += page.size();
+        return bytes;
     }
 
 
@@ -136,22 +346,73 @@ public abstract class Table {
     protected void ensureCapacity(int capacity) {
         if (capacity <= capacity())
             return;
+        if (capacity < 0)
+            throw new IllegalStateException("overflow: " + capacity);
+
+        if (isPaged()) {
+            addPages(capacity);
+            return;
+        }
 
-        int defCap;
+        long newCapacity;
         {
-        	int currentCap = capacity();
-        	defCap = currentCap + currentCap / 2;
-        	if (defCap < 0) {
-        		defCap = Integer.MAX_VALUE / itemSize();
-        		if (capacity > defCap)
-        			throw new IllegalStateException("overflow: " + capacity);
-        	}
+            long currentCap = capacity();
+            newCapacity = Math.max(capacity, Math.min(currentCap + currentCap / 2, Integer.MAX_VALUE));
+        }
+
+        if (newCapacity * itemSize() > Integer.MAX_VALUE) {
+            // outgrew a single block
+            toPaged(DEFAULT_PAGE_SHIFT);
+            addPages(capacity);
+            return;
+        }
+
+        Buff buff = alloc((int) newCapacity * itemSize());
+        pages[0].copyInto(buff, 0);
+        Buff old = pages[0];
+        pages[0] = buff;
+        allocator.free(old);
+    }
+
+
+    /**
+     * Adds whole pages so that the capacity is at least the given number of rows.
+     */
+    private void addPages(int capacity) {
+        int pageBytes = itemSize() << pageShift;
+        int count = (int) ((capacity + (long) pageMask) >>> pageShift);
+        Buff[] grown = Arrays.copyOf(pages, count);
+        int p = pages.length;
+        // fill out a short last page
+        if (p > 0 && grown[p - 1].size() < pageBytes) {
+            Buff page = alloc(pageBytes);
+            grown[p - 1].copyInto(page, 0);
+            allocator.free(grown[p - 1]);
+            grown[p - 1] = page;
+        }
+        for (; p < count; ++p)
+            grown[p] = alloc(pageBytes);
+        pages = grown;
+    }
+
+
+    /**
+     * Converts this unpaged table to a paged one. The existing rows are copied into (whole) pages.
+     */
+    private void toPaged(int pageShift) {
+        checkPageShift(pageShift);
+        Buff old = pages[0];
+        int rows = old.size() / itemSize();
+        int pageBytes = itemSize() << pageShift;
+        int count = (int) ((rows + (1L << pageShift) - 1) >>> pageShift);
+        Buff[] paged = new Buff[count];
+        for (int p = 0, offset = 0; p < count; ++p, offset += pageBytes) {
+            paged[p] = alloc(pageBytes);
+            old.sub(offset, Math.min(offset + pageBytes, old.size())).copyInto(paged[p], 0);
         }
-        
-        int newCapacity = Math.max(capacity, defCap);
-        Buff buff = alloc(newCapacity * itemSize());
-        data.copyInto(buff, 0);
-        data = buff;
+        pages = paged;
+        setPageShift(pageShift);
+        allocator.free(old);
     }
 
 
@@ -161,19 +422,26 @@ public abstract class Table {
 
 
     protected final int capacity() {
-        return data.size() / itemSize();
+        if (!isPaged())
+            return pages[0].size() / itemSize();
+        if (pages.length == 0)
+            return 0;
+        long rows = ((long) (pages.length - 1) << pageShift) + pages[pages.length - 1].size() / itemSize();
+        return (int) Math.min(rows, Integer.MAX_VALUE);
     }
 
 
     protected Buff alloc(int bytes) {
-        return new Buff(bytes);
+        return allocator.alloc(bytes);
     }
 
 
     /**
      * Returns the number of bytes used to represent each item.
      */
-    protected abstract int itemSize();
+    protected final int itemSize() {
+        return itemSize;
+    }
 
 
 }
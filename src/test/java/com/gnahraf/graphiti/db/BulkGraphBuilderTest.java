@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Graphs built by the {@linkplain BulkGraphBuilder} must be identical (byte-for-byte) to those
+ * built by the {@linkplain GraphBuilder} from the same edges.
+ */
+public class BulkGraphBuilderTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testKeyEncoding() {
+        long hi = BulkGraphBuilder.hiKey((short) -3, Integer.MAX_VALUE, true, Short.MIN_VALUE);
+        long lo = BulkGraphBuilder.loKey(Short.MAX_VALUE, 0);
+        assertEquals(-3, BulkGraphBuilder.srcNodeType(hi));
+        assertEquals(Integer.MAX_VALUE, BulkGraphBuilder.srcNodeId(hi));
+        assertTrue(BulkGraphBuilder.inbound(hi));
+        assertEquals(Short.MIN_VALUE, BulkGraphBuilder.edgeType(hi));
+        assertEquals(Short.MAX_VALUE, BulkGraphBuilder.dtnNodeType(lo));
+        assertEquals(0, BulkGraphBuilder.dtnNodeId(lo));
+
+        // negative types sort first
+        long hi2 = BulkGraphBuilder.hiKey((short) 2, 0, false, (short) 0);
+        assertTrue(BulkGraphBuilder.compare(hi, lo, hi2, lo) < 0);
+        assertTrue(BulkGraphBuilder.compare(
+                hi2, BulkGraphBuilder.loKey((short) -1, 5),
+                hi2, BulkGraphBuilder.loKey((short) 0, 1)) < 0);
+    }
+
+
+    @Test
+    public void testSort() {
+        Random random = new Random(7);
+        int count = 100 * 1000;
+        long[] hi = new long[count];
+        long[] lo = new long[count];
+        for (int i = 0; i < count; ++i) {
+            // few distinct high bits, so buckets recurse deep
+            hi[i] = ((long) random.nextInt(4) << 62) | random.nextInt(1000);
+            lo[i] = random.nextInt(64) & 0xffffffffffffL;
+        }
+        BulkGraphBuilder.sort(hi, lo, 0, count, 0);
+        for (int i = 1; i < count; ++i)
+            assertTrue(BulkGraphBuilder.compare(hi[i - 1], lo[i - 1], hi[i], lo[i]) <= 0);
+
+        int end = BulkGraphBuilder.dedup(hi, lo, 0, count);
+        assertTrue(end < count);
+        for (int i = 1; i < end; ++i)
+            assertTrue(BulkGraphBuilder.compare(hi[i - 1], lo[i - 1], hi[i], lo[i]) < 0);
+    }
+
+
+    @Test
+    public void testSameAsGraphBuilder() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder().setBulkBuilder(new BulkGraphBuilder());
+        builder.setSampleCount(100);
+        Graph expected = builder.generateGraph(2000);
+        Graph actual = builder.getBulkBuilder().build();
+        assertEquals(expected.getEdgeCount(), actual.getEdgeCount());
+        GraphFileTest.assertSameBytes(expected, actual, tempDir);
+
+        Cursor cursor = actual.newCursor();
+        for (RandomGraphBuilder.EdgeDef edgeDef : builder.getExpectedDefs())
+            GraphsTest.assertEdge(edgeDef, cursor);
+    }
+
+
+    @Test
+    public void testPagedDirect() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder().setBulkBuilder(
+                new BulkGraphBuilder(0, Allocator.DIRECT, 4, Layout.NARROW));
+        builder.setSampleCount(100);
+        Graph expected = builder.generateGraph(500);
+        Graph actual = builder.getBulkBuilder().build();
+        assertTrue(actual.addressTable.isPaged());
+        assertEquals(Allocator.DIRECT, actual.addressTable.getAllocator());
+        GraphFileTest.assertSameBytes(expected, actual, tempDir);
+        actual.release();
+    }
+
+
+    @Test
+    public void testNegativeTypes() throws IOException {
+        GraphBuilder builder = new GraphBuilder();
+        BulkGraphBuilder bulkBuilder = new BulkGraphBuilder();
+        Random random = new Random(11);
+        for (int i = 0; i < 5000; ++i) {
+            short srcType = (short) (random.nextInt(9) - 4);
+            int srcId = random.nextInt(50);
+            short edgeType = (short) (random.nextInt(7) - 3);
+            short dtnType = (short) (random.nextInt(9) - 4);
+            int dtnId = random.nextInt(50);
+            builder.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+            bulkBuilder.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+        }
+        GraphFileTest.assertSameBytes(builder.build(), bulkBuilder.build(), tempDir);
+    }
+
+
+    @Test
+    public void testWide() throws IOException {
+        GraphBuilder builder = new GraphBuilder();
+        BulkGraphBuilder bulkBuilder = new BulkGraphBuilder();
+        for (int type = Short.MIN_VALUE; type <= Short.MAX_VALUE; ++type) {
+            builder.insertEdge((short) 1, 1, (short) type, (short) 2, 2);
+            bulkBuilder.insertEdge((short) 1, 1, (short) type, (short) 2, 2);
+        }
+        builder.insertEdge((short) 1, 2, (short) 3, (short) 2, Integer.MAX_VALUE);
+        bulkBuilder.insertEdge((short) 1, 2, (short) 3, (short) 2, Integer.MAX_VALUE);
+        Graph expected = builder.build();
+        Graph actual = bulkBuilder.build();
+        assertEquals(Layout.of(true, 4), actual.getLayout());
+        GraphFileTest.assertSameBytes(expected, actual, tempDir);
+
+        Cursor cursor = actual.newCursor();
+        assertTrue(cursor.moveTo(new NodeType(2), Integer.MAX_VALUE));
+        assertEquals(1, cursor.getEdgeCount(true));
+    }
+
+
+    @Test
+    public void testRebuild() throws IOException {
+        BulkGraphBuilder bulkBuilder = new BulkGraphBuilder();
+        bulkBuilder.insertEdge((short) 1, 1, (short) 1, (short) 2, 2);
+        bulkBuilder.insertEdge((short) 1, 1, (short) 1, (short) 2, 2);
+        assertEquals(2, bulkBuilder.getBufferedCount());
+        Graph a = bulkBuilder.build();
+        assertEquals(1, bulkBuilder.getBufferedCount());
+        assertEquals(2, a.getEdgeCount());
+
+        bulkBuilder.insertEdge((short) 1, 1, (short) 1, (short) 2, 3);
+        assertEquals(4, bulkBuilder.build().getEdgeCount());
+
+        bulkBuilder.clear();
+        assertTrue(bulkBuilder.isEmpty());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeId() {
+        new BulkGraphBuilder().insertEdge((short) 1, -1, (short) 1, (short) 2, 2);
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void testEmpty() {
+        new BulkGraphBuilder().build();
+    }
+
+
+    @Test
+    public void testBuildMemory() {
+        System.out.println("testBuildMemory");
+        System.out.println("===============");
+        // warm up
+        runBenchmark(2000, false, false);
+        runBenchmark(2000, true, false);
+
+        runBenchmark(25000, false, true);
+        runBenchmark(25000, true, true);
+    }
+
+
+    private void runBenchmark(int nodes, boolean bulk, boolean print) {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(100);
+        builder.generate(100);
+        builder.setDistroRefreshPeriod(100);
+        // reuse the random edges: the builder we measure only sees the copies
+        builder.setBulkBuilder(new BulkGraphBuilder());
+        builder.generate(nodes);
+        BulkGraphBuilder bulkBuilder = builder.getBulkBuilder();
+
+        GraphBuilder graphBuilder = null;
+        long usedMem = usedMem();
+        long nanos = System.nanoTime();
+        Graph graph;
+        if (bulk) {
+            BulkGraphBuilder copy = new BulkGraphBuilder(bulkBuilder.getBufferedCount(),
+                    Allocator.HEAP, Table.UNPAGED, Layout.NARROW);
+            replay(bulkBuilder, copy, null);
+            usedMem = usedMem() - usedMem;
+            graph = copy.build();
+        } else {
+            graphBuilder = new GraphBuilder();
+            replay(bulkBuilder, null, graphBuilder);
+            usedMem = usedMem() - usedMem;
+            graph = graphBuilder.build();
+        }
+        nanos = System.nanoTime() - nanos;
+        assertTrue(graph.getEdgeCount() > 0);
+
+        if (print) {
+            DecimalFormat formatter = new DecimalFormat("#,###.##");
+            int edges = graph.getEdgeCount() / 2;
+            System.out.println(bulk ? "BulkGraphBuilder:" : "GraphBuilder:");
+            System.out.println("  edges: " + formatter.format(edges));
+            System.out.println("  insert + build (ms): " + formatter.format(nanos / 1000000));
+            System.out.println("  builder memory (bytes/edge): " + formatter.format(((double) usedMem) / edges));
+            System.out.println();
+        }
+    }
+
+
+    /**
+     * Re-inserts the edges buffered in the <tt>source</tt> into either of the given builders.
+     */
+    private void replay(BulkGraphBuilder source, BulkGraphBuilder bulk, GraphBuilder graphBuilder) {
+        Graph graph = source.build();
+        Cursor cursor = graph.newCursor();
+        for (int index = 0; index < graph.addressTable.size(); ++index) {
+            short srcType = graph.addressTable.getNodeType(index);
+            int srcId = graph.addressTable.getNodeId(index);
+            assertTrue(cursor.moveTo(new NodeType(srcType), srcId));
+            for (EdgeType edgeType : cursor.getEdgeTypes(false)) {
+                for (NodeType dtnType : cursor.getNodeTypes(false, edgeType)) {
+                    for (Integer dtnId : cursor.getNodeIds(false, edgeType, dtnType)) {
+                        if (bulk != null)
+                            bulk.insertEdge(srcType, srcId, edgeType.getId(), dtnType.getId(), dtnId);
+                        else
+                            graphBuilder.insertEdge(srcType, srcId, edgeType.getId(), dtnType.getId(), dtnId);
+                    }
+                }
+            }
+        }
+    }
+
+
+    private static long usedMem() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
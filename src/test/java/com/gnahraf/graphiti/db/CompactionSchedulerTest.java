@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Buff;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compaction policies, and the scheduler that runs them.
+ */
+public class CompactionSchedulerTest {
+
+
+    @Test
+    public void testSizeTiered() {
+        SizeTieredPolicy policy = new SizeTieredPolicy();
+        assertSelected(0, 4, policy.select(segments(100, 100, 100, 100)));
+        assertNull(policy.select(segments(100, 100, 100)));
+        assertNull(policy.select(segments(1000, 100, 100, 100)));
+        assertSelected(1, 5, policy.select(segments(1000, 100, 100, 100, 100)));
+        // once the newer segments add up, the older one is merged too
+        assertSelected(0, 5, policy.select(segments(400, 100, 100, 100, 100)));
+        // the newest segment doesn't make the cut..
+        assertSelected(0, 4, policy.select(segments(100, 100, 100, 100, 1)));
+        // ..but a large one takes in the smaller ones before it
+        assertSelected(0, 5, policy.select(segments(100, 100, 100, 100, 10000)));
+        assertSelected(1, 3, new SizeTieredPolicy(2, 2, 1.0).select(segments(100, 100, 100)));
+    }
+
+
+    @Test
+    public void testLeveled() {
+        long base = segment(1000, 0, 0).getByteSize();
+        LeveledPolicy policy = new LeveledPolicy(2, base, 4);
+        assertEquals(4 * base, policy.targetBytes(2));
+
+        List<Segment> segments = Arrays.asList(
+                segment(3000, 2, 0), segment(900, 1, 0), segment(100, 0, 0));
+        assertNull(policy.select(segments));
+
+        segments = Arrays.asList(
+                segment(3000, 2, 0), segment(900, 1, 0), segment(100, 0, 0), segment(100, 0, 0));
+        CompactionPolicy.Selection selection = policy.select(segments);
+        assertSelected(1, 4, selection);
+        assertEquals(1, selection.getLevel());
+
+        // level 1 outgrows its target
+        segments = Arrays.asList(segment(3000, 2, 0), segment(1100, 1, 0), segment(100, 0, 0));
+        selection = policy.select(segments);
+        assertSelected(0, 2, selection);
+        assertEquals(2, selection.getLevel());
+
+        // ..with no level 2 to merge into
+        selection = policy.select(Arrays.asList(segment(1100, 1, 0)));
+        assertSelected(0, 1, selection);
+        assertEquals(2, selection.getLevel());
+    }
+
+
+    @Test
+    public void testTimeWindow() {
+        TimeWindowPolicy policy = new TimeWindowPolicy(1000, 3);
+        List<Segment> segments = Arrays.asList(
+                segment(100, 0, 100), segment(100, 0, 200),
+                segment(100, 0, 1100),
+                segment(100, 0, 2100), segment(100, 0, 2200));
+        assertSelected(0, 2, policy.select(segments));
+        // the open window needs 3 segments
+        assertNull(policy.select(segments.subList(2, 5)));
+        segments = Arrays.asList(
+                segment(100, 0, 1100),
+                segment(100, 0, 2100), segment(100, 0, 2200), segment(100, 0, 2300));
+        assertSelected(1, 4, policy.select(segments));
+    }
+
+
+    @Test
+    public void testSizeTieredStore() throws Exception {
+        assertStoreConsistent(new CompactionScheduler(new SizeTieredPolicy(), 2, 0), new Random(1));
+    }
+
+
+    @Test
+    public void testLeveledStore() throws Exception {
+        CompactionScheduler scheduler = new CompactionScheduler(new LeveledPolicy(3, 64 * 1024, 3));
+        GraphStore store = assertStoreConsistent(scheduler, new Random(2));
+        // levels are ordered, deepest (oldest) first
+        List<Segment> segments = store.getSegments();
+        for (int index = 1; index < segments.size(); ++index)
+            assertTrue(segments.get(index - 1).getLevel() >= segments.get(index).getLevel());
+        assertTrue(segments.get(0).getLevel() > 1);
+    }
+
+
+    @Test
+    public void testTimeWindowStore() throws Exception {
+        assertStoreConsistent(new CompactionScheduler(new TimeWindowPolicy(10)), new Random(3));
+    }
+
+
+    /**
+     * Merges that don't include the oldest segment must preserve the tombstones.
+     */
+    @Test
+    public void testTombstonesPreserved() throws Exception {
+        GraphStore store = new GraphStore(Allocator.HEAP, 1000, null);
+        store.insertEdge((short) 1, 1, (short) 1, (short) 1, 2);
+        store.insertEdge((short) 1, 1, (short) 1, (short) 1, 3);
+        store.flush();
+        store.deleteEdge((short) 1, 1, (short) 1, (short) 1, 2);
+        store.flush();
+        store.insertEdge((short) 1, 1, (short) 1, (short) 1, 4);
+        store.flush();
+        assertEquals(3, store.getSegments().size());
+
+        List<Segment> inputs = new ArrayList<>(store.getSegments().subList(1, 3));
+        synchronized (store) {
+            store.reserve(inputs);
+        }
+        store.compact(inputs, 0);
+        store.compactionDone();
+        List<Segment> segments = store.getSegments();
+        assertEquals(2, segments.size());
+        assertTrue(segments.get(1).hasTombstones());
+        assertFalse(segments.get(0).hasTombstones());
+        assertEquals(Arrays.asList(3, 4), idsOf(store.newCursor()));
+
+        store.compact();
+        assertEquals(1, store.getSegments().size());
+        assertEquals(Arrays.asList(3, 4), idsOf(store.newCursor()));
+    }
+
+
+    @Test
+    public void testBacklogAndThrottle() throws Exception {
+        long rate = 1024 * 1024;
+        CompactionScheduler scheduler =
+                new CompactionScheduler(new SizeTieredPolicy(2, 2, 100), 1, rate);
+        GraphStore store = new GraphStore(Allocator.HEAP, 2000, scheduler);
+        Reference reference = new Reference();
+        long nanos = System.nanoTime();
+        randomWrites(new Random(4), store, reference, 40000, 20000, 0);
+        assertTrue(scheduler.getBacklog() > 0);
+        assertEquals(1, scheduler.getRunningCount());
+        store.awaitCompaction();
+        long millis = (System.nanoTime() - nanos) / 1000000;
+        assertTrue(millis >= 1000 * store.getCompactedBytes() / rate);
+        assertEquals(0, scheduler.getBacklog());
+        assertEquals(0, scheduler.getRunningCount());
+        assertNull(scheduler.getLastError());
+        GraphsTest.assertSameView(reference.build(), store.newCursor());
+        scheduler.shutdown();
+    }
+
+
+    @Test
+    public void testCompactionError() throws Exception {
+        // the first compaction fails with an Error
+        final AtomicInteger failures = new AtomicInteger(1);
+        Allocator allocator = new Allocator() {
+            @Override
+            public Buff alloc(int bytes) {
+                if (Thread.currentThread().getName().equals("graph-compactor") &&
+                        failures.getAndDecrement() > 0)
+                    throw new OutOfMemoryError("test");
+                return Allocator.HEAP.alloc(bytes);
+            }
+        };
+        CompactionScheduler scheduler =
+                new CompactionScheduler(new SizeTieredPolicy(2, 2, 100), 1, 0);
+        GraphStore store = new GraphStore(allocator, 1000, scheduler);
+        Reference reference = new Reference();
+        randomWrites(new Random(6), store, reference, 2000, 1000, 0);
+        store.flush();
+        store.awaitCompaction();
+        assertEquals(0, scheduler.getRunningCount());
+        // the failed selection is retried once there's a new segment
+        randomWrites(new Random(9), store, reference, 1000, 1000, 0);
+        store.flush();
+        store.awaitCompaction();
+        assertTrue(failures.get() < 0);
+        GraphsTest.assertSameView(reference.build(), store.newCursor());
+
+        // flushes after a shutdown schedule nothing
+        scheduler.shutdown();
+        randomWrites(new Random(7), store, reference, 2000, 1000, 0);
+        store.flush();
+        store.awaitCompaction();
+        assertEquals(0, scheduler.getRunningCount());
+        store.compact();
+        assertEquals(1, store.getSegments().size());
+        GraphsTest.assertSameView(reference.build(), store.newCursor());
+    }
+
+
+    @Test
+    public void testCompactionAlwaysFails() throws Exception {
+        final AtomicInteger failures = new AtomicInteger();
+        Allocator allocator = new Allocator() {
+            @Override
+            public Buff alloc(int bytes) {
+                if (Thread.currentThread().getName().equals("graph-compactor")) {
+                    failures.incrementAndGet();
+                    throw new IllegalStateException("test");
+                }
+                return Allocator.HEAP.alloc(bytes);
+            }
+        };
+        CompactionScheduler scheduler =
+                new CompactionScheduler(new SizeTieredPolicy(2, 2, 100), 1, 0);
+        GraphStore store = new GraphStore(allocator, 1000, scheduler);
+        Reference reference = new Reference();
+        randomWrites(new Random(8), store, reference, 4000, 1000, 0);
+        store.flush();
+        // failed selections aren't retried until the next flush, so this returns
+        store.awaitCompaction();
+        assertEquals(0, scheduler.getRunningCount());
+        assertTrue(failures.get() > 0);
+        assertTrue(scheduler.getLastError() instanceof IllegalStateException);
+        assertTrue(store.getSegments().size() > 1);
+        GraphsTest.assertSameView(reference.build(), store.newCursor());
+
+        // a foreground compaction (on this thread) still succeeds
+        store.compact();
+        assertEquals(1, store.getSegments().size());
+        GraphsTest.assertSameView(reference.build(), store.newCursor());
+        scheduler.shutdown();
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void testOneStorePerScheduler() {
+        CompactionScheduler scheduler = new CompactionScheduler(new SizeTieredPolicy());
+        new GraphStore(Allocator.HEAP, 10, scheduler);
+        new GraphStore(Allocator.HEAP, 10, scheduler);
+    }
+
+
+    /**
+     * A benchmark; it's run only if the <tt>graphiti.bench.large</tt> system property is
+     * set. (The <tt>*Store</tt> tests above check each policy's compactions.)
+     */
+    @Test
+    public void testPolicies() throws InterruptedException {
+        Assume.assumeTrue(Boolean.getBoolean("graphiti.bench.large"));
+        System.out.println("testPolicies");
+        System.out.println("============");
+        CompactionPolicy[] policies = {
+                new SizeTieredPolicy(), new LeveledPolicy(4, 256 * 1024, 4), new TimeWindowPolicy(100)
+        };
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        for (CompactionPolicy policy : policies) {
+            CompactionScheduler scheduler = new CompactionScheduler(policy);
+            GraphStore store = new GraphStore(Allocator.HEAP, 10000, scheduler);
+            Random rnd = new Random(5);
+            long nanos = System.nanoTime();
+            int maxFanOut = 0;
+            for (int count = 0; count < 400000; ++count) {
+                store.insertEdge(
+                        (short) rnd.nextInt(3), rnd.nextInt(100000),
+                        (short) rnd.nextInt(4),
+                        (short) rnd.nextInt(3), rnd.nextInt(100000));
+                if (count % 10000 == 0)
+                    maxFanOut = Math.max(maxFanOut, store.getReadFanOut());
+            }
+            store.flush();
+            store.awaitCompaction();
+            long millis = (System.nanoTime() - nanos) / 1000000;
+            scheduler.shutdown();
+
+            System.out.println("  " + policy.getClass().getSimpleName() + ":");
+            System.out.println("    ingest + compactions (ms): " + formatter.format(millis));
+            System.out.println("    compactions: " + scheduler.getCompactionCount());
+            System.out.println("    write amplification: " + formatter.format(store.getWriteAmplification()));
+            System.out.println("    max read fan-out: " + maxFanOut);
+            System.out.println("    final read fan-out: " + store.getReadFanOut());
+        }
+        System.out.println();
+    }
+
+
+    private GraphStore assertStoreConsistent(CompactionScheduler scheduler, Random rnd)
+            throws InterruptedException {
+        GraphStore store = new GraphStore(Allocator.HEAP, 2000, scheduler);
+        Reference reference = new Reference();
+        for (int round = 0; round < 8; ++round) {
+            randomWrites(rnd, store, reference, 10000, 5000, 0.1);
+            Thread.sleep(5);
+            // reads while compacting
+            GraphsTest.assertSameView(reference.build(), store.newCursor());
+        }
+        store.flush();
+        store.awaitCompaction();
+        assertNull(scheduler.getLastError());
+        assertTrue(scheduler.getCompactionCount() > 0);
+        assertTrue(store.getWriteAmplification() > 1);
+        GraphsTest.assertSameView(reference.build(), store.newCursor());
+        scheduler.shutdown();
+        return store;
+    }
+
+
+    private List<Integer> idsOf(Cursor cursor) {
+        assertTrue(cursor.moveTo(new NodeType(1), 1));
+        return cursor.getNodeIds(false, new EdgeType(1), new NodeType(1));
+    }
+
+
+    private void assertSelected(int from, int to, CompactionPolicy.Selection selection) {
+        assertNotNull(selection);
+        assertEquals(from, selection.getFrom());
+        assertEquals(to, selection.getTo());
+    }
+
+
+    private List<Segment> segments(int... edgeCounts) {
+        List<Segment> segments = new ArrayList<>(edgeCounts.length);
+        for (int edges : edgeCounts)
+            segments.add(segment(edges, 0, 0));
+        return segments;
+    }
+
+
+    /**
+     * Returns a segment with the given number of edges (a star).
+     */
+    private Segment segment(int edges, int level, long time) {
+        BulkGraphBuilder builder = new BulkGraphBuilder(2 * edges);
+        for (int id = 1; id <= edges; ++id)
+            builder.insertEdge((short) 1, 0, (short) 1, (short) 2, id);
+        return new Segment(builder.build(), null, level, time, time);
+    }
+
+
+    /**
+     * The expected edges.
+     */
+    private static class Reference {
+
+        private final Map<List<Integer>, int[]> edges = new LinkedHashMap<>();
+
+        void insert(int[] edge) {
+            edges.put(key(edge), edge);
+        }
+
+        void delete(int[] edge) {
+            edges.remove(key(edge));
+        }
+
+        private List<Integer> key(int[] edge) {
+            return Arrays.asList(edge[0], edge[1], edge[2], edge[3], edge[4]);
+        }
+
+        Graph build() {
+            BulkGraphBuilder builder = new BulkGraphBuilder();
+            for (int[] edge : edges.values())
+                builder.insertEdge((short) edge[0], edge[1], (short) edge[2], (short) edge[3], edge[4]);
+            return builder.build();
+        }
+    }
+
+
+    /**
+     * Writes random edges, a fraction of which are deletions of previously written edges.
+     */
+    private void randomWrites(
+            Random rnd, GraphStore store, Reference reference, int count, int nodes, double deletes) {
+        List<int[]> written = new ArrayList<>();
+        for (int index = 0; index < count; ++index) {
+            if (!written.isEmpty() && rnd.nextDouble() < deletes) {
+                int[] edge = written.get(rnd.nextInt(written.size()));
+                store.deleteEdge((short) edge[0], edge[1], (short) edge[2], (short) edge[3], edge[4]);
+                reference.delete(edge);
+            } else {
+                int[] edge = {
+                    rnd.nextInt(3), rnd.nextInt(nodes), rnd.nextInt(4), rnd.nextInt(3), rnd.nextInt(nodes)
+                };
+                store.insertEdge((short) edge[0], edge[1], (short) edge[2], (short) edge[3], edge[4]);
+                reference.insert(edge);
+                written.add(edge);
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.text.DecimalFormat;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Graphs built concurrently by the {@linkplain ConcurrentGraphBuilder} must be identical
+ * (byte-for-byte) to those built by the {@linkplain GraphBuilder} from the same edges.
+ */
+public class ConcurrentGraphBuilderTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    /**
+     * Inserts random edges, with ample duplicates and negative types. The edges are a function
+     * of the <tt>seed</tt> alone.
+     */
+    private static class Producer extends Thread {
+
+        final int seed;
+        final int edges;
+        final int maxNodeId;
+        final ConcurrentGraphBuilder target;
+        final GraphBuilder control;
+
+        Producer(int seed, int edges, int maxNodeId, ConcurrentGraphBuilder target, GraphBuilder control) {
+            this.seed = seed;
+            this.edges = edges;
+            this.maxNodeId = maxNodeId;
+            this.target = target;
+            this.control = control;
+        }
+
+        @Override
+        public void run() {
+            Random random = new Random(seed);
+            ConcurrentGraphBuilder.Writer writer =
+                    target != null && seed % 2 == 0 ? target.newWriter() : null;
+            for (int count = edges; count-- > 0; ) {
+                short srcType = (short) (random.nextInt(5) - 2);
+                int srcId = random.nextInt(maxNodeId);
+                short edgeType = (short) (random.nextInt(7) - 1);
+                short dtnType = (short) (random.nextInt(5) - 2);
+                int dtnId = random.nextInt(maxNodeId);
+                if (control != null)
+                    control.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+                else if (writer != null)
+                    writer.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+                else
+                    target.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+            }
+        }
+    }
+
+
+    @Test
+    public void testSameAsGraphBuilder() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ConcurrentGraphBuilder builder =
+                new ConcurrentGraphBuilder(Allocator.HEAP, Table.UNPAGED, Layout.NARROW, pool);
+        Graph actual = produce(builder, 5, 40 * 1000, 5000);
+        Graph expected = produceControl(5, 40 * 1000, 5000);
+        assertEquals(expected.getEdgeCount(), actual.getEdgeCount());
+        GraphFileTest.assertSameBytes(expected, actual, tempDir);
+
+        // the buffers are left intact
+        assertEquals(5 * 40 * 1000, builder.getBufferedCount());
+        GraphFileTest.assertSameBytes(expected, builder.build(), tempDir);
+        pool.shutdown();
+    }
+
+
+    @Test
+    public void testFewNodes() throws Exception {
+        // few nodes with many edges each: sampled range bounds collide
+        ConcurrentGraphBuilder builder = new ConcurrentGraphBuilder();
+        Graph actual = produce(builder, 3, 20 * 1000, 3);
+        GraphFileTest.assertSameBytes(produceControl(3, 20 * 1000, 3), actual, tempDir);
+    }
+
+
+    @Test
+    public void testSmall() throws Exception {
+        ConcurrentGraphBuilder builder = new ConcurrentGraphBuilder();
+        Graph actual = produce(builder, 2, 10, 20);
+        GraphFileTest.assertSameBytes(produceControl(2, 10, 20), actual, tempDir);
+    }
+
+
+    @Test
+    public void testPagedDirect() throws Exception {
+        ConcurrentGraphBuilder builder = new ConcurrentGraphBuilder(
+                Allocator.DIRECT, 5, Layout.NARROW, ForkJoinPool.commonPool());
+        Graph actual = produce(builder, 4, 10 * 1000, 2000);
+        assertTrue(actual.addressTable.isPaged());
+        assertEquals(Allocator.DIRECT, actual.nodeIdTable.getAllocator());
+        GraphFileTest.assertSameBytes(produceControl(4, 10 * 1000, 2000), actual, tempDir);
+        actual.release();
+    }
+
+
+    @Test
+    public void testWideNodeIds() throws Exception {
+        ConcurrentGraphBuilder builder = new ConcurrentGraphBuilder();
+        builder.insertEdge((short) 1, Integer.MAX_VALUE, (short) 1, (short) 1, 5);
+        builder.newWriter().insertEdge((short) 1, 5, (short) 1, (short) 1, Integer.MAX_VALUE);
+        Graph graph = builder.build();
+        assertEquals(Layout.of(false, 4), graph.getLayout());
+        Cursor cursor = graph.newCursor();
+        assertTrue(cursor.moveTo(new NodeType(1), Integer.MAX_VALUE));
+        assertEquals(1, cursor.getEdgeCount(false));
+        assertEquals(1, cursor.getEdgeCount(true));
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void testEmpty() {
+        ConcurrentGraphBuilder builder = new ConcurrentGraphBuilder();
+        builder.newWriter();
+        builder.build();
+    }
+
+
+    @Test
+    public void testClear() throws Exception {
+        ConcurrentGraphBuilder builder = new ConcurrentGraphBuilder();
+        produce(builder, 2, 100, 20);
+        assertFalse(builder.isEmpty());
+        builder.clear();
+        assertTrue(builder.isEmpty());
+    }
+
+
+    @Test
+    public void testThroughput() throws Exception {
+        System.out.println("testThroughput");
+        System.out.println("==============");
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = Math.max(2, Math.min(8, cores));
+        // warm up
+        runBenchmark(1, 200 * 1000, false);
+        runBenchmark(threads, 200 * 1000, false);
+
+        runBenchmark(1, 2 * 1000 * 1000, true);
+        runBenchmark(threads, 2 * 1000 * 1000, true);
+    }
+
+
+    private void runBenchmark(int threads, int edges, boolean print) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ConcurrentGraphBuilder builder =
+                new ConcurrentGraphBuilder(Allocator.HEAP, Table.UNPAGED, Layout.NARROW, pool);
+        long nanos = System.nanoTime();
+        Graph graph = produce(builder, threads, edges / threads, 1000 * 1000);
+        nanos = System.nanoTime() - nanos;
+        pool.shutdown();
+        assertTrue(graph.getEdgeCount() > 0);
+
+        if (print) {
+            DecimalFormat formatter = new DecimalFormat("#,###.##");
+            System.out.println(threads + " thread(s):");
+            System.out.println("  edges: " + formatter.format(graph.getEdgeCount() / 2));
+            System.out.println("  insert + build (ms): " + formatter.format(nanos / 1000000));
+            System.out.println("  edges/sec: " + formatter.format(edges * 1e9 / nanos));
+            System.out.println();
+        }
+    }
+
+
+    private Graph produce(ConcurrentGraphBuilder builder, int threads, int edges, int maxNodeId)
+            throws InterruptedException {
+        Producer[] producers = new Producer[threads];
+        for (int p = 0; p < threads; ++p) {
+            producers[p] = new Producer(p, edges, maxNodeId, builder, null);
+            producers[p].start();
+        }
+        for (Producer producer : producers)
+            producer.join();
+        return builder.build();
+    }
+
+
+    private Graph produceControl(int threads, int edges, int maxNodeId) {
+        GraphBuilder control = new GraphBuilder();
+        for (int p = 0; p < threads; ++p)
+            new Producer(p, edges, maxNodeId, null, control).run();
+        return control.build();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.datatypes.ShortInt;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Moving a {@linkplain FixedGraphCursor}, and looking up edge and node types at its
+ * position, must not allocate.
+ */
+public class CursorAllocationTest {
+
+    private final static int MAX_NODE_ID = 50 * 1000;
+
+
+    @Test
+    public void testManyTypes() {
+        // more edge (and node) types at a node than are scanned linearly
+        GraphBuilder builder = new GraphBuilder();
+        for (int type = 0; type < 600; type += 2)
+            builder.insertEdge((short) 1, 1, (short) (type - 300), (short) (type - 301), type);
+        Graph graph = builder.build();
+        Cursor cursor = graph.newCursor();
+        assertTrue(cursor.moveTo(new NodeType(1), 1));
+        assertEquals(300, cursor.getEdgeTypes(false).size());
+        for (int type = 0; type < 600; ++type) {
+            EdgeType edgeType = new EdgeType(type - 300);
+            NodeType nodeType = new NodeType(type - 301);
+            int expected = type % 2 == 0 ? 1 : 0;
+            assertEquals(expected, cursor.getEdgeCount(false, edgeType));
+            assertEquals(expected, cursor.getNodeTypes(false, edgeType).size());
+            assertEquals(expected, cursor.getEdgeCount(false, edgeType, nodeType));
+        }
+        assertFalse(cursor.moveTo(new NodeType(1), 0));
+        assertFalse(cursor.moveTo(new NodeType(1), 2));
+        assertFalse(cursor.moveTo(new NodeType(Short.MIN_VALUE), 1));
+        assertTrue(cursor.moveTo(new NodeType(-1), 300));
+        assertEquals(1, cursor.getEdgeCount(true));
+    }
+
+
+    @Test
+    public void testInternedTypes() {
+        assertSame(EdgeType.valueOf((short) -5), EdgeType.valueOf((short) -5));
+        assertEquals(new EdgeType(-5), EdgeType.valueOf((short) -5));
+        assertSame(NodeType.valueOf(Short.MAX_VALUE), NodeType.valueOf(Short.MAX_VALUE));
+        assertEquals(new NodeType(Short.MIN_VALUE), NodeType.valueOf(Short.MIN_VALUE));
+    }
+
+
+    @Test
+    public void testZeroAllocation() {
+        Assume.assumeTrue(allocationCountingSupported());
+        Graph graph = new RandomGraphBuilder().setBulkBuilder(new BulkGraphBuilder()).setBulkOnly(true)
+                .setSeed(1).generateUniform(200 * 1000, 0, 7, MAX_NODE_ID).build();
+        Cursor cursor = graph.newCursor();
+        List<ShortInt> nodes = cursor.getQualifiedNodeIds();
+        int moves = 100 * 1000;
+        NodeType[] nodeTypes = new NodeType[moves];
+        int[] nodeIds = new int[moves];
+        Random random = new Random(2);
+        for (int index = 0; index < moves; ++index) {
+            // mostly hits, some misses
+            ShortInt node = nodes.get(random.nextInt(nodes.size()));
+            nodeTypes[index] = new NodeType(node.getType());
+            nodeIds[index] = node.getId() + (index % 8 == 0 ? MAX_NODE_ID : 0);
+        }
+        EdgeType[] edgeTypes = new EdgeType[8];
+        for (int type = 0; type < edgeTypes.length; ++type)
+            edgeTypes[type] = new EdgeType(type);
+
+        // warm up
+        for (int run = 0; run < 5; ++run) {
+            moveAll(cursor, nodeTypes, nodeIds);
+            lookupAll(cursor, nodeTypes, nodeIds, edgeTypes);
+        }
+
+        long bytes = allocatedBytes();
+        int found = moveAll(cursor, nodeTypes, nodeIds);
+        bytes = allocatedBytes() - bytes - allocationOverhead();
+        assertTrue(found > moves / 2);
+        assertEquals("bytes allocated by " + moves + " moves", 0, bytes);
+
+        bytes = allocatedBytes();
+        long count = lookupAll(cursor, nodeTypes, nodeIds, edgeTypes);
+        bytes = allocatedBytes() - bytes - allocationOverhead();
+        assertTrue(count > 0);
+        assertEquals("bytes allocated by " + moves + " moves + lookups", 0, bytes);
+    }
+
+
+    @Test
+    public void testMoveToLatency() {
+        System.out.println("testMoveToLatency");
+        System.out.println("=================");
+        Graph graph = new RandomGraphBuilder().setBulkBuilder(new BulkGraphBuilder()).setBulkOnly(true)
+                .setSeed(3).generateUniform(1000 * 1000, 0, 7, MAX_NODE_ID).build();
+        Cursor cursor = graph.newCursor();
+        int moves = 1000 * 1000;
+        NodeType[] nodeTypes = new NodeType[moves];
+        int[] nodeIds = new int[moves];
+        Random random = new Random(4);
+        for (int index = 0; index < moves; ++index) {
+            nodeTypes[index] = new NodeType(random.nextInt(4));
+            nodeIds[index] = random.nextInt(MAX_NODE_ID);
+        }
+        EdgeType[] edgeTypes = new EdgeType[8];
+        for (int type = 0; type < edgeTypes.length; ++type)
+            edgeTypes[type] = new EdgeType(type);
+        // warm up
+        for (int run = 0; run < 3; ++run) {
+            moveAll(cursor, nodeTypes, nodeIds);
+            lookupAll(cursor, nodeTypes, nodeIds, edgeTypes);
+        }
+        long nanos = System.nanoTime();
+        moveAll(cursor, nodeTypes, nodeIds);
+        nanos = System.nanoTime() - nanos;
+        long lookupNanos = System.nanoTime();
+        lookupAll(cursor, nodeTypes, nodeIds, edgeTypes);
+        lookupNanos = System.nanoTime() - lookupNanos;
+
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        System.out.println("  nodes: " + formatter.format(graph.getNodeCount()));
+        System.out.println("  moveTo (ns): " + formatter.format((double) nanos / moves));
+        System.out.println("  moveTo + 8 edge type lookups (ns): " + formatter.format((double) lookupNanos / moves));
+        System.out.println();
+    }
+
+
+    private static int moveAll(Cursor cursor, NodeType[] nodeTypes, int[] nodeIds) {
+        int found = 0;
+        for (int index = 0; index < nodeIds.length; ++index) {
+            if (cursor.moveTo(nodeTypes[index], nodeIds[index]))
+                ++found;
+        }
+        return found;
+    }
+
+
+    /**
+     * Moves to each node, and looks up every edge type (and node type) in both directions
+     * there. The returned type lists are read by index.
+     */
+    private static long lookupAll(Cursor cursor, NodeType[] nodeTypes, int[] nodeIds, EdgeType[] edgeTypes) {
+        long count = 0;
+        for (int index = 0; index < nodeIds.length; ++index) {
+            if (!cursor.moveTo(nodeTypes[index], nodeIds[index]))
+                continue;
+            for (int d = 0; d < 2; ++d) {
+                boolean inbound = d == 1;
+                count += cursor.getEdgeCount(inbound);
+                for (EdgeType edgeType : edgeTypes) {
+                    count += cursor.getEdgeCount(inbound, edgeType);
+                    count += cursor.getEdgeCount(inbound, edgeType, nodeTypes[index]);
+                }
+            }
+        }
+        return count;
+    }
+
+
+    private static boolean allocationCountingSupported() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return false;
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported())
+            return false;
+        if (!sunBean.isThreadAllocatedMemoryEnabled())
+            sunBean.setThreadAllocatedMemoryEnabled(true);
+        return true;
+    }
+
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+
+    /**
+     * Returns the bytes allocated by a back-to-back pair of {@linkplain #allocatedBytes()}
+     * calls themselves.
+     */
+    private static long allocationOverhead() {
+        long bytes = allocatedBytes();
+        return allocatedBytes() - bytes;
+    }
+}
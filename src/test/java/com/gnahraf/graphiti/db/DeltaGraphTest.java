@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.datatypes.ShortInt;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * A {@linkplain DeltaGraph}'s cursor must see the same graph as one built from the base's
+ * edges and the delta's.
+ */
+public class DeltaGraphTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testEmpty() {
+        DeltaGraph delta = new DeltaGraph();
+        assertTrue(delta.isEmpty());
+        Cursor cursor = delta.newCursor();
+        assertTrue(cursor.getQualifiedNodeIds().isEmpty());
+        assertFalse(cursor.moveTo(new NodeType(1), 1));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeId() {
+        new DeltaGraph().insertEdge((short) 1, -1, (short) 1, (short) 1, 1);
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void testFreezeEmpty() {
+        new DeltaGraph().freeze();
+    }
+
+
+    @Test
+    public void testNoBase() throws IOException {
+        DeltaGraph delta = new DeltaGraph();
+        GraphBuilder control = new GraphBuilder();
+        insertRandom(new Random(1), 20000, 1000, delta, control);
+        Graph expected = control.build();
+        assertEquals(expected.getEdgeCount() / 2, delta.getEdgeCount());
+        GraphsTest.assertSameView(expected, delta.newCursor());
+        GraphFileTest.assertSameBytes(expected, delta.freeze(), tempDir);
+    }
+
+
+    @Test
+    public void testOverBase() throws IOException {
+        GraphBuilder baseBuilder = new GraphBuilder();
+        GraphBuilder control = new GraphBuilder();
+        Random random = new Random(2);
+        insertRandom(random, 20000, 1000, baseBuilder, control);
+        Graph base = baseBuilder.build();
+
+        DeltaGraph delta = new DeltaGraph(base);
+        insertRandom(random, 20000, 1500, delta, control);
+        Graph expected = control.build();
+        assertEquals((expected.getEdgeCount() - base.getEdgeCount()) / 2, delta.getEdgeCount());
+        GraphsTest.assertSameView(expected, delta.newCursor());
+        GraphFileTest.assertSameBytes(expected, Graph.merge(base, delta.freeze()), tempDir);
+    }
+
+
+    @Test
+    public void testBaseEdgesSkipped() {
+        GraphBuilder baseBuilder = new GraphBuilder();
+        baseBuilder.insertEdge((short) 1, 1, (short) 1, (short) 2, 2);
+        DeltaGraph delta = new DeltaGraph(baseBuilder.build());
+        assertFalse(delta.insertEdge((short) 1, 1, (short) 1, (short) 2, 2));
+        assertTrue(delta.isEmpty());
+        assertTrue(delta.insertEdge((short) 1, 1, (short) 1, (short) 2, 3));
+        assertFalse(delta.insertEdge((short) 1, 1, (short) 1, (short) 2, 3));
+        assertEquals(1, delta.getEdgeCount());
+        // only node (2,3) is new
+        assertEquals(3, delta.newCursor().getQualifiedNodeIds().size());
+    }
+
+
+    @Test
+    public void testReadYourWrites() {
+        GraphBuilder baseBuilder = new GraphBuilder();
+        baseBuilder.insertEdge((short) 1, 1, (short) 1, (short) 2, 2);
+        DeltaGraph delta = new DeltaGraph(baseBuilder.build());
+        Cursor cursor = delta.newCursor();
+        NodeType one = new NodeType(1);
+        NodeType two = new NodeType(2);
+        EdgeType edgeType = new EdgeType(1);
+        assertTrue(cursor.moveTo(one, 1));
+        assertEquals(1, cursor.getEdgeCount(false));
+        assertFalse(cursor.moveTo(two, 0));
+
+        delta.insertEdge((short) 1, 1, (short) 1, (short) 2, 0);
+        delta.insertEdge((short) 1, 1, (short) 1, (short) 2, 7);
+        assertTrue(cursor.moveTo(one, 1));
+        assertEquals(3, cursor.getEdgeCount(false));
+        assertEquals(Arrays.asList(0, 2, 7), cursor.getNodeIds(false, edgeType, two));
+        assertTrue(cursor.moveTo(two, 0));
+        assertEquals(Arrays.asList(1), cursor.getNodeIds(true, edgeType, one));
+        assertEquals(
+                Arrays.asList(new ShortInt(1, 1), new ShortInt(2, 0), new ShortInt(2, 2), new ShortInt(2, 7)),
+                cursor.getQualifiedNodeIds());
+    }
+
+
+    @Test
+    public void testExtremes() throws IOException {
+        DeltaGraph delta = new DeltaGraph();
+        GraphBuilder control = new GraphBuilder();
+        short[] types = { Short.MIN_VALUE, -1, 0, 1, Short.MAX_VALUE };
+        int[] ids = { 0, 1, 65535, 65536, Integer.MAX_VALUE };
+        for (short srcType : types)
+            for (int srcId : ids)
+                for (short edgeType : types)
+                    for (short dtnType : types) {
+                        int dtnId = ids[(srcId + edgeType + dtnType) & 3];
+                        delta.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+                        control.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+                    }
+        // self loops
+        delta.insertEdge((short) 3, 3, (short) 3, (short) 3, 3);
+        control.insertEdge((short) 3, 3, (short) 3, (short) 3, 3);
+        Graph expected = control.build();
+        GraphsTest.assertSameView(expected, delta.newCursor());
+        GraphFileTest.assertSameBytes(expected, delta.freeze(), tempDir);
+    }
+
+
+    /**
+     * A benchmark; it's run only if the <tt>graphiti.bench.large</tt> system property is
+     * set. (The tests above cover inserts and reads over a base.)
+     */
+    @Test
+    public void testInsertLatency() {
+        Assume.assumeTrue(Boolean.getBoolean("graphiti.bench.large"));
+        System.out.println("testInsertLatency");
+        System.out.println("=================");
+        BulkGraphBuilder baseBuilder = new BulkGraphBuilder();
+        Random random = new Random(3);
+        int maxNodeId = 200 * 1000;
+        for (int count = 1000 * 1000; count-- > 0; ) {
+            baseBuilder.insertEdge(
+                    (short) random.nextInt(4), random.nextInt(maxNodeId),
+                    (short) random.nextInt(8),
+                    (short) random.nextInt(4), random.nextInt(maxNodeId));
+        }
+        Graph base = baseBuilder.build();
+
+        // warm up
+        insertTimed(new DeltaGraph(base), new Random(4), 200 * 1000, maxNodeId);
+
+        int edges = 1000 * 1000;
+        DeltaGraph delta = new DeltaGraph(base);
+        long nanos = insertTimed(delta, new Random(5), edges, maxNodeId);
+        long noBaseNanos = insertTimed(new DeltaGraph(), new Random(5), edges, maxNodeId);
+
+        Cursor cursor = delta.newCursor();
+        Random reads = new Random(6);
+        long readNanos = System.nanoTime();
+        int found = 0;
+        for (int count = edges; count-- > 0; ) {
+            if (cursor.moveTo(new NodeType(reads.nextInt(4)), reads.nextInt(maxNodeId)))
+                found += cursor.getEdgeCount(false);
+        }
+        readNanos = System.nanoTime() - readNanos;
+        assertTrue(found > 0);
+
+        cursor = base.newCursor();
+        reads = new Random(6);
+        long baseReadNanos = System.nanoTime();
+        for (int count = edges; count-- > 0; ) {
+            if (cursor.moveTo(new NodeType(reads.nextInt(4)), reads.nextInt(maxNodeId)))
+                found -= cursor.getEdgeCount(false);
+        }
+        baseReadNanos = System.nanoTime() - baseReadNanos;
+
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        System.out.println("  base edges: " + formatter.format(base.getEdgeCount() / 2));
+        System.out.println("  delta edges: " + formatter.format(delta.getEdgeCount()));
+        System.out.println("  insert, no base (ns/edge): " + formatter.format((double) noBaseNanos / edges));
+        System.out.println("  insert (ns/edge): " + formatter.format((double) nanos / edges));
+        System.out.println("  moveTo + getEdgeCount, base only (ns): " +
+                formatter.format((double) baseReadNanos / edges));
+        System.out.println("  moveTo + getEdgeCount, base + delta (ns): " +
+                formatter.format((double) readNanos / edges));
+        long freezeNanos = System.nanoTime();
+        Graph.merge(base, delta.freeze());
+        freezeNanos = System.nanoTime() - freezeNanos;
+        System.out.println("  freeze + merge (ms): " + formatter.format(freezeNanos / 1000000));
+        System.out.println();
+    }
+
+
+    private static long insertTimed(DeltaGraph delta, Random random, int edges, int maxNodeId) {
+        long nanos = System.nanoTime();
+        for (int count = edges; count-- > 0; ) {
+            delta.insertEdge(
+                    (short) random.nextInt(4), random.nextInt(maxNodeId),
+                    (short) random.nextInt(8),
+                    (short) random.nextInt(4), random.nextInt(maxNodeId));
+        }
+        return System.nanoTime() - nanos;
+    }
+
+
+    private static void insertRandom(
+            Random random, int edges, int maxNodeId, Object target, GraphBuilder control) {
+        for (int count = edges; count-- > 0; ) {
+            short srcType = (short) (random.nextInt(5) - 2);
+            int srcId = random.nextInt(maxNodeId);
+            short edgeType = (short) (random.nextInt(7) - 1);
+            short dtnType = (short) (random.nextInt(5) - 2);
+            int dtnId = random.nextInt(maxNodeId);
+            if (target instanceof DeltaGraph)
+                ((DeltaGraph) target).insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+            else
+                ((GraphBuilder) target).insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+            control.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Edges logged to an {@linkplain EdgeLog} must replay to the same graph they were
+ * inserted into, and survive torn writes.
+ */
+public class EdgeLogTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path file = tempDir.newFile().toPath();
+        Files.delete(file);
+        GraphBuilder control = new GraphBuilder();
+        try (EdgeLog log = EdgeLog.open(file, 1000)) {
+            Random random = new Random(1);
+            for (int count = 1; count <= 100000; ++count) {
+                appendRandom(random, log, control);
+                if (count % 777 == 0)
+                    log.commit();
+            }
+            assertEquals(100000, log.getAppendCount());
+        }
+        Graph expected = control.build();
+
+        GraphBuilder builder = new GraphBuilder();
+        assertEquals(100000, EdgeLog.replay(file, builder));
+        GraphFileTest.assertSameBytes(expected, builder.build(), tempDir);
+
+        ConcurrentGraphBuilder concurrentBuilder = new ConcurrentGraphBuilder();
+        assertEquals(100000, EdgeLog.replay(file, concurrentBuilder));
+        GraphFileTest.assertSameBytes(expected, concurrentBuilder.build(), tempDir);
+    }
+
+
+    @Test
+    public void testReopen() throws IOException {
+        Path file = tempDir.newFile().toPath();
+        Files.delete(file);
+        GraphBuilder control = new GraphBuilder();
+        Random random = new Random(2);
+        try (EdgeLog log = EdgeLog.open(file)) {
+            for (int count = 10; count-- > 0; )
+                appendRandom(random, log, control);
+        }
+        try (EdgeLog log = EdgeLog.open(file)) {
+            assertEquals(10, log.getAppendCount());
+            assertEquals(10, log.getCommitCount());
+            for (int count = 5; count-- > 0; )
+                appendRandom(random, log, control);
+        }
+        GraphBuilder builder = new GraphBuilder();
+        assertEquals(15, EdgeLog.replay(file, builder));
+        GraphFileTest.assertSameBytes(control.build(), builder.build(), tempDir);
+    }
+
+
+    @Test
+    public void testEmpty() throws IOException {
+        Path file = tempDir.newFile().toPath();
+        Files.delete(file);
+        EdgeLog.open(file).close();
+        assertEquals(EdgeLog.HEADER_SIZE, Files.size(file));
+        GraphBuilder builder = new GraphBuilder();
+        assertEquals(0, EdgeLog.replay(file, builder));
+        assertTrue(builder.isEmpty());
+    }
+
+
+    @Test
+    public void testTornTail() throws IOException {
+        Path file = writeBlocks(100, 250);
+        long size = Files.size(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(size - 5);
+        }
+        assertEquals(200, EdgeLog.replay(file, new GraphBuilder()));
+
+        try (EdgeLog log = EdgeLog.open(file, 100)) {
+            assertEquals(200, log.getAppendCount());
+            assertEquals(EdgeLog.HEADER_SIZE + 2 * blockSize(100), Files.size(file));
+            for (int count = 10; count-- > 0; )
+                log.append((short) 1, count, (short) 2, (short) 3, count);
+        }
+        assertEquals(210, EdgeLog.replay(file, new GraphBuilder()));
+    }
+
+
+    @Test
+    public void testCorruptBlock() throws IOException {
+        Path file = writeBlocks(100, 250);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            long pos = EdgeLog.HEADER_SIZE + blockSize(100) + EdgeLog.BLOCK_HEADER_SIZE + 17;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 1);
+        }
+        // the log ends at the first bad block
+        assertEquals(100, EdgeLog.replay(file, new GraphBuilder()));
+        assertEquals(100, EdgeLog.replay(file, new ConcurrentGraphBuilder()));
+    }
+
+
+    @Test
+    public void testAppendWhileClosing() throws Exception {
+        Path file = tempDir.newFile().toPath();
+        Files.delete(file);
+        final EdgeLog log = EdgeLog.open(file, 100);
+        final long[] appended = new long[1];
+        Thread appender = new Thread() {
+            @Override
+            public void run() {
+                Random random = new Random(3);
+                try {
+                    while (true)
+                        appended[0] = log.append((short) 1, random.nextInt(1000), (short) 2, (short) 3, 4);
+                } catch (IllegalStateException closed) {
+                } catch (IOException iox) {
+                    throw new RuntimeException(iox);
+                }
+            }
+        };
+        appender.start();
+        Thread.sleep(50);
+        log.close();
+        appender.join();
+        // every record appended before the close is committed
+        assertTrue(appended[0] > 0);
+        assertEquals(appended[0], EdgeLog.replay(file, new GraphBuilder()));
+    }
+
+
+    @Test(expected = IOException.class)
+    public void testNotALog() throws IOException {
+        Path file = tempDir.newFile().toPath();
+        Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        EdgeLog.open(file);
+    }
+
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        System.out.println("testGroupCommit");
+        System.out.println("===============");
+        Path file = tempDir.newFile().toPath();
+        Files.delete(file);
+        final int threads = 8;
+        final int commits = 500;
+        final EdgeLog log = EdgeLog.open(file);
+        final IOException[] error = new IOException[1];
+        Thread[] committers = new Thread[threads];
+        long nanos = System.nanoTime();
+        for (int t = 0; t < threads; ++t) {
+            final int srcId = t;
+            committers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int count = 0; count < commits; ++count) {
+                            long seqNo = log.append((short) 1, srcId, (short) 1, (short) 2, count);
+                            log.commit(seqNo);
+                            assertTrue(log.getCommitCount() >= seqNo);
+                        }
+                    } catch (IOException iox) {
+                        error[0] = iox;
+                    }
+                }
+            };
+            committers[t].start();
+        }
+        for (Thread committer : committers)
+            committer.join();
+        nanos = System.nanoTime() - nanos;
+        log.close();
+        assertNull(error[0]);
+
+        int total = threads * commits;
+        assertEquals(total, log.getCommitCount());
+        assertTrue(log.getSyncCount() < total);
+        assertEquals(total, EdgeLog.replay(file, new GraphBuilder()));
+
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        System.out.println("  " + threads + " threads x " + commits + " commits");
+        System.out.println("  syncs: " + formatter.format(log.getSyncCount()));
+        System.out.println("  commits/sec: " + formatter.format(total * 1e9 / nanos));
+        System.out.println();
+    }
+
+
+    @Test
+    public void testReplayThroughput() throws IOException {
+        System.out.println("testReplayThroughput");
+        System.out.println("====================");
+        Path file = tempDir.newFile().toPath();
+        Files.delete(file);
+        int edges = 1000 * 1000;
+        long nanos = System.nanoTime();
+        try (EdgeLog log = EdgeLog.open(file)) {
+            Random random = new Random(3);
+            for (int count = 1; count <= edges; ++count) {
+                appendRandom(random, log, null);
+                if (count % 10000 == 0)
+                    log.commit();
+            }
+        }
+        long appendNanos = System.nanoTime() - nanos;
+
+        // warm up
+        EdgeLog.replay(file, new ConcurrentGraphBuilder());
+
+        nanos = System.nanoTime();
+        EdgeLog.replay(file, new GraphBuilder());
+        long sequentialNanos = System.nanoTime() - nanos;
+
+        nanos = System.nanoTime();
+        EdgeLog.replay(file, new ConcurrentGraphBuilder());
+        long parallelNanos = System.nanoTime() - nanos;
+
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        System.out.println("  edges: " + formatter.format(edges));
+        System.out.println("  log bytes: " + formatter.format(Files.size(file)));
+        System.out.println("  append (commit every 10,000) edges/sec: " +
+                formatter.format(edges * 1e9 / appendNanos));
+        System.out.println("  replay into GraphBuilder edges/sec: " +
+                formatter.format(edges * 1e9 / sequentialNanos));
+        System.out.println("  parallel replay into ConcurrentGraphBuilder edges/sec: " +
+                formatter.format(edges * 1e9 / parallelNanos));
+        System.out.println();
+    }
+
+
+    /**
+     * Writes a log of the given number of records, in blocks of the given size.
+     */
+    private Path writeBlocks(int blockRecords, int records) throws IOException {
+        Path file = tempDir.newFile().toPath();
+        Files.delete(file);
+        try (EdgeLog log = EdgeLog.open(file, blockRecords)) {
+            for (int count = 0; count < records; ++count)
+                log.append((short) 1, count, (short) 2, (short) 3, count);
+        }
+        assertEquals(
+                EdgeLog.HEADER_SIZE + blockSize(records) + EdgeLog.BLOCK_HEADER_SIZE *
+                        ((records - 1) / blockRecords),
+                Files.size(file));
+        return file;
+    }
+
+
+    private static int blockSize(int records) {
+        return EdgeLog.BLOCK_HEADER_SIZE + records * EdgeLog.RECORD_SIZE;
+    }
+
+
+    private static void appendRandom(Random random, EdgeLog log, GraphBuilder control)
+            throws IOException {
+        short srcType = (short) (random.nextInt(5) - 2);
+        int srcId = random.nextInt(100000);
+        short edgeType = (short) (random.nextInt(7) - 1);
+        short dtnType = (short) (random.nextInt(5) - 2);
+        int dtnId = random.nextInt(100000);
+        log.append(srcType, srcId, edgeType, dtnType, dtnId);
+        if (control != null)
+            control.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.util.mem.Allocator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Merges preceded by a counting pass allocate their output exactly.
+ */
+public class ExactSizingTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testCountRows() {
+        Graph[] inputs = overlapping(new RandomGraphBuilder(), 3000);
+        GraphMerger merger = new GraphMerger(Arrays.asList(inputs), Allocator.HEAP);
+        int[] rows = merger.countRows();
+        // counting doesn't invoke the instance
+        Graph merged = merger.merge();
+        assertEquals(merged.addressTable.size(), rows[0]);
+        assertEquals(merged.edgeTable.size(), rows[1]);
+        assertEquals(merged.nodeTypeTable.size(), rows[2]);
+        assertEquals(merged.nodeIdTable.size(), rows[3]);
+    }
+
+
+    @Test
+    public void testExactMerge() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(100);
+        Graph[] inputs = overlapping(builder, 4000);
+
+        Graph exact = new GraphMerger(Arrays.asList(inputs), Allocator.HEAP)
+                .setExactSizing(true).merge();
+        assertEquals(0, exact.unusedMem());
+        Graph merged = Graph.merge(inputs);
+        assertTrue(merged.unusedMem() > 0);
+        GraphFileTest.assertSameBytes(merged, exact, tempDir);
+    }
+
+
+    @Test
+    public void testExactDirect() throws IOException {
+        Graph[] inputs = overlapping(new RandomGraphBuilder(), 2000);
+        Graph exact = new GraphMerger(Arrays.asList(inputs), Allocator.DIRECT)
+                .setExactSizing(true).merge();
+        assertEquals(0, exact.unusedMem());
+        GraphFileTest.assertSameBytes(Graph.merge(inputs), exact, tempDir);
+        exact.release();
+    }
+
+
+    @Test
+    public void testExactMergeToFile() throws IOException {
+        Graph[] inputs = overlapping(new RandomGraphBuilder(), 4000);
+        Path file = tempDir.newFile().toPath();
+        new GraphMerger(Arrays.asList(inputs), Allocator.HEAP).setExactSizing(true).mergeTo(file);
+        // the tables are laid out back to back, as if saved
+        Path expected = tempDir.newFile().toPath();
+        Graph.merge(inputs).save(expected);
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(file));
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void testCountAfterMerge() {
+        GraphMerger merger = new GraphMerger(
+                new RandomGraphBuilder().generateGraph(10), new RandomGraphBuilder().generateGraph(10));
+        merger.merge();
+        merger.countRows();
+    }
+
+
+    @Test
+    public void testPrepassVsTrim() {
+        System.out.println("testPrepassVsTrim");
+        System.out.println("=================");
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(2);
+        builder.generate(100);
+        builder.setDistroRefreshPeriod(100);
+        Graph[] inputs = overlapping(builder, 25000);
+
+        // warm up
+        mergeAndTrim(inputs);
+        exactMerge(inputs);
+
+        long nanos = System.nanoTime();
+        Graph merged = Graph.merge(inputs);
+        long mergeNanos = System.nanoTime() - nanos;
+        long overAllocated = merged.unusedMem();
+        nanos = System.nanoTime();
+        merged.trimMemToSize();
+        long trimNanos = System.nanoTime() - nanos;
+
+        GraphMerger merger = new GraphMerger(Arrays.asList(inputs), Allocator.HEAP);
+        nanos = System.nanoTime();
+        merger.countRows();
+        long countNanos = System.nanoTime() - nanos;
+
+        nanos = System.nanoTime();
+        Graph exact = exactMerge(inputs);
+        long exactNanos = System.nanoTime() - nanos;
+        assertEquals(merged.getEdgeCount(), exact.getEdgeCount());
+        assertEquals(0, exact.unusedMem());
+
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        long inputEdges = 0;
+        for (Graph input : inputs)
+            inputEdges += input.getEdgeCount();
+        System.out.println("  input edges: " + formatter.format(inputEdges / 2));
+        System.out.println("  merged edges: " + formatter.format(merged.getEdgeCount() / 2));
+        System.out.println("  over-allocated (bytes): " + formatter.format(overAllocated));
+        System.out.println("  merge (ms): " + formatter.format(mergeNanos / 1000000));
+        System.out.println("  trim (ms): " + formatter.format(trimNanos / 1000000));
+        System.out.println("  counting pass (ms): " + formatter.format(countNanos / 1000000));
+        System.out.println("  exact merge, incl. count (ms): " + formatter.format(exactNanos / 1000000));
+        System.out.println();
+    }
+
+
+    private Graph mergeAndTrim(Graph[] inputs) {
+        Graph merged = Graph.merge(inputs);
+        merged.trimMemToSize();
+        return merged;
+    }
+
+
+    private Graph exactMerge(Graph[] inputs) {
+        return new GraphMerger(Arrays.asList(inputs), Allocator.HEAP).setExactSizing(true).merge();
+    }
+
+
+    /**
+     * Returns 2 graphs, the 2nd of which contains most of the edges of the first.
+     */
+    private Graph[] overlapping(RandomGraphBuilder builder, int nodes) {
+        Graph a = builder.generateGraph(nodes);
+        Graph b = builder.generateGraph(nodes / 2);
+        return new Graph[] { a, b };
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips graphs thru {@linkplain GraphFile}.
+ */
+public class GraphFileTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testMinimal() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(10);
+        Graph graph = builder.generateGraph(1);
+
+        Path file = tempDir.newFile().toPath();
+        graph.save(file);
+        Graph loaded = Graph.open(file);
+
+        assertSameStats(graph, loaded);
+        Cursor cursor = loaded.newCursor();
+        for (RandomGraphBuilder.EdgeDef edgeDef : builder.getExpectedDefs())
+            GraphsTest.assertEdge(edgeDef, cursor);
+    }
+
+
+    @Test
+    public void testModerate() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(2);
+        builder.generate(100);
+        builder.setDistroRefreshPeriod(100);
+        builder.setSampleCount(500);
+        Graph graph = builder.generateGraph(10000);
+
+        Path file = tempDir.newFile().toPath();
+        graph.save(file);
+        Graph loaded = Graph.open(file);
+
+        assertSameStats(graph, loaded);
+        assertEquals(graph.newCursor().getQualifiedNodeIds(), loaded.newCursor().getQualifiedNodeIds());
+        Cursor cursor = loaded.newCursor();
+        for (RandomGraphBuilder.EdgeDef edgeDef : builder.getExpectedDefs())
+            GraphsTest.assertEdge(edgeDef, cursor);
+    }
+
+
+    @Test
+    public void testMergeLoaded() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(100);
+        Graph a = builder.generateGraph(1000);
+        Graph b = builder.clearBuilder().generateGraph(1000);
+
+        Path fileA = tempDir.newFile().toPath();
+        a.save(fileA);
+
+        Graph c = Graph.merge(Graph.open(fileA), b);
+        Cursor cursor = c.newCursor();
+        for (RandomGraphBuilder.EdgeDef edgeDef : builder.getExpectedDefs())
+            GraphsTest.assertEdge(edgeDef, cursor);
+    }
+
+
+    @Test
+    public void testTruncated() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        Graph graph = builder.generateGraph(10);
+
+        File file = tempDir.newFile();
+        graph.save(file.toPath());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        try {
+            Graph.open(file.toPath());
+            fail();
+        } catch (IOException expected) {  }
+    }
+
+
+    @Test
+    public void testLazyVerification() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(100);
+        Graph graph = builder.generateGraph(1000);
+
+        Path file = tempDir.newFile().toPath();
+        graph.save(file);
+        GraphFile graphFile = GraphFile.open(file, GraphFile.Verification.LAZY);
+        assertEquals(graph.getNodeCount(), graphFile.getNodeCount());
+        assertEquals(graph.getEdgeCount(), graphFile.getEdgeCount());
+
+        Cursor cursor = graphFile.getGraph().newCursor();
+        for (RandomGraphBuilder.EdgeDef edgeDef : builder.getExpectedDefs())
+            GraphsTest.assertEdge(edgeDef, cursor);
+        graphFile.verify();
+        graphFile.getGraph().release();
+    }
+
+
+    @Test
+    public void testReleaseWhileVerifying() throws IOException {
+        Graph graph = new RandomGraphBuilder().generateGraph(50000);
+        Path file = tempDir.newFile().toPath();
+        graph.save(file);
+        for (int run = 0; run < 20; ++run) {
+            // small pages, so there are many regions to verify
+            GraphFile graphFile = GraphFile.open(file, GraphFile.Verification.LAZY, 64 * 1024);
+            // a tombstone view shares the tables, so releasing it must also stop the verifier
+            Graph view = run % 2 == 0 ? graphFile.getGraph() : graphFile.getGraph().asTombstones();
+            view.release();
+            assertTrue(graphFile.getGraph().isEmpty());
+            try {
+                graphFile.verify();
+            } catch (IOException released) {  }
+        }
+    }
+
+
+    @Test
+    public void testCorrupted() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        Graph graph = builder.generateGraph(100);
+
+        File file = tempDir.newFile();
+        graph.save(file.toPath());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long pos = raf.length() - 2;
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 1);
+        }
+
+        try {
+            Graph.open(file.toPath());
+            fail();
+        } catch (IOException expected) {  }
+
+        GraphFile lazy = GraphFile.open(file.toPath(), GraphFile.Verification.LAZY);
+        try {
+            lazy.verify();
+            fail();
+        } catch (IOException expected) {  }
+
+        GraphFile unverified = GraphFile.open(file.toPath(), GraphFile.Verification.NONE);
+        assertEquals(graph.getNodeCount(), unverified.getGraph().getNodeCount());
+        try {
+            unverified.verify();
+            fail();
+        } catch (IOException expected) {  }
+    }
+
+
+    @Test
+    public void testCorruptedHeader() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        Graph graph = builder.generateGraph(10);
+
+        File file = tempDir.newFile();
+        graph.save(file.toPath());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(GraphFile.HEADER_SIZE + 1);
+            raf.write(0x7f);
+        }
+        try {
+            GraphFile.open(file.toPath(), GraphFile.Verification.NONE);
+            fail();
+        } catch (IOException expected) {  }
+    }
+
+
+    static void assertSameStats(Graph expected, Graph actual) {
+        assertEquals(expected.getNodeCount(), actual.getNodeCount());
+        assertEquals(expected.getEdgeCount(), actual.getEdgeCount());
+        assertEquals(expected.edgeTable.size(), actual.edgeTable.size());
+        assertEquals(expected.nodeTypeTable.size(), actual.nodeTypeTable.size());
+    }
+
+
+    /**
+     * Asserts the given graphs save to the same bytes. The files are created in the given
+     * folder.
+     */
+    static void assertSameBytes(Graph expected, Graph actual, TemporaryFolder tempDir)
+            throws IOException {
+        Path expectedFile = tempDir.newFile().toPath();
+        Path actualFile = tempDir.newFile().toPath();
+        expected.save(expectedFile);
+        actual.save(actualFile);
+        assertArrayEquals(Files.readAllBytes(expectedFile), Files.readAllBytes(actualFile));
+    }
+}
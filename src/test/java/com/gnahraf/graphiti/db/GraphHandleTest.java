@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import org.junit.Test;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Snapshots pinned thru a {@linkplain GraphHandle} must not be released from under their
+ * readers, and retired versions must be released as soon as they're unpinned.
+ */
+public class GraphHandleTest {
+
+
+    @Test
+    public void testPublish() {
+        GraphHandle handle = new GraphHandle(newGraph(1));
+        assertEquals(1, handle.getVersion());
+        Graph second = newGraph(2);
+        assertEquals(2, handle.publish(second));
+        // no snapshots: the 1st version is released right away
+        assertEquals(1, handle.getReleasedCount());
+        assertEquals(0, handle.getRetiredCount());
+        try (GraphHandle.Snapshot snapshot = handle.pin()) {
+            assertSame(second, snapshot.getGraph());
+            assertEquals(2, snapshot.getVersion());
+        }
+    }
+
+
+    @Test
+    public void testPublishCurrent() {
+        Graph graph = newGraph(1);
+        GraphHandle handle = new GraphHandle(graph);
+        try {
+            handle.publish(graph);
+            fail();
+        } catch (IllegalArgumentException expected) {  }
+        assertEquals(1, handle.getVersion());
+        assertEquals(0, handle.getReleasedCount());
+        try (GraphHandle.Snapshot snapshot = handle.pin()) {
+            assertSame(graph, snapshot.getGraph());
+            assertTrue(graph.getNodeCount() > 0);
+        }
+    }
+
+
+    @Test
+    public void testPinned() {
+        Graph first = newGraph(3);
+        int nodeCount = first.getNodeCount();
+        GraphHandle handle = new GraphHandle(first);
+        GraphHandle.Snapshot snapshot = handle.pin();
+        GraphHandle.Snapshot another = handle.pin();
+        handle.publish(newGraph(4));
+        handle.publish(newGraph(5));
+        assertEquals(1, handle.getRetiredCount());
+        assertEquals(1, handle.getReleasedCount());
+
+        assertSame(first, snapshot.getGraph());
+        assertEquals(nodeCount, first.getNodeCount());
+        snapshot.close();
+        snapshot.close();
+        assertEquals(1, handle.getRetiredCount());
+        assertEquals(nodeCount, first.getNodeCount());
+        another.close();
+        assertEquals(0, handle.getRetiredCount());
+        assertEquals(2, handle.getReleasedCount());
+        assertEquals(0, first.getNodeCount());
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosedSnapshot() {
+        GraphHandle handle = new GraphHandle(newGraph(1));
+        GraphHandle.Snapshot snapshot = handle.pin();
+        snapshot.close();
+        snapshot.getGraph();
+    }
+
+
+    @Test
+    public void testClose() {
+        Graph graph = newGraph(6);
+        GraphHandle handle = new GraphHandle(graph);
+        GraphHandle.Snapshot snapshot = handle.pin();
+        handle.close();
+        handle.close();
+        try {
+            handle.pin();
+            fail();
+        } catch (IllegalStateException expected) {  }
+        assertTrue(graph.getNodeCount() > 0);
+        snapshot.close();
+        assertEquals(0, graph.getNodeCount());
+        assertEquals(1, handle.getReleasedCount());
+    }
+
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        final GraphHandle handle = new GraphHandle(newGraph(1));
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final long[] pins = new long[4];
+        Thread[] readers = new Thread[pins.length];
+        for (int r = 0; r < readers.length; ++r) {
+            final int index = r;
+            readers[r] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (handle.getVersion() < 200) {
+                            try (GraphHandle.Snapshot snapshot = handle.pin()) {
+                                // each version's graph has as many edges as its number
+                                Graph graph = snapshot.getGraph();
+                                assertEquals(2 * snapshot.getVersion(), graph.getEdgeCount());
+                                assertFalse(graph.newCursor().isEmpty());
+                            }
+                            ++pins[index];
+                        }
+                    } catch (Throwable x) {
+                        error.set(x);
+                    }
+                }
+            };
+            readers[r].start();
+        }
+        for (int version = 2; version <= 200; ++version) {
+            handle.publish(newGraph(version));
+            Thread.yield();
+        }
+        for (Thread reader : readers)
+            reader.join();
+        assertNull(error.get());
+        assertEquals(0, handle.getRetiredCount());
+        assertEquals(199, handle.getReleasedCount());
+        handle.close();
+        assertEquals(200, handle.getReleasedCount());
+    }
+
+
+    @Test
+    public void testReaderOverhead() throws Exception {
+        System.out.println("testReaderOverhead");
+        System.out.println("==================");
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("  cores: " + cores);
+        // warm up
+        runReaders(2, 1000 * 1000, false, false);
+        runReaders(2, 1000 * 1000, true, false);
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            runReaders(threads, 4 * 1000 * 1000, false, true);
+            runReaders(threads, 4 * 1000 * 1000, true, true);
+        }
+        System.out.println();
+    }
+
+
+    /**
+     * Runs reader threads that each pin and unpin the given number of times, while a
+     * writer publishes new versions. Prints the aggregate throughput of pins (and unpins).
+     *
+     * @param baseline if <tt>true</tt>, the readers just read a shared volatile reference,
+     *        without pinning (and the writer swaps it without releasing anything)
+     */
+    private void runReaders(int threads, final int pins, final boolean baseline, boolean print)
+            throws Exception {
+        final GraphHandle handle = new GraphHandle(newGraph(1));
+        final AtomicReference<Graph> shared = new AtomicReference<>(newGraph(1));
+        final long[] sink = new long[threads];
+        Thread[] readers = new Thread[threads];
+        for (int t = 0; t < threads; ++t) {
+            final int index = t;
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    long sum = 0;
+                    if (baseline) {
+                        for (int count = pins; count-- > 0; )
+                            sum += shared.get().getEdgeCount();
+                    } else {
+                        for (int count = pins; count-- > 0; ) {
+                            try (GraphHandle.Snapshot snapshot = handle.pin()) {
+                                sum += snapshot.getGraph().getEdgeCount();
+                            }
+                        }
+                    }
+                    sink[index] = sum;
+                }
+            };
+        }
+        long nanos = System.nanoTime();
+        for (Thread reader : readers)
+            reader.start();
+        int published = 0;
+        while (isAlive(readers)) {
+            Thread.sleep(1);
+            Graph graph = newGraph(1 + published++ % 8);
+            if (baseline)
+                shared.set(graph);
+            else
+                handle.publish(graph);
+        }
+        nanos = System.nanoTime() - nanos;
+        for (Thread reader : readers)
+            reader.join();
+        handle.close();
+        if (!baseline)
+            assertEquals(published + 1, handle.getReleasedCount());
+
+        if (print) {
+            DecimalFormat formatter = new DecimalFormat("#,###.##");
+            System.out.println(
+                    "  " + threads + " reader(s), " + (baseline ? "volatile read" : "pin + unpin") +
+                    " (ops/sec): " + formatter.format(threads * (double) pins * 1e9 / nanos) +
+                    "  [" + published + " versions published]");
+        }
+    }
+
+
+    private static boolean isAlive(Thread[] threads) {
+        for (Thread thread : threads) {
+            if (thread.isAlive())
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns a graph with the given number of edges.
+     */
+    private static Graph newGraph(int edges) {
+        GraphBuilder builder = new GraphBuilder();
+        for (int edge = 0; edge < edges; ++edge)
+            builder.insertEdge((short) 1, edge, (short) 1, (short) 2, edge);
+        return builder.build();
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.util.mem.Allocator;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The store's cursors must see the same graph as one built from the surviving edges, whatever
+ * the state of its memtable and segments.
+ */
+public class GraphStoreTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testEmpty() throws InterruptedException {
+        GraphStore store = new GraphStore();
+        assertTrue(store.newCursor().isEmpty());
+        store.flush();
+        store.compact();
+        assertTrue(store.getSegments().isEmpty());
+    }
+
+
+    @Test
+    public void testMemtableOnly() {
+        GraphStore store = new GraphStore();
+        Reference reference = new Reference();
+        randomWrites(new Random(1), store, reference, 2000, 300, 0.2);
+        assertTrue(store.getSegments().isEmpty());
+        GraphsTest.assertSameView(reference.build(), store.newCursor());
+    }
+
+
+    @Test
+    public void testDeleteThenInsert() throws InterruptedException {
+        GraphStore store = new GraphStore();
+        store.insertEdge((short) 1, 1, (short) 1, (short) 1, 2);
+        store.insertEdge((short) 1, 1, (short) 2, (short) 1, 3);
+        store.flush();
+        store.deleteEdge((short) 1, 1, (short) 1, (short) 1, 2);
+        assertEquals(1, store.newCursor().getEdgeCount(false));
+        store.insertEdge((short) 1, 1, (short) 1, (short) 1, 2);
+        assertEquals(2, store.newCursor().getEdgeCount(false));
+        store.deleteEdge((short) 1, 1, (short) 1, (short) 1, 2);
+        store.deleteEdge((short) 1, 1, (short) 2, (short) 1, 3);
+        store.flush();
+        // the 2nd flush is all deletions
+        assertEquals(2, store.getSegments().size());
+        assertTrue(store.getSegments().get(1).hasTombstones());
+        assertNull(store.getSegments().get(1).getGraph());
+        assertTrue(store.newCursor().isEmpty());
+        store.compact();
+        assertTrue(store.getSegments().isEmpty());
+    }
+
+
+    @Test
+    public void testSegments() throws Exception {
+        GraphStore store = new GraphStore(Allocator.HEAP, 500, null);
+        Reference reference = new Reference();
+        randomWrites(new Random(2), store, reference, 20000, 2000, 0.25);
+        assertTrue(store.getSegments().size() > 10);
+        Graph expected = reference.build();
+        GraphsTest.assertSameView(expected, store.newCursor());
+
+        store.flush();
+        store.compact();
+        assertEquals(1, store.getSegments().size());
+        GraphFileTest.assertSameBytes(expected, store.getSegments().get(0).getGraph(), tempDir);
+        GraphsTest.assertSameView(expected, store.newCursor());
+    }
+
+
+    @Test
+    public void testBackgroundCompaction() throws Exception {
+        CompactionScheduler scheduler = new CompactionScheduler(new SizeTieredPolicy(2, 4, 2.0));
+        GraphStore store = new GraphStore(Allocator.HEAP, 1000, scheduler);
+        Reference reference = new Reference();
+        Random rnd = new Random(3);
+        for (int round = 0; round < 10; ++round) {
+            randomWrites(rnd, store, reference, 3000, 3000, 0.1);
+            // reads while compacting
+            GraphsTest.assertSameView(reference.build(), store.newCursor());
+        }
+        store.awaitCompaction();
+        store.flush();
+        store.awaitCompaction();
+        store.compact();
+        assertEquals(1, store.getSegments().size());
+        GraphFileTest.assertSameBytes(reference.build(), store.getSegments().get(0).getGraph(), tempDir);
+        assertTrue(scheduler.getCompactionCount() > 0);
+        assertNull(scheduler.getLastError());
+        scheduler.shutdown();
+    }
+
+
+    @Test
+    public void testIngestMatchesRebuild() throws InterruptedException {
+        List<int[]> edges = randomEdges(new Random(3), 5 * 2000);
+        Graph rebuilt = rebuild(edges, 2000);
+        GraphStore store = ingest(edges, 2000);
+        assertTrue(store.getSegments().size() > 1);
+        GraphsTest.assertSameView(rebuilt, store.newCursor());
+        store.compact();
+        assertEquals(1, store.getSegments().size());
+        GraphsTest.assertSameView(rebuilt, store.newCursor());
+    }
+
+
+    /**
+     * A benchmark; it's run only if the <tt>graphiti.bench.large</tt> system property is
+     * set. (testIngestMatchesRebuild checks the same on a small scale.)
+     */
+    @Test
+    public void testIngestVsRebuild() throws InterruptedException {
+        Assume.assumeTrue(Boolean.getBoolean("graphiti.bench.large"));
+        System.out.println("testIngestVsRebuild");
+        System.out.println("===================");
+        final int batches = 20;
+        final int batchSize = 20000;
+        List<int[]> edges = randomEdges(new Random(4), batches * batchSize);
+
+        // warm up
+        rebuild(edges.subList(0, 5 * batchSize), batchSize);
+        ingest(edges.subList(0, 5 * batchSize), batchSize);
+
+        long nanos = System.nanoTime();
+        Graph rebuilt = rebuild(edges, batchSize);
+        long rebuildNanos = System.nanoTime() - nanos;
+
+        nanos = System.nanoTime();
+        GraphStore store = ingest(edges, batchSize);
+        long ingestNanos = System.nanoTime() - nanos;
+        int segments = store.getSegments().size();
+
+        nanos = System.nanoTime();
+        store.compact();
+        long compactNanos = System.nanoTime() - nanos;
+        assertEquals(rebuilt.getEdgeCount(), store.getSegments().get(0).getEdgeCount());
+
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        System.out.println("  batches: " + batches + " x " + formatter.format(batchSize));
+        System.out.println("  build + merge per batch (ms): " + formatter.format(rebuildNanos / 1000000));
+        System.out.println("  store ingest (ms): " + formatter.format(ingestNanos / 1000000));
+        System.out.println("  segments: " + segments);
+        System.out.println("  final compaction (ms): " + formatter.format(compactNanos / 1000000));
+        System.out.println();
+    }
+
+
+    private static List<int[]> randomEdges(Random rnd, int count) {
+        List<int[]> edges = new ArrayList<>(count);
+        while (count-- > 0) {
+            edges.add(new int[] {
+                rnd.nextInt(3), rnd.nextInt(100000), rnd.nextInt(4), rnd.nextInt(3), rnd.nextInt(100000)
+            });
+        }
+        return edges;
+    }
+
+
+    private Graph rebuild(List<int[]> edges, int batchSize) {
+        Graph graph = null;
+        GraphBuilder builder = new GraphBuilder();
+        for (int index = 0; index < edges.size(); ) {
+            int[] edge = edges.get(index);
+            builder.insertEdge((short) edge[0], edge[1], (short) edge[2], (short) edge[3], edge[4]);
+            if (++index % batchSize == 0) {
+                graph = Graph.merge(graph, builder.build());
+                builder = new GraphBuilder();
+            }
+        }
+        return graph;
+    }
+
+
+    private GraphStore ingest(List<int[]> edges, int batchSize) {
+        // (no background compactions)
+        GraphStore store = new GraphStore(Allocator.HEAP, batchSize, null);
+        for (int[] edge : edges)
+            store.insertEdge((short) edge[0], edge[1], (short) edge[2], (short) edge[3], edge[4]);
+        store.flush();
+        return store;
+    }
+
+
+    /**
+     * The expected edges.
+     */
+    private static class Reference {
+
+        private final Map<List<Integer>, int[]> edges = new LinkedHashMap<>();
+
+        void insert(int[] edge) {
+            edges.put(key(edge), edge);
+        }
+
+        void delete(int[] edge) {
+            edges.remove(key(edge));
+        }
+
+        private List<Integer> key(int[] edge) {
+            return Arrays.asList(edge[0], edge[1], edge[2], edge[3], edge[4]);
+        }
+
+        Graph build() {
+            BulkGraphBuilder builder = new BulkGraphBuilder();
+            for (int[] edge : edges.values())
+                builder.insertEdge((short) edge[0], edge[1], (short) edge[2], (short) edge[3], edge[4]);
+            return builder.build();
+        }
+    }
+
+
+    /**
+     * Writes random edges, a fraction of which are deletions of previously written edges.
+     */
+    private void randomWrites(
+            Random rnd, GraphStore store, Reference reference, int count, int nodes, double deletes) {
+        List<int[]> written = new ArrayList<>();
+        for (int index = 0; index < count; ++index) {
+            if (!written.isEmpty() && rnd.nextDouble() < deletes) {
+                int[] edge = written.get(rnd.nextInt(written.size()));
+                store.deleteEdge((short) edge[0], edge[1], (short) edge[2], (short) edge[3], edge[4]);
+                reference.delete(edge);
+            } else {
+                int[] edge = {
+                    rnd.nextInt(3), rnd.nextInt(nodes), rnd.nextInt(4), rnd.nextInt(3), rnd.nextInt(nodes)
+                };
+                store.insertEdge((short) edge[0], edge[1], (short) edge[2], (short) edge[3], edge[4]);
+                reference.insert(edge);
+                written.add(edge);
+            }
+        }
+    }
+}
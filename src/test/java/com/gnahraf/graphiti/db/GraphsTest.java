@@ -561,7 +561,7 @@ public class GraphsTest {
     private void printStatsAndTrim(Graph g) {
         DecimalFormat formatter = new DecimalFormat("#,###.##");
 
-        int overhead = g.unusedMem();
+        long overhead = g.unusedMem();
         g.trimMemToSize();
         
         System.out.println("nodes: " + formatter.format(g.getNodeCount()));
@@ -576,5 +576,45 @@ public class GraphsTest {
     }
 
 
-}
+    /**
+     * Asserts the given cursor sees the same nodes and edges as the given graph.
+     */
+    static void assertSameView(Graph expected, Cursor actual) {
+        Cursor cursor = expected.newCursor();
+        assertEquals(cursor.getQualifiedNodeIds(), actual.getQualifiedNodeIds());
+        for (ShortInt node : cursor.getQualifiedNodeIds()) {
+            NodeType nodeType = new NodeType(node.getType());
+            assertTrue(cursor.moveTo(nodeType, node.getId()));
+            assertTrue(actual.moveTo(nodeType, node.getId()));
+            assertSameNode(cursor, actual);
+        }
+    }
+
 
+    /**
+     * Asserts the given cursors' current nodes have the same edges.
+     */
+    static void assertSameNode(Cursor expected, Cursor actual) {
+        for (int d = 0; d < 2; ++d) {
+            boolean inbound = d == 1;
+            assertEquals(expected.getEdgeCount(inbound), actual.getEdgeCount(inbound));
+            List<EdgeType> edgeTypes = expected.getEdgeTypes(inbound);
+            assertEquals(edgeTypes, actual.getEdgeTypes(inbound));
+            for (EdgeType edgeType : edgeTypes) {
+                assertEquals(
+                        expected.getEdgeCount(inbound, edgeType),
+                        actual.getEdgeCount(inbound, edgeType));
+                List<NodeType> nodeTypes = expected.getNodeTypes(inbound, edgeType);
+                assertEquals(nodeTypes, actual.getNodeTypes(inbound, edgeType));
+                for (NodeType nodeType : nodeTypes) {
+                    assertEquals(
+                            expected.getNodeIds(inbound, edgeType, nodeType),
+                            actual.getNodeIds(inbound, edgeType, nodeType));
+                    assertEquals(
+                            expected.getEdgeCount(inbound, edgeType, nodeType),
+                            actual.getEdgeCount(inbound, edgeType, nodeType));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Buff;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.text.DecimalFormat;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Edges ingested thru an {@linkplain IngestPipeline} must end up in the live graph, whatever
+ * the batching.
+ */
+public class IngestPipelineTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    /**
+     * Inserts random edges into a pipeline (or control builder). The edges are a function
+     * of the <tt>seed</tt> alone.
+     */
+    private static class Producer extends Thread {
+
+        final int seed;
+        final int edges;
+        final IngestPipeline pipeline;
+        final GraphBuilder control;
+
+        Producer(int seed, int edges, IngestPipeline pipeline, GraphBuilder control) {
+            this.seed = seed;
+            this.edges = edges;
+            this.pipeline = pipeline;
+            this.control = control;
+        }
+
+        @Override
+        public void run() {
+            Random random = new Random(seed);
+            try {
+                produce(random);
+            } catch (InterruptedException ix) {
+                throw new RuntimeException(ix);
+            }
+        }
+
+        private void produce(Random random) throws InterruptedException {
+            for (int count = edges; count-- > 0; ) {
+                short srcType = (short) (random.nextInt(5) - 2);
+                int srcId = random.nextInt(5000);
+                short edgeType = (short) (random.nextInt(7) - 1);
+                short dtnType = (short) (random.nextInt(5) - 2);
+                int dtnId = random.nextInt(5000);
+                if (control != null)
+                    control.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+                else
+                    pipeline.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+            }
+        }
+    }
+
+
+    @Test
+    public void testIngest() throws Exception {
+        IngestPipeline pipeline = new IngestPipeline(null, 1000, 1000, 2, 4, Allocator.HEAP);
+        assertNull(pipeline.getHandle());
+        Graph expected = ingest(pipeline, 4, 10000);
+        assertEquals(0, pipeline.getPendingBatches());
+        assertEquals(0, pipeline.getBufferedCount());
+        assertNull(pipeline.getLastError());
+        assertTrue(pipeline.getMergeCount() > 1);
+        assertTrue(pipeline.getEndToEndLatency().getCount() >= 40);
+        try (GraphHandle.Snapshot snapshot = pipeline.getHandle().pin()) {
+            GraphFileTest.assertSameBytes(expected, snapshot.getGraph(), tempDir);
+        }
+        pipeline.close();
+    }
+
+
+    @Test
+    public void testExistingGraph() throws Exception {
+        GraphBuilder builder = new GraphBuilder();
+        builder.insertEdge((short) 1, 1, (short) 1, (short) 1, 2);
+        GraphHandle handle = new GraphHandle(builder.build());
+        IngestPipeline pipeline = new IngestPipeline(handle, 100, 1000, 1, 2, Allocator.HEAP);
+        pipeline.insertEdge((short) 1, 1, (short) 1, (short) 1, 3);
+        pipeline.flush();
+        assertSame(handle, pipeline.getHandle());
+        assertEquals(2, handle.getVersion());
+        try (GraphHandle.Snapshot snapshot = handle.pin()) {
+            assertEquals(4, snapshot.getGraph().getEdgeCount());
+        }
+        pipeline.close();
+        try {
+            pipeline.insertEdge((short) 1, 1, (short) 1, (short) 1, 4);
+            fail();
+        } catch (IllegalStateException expected) {  }
+    }
+
+
+    @Test
+    public void testSealedByTime() throws Exception {
+        IngestPipeline pipeline = new IngestPipeline(null, 1000 * 1000, 20, 1, 2, Allocator.HEAP);
+        for (int id = 0; id < 10; ++id)
+            pipeline.insertEdge((short) 1, id, (short) 1, (short) 2, id);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pipeline.getHandle() == null && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertNotNull(pipeline.getHandle());
+        try (GraphHandle.Snapshot snapshot = pipeline.getHandle().pin()) {
+            assertEquals(20, snapshot.getGraph().getEdgeCount());
+        }
+        assertTrue(pipeline.getAccumulateLatency().getMaxMillis() >= 20);
+        pipeline.close();
+    }
+
+
+    @Test
+    public void testBackpressure() throws Exception {
+        IngestPipeline pipeline = new IngestPipeline(null, 500, 1000, 1, 1, Allocator.HEAP);
+        Random random = new Random(7);
+        for (int count = 50000; count-- > 0; ) {
+            pipeline.insertEdge(
+                    (short) 1, random.nextInt(10000), (short) 1, (short) 2, random.nextInt(10000));
+            assertTrue(pipeline.getPendingBatches() <= 1);
+            assertTrue(pipeline.getBufferedCount() < 500);
+        }
+        pipeline.flush();
+        assertTrue(pipeline.getBlockedMillis() > 0);
+        assertEquals(100, pipeline.getEndToEndLatency().getCount());
+        pipeline.close();
+    }
+
+
+    @Test
+    public void testInterruptedWhileBlocked() throws Exception {
+        // builds stall until released, so the pipeline fills up
+        final CountDownLatch release = new CountDownLatch(1);
+        Allocator allocator = new Allocator() {
+            @Override
+            public Buff alloc(int bytes) {
+                if (Thread.currentThread().getName().equals("graph-ingest-build")) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ix) {
+                        throw new IllegalStateException(ix);
+                    }
+                }
+                return Allocator.HEAP.alloc(bytes);
+            }
+        };
+        final IngestPipeline pipeline = new IngestPipeline(null, 10, 1000, 1, 1, allocator);
+        final AtomicReference<Throwable> outcome = new AtomicReference<>();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int id = 0; id < 20; ++id)
+                        pipeline.insertEdge((short) 1, id, (short) 1, (short) 2, id);
+                } catch (Throwable t) {
+                    outcome.set(t);
+                }
+            }
+        };
+        producer.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pipeline.getBufferedCount() < 10 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(1, pipeline.getPendingBatches());
+        assertEquals(10, pipeline.getBufferedCount());
+        producer.interrupt();
+        producer.join();
+        assertTrue(outcome.get() instanceof InterruptedException);
+
+        release.countDown();
+        pipeline.close();
+        assertNull(pipeline.getLastError());
+        try (GraphHandle.Snapshot snapshot = pipeline.getHandle().pin()) {
+            // (the blocked producer's batch wasn't lost)
+            assertEquals(40, snapshot.getGraph().getEdgeCount());
+        }
+    }
+
+
+    /**
+     * A benchmark; it's run only if the <tt>graphiti.bench.large</tt> system property is
+     * set. (The tests above check what's ingested.)
+     */
+    @Test
+    public void testFreshnessVsThroughput() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("graphiti.bench.large"));
+        System.out.println("testFreshnessVsThroughput");
+        System.out.println("=========================");
+        // warm up
+        runBenchmark(4096, 10, false);
+        runBenchmark(4096, 10, true);
+        runBenchmark(64 * 1024, 100, true);
+        runBenchmark(256 * 1024, 1000, true);
+    }
+
+
+    private void runBenchmark(int batchSize, long maxDelayMillis, boolean print) throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        IngestPipeline pipeline =
+                new IngestPipeline(null, batchSize, maxDelayMillis, cores, 4, Allocator.HEAP);
+        int producers = 4;
+        int edges = 250 * 1000;
+        long nanos = System.nanoTime();
+        Producer[] threads = new Producer[producers];
+        for (int p = 0; p < producers; ++p) {
+            threads[p] = new Producer(p, edges, pipeline, null);
+            threads[p].start();
+        }
+        for (Producer producer : threads)
+            producer.join();
+        pipeline.flush();
+        nanos = System.nanoTime() - nanos;
+        pipeline.close();
+        assertNull(pipeline.getLastError());
+
+        if (print) {
+            DecimalFormat formatter = new DecimalFormat("#,###.##");
+            System.out.println("  batch " + formatter.format(batchSize) + " / " + maxDelayMillis + " ms:");
+            System.out.println("    edges/sec: " + formatter.format(producers * edges * 1e9 / nanos));
+            System.out.println("    batches: " + pipeline.getEndToEndLatency().getCount() +
+                    ", merges: " + pipeline.getMergeCount());
+            System.out.println("    producers blocked (ms): " + formatter.format(pipeline.getBlockedMillis()));
+            printLatency("accumulate", pipeline.getAccumulateLatency(), formatter);
+            printLatency("build wait", pipeline.getBuildWaitLatency(), formatter);
+            printLatency("build", pipeline.getBuildLatency(), formatter);
+            printLatency("merge", pipeline.getMergeLatency(), formatter);
+            printLatency("end-to-end", pipeline.getEndToEndLatency(), formatter);
+            System.out.println();
+        }
+    }
+
+
+    private static void printLatency(String stage, IngestPipeline.Latency latency, DecimalFormat formatter) {
+        System.out.println(
+                "    " + stage + " avg / max (ms): " + formatter.format(latency.getAverageMillis()) +
+                " / " + formatter.format(latency.getMaxMillis()));
+    }
+
+
+    /**
+     * Ingests edges from the given number of concurrent producers, and returns the graph
+     * they're expected to make.
+     */
+    private Graph ingest(IngestPipeline pipeline, int producers, int edges) throws InterruptedException {
+        Producer[] threads = new Producer[producers];
+        for (int p = 0; p < producers; ++p) {
+            threads[p] = new Producer(p, edges, pipeline, null);
+            threads[p].start();
+        }
+        for (Producer producer : threads)
+            producer.join();
+        pipeline.flush();
+
+        GraphBuilder control = new GraphBuilder();
+        for (int p = 0; p < producers; ++p)
+            new Producer(p, edges, null, control).run();
+        return control.build();
+    }
+}
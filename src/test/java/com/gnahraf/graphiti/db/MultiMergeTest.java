@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.util.mem.Allocator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * N-way merges: merging many graphs in one pass must give the same graph as merging them
+ * pairwise (or building them together).
+ */
+public class MultiMergeTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testMergeMany() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder().setBulkBuilder(new BulkGraphBuilder());
+        builder.setSampleCount(100);
+        Graph[] segments = segments(builder, 16, 200);
+
+        Graph merged = Graph.merge(segments);
+        GraphFileTest.assertSameBytes(builder.getBulkBuilder().build(), merged, tempDir);
+        GraphFileTest.assertSameBytes(mergePairwise(segments), merged, tempDir);
+
+        Cursor cursor = merged.newCursor();
+        for (RandomGraphBuilder.EdgeDef edgeDef : builder.getExpectedDefs())
+            GraphsTest.assertEdge(edgeDef, cursor);
+    }
+
+
+    @Test
+    public void testMergeSame() throws IOException {
+        Graph graph = new RandomGraphBuilder().generateGraph(300);
+        GraphFileTest.assertSameBytes(graph, Graph.merge(graph, graph, graph), tempDir);
+    }
+
+
+    @Test
+    public void testMergeThreeMinimal() {
+        GraphBuilder builder = new GraphBuilder();
+        builder.insertEdge((short) 1, 1, (short) 1, (short) 1, 2);
+        Graph a = builder.build();
+        builder = new GraphBuilder();
+        builder.insertEdge((short) 1, 1, (short) 1, (short) 1, 3);
+        Graph b = builder.build();
+        builder = new GraphBuilder();
+        builder.insertEdge((short) 1, 2, (short) 1, (short) 1, 3);
+        builder.insertEdge((short) 1, 1, (short) 1, (short) 1, 2);
+        Graph c = builder.build();
+
+        Graph merged = new GraphMerger(Arrays.asList(a, b, c), Allocator.HEAP).merge();
+        assertEquals(3, merged.addressTable.size());
+        assertEquals(6, merged.getEdgeCount());
+    }
+
+
+    @Test
+    public void testNullsAndEmpties() {
+        Graph graph = new RandomGraphBuilder().generateGraph(10);
+        Graph empty = new Graph(
+                new AddressTable(1), new EdgeTable(1), new NodeTypeTable(1), new NodeIdTable(1));
+        assertSame(graph, Graph.merge(null, graph, empty));
+        assertSame(empty, Graph.merge(null, empty));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoGraphs() {
+        Graph.merge(new Graph[] { null });
+    }
+
+
+    @Test
+    public void testSinglePassVsPairwise() {
+        System.out.println("testSinglePassVsPairwise");
+        System.out.println("========================");
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(2);
+        builder.generate(100);
+        builder.setDistroRefreshPeriod(100);
+        Graph[] segments = segments(builder, 16, 2000);
+
+        // warm up
+        mergePairwise(segments);
+        Graph.merge(segments);
+
+        long nanos = System.nanoTime();
+        Graph pairwise = mergePairwise(segments);
+        long pairwiseNanos = System.nanoTime() - nanos;
+
+        nanos = System.nanoTime();
+        Graph single = Graph.merge(segments);
+        long singleNanos = System.nanoTime() - nanos;
+        assertEquals(pairwise.getEdgeCount(), single.getEdgeCount());
+
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        System.out.println("  segments: " + segments.length);
+        System.out.println("  edges: " + formatter.format(single.getEdgeCount() / 2));
+        System.out.println("  pairwise (ms): " + formatter.format(pairwiseNanos / 1000000));
+        System.out.println("  single pass (ms): " + formatter.format(singleNanos / 1000000));
+        System.out.println();
+    }
+
+
+    private Graph[] segments(RandomGraphBuilder builder, int count, int nodes) {
+        Graph[] segments = new Graph[count];
+        for (int index = 0; index < count; ++index)
+            segments[index] = builder.clearBuilder().generateGraph(nodes);
+        return segments;
+    }
+
+
+    /**
+     * Merges the given graphs the old way: one at a time.
+     */
+    private Graph mergePairwise(Graph[] graphs) {
+        List<Graph> list = new ArrayList<>(Arrays.asList(graphs));
+        Graph merged = list.remove(0);
+        for (Graph g : list)
+            merged = Graph.merge(merged, g);
+        return merged;
+    }
+}
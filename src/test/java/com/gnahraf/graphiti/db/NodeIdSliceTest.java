@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.list.IntSlice;
+
+import org.junit.Test;
+
+import java.text.DecimalFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * A cursor's {@linkplain Cursor#getNodeIdSlice(boolean, EdgeType, NodeType) node ID slices}
+ * must read the same as its boxed {@linkplain Cursor#getNodeIds(boolean, EdgeType, NodeType)
+ * node ID lists}.
+ */
+public class NodeIdSliceTest {
+
+
+    @Test
+    public void testFixedGraph() {
+        Graph graph = new RandomGraphBuilder().setSeed(1)
+                .generateUniform(20000, -2, 4, 1000).build();
+        assertSameIds(graph.newCursor(), graph);
+    }
+
+
+    @Test
+    public void testWideLayout() {
+        Graph graph = new RandomGraphBuilder().setLayout(Layout.WIDE).setSeed(2)
+                .generateUniform(20000, -2, 4, Integer.MAX_VALUE).build();
+        assertEquals(4, graph.getLayout().idWidth);
+        assertSameIds(graph.newCursor(), graph);
+    }
+
+
+    @Test
+    public void testDisjointCombo() {
+        GraphBuilder aBuilder = new GraphBuilder();
+        GraphBuilder bBuilder = new GraphBuilder();
+        GraphBuilder control = new GraphBuilder();
+        Random random = new Random(3);
+        // split the edges by the parity of their node IDs, so the IDs interleave across the 2
+        for (int count = 20000; count-- > 0; ) {
+            short srcType = (short) random.nextInt(3);
+            int srcId = random.nextInt(500);
+            short edgeType = (short) random.nextInt(4);
+            short dtnType = (short) random.nextInt(3);
+            int dtnId = random.nextInt(500);
+            GraphBuilder builder = (srcId + dtnId) % 2 == 0 ? aBuilder : bBuilder;
+            builder.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+            control.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+        }
+        Graph a = aBuilder.build();
+        Graph b = bBuilder.build();
+        assertSameIds(new DisjointComboCursor(a.newCursor(), b.newCursor()), control.build());
+    }
+
+
+    @Test
+    public void testEmpty() {
+        Cursor cursor = new EmptyCursor();
+        IntSlice ids = cursor.getNodeIdSlice(false, new EdgeType(0), new NodeType(0));
+        assertTrue(ids.isEmpty());
+    }
+
+
+    @Test
+    public void testBaseImplementation() {
+        // cursors that don't override the method still work (thru the boxed list)
+        Graph graph = new RandomGraphBuilder().setSeed(4)
+                .generateUniform(5000, -2, 4, 500).build();
+        DeltaGraph delta = new DeltaGraph(graph);
+        delta.insertEdge((short) 1, 1, (short) 1, (short) 1, 100000);
+        assertSameIds(delta.newCursor(), graph);
+    }
+
+
+    @Test
+    public void testNeighborScan() {
+        System.out.println("testNeighborScan");
+        System.out.println("================");
+        // a dense graph (~500 neighbors per node, per direction) so the scans dominate the
+        // cost of moving the cursor
+        BulkGraphBuilder builder = new BulkGraphBuilder();
+        Random random = new Random(5);
+        for (int count = 1000 * 1000; count-- > 0; )
+            builder.insertEdge((short) 1, random.nextInt(2000), (short) 1, (short) 1, random.nextInt(2000));
+        Graph graph = builder.build();
+        Cursor cursor = graph.newCursor();
+        List<ShortInt> nodes = cursor.getQualifiedNodeIds();
+        int[] buffer = new int[1024];
+        // warm up
+        for (int run = 0; run < 3; ++run) {
+            scanBoxed(cursor, nodes);
+            scanGetInt(cursor, nodes);
+            scanForEach(cursor, nodes);
+            scanCopyTo(cursor, nodes, buffer);
+        }
+        long edges = graph.getEdgeCount();
+        long nanos = System.nanoTime();
+        long expected = scanBoxed(cursor, nodes);
+        long boxedNanos = System.nanoTime() - nanos;
+
+        nanos = System.nanoTime();
+        assertEquals(expected, scanGetInt(cursor, nodes));
+        long getIntNanos = System.nanoTime() - nanos;
+
+        nanos = System.nanoTime();
+        assertEquals(expected, scanForEach(cursor, nodes));
+        long forEachNanos = System.nanoTime() - nanos;
+
+        nanos = System.nanoTime();
+        assertEquals(expected, scanCopyTo(cursor, nodes, buffer));
+        long copyToNanos = System.nanoTime() - nanos;
+
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        System.out.println("  edges scanned: " + formatter.format(edges));
+        System.out.println("  List<Integer> (ns/edge): " + formatter.format((double) boxedNanos / edges));
+        System.out.println("  IntSlice.getInt (ns/edge): " + formatter.format((double) getIntNanos / edges));
+        System.out.println("  IntSlice.forEach (ns/edge): " + formatter.format((double) forEachNanos / edges));
+        System.out.println("  IntSlice.copyTo (ns/edge): " + formatter.format((double) copyToNanos / edges));
+        System.out.println();
+    }
+
+
+    private static long scanBoxed(Cursor cursor, List<ShortInt> nodes) {
+        long sum = 0;
+        for (ShortInt node : nodes) {
+            cursor.moveTo(new NodeType(node.getType()), node.getId());
+            for (int d = 0; d < 2; ++d) {
+                boolean inbound = d == 1;
+                for (EdgeType edgeType : cursor.getEdgeTypes(inbound)) {
+                    for (NodeType nodeType : cursor.getNodeTypes(inbound, edgeType)) {
+                        for (Integer id : cursor.getNodeIds(inbound, edgeType, nodeType))
+                            sum += id;
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+
+    private static long scanGetInt(Cursor cursor, List<ShortInt> nodes) {
+        long sum = 0;
+        for (ShortInt node : nodes) {
+            cursor.moveTo(new NodeType(node.getType()), node.getId());
+            for (int d = 0; d < 2; ++d) {
+                boolean inbound = d == 1;
+                for (EdgeType edgeType : cursor.getEdgeTypes(inbound)) {
+                    for (NodeType nodeType : cursor.getNodeTypes(inbound, edgeType)) {
+                        IntSlice ids = cursor.getNodeIdSlice(inbound, edgeType, nodeType);
+                        for (int index = 0, size = ids.size(); index < size; ++index)
+                            sum += ids.getInt(index);
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+
+    private static long scanForEach(Cursor cursor, List<ShortInt> nodes) {
+        final long[] sum = new long[1];
+        IntConsumer adder = new IntConsumer() {
+            @Override
+            public void accept(int id) {
+                sum[0] += id;
+            }
+        };
+        for (ShortInt node : nodes) {
+            cursor.moveTo(new NodeType(node.getType()), node.getId());
+            for (int d = 0; d < 2; ++d) {
+                boolean inbound = d == 1;
+                for (EdgeType edgeType : cursor.getEdgeTypes(inbound)) {
+                    for (NodeType nodeType : cursor.getNodeTypes(inbound, edgeType))
+                        cursor.getNodeIdSlice(inbound, edgeType, nodeType).forEach(adder);
+                }
+            }
+        }
+        return sum[0];
+    }
+
+
+    private static long scanCopyTo(Cursor cursor, List<ShortInt> nodes, int[] buffer) {
+        long sum = 0;
+        for (ShortInt node : nodes) {
+            cursor.moveTo(new NodeType(node.getType()), node.getId());
+            for (int d = 0; d < 2; ++d) {
+                boolean inbound = d == 1;
+                for (EdgeType edgeType : cursor.getEdgeTypes(inbound)) {
+                    for (NodeType nodeType : cursor.getNodeTypes(inbound, edgeType)) {
+                        IntSlice ids = cursor.getNodeIdSlice(inbound, edgeType, nodeType);
+                        if (ids.size() > buffer.length)
+                            buffer = new int[ids.size()];
+                        int end = ids.copyTo(buffer, 0);
+                        for (int index = 0; index < end; ++index)
+                            sum += buffer[index];
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+
+    /**
+     * Asserts the slices read the same as the expected graph's node ID lists, at every node.
+     */
+    private static void assertSameIds(Cursor actual, Graph expected) {
+        Cursor cursor = expected.newCursor();
+        for (ShortInt node : cursor.getQualifiedNodeIds()) {
+            NodeType nodeType = new NodeType(node.getType());
+            assertTrue(cursor.moveTo(nodeType, node.getId()));
+            assertTrue(actual.moveTo(nodeType, node.getId()));
+            for (int d = 0; d < 2; ++d) {
+                boolean inbound = d == 1;
+                for (EdgeType edgeType : cursor.getEdgeTypes(inbound)) {
+                    for (NodeType type : cursor.getNodeTypes(inbound, edgeType)) {
+                        List<Integer> ids = cursor.getNodeIds(inbound, edgeType, type);
+                        IntSlice slice = actual.getNodeIdSlice(inbound, edgeType, type);
+                        assertEquals(ids, slice.asList());
+                        assertArrayEquals(IntSlice.wrap(ids).toArray(), slice.toArray());
+                        for (int index = 0; index < ids.size(); ++index)
+                            assertEquals(index, slice.binarySearch(ids.get(index)));
+                        assertTrue(slice.binarySearch(ids.get(0) - 1) < 0);
+                    }
+                }
+                // an edge type not in the graph
+                assertTrue(actual.getNodeIdSlice(inbound, new EdgeType(100), nodeType).isEmpty());
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.util.datatypes.Primitives.Sizeof;
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.text.DecimalFormat;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Every {@linkplain NodeSearch} strategy must find the same rows (and insertion points)
+ * as a classic binary search.
+ */
+public class NodeSearchTest {
+
+    private final static NodeSearch.Kind[] KINDS = NodeSearch.Kind.values();
+
+    /**
+     * Room for 100M rows, and 32-bit IDs.
+     */
+    private final static Layout WIDE_ID32 = Layout.of(true, Sizeof.INT);
+
+
+    @Test
+    public void testSmallTables() {
+        for (int size = 0; size <= 70; ++size) {
+            // ids 10, 20, 30, ..
+            AddressTable table = new AddressTable(Math.max(1, size));
+            for (int row = 0; row < size; ++row)
+                table.appendEntry((short) 1, 10 * (row + 1));
+            for (NodeSearch.Kind kind : KINDS) {
+                NodeSearch search = NodeSearch.newSearch(kind, table);
+                assertEquals(kind, search.getKind());
+                assertEquals(-1, search.indexOf(ShortInt.pack((short) 0, 5)));
+                assertEquals(-1, search.indexOf(ShortInt.pack((short) 1, 0)));
+                for (int row = 0; row < size; ++row) {
+                    int id = 10 * (row + 1);
+                    assertEquals(row, search.indexOf(ShortInt.pack((short) 1, id)));
+                    assertEquals(-row - 1, search.indexOf(ShortInt.pack((short) 1, id - 1)));
+                    assertEquals(-row - 2, search.indexOf(ShortInt.pack((short) 1, id + 1)));
+                }
+                assertEquals(-size - 1, search.indexOf(ShortInt.pack((short) 2, 0)));
+            }
+        }
+    }
+
+
+    @Test
+    public void testMixedDensity() {
+        Random random = new Random(1);
+        AddressTable table = newTable(random, 100 * 1000, Allocator.HEAP);
+        long[] keys = new long[table.size()];
+        for (int row = 0; row < keys.length; ++row)
+            keys[row] = table.getPackedNodeId(row);
+
+        NodeSearch control = NodeSearch.newSearch(NodeSearch.Kind.BINARY, table);
+        int[] expected = new int[3 * keys.length + 4];
+        long[] probes = probes(keys);
+        for (int index = 0; index < probes.length; ++index)
+            expected[index] = control.indexOf(probes[index]);
+
+        for (NodeSearch.Kind kind : KINDS) {
+            NodeSearch search = NodeSearch.newSearch(kind, table);
+            for (int index = 0; index < probes.length; ++index)
+                assertEquals(kind + ": " + ShortInt.unpack(probes[index]),
+                        expected[index], search.indexOf(probes[index]));
+        }
+    }
+
+
+    @Test
+    public void testStaleIndex() {
+        AddressTable table = new AddressTable(100);
+        for (int id = 0; id < 50; ++id)
+            table.appendEntry((short) 1, id);
+        NodeSearch search = NodeSearch.newSearch(NodeSearch.Kind.EYTZINGER, table);
+        for (int id = 50; id < 100; ++id)
+            table.appendEntry((short) 1, id);
+        for (int id = 0; id < 100; ++id)
+            assertEquals(id, search.indexOf(ShortInt.pack((short) 1, id)));
+    }
+
+
+    @Test
+    public void testGraph() {
+        Random random = new Random(2);
+        BulkGraphBuilder builder = new BulkGraphBuilder();
+        for (int count = 50000; count-- > 0; ) {
+            builder.insertEdge(
+                    (short) random.nextInt(3), random.nextInt(5000),
+                    (short) random.nextInt(4),
+                    (short) random.nextInt(3), random.nextInt(5000));
+        }
+        Graph graph = builder.build();
+        assertEquals(NodeSearch.Kind.BINARY, graph.getNodeSearch());
+        Graph other = Graph.merge(graph, graph);
+        for (NodeSearch.Kind kind : KINDS) {
+            assertSame(graph, graph.setNodeSearch(kind));
+            assertEquals(kind, graph.getNodeSearch());
+            assertEquals(kind, graph.asTombstones().getNodeSearch());
+            Cursor cursor = graph.newCursor();
+            Cursor control = other.newCursor();
+            for (ShortInt node : control.getQualifiedNodeIds()) {
+                assertTrue(cursor.moveTo(node.pack()));
+                assertTrue(control.moveTo(node.pack()));
+                assertEquals(control.getEdgeCount(false), cursor.getEdgeCount(false));
+                assertFalse(cursor.moveTo(ShortInt.pack(node.getType(), node.getId() + 5000)));
+            }
+            // the merger searches the address tables too
+            assertEquals(graph.getEdgeCount(), Graph.merge(graph, graph).getEdgeCount());
+        }
+    }
+
+
+    @Test
+    public void testPointLookups() {
+        System.out.println("testPointLookups");
+        System.out.println("================");
+        runLookups(50 * 1000);
+        runLookups(1000 * 1000);
+    }
+
+
+    /**
+     * The 10M and 100M node runs are slow, and the latter needs a few GB of direct
+     * memory; they're run only if the <tt>graphiti.bench.large</tt> system property is
+     * set. E.g.
+     * <pre>
+     *   mvn test -Dtest=NodeSearchTest#testPointLookupsLarge \
+     *     -DargLine="-XX:MaxDirectMemorySize=3g -Dgraphiti.bench.large=true"
+     * </pre>
+     */
+    @Test
+    public void testPointLookupsLarge() {
+        Assume.assumeTrue(Boolean.getBoolean("graphiti.bench.large"));
+        System.out.println("testPointLookupsLarge");
+        System.out.println("=====================");
+        runLookups(10 * 1000 * 1000);
+        runLookups(100 * 1000 * 1000);
+    }
+
+
+    private void runLookups(int nodes) {
+        int lookups = 1000 * 1000;
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        System.out.println("  nodes: " + formatter.format(nodes));
+        for (int dense = 0; dense < 2; ++dense) {
+            AddressTable table = dense == 1 ?
+                    newDenseTable(nodes) : newTable(new Random(3), nodes, Allocator.DIRECT);
+            Random random = new Random(4);
+            long[] keys = new long[lookups];
+            for (int index = 0; index < lookups; ++index)
+                keys[index] = table.getPackedNodeId(random.nextInt(nodes));
+
+            for (NodeSearch.Kind kind : KINDS) {
+                NodeSearch search = NodeSearch.newSearch(kind, table);
+                // warm up
+                lookup(search, keys);
+                long nanos = System.nanoTime();
+                assertEquals(lookups, lookup(search, keys));
+                nanos = System.nanoTime() - nanos;
+                System.out.println(
+                        "    " + (dense == 1 ? "dense" : "sparse") + " IDs, " + kind + " (ns/lookup): " +
+                        formatter.format((double) nanos / lookups));
+            }
+            table.release();
+        }
+        System.out.println();
+    }
+
+
+    private static int lookup(NodeSearch search, long[] keys) {
+        int found = 0;
+        for (long key : keys) {
+            if (search.indexOf(key) >= 0)
+                ++found;
+        }
+        return found;
+    }
+
+
+    /**
+     * Returns every key, each key's successor and predecessor, and the extremes.
+     */
+    private static long[] probes(long[] keys) {
+        long[] probes = new long[3 * keys.length + 4];
+        int index = 0;
+        for (long key : keys) {
+            probes[index++] = key;
+            probes[index++] = key - 1;
+            probes[index++] = key + 1;
+        }
+        probes[index++] = Long.MIN_VALUE;
+        probes[index++] = Long.MAX_VALUE;
+        probes[index++] = ShortInt.pack(Short.MIN_VALUE, 0);
+        probes[index] = ShortInt.pack(Short.MAX_VALUE, Integer.MAX_VALUE);
+        return probes;
+    }
+
+
+    /**
+     * Returns a table of the given size over 4 node types: the first with dense IDs,
+     * the 2nd with random gaps, the 3rd with a few huge gaps, and the last, sparse.
+     */
+    private static AddressTable newTable(Random random, int size, Allocator allocator) {
+        AddressTable table = new AddressTable(size, allocator, Table.DEFAULT_PAGE_SHIFT, WIDE_ID32);
+        int quarter = size / 4;
+        for (int row = 0; row < quarter; ++row)
+            table.appendEntry((short) -2, row);
+        for (int row = 0, id = 0; row < quarter; ++row, id += 1 + random.nextInt(4))
+            table.appendEntry((short) 0, id);
+        for (int row = 0, id = 0; row < quarter; ++row, id += row % 1000 == 0 ? 10 * 1000 : 1)
+            table.appendEntry((short) 1, id);
+        for (int row = 3 * quarter, id = 0; row < size; ++row, id += 1 + random.nextInt(100))
+            table.appendEntry((short) 7, id);
+        return table;
+    }
+
+
+    private static AddressTable newDenseTable(int size) {
+        AddressTable table = new AddressTable(size, Allocator.DIRECT, Table.DEFAULT_PAGE_SHIFT, WIDE_ID32);
+        for (int row = 0; row < size; ++row)
+            table.appendEntry((short) 3, row);
+        return table;
+    }
+}
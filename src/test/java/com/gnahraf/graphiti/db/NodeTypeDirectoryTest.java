@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.datatypes.Primitives.Sizeof;
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.list.IntSlice;
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
+
+import org.junit.Test;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lookups thru the {@linkplain NodeTypeDirectory} must agree with a plain search over the
+ * whole table, whether a node type's IDs are dense, nearly dense, or sparse.
+ */
+public class NodeTypeDirectoryTest {
+
+    private final static Layout WIDE_ID32 = Layout.of(true, Sizeof.INT);
+
+
+    @Test
+    public void testIndexOf() {
+        AddressTable table = newTable(new Random(1), 10 * 1000);
+        NodeTypeDirectory directory = table.indexTypes();
+        assertEquals(5, directory.typeCount());
+        assertTrue(directory.isDense(directory.typeIndex((short) -3)));
+        assertFalse(directory.isDense(directory.typeIndex((short) 0)));
+        assertFalse(directory.isDense(directory.typeIndex((short) 2)));
+        assertTrue(directory.isDense(directory.typeIndex((short) 5)));
+        assertTrue(directory.isDense(directory.typeIndex((short) 9)));
+        assertTrue(directory.typeIndex((short) 1) < 0);
+
+        NodeSearch control = NodeSearch.newSearch(NodeSearch.Kind.BINARY, table);
+        List<Long> probes = new ArrayList<>();
+        for (int row = 0; row < table.size(); ++row) {
+            long key = table.getPackedNodeId(row);
+            probes.add(key);
+            probes.add(key - 1);
+            probes.add(key + 1);
+        }
+        for (short type : new short[] { Short.MIN_VALUE, -4, -3, -2, 0, 1, 2, 3, 5, 9, 10, Short.MAX_VALUE }) {
+            probes.add(ShortInt.pack(type, Integer.MIN_VALUE));
+            probes.add(ShortInt.pack(type, 0));
+            probes.add(ShortInt.pack(type, Integer.MAX_VALUE));
+        }
+        for (NodeSearch.Kind kind : NodeSearch.Kind.values()) {
+            table.setSearch(kind);
+            for (long key : probes) {
+                short type = ShortInt.packedType(key);
+                int id = ShortInt.packedId(key);
+                assertEquals(kind + ": " + ShortInt.unpack(key), control.indexOf(key), table.indexOf(type, id));
+            }
+        }
+    }
+
+
+    @Test
+    public void testStale() {
+        AddressTable table = new AddressTable(100);
+        for (int id = 0; id < 50; ++id)
+            table.appendEntry((short) 1, id);
+        assertEquals(50, table.indexTypes().size());
+        assertEquals(-51, table.indexOf((short) 1, 50));
+        table.appendEntry((short) 1, 51);
+        table.appendEntry((short) 2, 0);
+        // no longer dense
+        assertEquals(-51, table.indexOf((short) 1, 50));
+        assertEquals(50, table.indexOf((short) 1, 51));
+        assertEquals(51, table.indexOf((short) 2, 0));
+        assertEquals(2, table.indexTypes().typeCount());
+    }
+
+
+    @Test
+    public void testEmpty() {
+        AddressTable table = new AddressTable(1);
+        assertEquals(0, table.indexTypes().typeCount());
+        assertEquals(-1, table.indexOf((short) 0, 0));
+    }
+
+
+    @Test
+    public void testTypeQueries() {
+        Random random = new Random(2);
+        BulkGraphBuilder builder = new BulkGraphBuilder();
+        for (int count = 20000; count-- > 0; ) {
+            // type 1 is dense (its IDs are sources), the others sparse
+            builder.insertEdge(
+                    (short) 1, count % 3000,
+                    (short) random.nextInt(4),
+                    (short) (random.nextInt(3) * 2), random.nextInt(50 * 1000));
+        }
+        Graph graph = builder.build();
+        List<NodeType> types = new ArrayList<>();
+        List<List<Integer>> ids = new ArrayList<>();
+        Cursor cursor = graph.newCursor();
+        for (ShortInt node : cursor.getQualifiedNodeIds()) {
+            NodeType type = NodeType.valueOf(node.getType());
+            if (types.isEmpty() || !types.get(types.size() - 1).equals(type)) {
+                types.add(type);
+                ids.add(new ArrayList<Integer>());
+            }
+            ids.get(ids.size() - 1).add(node.getId());
+        }
+        assertEquals(types, graph.getNodeTypes());
+        for (int t = 0; t < types.size(); ++t) {
+            NodeType type = types.get(t);
+            assertEquals(ids.get(t).size(), graph.getNodeCount(type));
+            IntSlice slice = graph.getNodeIds(type);
+            assertEquals(ids.get(t), slice.asList());
+            for (int index = 0; index < slice.size(); ++index) {
+                assertEquals(index, slice.binarySearch(slice.getInt(index)));
+                assertTrue(cursor.moveTo(type, slice.getInt(index)));
+            }
+            assertEquals(-1, slice.binarySearch(Integer.MIN_VALUE));
+            assertEquals(-slice.size() - 1, slice.binarySearch(Integer.MAX_VALUE));
+        }
+        assertEquals(3000, graph.getNodeCount(new NodeType(1)));
+        assertEquals(0, graph.getNodeCount(new NodeType(3)));
+        assertTrue(graph.getNodeIds(new NodeType(3)).isEmpty());
+    }
+
+
+    @Test
+    public void testLookupLatency() {
+        System.out.println("testLookupLatency");
+        System.out.println("=================");
+        int nodes = 1000 * 1000;
+        AddressTable table = newTable(new Random(3), nodes);
+        NodeSearch search = NodeSearch.newSearch(NodeSearch.Kind.BINARY, table);
+        NodeTypeDirectory directory = table.indexTypes();
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        System.out.println("  nodes: " + formatter.format(nodes));
+
+        int lookups = 1000 * 1000;
+        String[] labels = { "dense IDs", "nearly dense IDs", "sparse IDs" };
+        short[] types = { -3, 0, 2 };
+        for (int k = 0; k < types.length; ++k) {
+            int t = directory.typeIndex(types[k]);
+            IntSlice ids = directory.getNodeIds(t);
+            Random random = new Random(4);
+            long[] keys = new long[lookups];
+            for (int index = 0; index < lookups; ++index)
+                keys[index] = ShortInt.pack(types[k], ids.getInt(random.nextInt(ids.size())));
+            // warm up
+            for (int run = 0; run < 3; ++run) {
+                lookup(search, keys);
+                lookup(table, keys);
+            }
+            long nanos = System.nanoTime();
+            lookup(search, keys);
+            nanos = System.nanoTime() - nanos;
+            long directoryNanos = System.nanoTime();
+            assertEquals(lookups, lookup(table, keys));
+            directoryNanos = System.nanoTime() - directoryNanos;
+            System.out.println("  " + labels[k] + ", table search (ns/lookup): " +
+                    formatter.format((double) nanos / lookups));
+            System.out.println("  " + labels[k] + ", type directory (ns/lookup): " +
+                    formatter.format((double) directoryNanos / lookups));
+        }
+        System.out.println();
+    }
+
+
+    private static int lookup(NodeSearch search, long[] keys) {
+        int found = 0;
+        for (long key : keys) {
+            if (search.indexOf(key) >= 0)
+                ++found;
+        }
+        return found;
+    }
+
+
+    private static int lookup(AddressTable table, long[] keys) {
+        int found = 0;
+        for (long key : keys) {
+            if (table.indexOf(ShortInt.packedType(key), ShortInt.packedId(key)) >= 0)
+                ++found;
+        }
+        return found;
+    }
+
+
+    /**
+     * Returns a table of about the given size, over 5 node types: the first dense, the 2nd
+     * nearly dense, the 3rd sparse, the 4th a single node, and the last
+     * dense, up to the maximum ID.
+     */
+    private static AddressTable newTable(Random random, int size) {
+        AddressTable table = new AddressTable(size, Allocator.HEAP, Table.DEFAULT_PAGE_SHIFT, WIDE_ID32);
+        int third = size / 3;
+        for (int row = 0; row < third; ++row)
+            table.appendEntry((short) -3, 100 + row);
+        for (int id = 0; id < 3 * third / 2; ++id) {
+            if (random.nextInt(3) != 0)
+                table.appendEntry((short) 0, id);
+        }
+        for (int row = 0, id = 7; row < third; ++row, id += 1 + random.nextInt(1000))
+            table.appendEntry((short) 2, id);
+        table.appendEntry((short) 5, 42);
+        for (int id = Integer.MAX_VALUE - 100; id > 0; ++id)
+            table.appendEntry((short) 9, id);
+        return table;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.mem.Allocator;
+
+import org.junit.Test;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.text.DecimalFormat;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Graphs allocated off-heap, with a rough comparison against their on-heap counterparts.
+ */
+public class OffHeapGraphTest {
+
+    @Test
+    public void testBuildAndMerge() {
+        RandomGraphBuilder builder = new RandomGraphBuilder().setAllocator(Allocator.DIRECT);
+        builder.setSampleCount(100);
+        Graph a = builder.generateGraph(1000);
+        Graph b = builder.clearBuilder().generateGraph(1000);
+        assertEquals(Allocator.DIRECT, a.addressTable.getAllocator());
+
+        Graph c = Graph.merge(a, b, Allocator.DIRECT);
+        c.trimMemToSize();
+        a.release();
+        b.release();
+        assertTrue(a.isEmpty());
+
+        Cursor cursor = c.newCursor();
+        for (RandomGraphBuilder.EdgeDef edgeDef : builder.getExpectedDefs())
+            GraphsTest.assertEdge(edgeDef, cursor);
+
+        c.release();
+        assertTrue(c.isEmpty());
+        assertEquals(0, c.getMemSize());
+    }
+
+
+    @Test
+    public void testHeapVsDirect() {
+        System.out.println("testHeapVsDirect");
+        System.out.println("================");
+        // warm up
+        runBenchmark(Allocator.HEAP, 2000, false);
+        runBenchmark(Allocator.DIRECT, 2000, false);
+
+        runBenchmark(Allocator.HEAP, 25000, true);
+        runBenchmark(Allocator.DIRECT, 25000, true);
+    }
+
+
+    private void runBenchmark(Allocator allocator, int nodes, boolean print) {
+        RandomGraphBuilder builder = new RandomGraphBuilder().setAllocator(allocator);
+        builder.setSampleCount(2);
+        builder.generate(100);
+        builder.setDistroRefreshPeriod(100);
+        builder.setSampleCount(1000);
+        Graph a = builder.generateGraph(nodes);
+        Graph b = builder.clearBuilder().generateGraph(nodes);
+
+        long gcMillis = gcMillis();
+        long nanos = System.nanoTime();
+        Graph c = Graph.merge(a, b, allocator);
+        c.trimMemToSize();
+        nanos = System.nanoTime() - nanos;
+        gcMillis = gcMillis() - gcMillis;
+        a.release();
+        b.release();
+
+        List<RandomGraphBuilder.EdgeDef> edges = builder.getExpectedDefs();
+        Cursor cursor = c.newCursor();
+        int rounds = 50;
+        long readNanos = System.nanoTime();
+        int found = 0;
+        for (int round = rounds; round-- > 0; ) {
+            for (RandomGraphBuilder.EdgeDef edge : edges) {
+                NodeType srcType = edge.srcType();
+                cursor.moveTo(srcType, edge.src.getId());
+                EdgeType edgeType = edge.edgeType;
+                NodeType dtnType = edge.dtnType();
+                found += cursor.getNodeIds(false, edgeType, dtnType).size();
+            }
+        }
+        readNanos = System.nanoTime() - readNanos;
+        assertTrue(found >= rounds * edges.size());
+
+        if (print) {
+            DecimalFormat formatter = new DecimalFormat("#,###.##");
+            System.out.println(allocator + ":");
+            System.out.println("  edges: " + formatter.format(c.getEdgeCount() / 2));
+            System.out.println("  merge (ms): " + formatter.format(nanos / 1000000));
+            System.out.println("  GC during merge (ms): " + gcMillis);
+            System.out.println("  read latency (ns): " + formatter.format(((double) readNanos) / (rounds * edges.size())));
+            System.out.println();
+        }
+        c.release();
+    }
+
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.list.LongSlice;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@linkplain ShortInt#pack(short, int) Packed} qualified node IDs must order as their
+ * <tt>ShortInt</tt>s do, and the packed API must see the same graph as the boxed one.
+ */
+public class PackedNodeIdTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testOrder() {
+        short[] types = { Short.MIN_VALUE, -1, 0, 1, Short.MAX_VALUE };
+        int[] ids = { Integer.MIN_VALUE, -1, 0, 1, 65535, 65536, Integer.MAX_VALUE };
+        List<ShortInt> nodes = new ArrayList<>();
+        for (short type : types)
+            for (int id : ids)
+                nodes.add(new ShortInt(type, id));
+        Random random = new Random(1);
+        for (int count = 1000; count-- > 0; )
+            nodes.add(new ShortInt((short) random.nextInt(), random.nextInt()));
+
+        long[] packed = new long[nodes.size()];
+        for (int index = 0; index < packed.length; ++index) {
+            ShortInt node = nodes.get(index);
+            packed[index] = node.pack();
+            assertEquals(node, ShortInt.unpack(packed[index]));
+            assertEquals(node.getType(), ShortInt.packedType(packed[index]));
+            assertEquals(node.getId(), ShortInt.packedId(packed[index]));
+        }
+        Collections.sort(nodes);
+        Arrays.sort(packed);
+        for (int index = 0; index < packed.length; ++index)
+            assertEquals(nodes.get(index).pack(), packed[index]);
+    }
+
+
+    @Test
+    public void testFixedCursor() {
+        Graph graph = new RandomGraphBuilder().setBulkBuilder(new BulkGraphBuilder()).setBulkOnly(true)
+                .setSeed(2).generateUniform(20000, -2, 4, 1000).build();
+        assertSamePacked(graph.newCursor());
+        Cursor cursor = graph.newCursor();
+        for (ShortInt node : cursor.getQualifiedNodeIds()) {
+            assertTrue(cursor.moveTo(node.pack()));
+            assertEquals(node.getType(), cursor.getNodeType().getId());
+            assertEquals(node.getId(), cursor.getNodeId());
+        }
+        assertFalse(cursor.moveTo(ShortInt.pack((short) 0, 1000)));
+        assertFalse(cursor.moveTo(ShortInt.pack(Short.MIN_VALUE, 0)));
+    }
+
+
+    @Test
+    public void testOtherCursors() {
+        assertTrue(new EmptyCursor().getQualifiedNodeIdsPacked().isEmpty());
+
+        Graph a = new RandomGraphBuilder().setBulkBuilder(new BulkGraphBuilder()).setBulkOnly(true)
+                .setSeed(3).generateUniform(5000, -2, 4, 1000).build();
+        GraphBuilder builder = new GraphBuilder();
+        builder.insertEdge((short) 9, 1, (short) 1, (short) 9, 2);
+        Graph b = builder.build();
+        assertSamePacked(new DisjointComboCursor(a.newCursor(), b.newCursor()));
+
+        // the base implementation (thru the boxed list)
+        DeltaGraph delta = new DeltaGraph(a);
+        delta.insertEdge(ShortInt.pack((short) 9, 1), (short) 1, ShortInt.pack((short) 9, 2));
+        Cursor cursor = delta.newCursor();
+        assertSamePacked(cursor);
+        assertTrue(cursor.moveTo(ShortInt.pack((short) 9, 2)));
+        assertEquals(1, cursor.getEdgeCount(true));
+    }
+
+
+    @Test
+    public void testInsertPacked() throws IOException {
+        Random random = new Random(4);
+        GraphBuilder control = new GraphBuilder();
+        GraphBuilder builder = new GraphBuilder();
+        BulkGraphBuilder bulkBuilder = new BulkGraphBuilder();
+        ConcurrentGraphBuilder concurrentBuilder = new ConcurrentGraphBuilder();
+        DeltaGraph delta = new DeltaGraph();
+        for (int count = 10000; count-- > 0; ) {
+            short srcType = (short) (random.nextInt(5) - 2);
+            int srcId = random.nextInt(1000);
+            short edgeType = (short) (random.nextInt(7) - 1);
+            short dtnType = (short) (random.nextInt(5) - 2);
+            int dtnId = random.nextInt(1000);
+            control.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+            long src = ShortInt.pack(srcType, srcId);
+            long dtn = ShortInt.pack(dtnType, dtnId);
+            builder.insertEdge(src, edgeType, dtn);
+            bulkBuilder.insertEdge(src, edgeType, dtn);
+            concurrentBuilder.insertEdge(src, edgeType, dtn);
+            delta.insertEdge(src, edgeType, dtn);
+        }
+        Graph expected = control.build();
+        GraphFileTest.assertSameBytes(expected, builder.build(), tempDir);
+        GraphFileTest.assertSameBytes(expected, bulkBuilder.build(), tempDir);
+        GraphFileTest.assertSameBytes(expected, concurrentBuilder.build(), tempDir);
+        GraphFileTest.assertSameBytes(expected, delta.freeze(), tempDir);
+    }
+
+
+    @Test
+    public void testNodeLookup() {
+        System.out.println("testNodeLookup");
+        System.out.println("==============");
+        Graph graph = new RandomGraphBuilder().setBulkBuilder(new BulkGraphBuilder()).setBulkOnly(true)
+                .setSeed(5).generateUniform(1000 * 1000, -2, 4, 200 * 1000).build();
+        Cursor cursor = graph.newCursor();
+        List<ShortInt> nodes = cursor.getQualifiedNodeIds();
+        LongSlice packed = cursor.getQualifiedNodeIdsPacked();
+
+        int lookups = 1000 * 1000;
+        Random random = new Random(6);
+        ShortInt[] keys = new ShortInt[lookups];
+        long[] packedKeys = new long[lookups];
+        for (int index = 0; index < lookups; ++index) {
+            keys[index] = new ShortInt((short) (random.nextInt(5) - 2), random.nextInt(200 * 1000));
+            packedKeys[index] = keys[index].pack();
+        }
+        // warm up
+        for (int run = 0; run < 3; ++run) {
+            searchBoxed(nodes, keys);
+            searchPacked(packed, packedKeys);
+            scanBoxed(nodes);
+            scanPacked(packed);
+        }
+
+        long nanos = System.nanoTime();
+        int found = searchBoxed(nodes, keys);
+        long boxedNanos = System.nanoTime() - nanos;
+        nanos = System.nanoTime();
+        assertEquals(found, searchPacked(packed, packedKeys));
+        long packedNanos = System.nanoTime() - nanos;
+
+        nanos = System.nanoTime();
+        long sum = scanBoxed(nodes);
+        long boxedScanNanos = System.nanoTime() - nanos;
+        nanos = System.nanoTime();
+        assertEquals(sum, scanPacked(packed));
+        long packedScanNanos = System.nanoTime() - nanos;
+
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        System.out.println("  nodes: " + formatter.format(nodes.size()));
+        System.out.println("  binary search, List<ShortInt> (ns): " + formatter.format((double) boxedNanos / lookups));
+        System.out.println("  binary search, LongSlice (ns): " + formatter.format((double) packedNanos / lookups));
+        System.out.println("  scan, List<ShortInt> (ns/node): " +
+                formatter.format((double) boxedScanNanos / nodes.size()));
+        System.out.println("  scan, LongSlice (ns/node): " +
+                formatter.format((double) packedScanNanos / nodes.size()));
+        System.out.println();
+    }
+
+
+    private static int searchBoxed(List<ShortInt> nodes, ShortInt[] keys) {
+        int found = 0;
+        for (ShortInt key : keys) {
+            if (Collections.binarySearch(nodes, key) >= 0)
+                ++found;
+        }
+        return found;
+    }
+
+
+    private static int searchPacked(LongSlice nodes, long[] keys) {
+        int found = 0;
+        for (long key : keys) {
+            if (nodes.binarySearch(key) >= 0)
+                ++found;
+        }
+        return found;
+    }
+
+
+    private static long scanBoxed(List<ShortInt> nodes) {
+        long sum = 0;
+        for (int index = 0, size = nodes.size(); index < size; ++index) {
+            ShortInt node = nodes.get(index);
+            sum += node.getType() + node.getId();
+        }
+        return sum;
+    }
+
+
+    private static long scanPacked(LongSlice nodes) {
+        long sum = 0;
+        for (int index = 0, size = nodes.size(); index < size; ++index) {
+            long node = nodes.getLong(index);
+            sum += ShortInt.packedType(node) + ShortInt.packedId(node);
+        }
+        return sum;
+    }
+
+
+    private static void assertSamePacked(Cursor cursor) {
+        List<ShortInt> nodes = cursor.getQualifiedNodeIds();
+        LongSlice packed = cursor.getQualifiedNodeIdsPacked();
+        assertEquals(nodes.size(), packed.size());
+        for (int index = 0; index < nodes.size(); ++index) {
+            assertEquals(nodes.get(index).pack(), packed.getLong(index));
+            assertEquals(index, packed.binarySearch(nodes.get(index).pack()));
+        }
+        for (ShortInt node : nodes)
+            assertTrue(cursor.moveTo(new NodeType(node.getType()), node.getId()));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Graphs whose tables span multiple pages. The pages here are tiny, so that rows
+ * routinely straddle page boundaries the way they would in multi-gigabyte tables.
+ */
+public class PagedGraphTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testBuild() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder().setPageShift(3);
+        builder.setSampleCount(100);
+        Graph paged = builder.generateGraph(1000);
+        assertTrue(paged.addressTable.isPaged());
+        assertTrue(paged.nodeIdTable.isPaged());
+        assertEquals(3, paged.nodeIdTable.getPageShift());
+        assertEdges(builder.getExpectedDefs(), paged);
+
+        // same seed, same graph
+        RandomGraphBuilder control = new RandomGraphBuilder();
+        control.setSampleCount(100);
+        Graph unpaged = control.generateGraph(1000);
+        assertFalse(unpaged.addressTable.isPaged());
+        GraphFileTest.assertSameStats(unpaged, paged);
+        GraphFileTest.assertSameBytes(unpaged, paged, tempDir);
+    }
+
+
+    @Test
+    public void testMerge() {
+        RandomGraphBuilder builder = new RandomGraphBuilder().setPageShift(4);
+        builder.setSampleCount(100);
+        Graph a = builder.generateGraph(500);
+        Graph b = builder.clearBuilder().generateGraph(500);
+
+        Graph c = Graph.merge(a, b, Allocator.HEAP);
+        assertEdges(builder.getExpectedDefs(), c);
+    }
+
+
+    @Test
+    public void testTrimAndRelease() {
+        RandomGraphBuilder builder = new RandomGraphBuilder().setAllocator(Allocator.DIRECT).setPageShift(5);
+        builder.setSampleCount(100);
+        Graph graph = builder.generateGraph(1000);
+        long memSize = graph.getMemSize();
+        graph.trimMemToSize();
+        assertTrue(graph.getMemSize() <= memSize);
+        assertTrue(graph.unusedMem() < 4 * (1 << 5) * AddressTable.ROW_SIZE);
+        assertEdges(builder.getExpectedDefs(), graph);
+
+        graph.release();
+        assertTrue(graph.isEmpty());
+        assertEquals(0, graph.getMemSize());
+    }
+
+
+    @Test
+    public void testMapPaged() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(100);
+        Graph graph = builder.generateGraph(1000);
+
+        Path file = tempDir.newFile().toPath();
+        graph.save(file);
+
+        GraphFile graphFile = GraphFile.open(file, GraphFile.Verification.EAGER, 1000);
+        Graph loaded = graphFile.getGraph();
+        assertTrue(loaded.addressTable.isPaged());
+        assertTrue(loaded.nodeIdTable.isPaged());
+        GraphFileTest.assertSameStats(graph, loaded);
+        assertEdges(builder.getExpectedDefs(), loaded);
+        GraphFileTest.assertSameBytes(graph, loaded, tempDir);
+        loaded.release();
+    }
+
+
+    @Test
+    public void testUnpagedShift() {
+        RandomGraphBuilder builder = new RandomGraphBuilder().setPageShift(Table.UNPAGED);
+        Graph graph = builder.generateGraph(100);
+        assertFalse(graph.addressTable.isPaged());
+        assertEdges(builder.getExpectedDefs(), graph);
+    }
+
+
+    private void assertEdges(List<RandomGraphBuilder.EdgeDef> expectedDefs, Graph graph) {
+        Cursor cursor = graph.newCursor();
+        for (RandomGraphBuilder.EdgeDef edgeDef : expectedDefs)
+            GraphsTest.assertEdge(edgeDef, cursor);
+    }
+}
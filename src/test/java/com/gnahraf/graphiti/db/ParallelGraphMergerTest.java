@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.util.mem.Allocator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * The parallel merge must be byte-for-byte identical to the serial one.
+ */
+public class ParallelGraphMergerTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testSameAsSerial() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(100);
+        Graph a = builder.generateGraph(8000);
+        Graph b = builder.clearBuilder().generateGraph(5000);
+        List<Graph> inputs = Arrays.asList(a, b);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Graph parallel = new ParallelGraphMerger(inputs, Allocator.HEAP, pool, 7).merge();
+        pool.shutdown();
+        Graph serial = new GraphMerger(a, b).merge();
+        GraphFileTest.assertSameBytes(serial, parallel, tempDir);
+
+        Cursor cursor = parallel.newCursor();
+        for (RandomGraphBuilder.EdgeDef edgeDef : builder.getExpectedDefs())
+            GraphsTest.assertEdge(edgeDef, cursor);
+    }
+
+
+    @Test
+    public void testManySameAsSerial() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        Graph[] inputs = new Graph[5];
+        for (int index = 0; index < inputs.length; ++index)
+            inputs[index] = builder.clearBuilder().generateGraph(1000 + 1500 * index);
+
+        Graph parallel = new ParallelGraphMerger(
+                Arrays.asList(inputs), Allocator.DIRECT, ForkJoinPool.commonPool(), 6).merge();
+        assertEquals(Allocator.DIRECT, parallel.addressTable.getAllocator());
+        GraphFileTest.assertSameBytes(Graph.merge(inputs), parallel, tempDir);
+        parallel.release();
+    }
+
+
+    @Test
+    public void testOverlapping() throws IOException {
+        Graph a = new RandomGraphBuilder().generateGraph(6000);
+        Graph b = new RandomGraphBuilder().generateGraph(3000);
+        Graph parallel = new ParallelGraphMerger(
+                Arrays.asList(a, b), Allocator.HEAP, ForkJoinPool.commonPool(), 5).merge();
+        GraphFileTest.assertSameBytes(Graph.merge(a, b), parallel, tempDir);
+    }
+
+
+    @Test
+    public void testSmall() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        Graph a = builder.generateGraph(20);
+        Graph b = builder.clearBuilder().generateGraph(30);
+        GraphFileTest.assertSameBytes(Graph.merge(a, b), ParallelGraphMerger.merge(a, b), tempDir);
+    }
+
+
+    @Test
+    public void testSerialVsParallel() {
+        System.out.println("testSerialVsParallel");
+        System.out.println("====================");
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(2);
+        builder.generate(100);
+        builder.setDistroRefreshPeriod(100);
+        Graph a = builder.clearBuilder().generateGraph(25000);
+        Graph b = builder.clearBuilder().generateGraph(25000);
+
+        // warm up
+        Graph.merge(a, b);
+        ParallelGraphMerger.merge(a, b);
+
+        long nanos = System.nanoTime();
+        Graph serial = Graph.merge(a, b);
+        long serialNanos = System.nanoTime() - nanos;
+
+        nanos = System.nanoTime();
+        Graph parallel = ParallelGraphMerger.merge(a, b);
+        long parallelNanos = System.nanoTime() - nanos;
+        assertEquals(serial.getEdgeCount(), parallel.getEdgeCount());
+
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        System.out.println("  threads: " + ForkJoinPool.commonPool().getParallelism());
+        System.out.println("  edges: " + formatter.format(parallel.getEdgeCount() / 2));
+        System.out.println("  serial (ms): " + formatter.format(serialNanos / 1000000));
+        System.out.println("  parallel (ms): " + formatter.format(parallelNanos / 1000000));
+        System.out.println();
+    }
+}
@@ -11,6 +11,8 @@ import com.gnahraf.util.Sampler;
 import com.gnahraf.util.datatypes.Base;
 import com.gnahraf.util.datatypes.ShortInt;
 import com.gnahraf.util.datatypes.WeightedItem;
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -75,8 +77,25 @@ public class RandomGraphBuilder {
 
     protected final Random random = new Random(41);
 
+    protected Allocator allocator = Allocator.HEAP;
+
+    protected int pageShift = Table.UNPAGED;
+
+    protected Layout layout = Layout.NARROW;
+
     protected GraphBuilder builder = new GraphBuilder();
 
+    /**
+     * If set, receives a copy of every edge inserted into the {@linkplain #builder}.
+     */
+    protected BulkGraphBuilder bulkBuilder;
+
+    /**
+     * If set, edges are inserted only into the {@linkplain #bulkBuilder}, which then also
+     * builds the graph. (Large graphs build slowly edge by edge.)
+     */
+    protected boolean bulkOnly;
+
     private int distroRefreshPeriod = 5;
     private int sampleCount = 1000;
 
@@ -184,14 +203,103 @@ public class RandomGraphBuilder {
     }
 
 
+    /**
+     * Inserts uniformly random edges, as opposed to the skewed ones {@linkplain
+     * #generate(int)} inserts. Node and edge types are drawn from <tt>[minType, maxType]</tt>,
+     * node IDs from <tt>[0, maxNodeId)</tt>.
+     */
+    public RandomGraphBuilder generateUniform(int edges, int minType, int maxType, int maxNodeId) {
+        if (edges < 1 || minType > maxType || maxNodeId < 1)
+            throw new IllegalArgumentException(
+                    "edges " + edges + ", types [" + minType + ", " + maxType +
+                    "], maxNodeId " + maxNodeId);
+        int types = maxType - minType + 1;
+        for (int count = edges; count-- > 0; ) {
+            short srcType = (short) (minType + random.nextInt(types));
+            int srcId = random.nextInt(maxNodeId);
+            short edgeType = (short) (minType + random.nextInt(types));
+            short dtnType = (short) (minType + random.nextInt(types));
+            int dtnId = random.nextInt(maxNodeId);
+            if (!bulkOnly)
+                builder.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+            if (bulkBuilder != null)
+                bulkBuilder.insertEdge(srcType, srcId, edgeType, dtnType, dtnId);
+        }
+        edgeCount += edges;
+        return this;
+    }
+
+
+    /**
+     * Seeds the random node IDs (and uniformly random edges).
+     */
+    public RandomGraphBuilder setSeed(long seed) {
+        random.setSeed(seed);
+        return this;
+    }
+
+
     public RandomGraphBuilder clearBuilder() {
-        builder = new GraphBuilder();
+        builder = new GraphBuilder(allocator, pageShift, layout);
         return this;
     }
 
 
+    /**
+     * Sets the allocator used by the builder. Clears the builder.
+     */
+    public RandomGraphBuilder setAllocator(Allocator allocator) {
+        this.allocator = allocator;
+        return clearBuilder();
+    }
+
+
+    /**
+     * Sets the page shift of the builder's tables. Clears the builder.
+     */
+    public RandomGraphBuilder setPageShift(int pageShift) {
+        this.pageShift = pageShift;
+        return clearBuilder();
+    }
+
+
+    /**
+     * Sets the (minimum) layout of the builder's tables. Clears the builder.
+     */
+    public RandomGraphBuilder setLayout(Layout layout) {
+        this.layout = layout;
+        return clearBuilder();
+    }
+
+
     public Graph build() {
-        return builder.build();
+        return bulkOnly ? bulkBuilder.build() : builder.build();
+    }
+
+
+    /**
+     * Sets the bulk builder that mirrors the edges inserted into the builder, or <tt>null</tt>.
+     */
+    public RandomGraphBuilder setBulkBuilder(BulkGraphBuilder bulkBuilder) {
+        this.bulkBuilder = bulkBuilder;
+        return this;
+    }
+
+
+    public BulkGraphBuilder getBulkBuilder() {
+        return bulkBuilder;
+    }
+
+
+    /**
+     * Sets whether edges are inserted only into the bulk builder (which then builds the
+     * graph), skipping the builder.
+     */
+    public RandomGraphBuilder setBulkOnly(boolean bulkOnly) {
+        if (bulkOnly && bulkBuilder == null)
+            throw new IllegalStateException("no bulk builder set");
+        this.bulkOnly = bulkOnly;
+        return this;
     }
 
 
@@ -210,7 +318,10 @@ public class RandomGraphBuilder {
             ShortInt dtn = existingNodes.next();
             existingNodes.incrWeight(dtn);
 
-            builder.insertEdge(src, edgeType, dtn);
+            if (!bulkOnly)
+                builder.insertEdge(src, edgeType, dtn);
+            if (bulkBuilder != null)
+                bulkBuilder.insertEdge(src, edgeType, dtn);
             ++edgeCount;
             if (edgeCount % samplePeriod == 0)
                 expectedDefs.add(new EdgeDef(src, edgeType, dtn));
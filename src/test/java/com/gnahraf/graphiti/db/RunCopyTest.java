@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.util.mem.Allocator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs of source nodes found in only one input are bulk copied by the merger. The output
+ * must be the same as when every edge is merged one by one.
+ */
+public class RunCopyTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testGallop() {
+        BulkGraphBuilder builder = new BulkGraphBuilder();
+        for (int id = 0; id < 100; ++id)
+            builder.insertEdge((short) 1, 2 * id, (short) 0, (short) 2, 0);
+        AddressTable table = builder.build().addressTable;
+        // node (1, 2 * id) is at row id; node (2, 0) at 100
+        assertEquals(0, GraphMerger.gallop(table, 0, 101, (short) 1, 0));
+        assertEquals(1, GraphMerger.gallop(table, 0, 101, (short) 1, 1));
+        assertEquals(37, GraphMerger.gallop(table, 0, 101, (short) 1, 73));
+        assertEquals(37, GraphMerger.gallop(table, 30, 101, (short) 1, 74));
+        assertEquals(100, GraphMerger.gallop(table, 0, 101, (short) 1, 1000));
+        assertEquals(101, GraphMerger.gallop(table, 0, 101, (short) 3, 0));
+        assertEquals(50, GraphMerger.gallop(table, 0, 50, (short) 1, 1000));
+    }
+
+
+    @Test
+    public void testDisjoint() throws IOException {
+        Graph a = randomGraph(new Random(1), 0, 5000, 20000);
+        Graph b = randomGraph(new Random(2), 5000, 5000, 20000);
+        Graph c = randomGraph(new Random(3), 10000, 100, 500);
+        assertMergesSame(Arrays.asList(c, a, b));
+    }
+
+
+    @Test
+    public void testAppendMostly() throws IOException {
+        Random rnd = new Random(4);
+        Graph old = randomGraph(rnd, 0, 20000, 60000);
+        Graph recent = randomGraph(rnd, 19000, 5000, 15000);
+        assertMergesSame(Arrays.asList(old, recent));
+    }
+
+
+    @Test
+    public void testInterleaved() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        Graph[] segments = new Graph[6];
+        for (int index = 0; index < segments.length; ++index)
+            segments[index] = builder.clearBuilder().generateGraph(500);
+        assertMergesSame(Arrays.asList(segments));
+    }
+
+
+    @Test
+    public void testMixedLayouts() throws IOException {
+        Graph narrow = randomGraph(new Random(5), 0, 3000, 9000);
+        Graph wide = new RandomGraphBuilder().setLayout(Layout.WIDE).generateGraph(300);
+        Graph paged = new RandomGraphBuilder().setPageShift(6).generateGraph(400);
+        assertMergesSame(Arrays.asList(narrow, wide, paged));
+        assertEquals(Layout.WIDE, Graph.merge(narrow, wide).getLayout());
+    }
+
+
+    @Test
+    public void testStreamed() throws IOException {
+        Random rnd = new Random(6);
+        List<Graph> inputs = Arrays.asList(
+                randomGraph(rnd, 0, 20000, 60000), randomGraph(rnd, 19000, 5000, 15000));
+        Path file = tempDir.newFile().toPath();
+        new GraphMerger(inputs, Allocator.HEAP).setExactSizing(true).mergeTo(file);
+        Path expected = tempDir.newFile().toPath();
+        new GraphMerger(inputs, Allocator.HEAP).setRunCopying(false).merge().save(expected);
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(file));
+    }
+
+
+    /**
+     * The bulk copy relies on the rows of a run being contiguous in each table.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testNonContiguous() {
+        // edge (1,1) -1-> (1,2), with the inbound edge's rows ahead of the outbound's
+        AddressTable addressTable = new AddressTable(2);
+        addressTable.appendEntry((short) 1, 1, 1, 1, 0, 0);
+        addressTable.appendEntry((short) 1, 2, 0, 0, 0, 1);
+        EdgeTable edgeTable = new EdgeTable(2);
+        edgeTable.appendEntry((short) 1, 0);
+        edgeTable.appendEntry((short) 1, 1);
+        NodeTypeTable nodeTypeTable = new NodeTypeTable(2);
+        nodeTypeTable.appendEntry((short) 1, 0);
+        nodeTypeTable.appendEntry((short) 1, 1);
+        NodeIdTable nodeIdTable = new NodeIdTable(2);
+        nodeIdTable.appendEntry(1);
+        nodeIdTable.appendEntry(2);
+        Graph scrambled = new Graph(addressTable, edgeTable, nodeTypeTable, nodeIdTable);
+
+        Graph other = randomGraph(new Random(7), 100, 10, 20);
+        Graph.merge(other, scrambled);
+    }
+
+
+    @Test
+    public void testRunCopyVsPerEdge() {
+        System.out.println("testRunCopyVsPerEdge");
+        System.out.println("====================");
+        Random rnd = new Random(8);
+        List<Graph> inputs = Arrays.asList(
+                randomGraph(rnd, 0, 200000, 600000), randomGraph(rnd, 195000, 50000, 150000));
+
+        // warm up
+        new GraphMerger(inputs, Allocator.HEAP).setRunCopying(false).merge();
+        new GraphMerger(inputs, Allocator.HEAP).merge();
+
+        long nanos = System.nanoTime();
+        Graph perEdge = new GraphMerger(inputs, Allocator.HEAP).setRunCopying(false).merge();
+        long perEdgeNanos = System.nanoTime() - nanos;
+
+        nanos = System.nanoTime();
+        Graph runs = new GraphMerger(inputs, Allocator.HEAP).merge();
+        long runNanos = System.nanoTime() - nanos;
+        assertEquals(perEdge.getEdgeCount(), runs.getEdgeCount());
+
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        System.out.println("  edges: " + formatter.format(runs.getEdgeCount() / 2));
+        System.out.println("  per edge (ms): " + formatter.format(perEdgeNanos / 1000000));
+        System.out.println("  run copy (ms): " + formatter.format(runNanos / 1000000));
+        System.out.println();
+    }
+
+
+    /**
+     * Returns a random graph whose nodes have IDs in the range
+     * [<tt>base</tt>, <tt>base + nodes</tt>).
+     */
+    private Graph randomGraph(Random rnd, int base, int nodes, int edges) {
+        BulkGraphBuilder builder = new BulkGraphBuilder(2 * edges);
+        for (int count = 0; count < edges; ++count) {
+            builder.insertEdge(
+                    (short) rnd.nextInt(3), base + rnd.nextInt(nodes),
+                    (short) rnd.nextInt(4),
+                    (short) rnd.nextInt(3), base + rnd.nextInt(nodes));
+        }
+        return builder.build();
+    }
+
+
+    private void assertMergesSame(List<Graph> inputs) throws IOException {
+        Graph expected = new GraphMerger(inputs, Allocator.HEAP).setRunCopying(false).merge();
+        Graph actual = new GraphMerger(inputs, Allocator.HEAP).merge();
+        GraphFileTest.assertSameBytes(expected, actual, tempDir);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.DecimalFormat;
+
+import static org.junit.Assert.*;
+
+/**
+ * Merges streamed straight to file must open as the same graph as merges in memory.
+ */
+public class StreamingMergeTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testSameAsInMemory() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(100);
+        Graph a = builder.generateGraph(8000);
+        Graph b = builder.clearBuilder().generateGraph(5000);
+
+        Path file = tempDir.newFile().toPath();
+        new GraphMerger(a, b).mergeTo(file);
+        Graph streamed = Graph.open(file);
+        GraphFileTest.assertSameBytes(Graph.merge(a, b), streamed, tempDir);
+
+        Cursor cursor = streamed.newCursor();
+        for (RandomGraphBuilder.EdgeDef edgeDef : builder.getExpectedDefs())
+            GraphsTest.assertEdge(edgeDef, cursor);
+        streamed.release();
+    }
+
+
+    @Test
+    public void testMappedInputs() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        Graph[] inputs = new Graph[4];
+        for (int index = 0; index < inputs.length; ++index) {
+            Path file = tempDir.newFile().toPath();
+            builder.clearBuilder().generateGraph(2000 + 1000 * index).save(file);
+            inputs[index] = Graph.open(file);
+        }
+
+        Path file = tempDir.newFile().toPath();
+        Graph.mergeTo(file, inputs);
+        Graph streamed = Graph.open(file);
+        GraphFileTest.assertSameBytes(Graph.merge(inputs), streamed, tempDir);
+
+        Cursor cursor = streamed.newCursor();
+        for (RandomGraphBuilder.EdgeDef edgeDef : builder.getExpectedDefs())
+            GraphsTest.assertEdge(edgeDef, cursor);
+        streamed.release();
+        for (Graph input : inputs)
+            input.release();
+    }
+
+
+    @Test
+    public void testOverlapping() throws IOException {
+        Graph a = new RandomGraphBuilder().generateGraph(6000);
+        Graph b = new RandomGraphBuilder().generateGraph(3000);
+        Path file = tempDir.newFile().toPath();
+        Graph.mergeTo(file, a, b, a);
+        Graph streamed = Graph.open(file);
+        GraphFileTest.assertSameBytes(Graph.merge(a, b), streamed, tempDir);
+        streamed.release();
+    }
+
+
+    @Test
+    public void testMinimal() throws IOException {
+        GraphBuilder builder = new GraphBuilder();
+        builder.insertEdge((short) 1, 1, (short) 1, (short) 1, 2);
+        Graph a = builder.build();
+        builder = new GraphBuilder();
+        builder.insertEdge((short) 1, 2, (short) 1, (short) 1, 3);
+        Graph b = builder.build();
+
+        Path file = tempDir.newFile().toPath();
+        Graph.mergeTo(file, a, b);
+        Graph streamed = Graph.open(file);
+        assertEquals(3, streamed.getNodeCount());
+        assertEquals(4, streamed.getEdgeCount());
+        GraphFileTest.assertSameBytes(Graph.merge(a, b), streamed, tempDir);
+        streamed.release();
+    }
+
+
+    @Test
+    public void testSoleGraph() throws IOException {
+        Graph graph = new RandomGraphBuilder().generateGraph(100);
+        Graph empty = new Graph(
+                new AddressTable(1), new EdgeTable(1), new NodeTypeTable(1), new NodeIdTable(1));
+        Path file = tempDir.newFile().toPath();
+        Graph.mergeTo(file, null, empty, graph);
+        Path expected = tempDir.newFile().toPath();
+        graph.save(expected);
+        assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(file));
+    }
+
+
+    @Test(expected = IllegalStateException.class)
+    public void testMergeTwice() throws IOException {
+        GraphMerger merger = new GraphMerger(
+                new RandomGraphBuilder().generateGraph(10), new RandomGraphBuilder().generateGraph(10));
+        merger.mergeTo(tempDir.newFile().toPath());
+        merger.merge();
+    }
+
+
+    @Test
+    public void testStreamingVsInMemory() throws IOException {
+        System.out.println("testStreamingVsInMemory");
+        System.out.println("=======================");
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(2);
+        builder.generate(100);
+        builder.setDistroRefreshPeriod(100);
+        Graph a = builder.clearBuilder().generateGraph(25000);
+        Graph b = builder.clearBuilder().generateGraph(25000);
+        Path inMemoryFile = tempDir.newFile().toPath();
+        Path streamedFile = tempDir.newFile().toPath();
+
+        // warm up
+        Graph.merge(a, b).save(inMemoryFile);
+        Graph.mergeTo(streamedFile, a, b);
+
+        long nanos = System.nanoTime();
+        Graph merged = Graph.merge(a, b);
+        merged.save(inMemoryFile);
+        long inMemoryNanos = System.nanoTime() - nanos;
+
+        nanos = System.nanoTime();
+        Graph.mergeTo(streamedFile, a, b);
+        long streamedNanos = System.nanoTime() - nanos;
+
+        Graph streamed = Graph.open(streamedFile);
+        assertEquals(merged.getEdgeCount(), streamed.getEdgeCount());
+        streamed.release();
+
+        DecimalFormat formatter = new DecimalFormat("#,###.##");
+        System.out.println("  edges: " + formatter.format(merged.getEdgeCount() / 2));
+        System.out.println("  merged tables (bytes): " + formatter.format(merged.getMemSize()));
+        System.out.println("  stream buffers (bytes): " +
+                formatter.format(GraphFile.TABLE_COUNT * GraphFileSink.BUFFER_SIZE));
+        System.out.println("  merge + save (ms): " + formatter.format(inMemoryNanos / 1000000));
+        System.out.println("  streamed merge (ms): " + formatter.format(streamedNanos / 1000000));
+        System.out.println();
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.datatypes.ShortInt;
+import com.gnahraf.util.mem.Allocator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tombstone graphs delete edges on merge, and hide them from combined cursors.
+ */
+public class TombstoneTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testMergeDeletes() throws IOException {
+        Random rnd = new Random(1);
+        List<long[]> edges = randomEdges(rnd, 20000, 2000);
+        List<long[]> deleted = sample(rnd, edges, 3000);
+        Graph data = build(edges);
+        Graph tombstones = build(deleted).asTombstones();
+
+        Graph merged = Graph.merge(data, tombstones);
+        assertFalse(merged.isTombstones());
+        GraphFileTest.assertSameBytes(build(minus(edges, deleted)), merged, tempDir);
+    }
+
+
+    @Test
+    public void testReinsert() throws IOException {
+        Random rnd = new Random(2);
+        List<long[]> edges = randomEdges(rnd, 10000, 1000);
+        List<long[]> deleted = sample(rnd, edges, 2000);
+        List<long[]> reinserted = sample(rnd, deleted, 500);
+
+        Graph merged = Graph.merge(
+                build(edges), build(deleted).asTombstones(), build(reinserted));
+        List<long[]> expected = minus(edges, deleted);
+        expected.addAll(reinserted);
+        GraphFileTest.assertSameBytes(build(expected), merged, tempDir);
+    }
+
+
+    @Test
+    public void testOlderTombstones() throws IOException {
+        Random rnd = new Random(3);
+        List<long[]> edges = randomEdges(rnd, 5000, 500);
+        List<long[]> deleted = sample(rnd, edges, 1000);
+        // tombstones preceding the data have nothing to delete
+        Graph merged = Graph.merge(build(deleted).asTombstones(), build(edges));
+        GraphFileTest.assertSameBytes(build(edges), merged, tempDir);
+    }
+
+
+    @Test
+    public void testDeleteAll() {
+        Graph data = new RandomGraphBuilder().generateGraph(200);
+        Graph merged = Graph.merge(data, data.asTombstones());
+        assertTrue(merged.isEmpty());
+    }
+
+
+    @Test
+    public void testTombstonesOnly() throws IOException {
+        Random rnd = new Random(4);
+        List<long[]> a = randomEdges(rnd, 1000, 300);
+        List<long[]> b = randomEdges(rnd, 1000, 300);
+        Graph merged = Graph.merge(build(a).asTombstones(), build(b).asTombstones());
+        assertTrue(merged.isTombstones());
+        List<long[]> union = new ArrayList<>(a);
+        union.addAll(b);
+        GraphFileTest.assertSameBytes(build(union).asTombstones(), merged, tempDir);
+    }
+
+
+    @Test
+    public void testRunCopying() throws IOException {
+        Random rnd = new Random(5);
+        List<long[]> edges = randomEdges(rnd, 20000, 5000);
+        List<long[]> deleted = sample(rnd, edges, 200);
+        List<Graph> inputs = Arrays.asList(build(edges), build(deleted).asTombstones());
+        Graph perEdge = new GraphMerger(inputs, Allocator.HEAP).setRunCopying(false).merge();
+        GraphFileTest.assertSameBytes(perEdge, new GraphMerger(inputs, Allocator.HEAP).merge(), tempDir);
+        GraphFileTest.assertSameBytes(build(minus(edges, deleted)), perEdge, tempDir);
+    }
+
+
+    @Test
+    public void testParallel() throws IOException {
+        Random rnd = new Random(6);
+        List<long[]> edges = randomEdges(rnd, 40000, 8000);
+        List<long[]> deleted = sample(rnd, edges, 4000);
+        // tombstones for edges that don't exist, in ranges of their own
+        deleted.addAll(randomEdges(rnd, 1000, 100000));
+        List<Graph> inputs = Arrays.asList(build(edges), build(deleted).asTombstones());
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        Graph parallel = new ParallelGraphMerger(inputs, Allocator.HEAP, pool, 9).merge();
+        pool.shutdown();
+        GraphFileTest.assertSameBytes(Graph.merge(inputs, Allocator.HEAP), parallel, tempDir);
+    }
+
+
+    @Test
+    public void testExactSizingDeleteAll() {
+        Random rnd = new Random(9);
+        List<long[]> edges = randomEdges(rnd, 5000, 1000);
+        List<Graph> inputs = Arrays.asList(build(edges), build(edges).asTombstones());
+        Graph merged = new GraphMerger(inputs, Allocator.HEAP).setExactSizing(true).merge();
+        assertTrue(merged.isEmpty());
+        assertFalse(merged.isTombstones());
+    }
+
+
+    @Test
+    public void testParallelDeleteAll() {
+        Random rnd = new Random(9);
+        List<long[]> edges = randomEdges(rnd, 5000, 1000);
+        List<Graph> inputs = Arrays.asList(build(edges), build(edges).asTombstones());
+        assertTrue(Graph.merge(inputs, Allocator.HEAP).isEmpty());
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        Graph parallel = new ParallelGraphMerger(inputs, Allocator.HEAP, pool, 4).merge();
+        pool.shutdown();
+        assertTrue(parallel.isEmpty());
+        assertFalse(parallel.isTombstones());
+    }
+
+
+    @Test
+    public void testSaveAndMergeTo() throws IOException {
+        Random rnd = new Random(7);
+        List<long[]> edges = randomEdges(rnd, 3000, 500);
+        List<long[]> deleted = sample(rnd, edges, 600);
+        Graph tombstones = build(deleted).asTombstones();
+
+        Path file = tempDir.newFile().toPath();
+        tombstones.save(file);
+        Graph opened = Graph.open(file);
+        assertTrue(opened.isTombstones());
+
+        Path merged = tempDir.newFile().toPath();
+        Graph.mergeTo(merged, build(edges), opened);
+        Graph streamed = Graph.open(merged);
+        assertFalse(streamed.isTombstones());
+        GraphFileTest.assertSameBytes(build(minus(edges, deleted)), streamed, tempDir);
+
+        Graph.mergeTo(merged, opened, build(randomEdges(rnd, 100, 100)).asTombstones());
+        assertTrue(Graph.open(merged).isTombstones());
+    }
+
+
+    @Test
+    public void testMaskedCursor() {
+        Random rnd = new Random(8);
+        List<long[]> edges = randomEdges(rnd, 5000, 400);
+        List<long[]> deleted = sample(rnd, edges, 1500);
+        Graph data = build(edges);
+        Graph tombstones = build(deleted).asTombstones();
+        Graph merged = Graph.merge(data, tombstones);
+
+        Cursor expected = merged.newCursor();
+        Cursor masked = data.newCursor(tombstones);
+        assertEquals(expected.getQualifiedNodeIds(), masked.getQualifiedNodeIds());
+        assertEquals(expected.getNodeType(), masked.getNodeType());
+        assertEquals(expected.getNodeId(), masked.getNodeId());
+
+        for (ShortInt node : data.newCursor().getQualifiedNodeIds()) {
+            NodeType nodeType = new NodeType(node.getType());
+            boolean exists = expected.moveTo(nodeType, node.getId());
+            assertEquals(exists, masked.moveTo(nodeType, node.getId()));
+            if (exists)
+                GraphsTest.assertSameNode(expected, masked);
+        }
+    }
+
+
+    @Test
+    public void testMaskedCursorHidesNodes() {
+        GraphBuilder builder = new GraphBuilder();
+        builder.insertEdge((short) 1, 1, (short) 1, (short) 1, 2);
+        builder.insertEdge((short) 1, 1, (short) 2, (short) 1, 3);
+        Graph data = builder.build();
+        builder = new GraphBuilder();
+        builder.insertEdge((short) 1, 1, (short) 1, (short) 1, 2);
+        Graph tombstones = builder.build().asTombstones();
+
+        Cursor cursor = data.newCursor(tombstones);
+        assertEquals(
+                Arrays.asList(new ShortInt(1, 1), new ShortInt(1, 3)),
+                cursor.getQualifiedNodeIds());
+        assertFalse(cursor.moveTo(new NodeType(1), 2));
+        assertEquals(1, cursor.getNodeId());
+        assertEquals(Arrays.asList(new EdgeType(2)), cursor.getEdgeTypes(false));
+        assertEquals(1, cursor.getEdgeCount(false));
+        assertEquals(0, cursor.getEdgeCount(false, new EdgeType(1)));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCursorNotTombstones() {
+        Graph data = new RandomGraphBuilder().generateGraph(10);
+        data.newCursor(data);
+    }
+
+
+    /**
+     * Returns random edges, each encoded as
+     * <tt>{ srcType, srcId, edgeType, dtnType, dtnId }</tt>.
+     */
+    private List<long[]> randomEdges(Random rnd, int count, int nodes) {
+        List<long[]> edges = new ArrayList<>(count);
+        for (int index = 0; index < count; ++index) {
+            edges.add(new long[] {
+                rnd.nextInt(3), rnd.nextInt(nodes), rnd.nextInt(4), rnd.nextInt(3), rnd.nextInt(nodes)
+            });
+        }
+        return edges;
+    }
+
+
+    private List<long[]> sample(Random rnd, List<long[]> edges, int count) {
+        List<long[]> sample = new ArrayList<>(count);
+        for (int index = 0; index < count; ++index)
+            sample.add(edges.get(rnd.nextInt(edges.size())));
+        return sample;
+    }
+
+
+    private List<long[]> minus(List<long[]> edges, List<long[]> deleted) {
+        Set<List<Long>> removed = new LinkedHashSet<>();
+        for (long[] edge : deleted)
+            removed.add(key(edge));
+        List<long[]> remaining = new ArrayList<>(edges.size());
+        for (long[] edge : edges) {
+            if (!removed.contains(key(edge)))
+                remaining.add(edge);
+        }
+        return remaining;
+    }
+
+
+    private List<Long> key(long[] edge) {
+        return Arrays.asList(edge[0], edge[1], edge[2], edge[3], edge[4]);
+    }
+
+
+    private Graph build(List<long[]> edges) {
+        BulkGraphBuilder builder = new BulkGraphBuilder(2 * edges.size());
+        for (long[] edge : edges) {
+            builder.insertEdge(
+                    (short) edge[0], (int) edge[1], (short) edge[2], (short) edge[3], (int) edge[4]);
+        }
+        return builder.build();
+    }
+}
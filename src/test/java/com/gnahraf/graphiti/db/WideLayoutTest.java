@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.graphiti.db;
+
+
+import com.gnahraf.graphiti.model.Cursor;
+import com.gnahraf.graphiti.model.EdgeType;
+import com.gnahraf.graphiti.model.NodeType;
+import com.gnahraf.util.datatypes.Primitives;
+import com.gnahraf.util.mem.Allocator;
+import com.gnahraf.util.mem.Table;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Graphs in the wider {@linkplain Layout}s: wide row pointers and counts, and 32-bit node IDs.
+ */
+public class WideLayoutTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+
+    @Test
+    public void testNarrowByDefault() {
+        Graph graph = new RandomGraphBuilder().generateGraph(100);
+        assertEquals(Layout.NARROW, graph.getLayout());
+        assertEquals(AddressTable.ROW_SIZE, Layout.NARROW.addressRowSize());
+        assertEquals(EdgeTable.ROW_SIZE, Layout.NARROW.edgeRowSize());
+        assertEquals(NodeTypeTable.ROW_WIDTH, Layout.NARROW.nodeTypeRowSize());
+    }
+
+
+    @Test
+    public void testForSizes() {
+        int max = Primitives.MAX_TRYTE;
+        int maxCount = Primitives.MAX_USHORT;
+        assertEquals(Layout.NARROW, Layout.forSizes(max, max, maxCount, maxCount, max));
+        assertEquals(Layout.WIDE, Layout.forSizes(max + 1, max, maxCount, maxCount, max));
+        assertEquals(Layout.WIDE, Layout.forSizes(max, max + 1, maxCount, maxCount, max));
+        assertEquals(Layout.WIDE, Layout.forSizes(max, max, maxCount + 1, maxCount, max));
+        assertEquals(Layout.WIDE, Layout.forSizes(max, max, maxCount, maxCount + 1, max));
+        assertEquals(Layout.WIDE, Layout.forSizes(max, max, maxCount, maxCount, max + 1));
+    }
+
+
+    @Test
+    public void testAllEdgeTypes() {
+        GraphBuilder builder = new GraphBuilder();
+        for (int type = Short.MIN_VALUE; type <= Short.MAX_VALUE; ++type)
+            builder.insertEdge((short) 1, 1, (short) type, (short) 2, 2);
+        Graph graph = builder.build();
+        assertEquals(Layout.WIDE, graph.getLayout());
+
+        Cursor cursor = graph.newCursor();
+        assertTrue(cursor.moveTo(new NodeType(1), 1));
+        List<EdgeType> edgeTypes = cursor.getEdgeTypes(false);
+        assertEquals(Primitives.MAX_USHORT_EXC, edgeTypes.size());
+        assertEquals(new EdgeType(Short.MIN_VALUE), edgeTypes.get(0));
+        assertEquals(new EdgeType(Short.MAX_VALUE), edgeTypes.get(edgeTypes.size() - 1));
+        assertEquals(Primitives.MAX_USHORT_EXC, cursor.getEdgeCount(false));
+
+        assertTrue(cursor.moveTo(new NodeType(2), 2));
+        assertEquals(Primitives.MAX_USHORT_EXC, cursor.getEdgeTypes(true).size());
+    }
+
+
+    @Test
+    public void testAllNodeTypes() {
+        GraphBuilder builder = new GraphBuilder();
+        for (int type = Short.MIN_VALUE; type <= Short.MAX_VALUE; ++type)
+            builder.insertEdge((short) 1, 1, (short) 7, (short) type, 2);
+        Graph graph = builder.build();
+        assertEquals(Layout.WIDE, graph.getLayout());
+
+        Cursor cursor = graph.newCursor();
+        assertTrue(cursor.moveTo(new NodeType(1), 1));
+        EdgeType edgeType = new EdgeType(7);
+        assertEquals(Primitives.MAX_USHORT_EXC, cursor.getNodeTypes(false, edgeType).size());
+        assertEquals(1, cursor.getEdgeCount(false, edgeType, new NodeType(Short.MAX_VALUE)));
+    }
+
+
+    @Test
+    public void testMergeWidens() {
+        GraphBuilder builder = new GraphBuilder();
+        for (int type = Short.MIN_VALUE; type <= 0; ++type)
+            builder.insertEdge((short) 1, 1, (short) type, (short) 2, 2);
+        Graph a = builder.build();
+
+        builder = new GraphBuilder();
+        for (int type = 0; type <= Short.MAX_VALUE; ++type)
+            builder.insertEdge((short) 1, 1, (short) type, (short) 2, 2);
+        Graph b = builder.build();
+
+        assertEquals(Layout.NARROW, a.getLayout());
+        assertEquals(Layout.NARROW, b.getLayout());
+
+        Graph c = Graph.merge(a, b);
+        assertEquals(Layout.WIDE, c.getLayout());
+        Cursor cursor = c.newCursor();
+        assertTrue(cursor.moveTo(new NodeType(1), 1));
+        assertEquals(Primitives.MAX_USHORT_EXC, cursor.getEdgeTypes(false).size());
+    }
+
+
+    @Test
+    public void testForcedWide() throws IOException {
+        RandomGraphBuilder builder = new RandomGraphBuilder().setLayout(Layout.WIDE);
+        builder.setSampleCount(100);
+        Graph a = builder.generateGraph(500);
+        assertEquals(Layout.WIDE, a.getLayout());
+        assertEdges(builder.getExpectedDefs(), a);
+
+        builder.setLayout(Layout.NARROW);
+        Graph b = builder.generateGraph(500);
+        assertEquals(Layout.NARROW, b.getLayout());
+
+        Graph c = Graph.merge(a, b);
+        assertEquals(Layout.WIDE, c.getLayout());
+        assertEdges(builder.getExpectedDefs(), c);
+
+        Path file = tempDir.newFile().toPath();
+        c.save(file);
+        Graph loaded = Graph.open(file);
+        assertEquals(Layout.WIDE, loaded.getLayout());
+        GraphFileTest.assertSameStats(c, loaded);
+        assertEdges(builder.getExpectedDefs(), loaded);
+        loaded.release();
+    }
+
+
+    @Test
+    public void testWidePaged() {
+        RandomGraphBuilder builder =
+                new RandomGraphBuilder().setLayout(Layout.WIDE).setAllocator(Allocator.DIRECT).setPageShift(4);
+        builder.setSampleCount(100);
+        Graph graph = builder.generateGraph(500);
+        assertEquals(Layout.WIDE, graph.getLayout());
+        assertTrue(graph.addressTable.isPaged());
+        assertEdges(builder.getExpectedDefs(), graph);
+        graph.release();
+    }
+
+
+    @Test
+    public void testWideNodeIds() throws IOException {
+        int bigId = 40 * 1000 * 1000;
+        GraphBuilder builder = new GraphBuilder();
+        builder.insertEdge((short) 1, bigId, (short) 5, (short) 2, 3);
+        builder.insertEdge((short) 1, bigId, (short) 5, (short) 2, Integer.MAX_VALUE);
+        builder.insertEdge((short) 2, 3, (short) 6, (short) 1, 7);
+        Graph graph = builder.build();
+        assertEquals(Layout.of(false, 4), graph.getLayout());
+        assertFalse(graph.getLayout().isWide());
+        assertWideNodeIds(bigId, graph);
+
+        Path file = tempDir.newFile().toPath();
+        graph.save(file);
+        Graph loaded = Graph.open(file);
+        assertEquals(graph.getLayout(), loaded.getLayout());
+        assertWideNodeIds(bigId, loaded);
+        loaded.release();
+    }
+
+
+    private void assertWideNodeIds(int bigId, Graph graph) {
+        Cursor cursor = graph.newCursor();
+        assertTrue(cursor.moveTo(new NodeType(1), bigId));
+        List<Integer> ids = cursor.getNodeIds(false, new EdgeType(5), new NodeType(2));
+        assertEquals(2, ids.size());
+        assertEquals(3, ids.get(0).intValue());
+        assertEquals(Integer.MAX_VALUE, ids.get(1).intValue());
+        assertTrue(cursor.moveTo(new NodeType(2), Integer.MAX_VALUE));
+        assertEquals(
+                bigId,
+                cursor.getNodeIds(true, new EdgeType(5), new NodeType(1)).get(0).intValue());
+        assertTrue(cursor.moveTo(new NodeType(1), 7));
+    }
+
+
+    @Test
+    public void testMergeWideNodeIds() {
+        RandomGraphBuilder builder = new RandomGraphBuilder();
+        builder.setSampleCount(100);
+        Graph a = builder.generateGraph(500);
+        assertEquals(Layout.NARROW, a.getLayout());
+
+        GraphBuilder wideIds = new GraphBuilder();
+        wideIds.insertEdge((short) 1, Primitives.MAX_TRYTE + 1, (short) 1, (short) 1, 1);
+        Graph b = wideIds.build();
+        assertEquals(Layout.of(false, 4), b.getLayout());
+
+        Graph c = Graph.merge(a, b);
+        assertEquals(Layout.of(false, 4), c.getLayout());
+        assertEdges(builder.getExpectedDefs(), c);
+        Cursor cursor = c.newCursor();
+        assertTrue(cursor.moveTo(new NodeType(1), Primitives.MAX_TRYTE + 1));
+        assertEquals(1, cursor.getEdgeCount(false));
+    }
+
+
+    @Test
+    public void testWidest() {
+        assertEquals(Layout.of(true, 4), Layout.widest(Layout.WIDE, Layout.of(false, 4)));
+        assertEquals(Layout.NARROW, Layout.widest(Layout.NARROW, Layout.NARROW));
+        assertEquals(Layout.WIDE, Layout.widest(Layout.NARROW, Layout.WIDE));
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMixedLayouts() {
+        new Graph(
+                new AddressTable(1, Allocator.HEAP, Table.UNPAGED, Layout.WIDE),
+                new EdgeTable(1),
+                new NodeTypeTable(1),
+                new NodeIdTable(1));
+    }
+
+
+    private void assertEdges(List<RandomGraphBuilder.EdgeDef> expectedDefs, Graph graph) {
+        Cursor cursor = graph.newCursor();
+        for (RandomGraphBuilder.EdgeDef edgeDef : expectedDefs)
+            GraphsTest.assertEdge(edgeDef, cursor);
+    }
+}
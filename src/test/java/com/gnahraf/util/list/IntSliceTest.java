@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.util.list;
+
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+import static org.junit.Assert.*;
+
+/**
+ * An {@linkplain IntSlice} must read the same as its boxed counterpart.
+ */
+public class IntSliceTest {
+
+
+    @Test
+    public void testEmpty() {
+        IntSlice empty = IntSlice.EMPTY;
+        assertTrue(empty.isEmpty());
+        assertEquals(-1, empty.binarySearch(5));
+        assertEquals(0, empty.toArray().length);
+        assertTrue(empty.asList().isEmpty());
+        assertSame(empty, IntSlice.wrap(Collections.<Integer>emptyList()));
+        try {
+            empty.getInt(0);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {  }
+    }
+
+
+    @Test
+    public void testWrap() {
+        int[] array = { 1, 3, 5, 7, 9, 11 };
+        IntSlice slice = IntSlice.wrap(array, 1, 5);
+        assertEquals(4, slice.size());
+        assertEquals(3, slice.getInt(0));
+        assertEquals(9, slice.getInt(3));
+        assertEquals(Arrays.asList(3, 5, 7, 9), slice.asList());
+        assertEquals(IntSlice.wrap(Arrays.asList(3, 5, 7, 9)), slice);
+        assertEquals("[3, 5, 7, 9]", slice.toString());
+
+        int[] dest = new int[6];
+        assertEquals(5, slice.copyTo(dest, 1));
+        assertArrayEquals(new int[] { 0, 3, 5, 7, 9, 0 }, dest);
+
+        assertEquals(IntSlice.wrap(array, 2, 4), slice.subSlice(1, 3));
+        try {
+            slice.getInt(4);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {  }
+    }
+
+
+    @Test
+    public void testBinarySearch() {
+        Random random = new Random(1);
+        for (int round = 0; round < 100; ++round) {
+            int size = random.nextInt(50);
+            int[] array = new int[size];
+            for (int i = 0; i < size; ++i)
+                array[i] = random.nextInt(100);
+            Arrays.sort(array);
+            IntSlice slice = IntSlice.wrap(array);
+            for (int key = -1; key <= 101; ++key) {
+                int expected = Arrays.binarySearch(array, key);
+                int actual = slice.binarySearch(key);
+                if (expected < 0)
+                    assertEquals(expected, actual);
+                else
+                    assertEquals(key, array[actual]);
+                assertEquals(expected >= 0, slice.contains(key));
+            }
+        }
+    }
+
+
+    @Test
+    public void testUnion() {
+        Random random = new Random(2);
+        for (int round = 0; round < 100; ++round) {
+            int[] a = sortedRandom(random, random.nextInt(20));
+            int[] b = sortedRandom(random, random.nextInt(20));
+            List<Integer> expected = new ArrayList<>();
+            for (int value : a)
+                expected.add(value);
+            for (int value : b)
+                expected.add(value);
+            Collections.sort(expected);
+
+            // sequential access (the union is not yet materialized)
+            final List<Integer> traversed = new ArrayList<>();
+            IntSlice union = IntSlice.union(IntSlice.wrap(a), IntSlice.wrap(b));
+            union.forEach(new IntConsumer() {
+                @Override
+                public void accept(int value) {
+                    traversed.add(value);
+                }
+            });
+            assertEquals(expected, traversed);
+            assertEquals(expected, IntSlice.wrap(union.toArray()).asList());
+
+            // random access
+            union = IntSlice.union(IntSlice.wrap(a), IntSlice.wrap(b));
+            assertEquals(expected.size(), union.size());
+            for (int index = expected.size(); index-- > 0; )
+                assertEquals(expected.get(index).intValue(), union.getInt(index));
+            for (int key = -1; key <= 101; ++key)
+                assertEquals(expected.contains(key), union.contains(key));
+        }
+    }
+
+
+    private static int[] sortedRandom(Random random, int size) {
+        int[] array = new int[size];
+        for (int i = 0; i < size; ++i)
+            array[i] = random.nextInt(100);
+        Arrays.sort(array);
+        return array;
+    }
+}
@@ -103,6 +103,29 @@ public class ListsTest {
     }
 
 
+    @Test
+    public void testDistinctDifference() {
+        Integer[] a = {
+              1, 5, 13, 27, 31, 32, 33, 48, 55, 56, 60, 66, 81,
+        };
+        Integer[] b = {
+            0, 5, 7, 31, 33, 34, 81, 90,
+        };
+        List<Integer> expected = new ArrayList<>(Lists.asList(a));
+        expected.removeAll(Lists.asList(b));
+        assertEquals(expected, Lists.distinctDifference(Lists.asList(a), Lists.asList(b)));
+    }
+
+    @Test
+    public void testDisjointDifference() {
+        List<Integer> a = Lists.asList(new Integer[] { 2, 4, 6 });
+        List<Integer> b = Lists.asList(new Integer[] { 1, 3, 5, 7 });
+        assertSame(a, Lists.distinctDifference(a, b));
+        assertTrue(Lists.distinctDifference(a, a).isEmpty());
+    }
+
+
+
 
     private void testDistinctUnionImpl(Integer[] a, Integer[] b) {
         testDistinctUnionImpl(Lists.asList(a), Lists.asList(b));
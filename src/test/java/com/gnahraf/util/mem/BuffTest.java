@@ -6,6 +6,7 @@ package com.gnahraf.util.mem;
 
 
 import com.gnahraf.util.datatypes.Primitives;
+import java.nio.ByteBuffer;
 import com.gnahraf.util.mem.Buff;
 
 import org.junit.Test;
@@ -76,6 +77,38 @@ public class BuffTest {
     }
 
 
+    @Test
+    public void testNioBuff() {
+        Buff buff = new NioBuff(ByteBuffer.allocateDirect(1081)).sub(59, 233);
+
+        assertRoundtripShort((short) -30197, buff, 5);
+        assertRoundtripInt(Integer.MIN_VALUE, buff, 55);
+        assertRoundtripTryte(Primitives.MAX_TRYTE, buff, buff.size() - 3);
+
+        assertBoundsCheckShort(buff, buff.size() - 1);
+        assertBoundsCheckInt(buff, buff.size() - 3);
+        assertBoundsCheckTryte(buff, buff.size() - 2);
+        assertTryteOverflow(buff, -1);
+    }
+
+
+    @Test
+    public void testNioBuffCopy() {
+        Buff heap = new Buff(64);
+        for (int i = 0; i < heap.size(); ++i)
+            heap.put((byte) i, i);
+        Buff nio = new NioBuff(ByteBuffer.allocateDirect(64));
+
+        heap.sub(8, 24).copyInto(nio, 4);
+        assertEquals(heap.sub(8, 24), nio.sub(4, 20));
+
+        Buff heap2 = new Buff(64);
+        heap2.put(nio.sub(4, 20), 0);
+        assertEquals(heap.sub(8, 24), heap2.sub(0, 16));
+        assertEquals(nio.getInt(8), heap.getInt(12));
+    }
+
+
     void assertRoundtripShort(short value, Buff buff, int index) {
         buff.putShort(value, index);
         assertEquals(value, buff.getShort(index));
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2015 Babak Farhang
+ */
+
+package com.gnahraf.util.mem;
+
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Created by babak on 7/2/15.
+ */
+public class Crc32CTest {
+
+    @Test
+    public void testCheckValue() {
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xe3069283, Crc32C.compute(ByteBuffer.wrap(check)));
+        assertEquals(0xe3069283, Crc32C.computeByTable(ByteBuffer.wrap(check)));
+    }
+
+
+    @Test
+    public void testTableAgreesWithCompute() {
+        byte[] bytes = new byte[10007];
+        new Random(11).nextBytes(bytes);
+        assertEquals(
+                Crc32C.compute(ByteBuffer.wrap(bytes)),
+                Crc32C.computeByTable(ByteBuffer.wrap(bytes)));
+    }
+
+
+    @Test
+    public void testCombine() {
+        byte[] bytes = new byte[4099];
+        new Random(7).nextBytes(bytes);
+        Buff block = new Buff(bytes);
+        int expected = Crc32C.compute(block);
+
+        for (int split : new int[] { 0, 1, 2, 1000, 2048, 4098, 4099 }) {
+            int crcA = Crc32C.compute(block.sub(0, split));
+            int crcB = Crc32C.compute(block.sub(split));
+            assertEquals(expected, Crc32C.combine(crcA, crcB, block.size() - split));
+        }
+    }
+}